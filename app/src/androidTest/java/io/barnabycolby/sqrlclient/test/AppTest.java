@@ -0,0 +1,48 @@
+package io.barnabycolby.sqrlclient.test;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.helpers.IdentityManagerReadyListener;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class AppTest {
+    @Test
+    public void identityManagerShouldBeReadyOnceRetrieved() {
+        SQRLIdentityManager identityManager = App.getSQRLIdentityManager();
+        assertTrue(App.isSQRLIdentityManagerReady());
+        assertSame(identityManager, App.getSQRLIdentityManager());
+    }
+
+    @Test
+    public void readyListenerShouldReceiveTheSameIdentityManager() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<SQRLIdentityManager> readyIdentityManager = new AtomicReference<SQRLIdentityManager>();
+        App.whenSQRLIdentityManagerReady(new IdentityManagerReadyListener() {
+            @Override
+            public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+                readyIdentityManager.set(identityManager);
+                latch.countDown();
+            }
+
+            @Override
+            public void onIdentityManagerFailed(Exception ex) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertSame(App.getSQRLIdentityManager(), readyIdentityManager.get());
+    }
+}
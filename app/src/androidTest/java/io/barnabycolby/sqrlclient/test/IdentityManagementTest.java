@@ -2,6 +2,7 @@ package io.barnabycolby.sqrlclient.test;
 
 import android.app.Instrumentation;
 import android.app.Instrumentation.ActivityMonitor;
+import android.os.SystemClock;
 import android.support.test.espresso.Espresso;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.rule.ActivityTestRule;
@@ -152,7 +153,7 @@ public class IdentityManagementTest {
     public void currentIdentityIsFirstIdentityWhenCreated() throws Exception {
         String identityName = "Martin Fowler";
         TestHelper.createNewIdentity(identityName);
-        assertEquals(identityName, App.getSQRLIdentityManager().getCurrentIdentityName());
+        waitForCurrentIdentity(identityName);
     }
 
     @Test
@@ -180,9 +181,9 @@ public class IdentityManagementTest {
         TestHelper.createNewIdentity(identityName1);
         TestHelper.createNewIdentity(identityName2);
 
-        assertEquals(identityName1, App.getSQRLIdentityManager().getCurrentIdentityName());
+        waitForCurrentIdentity(identityName1);
         onView(withId(R.id.DeleteIdentityButton)).perform(click());
-        assertEquals(identityName2, App.getSQRLIdentityManager().getCurrentIdentityName());
+        waitForCurrentIdentity(identityName2);
     }
 
     @Test
@@ -192,10 +193,24 @@ public class IdentityManagementTest {
         TestHelper.createNewIdentity(identityName1);
         TestHelper.createNewIdentity(identityName2);
 
-        assertEquals(identityName1, App.getSQRLIdentityManager().getCurrentIdentityName());
+        waitForCurrentIdentity(identityName1);
         selectIdentitySpinnerItem(identityName2);
-        assertEquals(identityName2, App.getSQRLIdentityManager().getCurrentIdentityName());
+        waitForCurrentIdentity(identityName2);
         selectIdentitySpinnerItem(identityName1);
+        waitForCurrentIdentity(identityName1);
+    }
+
+    @Test
+    public void searchingIdentitiesShouldNotChangeCurrentIdentity() throws Exception {
+        String identityName1 = "Ada Lovelace";
+        String identityName2 = "Grace Hopper";
+        TestHelper.createNewIdentity(identityName1);
+        TestHelper.createNewIdentity(identityName2);
+        waitForCurrentIdentity(identityName1);
+
+        onView(withId(R.id.IdentitySearchEditText)).perform(typeText("Grace"));
+        Espresso.closeSoftKeyboard();
+        onView(withId(R.id.IdentitySpinner)).check(matches(withSpinnerText(identityName2)));
         assertEquals(identityName1, App.getSQRLIdentityManager().getCurrentIdentityName());
     }
 
@@ -224,6 +239,17 @@ public class IdentityManagementTest {
         App.getSQRLIdentityManager().removeAllIdentities();        
     }
 
+    /**
+     * Waits for the identity to become current, as the identity spinner makes its selection current on a background thread.
+     */
+    private void waitForCurrentIdentity(String identityName) {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (!identityName.equals(App.getSQRLIdentityManager().getCurrentIdentityName()) && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(50);
+        }
+        assertEquals(identityName, App.getSQRLIdentityManager().getCurrentIdentityName());
+    }
+
     private void selectIdentitySpinnerItem(String item) {
         onView(withId(R.id.IdentitySpinner)).perform(click());
         onData(allOf(is(instanceOf(String.class)), is(item))).perform(click());
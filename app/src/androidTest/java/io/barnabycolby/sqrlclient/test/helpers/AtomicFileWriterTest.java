@@ -0,0 +1,202 @@
+package io.barnabycolby.sqrlclient.test.helpers;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.helpers.AtomicFileWriter;
+import io.barnabycolby.sqrlclient.helpers.Lambda;
+import io.barnabycolby.sqrlclient.test.TestHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class AtomicFileWriterTest {
+    private static final byte[] OLD_CONTENTS = "old contents".getBytes();
+    private static final byte[] NEW_CONTENTS = "new contents, which are longer".getBytes();
+
+    private File mFolder;
+    private File mFile;
+    private File mTemporaryFile;
+
+    @Before
+    public void setUp() throws Exception {
+        this.mFolder = new File(App.getContext().getCacheDir(), "atomicFileWriterTest");
+        FileUtils.deleteDirectory(this.mFolder);
+        FileUtils.forceMkdir(this.mFolder);
+        this.mFile = new File(this.mFolder, "file");
+        this.mTemporaryFile = new File(this.mFolder, "file" + AtomicFileWriter.TEMPORARY_FILE_SUFFIX);
+        new AtomicFileWriter().write(this.mFile, OLD_CONTENTS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.mFolder);
+    }
+
+    @Test
+    public void writeShouldReplaceContentsWithoutLeavingTemporaryFile() throws Exception {
+        new AtomicFileWriter().write(this.mFile, NEW_CONTENTS);
+        assertArrayEquals(NEW_CONTENTS, FileUtils.readFileToByteArray(this.mFile));
+        assertFalse(this.mTemporaryFile.exists());
+    }
+
+    @Test
+    public void streamedWriteShouldReplaceContents() throws Exception {
+        new AtomicFileWriter().write(this.mFile, new AtomicFileWriter.Contents() {
+            @Override
+            public void writeTo(OutputStream output) throws IOException {
+                output.write(NEW_CONTENTS, 0, 3);
+                output.write(NEW_CONTENTS, 3, NEW_CONTENTS.length - 3);
+            }
+        });
+        assertArrayEquals(NEW_CONTENTS, FileUtils.readFileToByteArray(this.mFile));
+        assertFalse(this.mTemporaryFile.exists());
+    }
+
+    @Test
+    public void crashBeforeRenameShouldLeaveOldContents() throws Exception {
+        for (Step step : new Step[] { Step.WRITE, Step.SYNC_FILE, Step.RENAME }) {
+            assertCrashLeaves(step, OLD_CONTENTS);
+        }
+    }
+
+    @Test
+    public void crashAfterRenameShouldLeaveNewContents() throws Exception {
+        assertCrashLeaves(Step.SYNC_DIRECTORY, NEW_CONTENTS);
+    }
+
+    @Test
+    public void failedRenameShouldRemoveTemporaryFile() throws Exception {
+        final AtomicFileWriter writer = new AtomicFileWriter() {
+            @Override
+            protected void rename(File temporaryFile, File file) throws IOException {
+                throw new IOException("Injected failure");
+            }
+        };
+        TestHelper.assertExceptionThrown(IOException.class, new Lambda() {
+            public void run() throws Exception {
+                writer.write(mFile, NEW_CONTENTS);
+            }
+        });
+
+        assertArrayEquals(OLD_CONTENTS, FileUtils.readFileToByteArray(this.mFile));
+        assertFalse(this.mTemporaryFile.exists());
+    }
+
+    @Test
+    public void batchShouldOnlyReplaceFilesWhenCommitted() throws Exception {
+        File secondFile = new File(this.mFolder, "second");
+        AtomicFileWriter.Batch batch = new AtomicFileWriter().beginBatch();
+        batch.write(this.mFile, NEW_CONTENTS);
+        batch.write(secondFile, NEW_CONTENTS);
+        assertArrayEquals(OLD_CONTENTS, FileUtils.readFileToByteArray(this.mFile));
+        assertFalse(secondFile.exists());
+
+        batch.commit();
+        assertArrayEquals(NEW_CONTENTS, FileUtils.readFileToByteArray(this.mFile));
+        assertArrayEquals(NEW_CONTENTS, FileUtils.readFileToByteArray(secondFile));
+        assertFalse(this.mTemporaryFile.exists());
+    }
+
+    @Test
+    public void abortedBatchShouldLeaveOldContentsWithoutTemporaryFiles() throws Exception {
+        File secondFile = new File(this.mFolder, "second");
+        AtomicFileWriter.Batch batch = new AtomicFileWriter().beginBatch();
+        batch.write(this.mFile, NEW_CONTENTS);
+        batch.write(secondFile, NEW_CONTENTS);
+        batch.abort();
+
+        assertArrayEquals(OLD_CONTENTS, FileUtils.readFileToByteArray(this.mFile));
+        assertFalse(secondFile.exists());
+        assertArrayEquals(new String[] { "file" }, this.mFolder.list());
+    }
+
+    private void assertCrashLeaves(Step step, byte[] expectedContents) throws Exception {
+        try {
+            new CrashingAtomicFileWriter(step).write(this.mFile, NEW_CONTENTS);
+            throw new AssertionError("The write did not crash at " + step);
+        } catch (SimulatedCrash ex) {
+            // Expected
+        }
+
+        assertArrayEquals(expectedContents, FileUtils.readFileToByteArray(this.mFile));
+        AtomicFileWriter.deleteTemporaryFiles(this.mFolder);
+        assertFalse(this.mTemporaryFile.exists());
+        assertTrue(this.mFile.exists());
+
+        // Reset for the next step
+        new AtomicFileWriter().write(this.mFile, OLD_CONTENTS);
+    }
+
+    public enum Step { WRITE, SYNC_FILE, RENAME, SYNC_DIRECTORY }
+
+    /**
+     * Thrown in place of the process being killed, so it is not an IOException and is not cleaned up after by the writer.
+     */
+    public static class SimulatedCrash extends RuntimeException {
+    }
+
+    /**
+     * An AtomicFileWriter that crashes at the start of the given step, leaving behind whatever the previous steps wrote.
+     */
+    public static class CrashingAtomicFileWriter extends AtomicFileWriter {
+        private Step mCrashStep;
+
+        public CrashingAtomicFileWriter(Step crashStep) {
+            this.mCrashStep = crashStep;
+        }
+
+        @Override
+        protected void writeTemporaryFile(File temporaryFile, Contents contents) throws IOException {
+            if (this.mCrashStep == Step.WRITE) {
+                // Crash half way through the write
+                ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                contents.writeTo(byteStream);
+                byte[] bytes = byteStream.toByteArray();
+                FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+                outputStream.write(bytes, 0, bytes.length / 2);
+                outputStream.close();
+                throw new SimulatedCrash();
+            }
+            super.writeTemporaryFile(temporaryFile, contents);
+        }
+
+        @Override
+        protected void syncFile(FileOutputStream outputStream) throws IOException {
+            crashIfAt(Step.SYNC_FILE);
+            super.syncFile(outputStream);
+        }
+
+        @Override
+        protected void rename(File temporaryFile, File file) throws IOException {
+            crashIfAt(Step.RENAME);
+            super.rename(temporaryFile, file);
+        }
+
+        @Override
+        protected void syncDirectory(File directory) throws IOException {
+            crashIfAt(Step.SYNC_DIRECTORY);
+            super.syncDirectory(directory);
+        }
+
+        private void crashIfAt(Step step) {
+            if (this.mCrashStep == step) {
+                throw new SimulatedCrash();
+            }
+        }
+    }
+}
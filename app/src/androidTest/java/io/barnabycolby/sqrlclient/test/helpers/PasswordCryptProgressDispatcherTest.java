@@ -0,0 +1,99 @@
+package io.barnabycolby.sqrlclient.test.helpers;
+
+import android.os.Looper;
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.helpers.PasswordCryptProgressDispatcher;
+import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class PasswordCryptProgressDispatcherTest {
+    private RecordingListener mListener;
+    private PasswordCryptProgressDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        this.mListener = new RecordingListener();
+        this.mDispatcher = new PasswordCryptProgressDispatcher(this.mListener);
+    }
+
+    @Test
+    public void progressShouldBeCoalescedAndDeliveredOnTheMainThread() throws Exception {
+        // Report every percentage many times over, much faster than once per frame
+        for (int progress = 0; progress <= 100; progress++) {
+            for (int i = 0; i < 10; i++) {
+                this.mDispatcher.onPasswordCryptProgressUpdate(progress);
+            }
+        }
+        this.mDispatcher.onPasswordCryptResult(true);
+        assertTrue(this.mListener.awaitResult());
+
+        assertFalse(this.mListener.mCalledOffMainThread);
+        assertTrue(this.mListener.mProgressUpdates.size() < 101);
+        assertEquals(100, (int)this.mListener.mProgressUpdates.get(this.mListener.mProgressUpdates.size() - 1));
+        assertEquals(100, this.mDispatcher.getProgress());
+        for (int i = 1; i < this.mListener.mProgressUpdates.size(); i++) {
+            assertTrue(this.mListener.mProgressUpdates.get(i) > this.mListener.mProgressUpdates.get(i - 1));
+        }
+    }
+
+    @Test
+    public void progressShouldNotArriveAfterTheResult() throws Exception {
+        this.mDispatcher.onPasswordCryptProgressUpdate(50);
+        this.mDispatcher.onPasswordCryptResult(false);
+        assertTrue(this.mListener.awaitResult());
+
+        // Give any stray progress runnables a chance to run
+        Thread.sleep(100);
+        assertEquals(1, this.mListener.mProgressUpdates.size());
+        assertEquals(1, this.mListener.mCallsAfterResult);
+    }
+
+    private static class RecordingListener implements PasswordCryptListener {
+        private List<Integer> mProgressUpdates = new ArrayList<Integer>();
+        private boolean mCalledOffMainThread = false;
+        private int mCallsAfterResult = 0;
+        private boolean mResultReceived = false;
+        private CountDownLatch mResultLatch = new CountDownLatch(1);
+
+        @Override
+        public void onPasswordCryptProgressUpdate(int progress) {
+            recordThread();
+            if (this.mResultReceived) {
+                this.mCallsAfterResult++;
+            }
+            this.mProgressUpdates.add(progress);
+        }
+
+        @Override
+        public void onPasswordCryptResult(boolean result) {
+            recordThread();
+            this.mResultReceived = true;
+            this.mCallsAfterResult++;
+            this.mResultLatch.countDown();
+        }
+
+        private void recordThread() {
+            if (Looper.getMainLooper().getThread() != Thread.currentThread()) {
+                this.mCalledOffMainThread = true;
+            }
+        }
+
+        private boolean awaitResult() throws InterruptedException {
+            return this.mResultLatch.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.sqrl.AccountStateCache;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+@RunWith(AndroidJUnit4.class)
+public class AccountStateCacheTest {
+    private SharedPreferences mPreferences;
+    private AccountStateCache mCache;
+    private SQRLIdentity mIdentity;
+    private SQRLIdentity mOtherSiteIdentity;
+
+    @Before
+    public void setUp() {
+        this.mPreferences = App.getContext().getSharedPreferences("account_states_test", Context.MODE_PRIVATE);
+        this.mPreferences.edit().clear().commit();
+        this.mCache = new AccountStateCache(this.mPreferences);
+
+        this.mIdentity = mock(SQRLIdentity.class);
+        when(this.mIdentity.getIdentityKey()).thenReturn("TLkr7WmDr8YAd4eRk2dy6LZq0tL8vzyYy1fpJ9CvGxM");
+        this.mOtherSiteIdentity = mock(SQRLIdentity.class);
+        when(this.mOtherSiteIdentity.getIdentityKey()).thenReturn("bV6jWzZf1f1B0WbG0F2NR0x4Uo2HRb6jYwB0K7f0bYc");
+    }
+
+    @After
+    public void tearDown() {
+        this.mPreferences.edit().clear().commit();
+    }
+
+    @Test
+    public void nothingShouldBeKnownAtFirst() {
+        assertFalse(this.mCache.isAccountKnownToExist(this.mIdentity));
+    }
+
+    @Test
+    public void accountStateShouldBeKeptPerIdentityKey() {
+        this.mCache.setAccountExists(this.mIdentity, true);
+        assertTrue(this.mCache.isAccountKnownToExist(this.mIdentity));
+        assertFalse(this.mCache.isAccountKnownToExist(this.mOtherSiteIdentity));
+
+        this.mCache.setAccountExists(this.mIdentity, false);
+        assertFalse(this.mCache.isAccountKnownToExist(this.mIdentity));
+    }
+
+    @Test
+    public void accountStateShouldBePersisted() {
+        this.mCache.setAccountExists(this.mIdentity, true);
+
+        AccountStateCache cache = new AccountStateCache(this.mPreferences);
+        assertTrue(cache.isAccountKnownToExist(this.mIdentity));
+    }
+}
@@ -0,0 +1,132 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.sqrl.EnScryptCalibrator;
+import io.barnabycolby.sqrlclient.sqrl.factories.FastestScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.JavaScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.SodiumScryptEngineFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class EnScryptCalibratorTest {
+    private SharedPreferences mPreferences;
+    private FastestScryptEngineFactory mScryptEngineFactory;
+    private EnScryptCalibrator mCalibrator;
+
+    @Before
+    public void setUp() {
+        this.mPreferences = App.getContext().getSharedPreferences("enscrypt_calibration_test", Context.MODE_PRIVATE);
+        this.mPreferences.edit().clear().commit();
+        this.mScryptEngineFactory = new FastestScryptEngineFactory(this.mPreferences, new JavaScryptEngineFactory());
+        this.mCalibrator = new EnScryptCalibrator(this.mPreferences, this.mScryptEngineFactory);
+    }
+
+    @After
+    public void tearDown() {
+        this.mPreferences.edit().clear().commit();
+    }
+
+    @Test
+    public void planIterationsShouldCalibrateIfNoProfileExists() {
+        assertFalse(this.mCalibrator.isCalibrated());
+        int iterations = this.mCalibrator.planIterations(5000);
+        assertTrue(iterations >= 1);
+        assertTrue(this.mCalibrator.isCalibrated());
+    }
+
+    @Test
+    public void planIterationsShouldScaleWithTheProfiledRate() {
+        double iterationsPerSecond = this.mCalibrator.calibrate();
+        assertTrue(iterationsPerSecond > 0);
+        assertEquals(Math.max(1, Math.round(iterationsPerSecond * 5)), this.mCalibrator.planIterations(5000));
+        assertEquals(Math.max(1, Math.round(iterationsPerSecond * 10)), this.mCalibrator.planIterations(10000));
+    }
+
+    @Test
+    public void profileShouldBePersisted() {
+        double iterationsPerSecond = this.mCalibrator.calibrate();
+
+        EnScryptCalibrator calibrator = new EnScryptCalibrator(this.mPreferences, this.mScryptEngineFactory);
+        assertTrue(calibrator.isCalibrated());
+        assertEquals(iterationsPerSecond, calibrator.getIterationsPerSecond(), iterationsPerSecond * 0.0001);
+    }
+
+    @Test
+    public void calibrationShouldSelectTheScryptEngine() {
+        assertFalse(this.mScryptEngineFactory.isSelected(512, 256));
+        this.mCalibrator.calibrate();
+        assertTrue(this.mScryptEngineFactory.isSelected(512, 256));
+    }
+
+    @Test
+    public void profileShouldBeIgnoredIfTheScryptEngineChanges() {
+        this.mCalibrator.calibrate();
+
+        // An update that drops the selected engine means that EnScrypt falls back to libsodium, which the profile says nothing about
+        FastestScryptEngineFactory updatedFactory = new FastestScryptEngineFactory(this.mPreferences, new SodiumScryptEngineFactory());
+        EnScryptCalibrator calibrator = new EnScryptCalibrator(this.mPreferences, updatedFactory);
+        assertFalse(calibrator.isCalibrated());
+        assertTrue(this.mCalibrator.isCalibrated());
+    }
+
+    @Test
+    public void cancelledCalibrationShouldNotPersistAProfile() {
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        try {
+            this.mCalibrator.planIterations(5000, cancellationSignal);
+            fail("OperationCanceledException was not thrown.");
+        } catch (OperationCanceledException ex) {
+            // This indicates success!
+        }
+
+        assertFalse(this.mCalibrator.isCalibrated());
+    }
+
+    @Test
+    public void profileShouldBeKeptIfTheMeasuredRateIsClose() {
+        double iterationsPerSecond = this.mCalibrator.calibrate();
+        int iterations = 100;
+        long durationInMillis = Math.round(iterations * 1000 / (iterationsPerSecond * 1.1));
+
+        assertFalse(this.mCalibrator.onDerivationCompleted(iterations, durationInMillis));
+        assertTrue(this.mCalibrator.isCalibrated());
+    }
+
+    @Test
+    public void profileShouldBeDiscardedIfTheMeasuredRateDrifts() {
+        double iterationsPerSecond = this.mCalibrator.calibrate();
+        int iterations = 100;
+
+        // The device has become half as fast, perhaps due to thermal throttling
+        long durationInMillis = Math.round(iterations * 1000 / (iterationsPerSecond * 0.5));
+        assertTrue(this.mCalibrator.onDerivationCompleted(iterations, durationInMillis));
+        assertFalse(this.mCalibrator.isCalibrated());
+
+        // The next plan should recalibrate
+        this.mCalibrator.planIterations(5000);
+        assertTrue(this.mCalibrator.isCalibrated());
+    }
+
+    @Test
+    public void shortDerivationsShouldNotCauseRecalibration() {
+        this.mCalibrator.calibrate();
+        assertFalse(this.mCalibrator.onDerivationCompleted(1, 100000));
+        assertTrue(this.mCalibrator.isCalibrated());
+    }
+}
@@ -1,26 +1,67 @@
 package io.barnabycolby.sqrlclient.test.sqrl;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.support.test.runner.AndroidJUnit4;
 
+import eu.artemisc.stodium.Stodium;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpointStore;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.MemoryEnScryptCheckpointStore;
 import io.barnabycolby.sqrlclient.sqrl.EnScrypt;
+import io.barnabycolby.sqrlclient.sqrl.factories.FastestScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.JavaScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.ScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.SodiumScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
 import io.barnabycolby.sqrlclient.test.TestHelper;
 import io.barnabycolby.sqrlclient.helpers.Lambda;
 
+import java.nio.charset.Charset;
+
+import org.abstractj.kalium.Sodium;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 @RunWith(AndroidJUnit4.class)
 public class EnScryptTest {
+    static {
+        Stodium.StodiumInit();
+    }
+
+    private static final byte[] BINDING_SECRET = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E882D077EFA0215A5B37521884376156A");
 
     private EnScrypt mEnScrypt;
+    private SharedPreferences mPreferences;
 
     @Before
     public void setUp() {
         this.mEnScrypt = new EnScrypt();
+        this.mPreferences = App.getContext().getSharedPreferences("enscrypt_selection_test", Context.MODE_PRIVATE);
+        this.mPreferences.edit().clear().commit();
+    }
+
+    @After
+    public void tearDown() {
+        this.mPreferences.edit().clear().commit();
     }
 
     @Test
@@ -75,4 +116,257 @@ public class EnScryptTest {
         long fiveAndAHalfSeconds = 5500;
         assertTrue(duration > fourAndAHalfSeconds && duration < fiveAndAHalfSeconds);
     }
+
+    @Test
+    public void deriveKeyShouldNotStartIfAlreadyCancelled() throws Exception {
+        PasswordCryptListener listener = mock(PasswordCryptListener.class);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        final EnScrypt enScrypt = new EnScrypt(listener, cancellationSignal);
+
+        TestHelper.assertExceptionThrown(OperationCanceledException.class, new Lambda() {
+            public void run() {
+                enScrypt.deriveKey("password", new byte[32], 100);
+            }
+        });
+        verify(listener, never()).onPasswordCryptProgressUpdate(anyInt());
+    }
+
+    @Test
+    public void deriveKeyShouldStopWithinOneIterationOfBeingCancelled() throws Exception {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final int[] iterationsPerformed = new int[1];
+        PasswordCryptListener listener = new PasswordCryptListener() {
+            public void onPasswordCryptResult(boolean result) {}
+            public void onPasswordCryptProgressUpdate(int progress) {
+                // Cancel during the third iteration
+                iterationsPerformed[0]++;
+                if (iterationsPerformed[0] == 3) {
+                    cancellationSignal.cancel();
+                }
+            }
+        };
+        final EnScrypt enScrypt = new EnScrypt(listener, cancellationSignal);
+
+        TestHelper.assertExceptionThrown(OperationCanceledException.class, new Lambda() {
+            public void run() {
+                enScrypt.deriveKeyFor5Seconds("password", new byte[32]);
+            }
+        });
+        assertEquals(3, iterationsPerformed[0]);
+    }
+
+    @Test
+    public void cancelledDerivationShouldResumeFromItsCheckpoint() throws Exception {
+        final byte[] salt = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E");
+        final EnScryptCheckpointStore checkpointStore = new MemoryEnScryptCheckpointStore();
+        byte[] expected = new EnScrypt().deriveKey("password", salt, 10);
+
+        interruptDerivationAfter(6, "password", salt, 10, checkpointStore, "test", BINDING_SECRET);
+
+        EnScrypt enScrypt = new EnScrypt();
+        byte[] actual = enScrypt.deriveKey("password", salt, 10, checkpointStore, "test", BINDING_SECRET);
+        assertArrayEquals(expected, actual);
+        assertEquals(10, enScrypt.getIterations());
+        assertEquals(6, enScrypt.getResumedIterations());
+
+        // The checkpoint should be removed once the derivation completes
+        assertNull(checkpointStore.load("test", BINDING_SECRET));
+    }
+
+    @Test
+    public void checkpointShouldBeIgnoredIfTheBindingSecretIsDifferent() throws Exception {
+        final byte[] salt = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E");
+        final EnScryptCheckpointStore checkpointStore = new MemoryEnScryptCheckpointStore();
+        byte[] expected = new EnScrypt().deriveKey("sausages", salt, 10);
+
+        interruptDerivationAfter(6, "password", salt, 10, checkpointStore, "test", BINDING_SECRET);
+
+        EnScrypt enScrypt = new EnScrypt();
+        byte[] actual = enScrypt.deriveKey("sausages", salt, 10, checkpointStore, "test", new byte[32]);
+        assertArrayEquals(expected, actual);
+        assertEquals(0, enScrypt.getResumedIterations());
+    }
+
+    @Test
+    public void checkpointShouldBeIgnoredIfTheIterationCountIsDifferent() throws Exception {
+        final byte[] salt = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E");
+        final EnScryptCheckpointStore checkpointStore = new MemoryEnScryptCheckpointStore();
+        byte[] expected = new EnScrypt().deriveKey("password", salt, 12);
+
+        interruptDerivationAfter(6, "password", salt, 10, checkpointStore, "test", BINDING_SECRET);
+
+        EnScrypt enScrypt = new EnScrypt();
+        byte[] actual = enScrypt.deriveKey("password", salt, 12, checkpointStore, "test", BINDING_SECRET);
+        assertArrayEquals(expected, actual);
+        assertEquals(0, enScrypt.getResumedIterations());
+    }
+
+    /**
+     * Starts a checkpointed derivation and cancels it once the given number of iterations have been performed.
+     */
+    private static void interruptDerivationAfter(final int iterationsBeforeCancelling, final String password, final byte[] salt, final int iterations, final EnScryptCheckpointStore checkpointStore, final String checkpointId, final byte[] bindingSecret) throws Exception {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        PasswordCryptListener listener = new PasswordCryptListener() {
+            private int mIterationsPerformed = 0;
+
+            public void onPasswordCryptResult(boolean result) {}
+            public void onPasswordCryptProgressUpdate(int progress) {
+                this.mIterationsPerformed++;
+                if (this.mIterationsPerformed == iterationsBeforeCancelling) {
+                    cancellationSignal.cancel();
+                }
+            }
+        };
+        final EnScrypt enScrypt = new EnScrypt(listener, cancellationSignal);
+
+        TestHelper.assertExceptionThrown(OperationCanceledException.class, new Lambda() {
+            public void run() {
+                enScrypt.deriveKey(password, salt, iterations, checkpointStore, checkpointId, bindingSecret);
+            }
+        });
+    }
+
+    @Test
+    public void deriveKeyShouldBeBitIdenticalToTheAllocatingImplementation() {
+        String[] passwords = { null, "password", "7pfRpj#YtAdP5hML", "\u00fcnicode p\u00e4ssword" };
+        byte[][] salts = { null, new byte[16], Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E"), new byte[32] };
+        int[] iterationCounts = { 1, 2, 3, 17 };
+
+        for (String password : passwords) {
+            for (byte[] salt : salts) {
+                for (int iterations : iterationCounts) {
+                    byte[] expected = referenceDeriveKey(password, salt, iterations);
+                    byte[] actual = this.mEnScrypt.deriveKey(password, salt, iterations);
+                    assertArrayEquals(expected, actual);
+                    assertEquals(iterations, this.mEnScrypt.getIterations());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void javaAndSodiumScryptEnginesShouldProduceIdenticalKeys() {
+        EnScrypt javaEnScrypt = new EnScrypt(null, new JavaScryptEngineFactory());
+        EnScrypt sodiumEnScrypt = new EnScrypt(null, new SodiumScryptEngineFactory());
+        String[] passwords = { null, "password", "7pfRpj#YtAdP5hML" };
+        String[] salts = { null, "0000000000000000000000000000000000000000000000000000000000000000", "A001A1B086A1AD531831208011D3451E" };
+
+        for (String password : passwords) {
+            for (String salt : salts) {
+                assertEquals(sodiumEnScrypt.deriveKey(password, salt, 5), javaEnScrypt.deriveKey(password, salt, 5));
+            }
+        }
+
+        // Both engines should also reproduce the verification vectors
+        assertEquals("129d96d1e735618517259416a605be7094c2856a53c14ef7d4e4ba8e4ea36aeb", javaEnScrypt.deriveKey("password", (String)null, 123));
+        assertEquals("129d96d1e735618517259416a605be7094c2856a53c14ef7d4e4ba8e4ea36aeb", sodiumEnScrypt.deriveKey("password", (String)null, 123));
+    }
+
+    @Test
+    public void fastestScryptEngineFactoryShouldSelectOneOfItsCandidates() {
+        ScryptEngineFactory javaFactory = new JavaScryptEngineFactory();
+        ScryptEngineFactory sodiumFactory = new SodiumScryptEngineFactory();
+        FastestScryptEngineFactory fastestFactory = new FastestScryptEngineFactory(this.mPreferences, javaFactory, sodiumFactory);
+
+        ScryptEngineFactory selected = fastestFactory.select(512, 256, null);
+        assertTrue(selected == javaFactory || selected == sodiumFactory);
+        assertTrue(selected == fastestFactory.getSelectedFactory(512, 256));
+
+        // The selection should be persisted, so that it survives the process being restarted
+        JavaScryptEngineFactory newJavaFactory = new JavaScryptEngineFactory();
+        SodiumScryptEngineFactory newSodiumFactory = new SodiumScryptEngineFactory();
+        FastestScryptEngineFactory restartedFactory = new FastestScryptEngineFactory(this.mPreferences, newJavaFactory, newSodiumFactory);
+        assertTrue(restartedFactory.isSelected(512, 256));
+        assertEquals(selected.getClass(), restartedFactory.getSelectedFactory(512, 256).getClass());
+
+        // The selection only applies to the cost parameters it was made for
+        assertFalse(restartedFactory.isSelected(1024, 256));
+        assertTrue(restartedFactory.getSelectedFactory(1024, 256) == newJavaFactory);
+    }
+
+    @Test
+    public void fastestScryptEngineFactoryShouldNotRunTheSelectionWhenCreatingAnEngine() {
+        ScryptEngineFactory defaultFactory = mock(ScryptEngineFactory.class);
+        ScryptEngineFactory challengerFactory = new SleepingScryptEngineFactory(5000, 5000);
+        FastestScryptEngineFactory fastestFactory = new FastestScryptEngineFactory(this.mPreferences, defaultFactory, challengerFactory);
+
+        // Until a selection has been made, the first candidate is used without timing anything
+        fastestFactory.create(512, 256);
+        verify(defaultFactory).create(512, 256);
+        assertFalse(fastestFactory.isSelected(512, 256));
+    }
+
+    @Test(expected = OperationCanceledException.class)
+    public void fastestScryptEngineFactorySelectionShouldBeCancellable() {
+        FastestScryptEngineFactory fastestFactory = new FastestScryptEngineFactory(this.mPreferences, new JavaScryptEngineFactory());
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+
+        try {
+            fastestFactory.select(512, 256, cancellationSignal);
+        } finally {
+            assertFalse(fastestFactory.isSelected(512, 256));
+        }
+    }
+
+    @Test
+    public void fastestScryptEngineFactoryShouldNotPenaliseACandidateForItsColdStart() {
+        // The first operation of the challenger is slow, as a JIT compiled engine would be, but it is faster from then on
+        ScryptEngineFactory steadyFactory = new SleepingScryptEngineFactory(40, 40);
+        ScryptEngineFactory coldStartFactory = new SleepingScryptEngineFactory(400, 5);
+        FastestScryptEngineFactory fastestFactory = new FastestScryptEngineFactory(this.mPreferences, steadyFactory, coldStartFactory);
+
+        assertTrue(fastestFactory.select(512, 256, null) == coldStartFactory);
+    }
+
+    /**
+     * Creates engines that simply sleep, taking one length of time for their first operation and another for every operation after that.
+     */
+    private static class SleepingScryptEngineFactory implements ScryptEngineFactory {
+        private final long mFirstDurationInMillis;
+        private final long mDurationInMillis;
+
+        public SleepingScryptEngineFactory(long firstDurationInMillis, long durationInMillis) {
+            this.mFirstDurationInMillis = firstDurationInMillis;
+            this.mDurationInMillis = durationInMillis;
+        }
+
+        @Override
+        public ScryptEngine create(int n, int r) {
+            return new ScryptEngine() {
+                private boolean mWarm = false;
+
+                @Override
+                public void deriveKey(byte[] password, byte[] salt, byte[] output) {
+                    SystemClock.sleep(this.mWarm ? mDurationInMillis : mFirstDurationInMillis);
+                    this.mWarm = true;
+                }
+            };
+        }
+    }
+
+    /**
+     * The original EnScrypt implementation, which allocated new arrays on every iteration, kept as a reference for the optimised version.
+     */
+    private static byte[] referenceDeriveKey(String password, byte[] salt, int iterations) {
+        password = (password == null ? "" : password) + '\0';
+        byte[] passwordAsByteArray = password.getBytes(Charset.forName("UTF-8"));
+        byte[] scryptOutput = salt == null ? new byte[0] : salt;
+        byte[] key = new byte[32];
+
+        for (int i = 0; i < iterations; i++) {
+            byte[] newScryptOutput = new byte[32];
+            Stodium.checkStatus(Sodium.crypto_pwhash_scryptsalsa208sha256_ll(passwordAsByteArray, passwordAsByteArray.length, scryptOutput, scryptOutput.length, 512, 256, 1, newScryptOutput, newScryptOutput.length));
+            scryptOutput = newScryptOutput;
+
+            byte[] newKey = new byte[32];
+            for (int j = 0; j < key.length; j++) {
+                newKey[j] = (byte)(0xff & (key[j] ^ scryptOutput[j]));
+            }
+            key = newKey;
+        }
+
+        return key;
+    }
 }
@@ -1,10 +1,13 @@
 package io.barnabycolby.sqrlclient.test.sqrl;
 
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.support.test.runner.AndroidJUnit4;
 
 import io.barnabycolby.sqrlclient.helpers.Helper;
 import io.barnabycolby.sqrlclient.helpers.Lambda;
 import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
 import io.barnabycolby.sqrlclient.test.TestHelper;
 
 import javax.crypto.AEADBadTagException;
@@ -15,6 +18,7 @@ import org.junit.runner.RunWith;
 import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 @RunWith(AndroidJUnit4.class)
 public class EncryptedIdentityTest {
@@ -48,4 +52,64 @@ public class EncryptedIdentityTest {
             }
         });
     }
+
+    @Test
+    public void decryptionShouldSucceedAfterResumingACheckpointOfADifferentPassword() throws Exception {
+        byte[] masterKey = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E882D077EFA0215A5B37521884376156A");
+        String password = "7pfRpj#YtAdP5hML";
+        final EncryptedIdentity encryptedIdentity = EncryptedIdentity.create(masterKey, password, null);
+
+        // Cancel a decryption using the wrong password part way through, leaving a checkpoint behind
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final PasswordCryptListener listener = new PasswordCryptListener() {
+            public void onPasswordCryptResult(boolean result) {}
+            public void onPasswordCryptProgressUpdate(int progress) {
+                cancellationSignal.cancel();
+            }
+        };
+        TestHelper.assertExceptionThrown(OperationCanceledException.class, new Lambda() {
+            public void run() throws Exception {
+                encryptedIdentity.decrypt("beans", listener, cancellationSignal);
+            }
+        });
+
+        assertArrayEquals(masterKey, encryptedIdentity.decrypt(password, null));
+    }
+
+    @Test
+    public void cancelledDecryptionShouldBeResumedWithTheSamePassword() throws Exception {
+        byte[] masterKey = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E882D077EFA0215A5B37521884376156A");
+        final String password = "7pfRpj#YtAdP5hML";
+        final EncryptedIdentity encryptedIdentity = EncryptedIdentity.create(masterKey, password, null);
+
+        // Cancel the decryption once two iterations have been performed
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        final int[] progressUpdates = new int[1];
+        final PasswordCryptListener cancellingListener = new PasswordCryptListener() {
+            public void onPasswordCryptResult(boolean result) {}
+            public void onPasswordCryptProgressUpdate(int progress) {
+                if (++progressUpdates[0] == 2) {
+                    cancellationSignal.cancel();
+                }
+            }
+        };
+        TestHelper.assertExceptionThrown(OperationCanceledException.class, new Lambda() {
+            public void run() throws Exception {
+                encryptedIdentity.decrypt(password, cancellingListener, cancellationSignal);
+            }
+        });
+
+        // The first progress update of the resumed decryption should come after the third iteration
+        final int[] firstProgress = { -1 };
+        PasswordCryptListener listener = new PasswordCryptListener() {
+            public void onPasswordCryptResult(boolean result) {}
+            public void onPasswordCryptProgressUpdate(int progress) {
+                if (firstProgress[0] < 0) {
+                    firstProgress[0] = progress;
+                }
+            }
+        };
+        assertArrayEquals(masterKey, encryptedIdentity.decrypt(password, listener));
+        assertEquals((3 * 100) / encryptedIdentity.getIterations(), firstProgress[0]);
+    }
 }
@@ -0,0 +1,95 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.exceptions.IdentityArchiveInvalidException;
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.IdentityArchive;
+import io.barnabycolby.sqrlclient.sqrl.IdentityContainer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class IdentityArchiveTest {
+    private static final int NUMBER_OF_IDENTITIES = 100;
+
+    private byte[] mKey = new byte[32];
+    private byte[] mArchive;
+
+    @Before
+    public void setUp() throws Exception {
+        Arrays.fill(this.mKey, (byte)0x24);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        IdentityArchive.Writer writer = new IdentityArchive.Writer(output, this.mKey);
+        for (int i = 0; i < NUMBER_OF_IDENTITIES; i++) {
+            EncryptedIdentity identity = new EncryptedIdentity(new byte[48], new byte[16], i, new byte[12]);
+            writer.write("Identity " + i, ByteBuffer.wrap(IdentityContainer.toByteArray(identity)));
+        }
+        writer.finish();
+        this.mArchive = output.toByteArray();
+    }
+
+    @Test
+    public void archiveShouldReadBackEveryIdentityInOrder() throws Exception {
+        IdentityArchive.Reader reader = new IdentityArchive.Reader(new ByteArrayInputStream(this.mArchive), this.mKey);
+        for (int i = 0; i < NUMBER_OF_IDENTITIES; i++) {
+            assertTrue(reader.next());
+            assertEquals("Identity " + i, reader.getIdentityName());
+            assertEquals(i, reader.getIdentity().getIterations());
+            assertArrayEquals(IdentityContainer.toByteArray(reader.getIdentity()), reader.getContainer());
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void tamperedArchiveShouldBeRejected() throws Exception {
+        // Change the iterations of the final identity, which is only caught by the authentication tag
+        byte[] container = IdentityContainer.toByteArray(new EncryptedIdentity(new byte[48], new byte[16], NUMBER_OF_IDENTITIES - 1, new byte[12]));
+        byte[] replacement = IdentityContainer.toByteArray(new EncryptedIdentity(new byte[48], new byte[16], 1, new byte[12]));
+        int tagLength = 32;
+        int endMarkerLength = 1;
+        int containerOffset = this.mArchive.length - tagLength - endMarkerLength - container.length;
+        System.arraycopy(replacement, 0, this.mArchive, containerOffset, replacement.length);
+
+        assertArchiveRejected(this.mArchive, this.mKey);
+    }
+
+    @Test
+    public void archiveShouldBeRejectedWithTheWrongKey() throws Exception {
+        byte[] wrongKey = new byte[32];
+        assertArchiveRejected(this.mArchive, wrongKey);
+    }
+
+    @Test
+    public void truncatedArchiveShouldBeRejected() throws Exception {
+        assertArchiveRejected(Arrays.copyOf(this.mArchive, this.mArchive.length - 1), this.mKey);
+        assertArchiveRejected(Arrays.copyOf(this.mArchive, this.mArchive.length / 2), this.mKey);
+        assertArchiveRejected(new byte[0], this.mKey);
+    }
+
+    private static void assertArchiveRejected(byte[] archive, byte[] key) throws Exception {
+        try {
+            IdentityArchive.Reader reader = new IdentityArchive.Reader(new ByteArrayInputStream(archive), key);
+            while (reader.next()) {
+                // Entries are only trustworthy once the whole archive has been read
+            }
+            fail("IdentityArchiveInvalidException was not thrown.");
+        } catch (IdentityArchiveInvalidException ex) {
+            // This indicates success!
+        }
+    }
+}
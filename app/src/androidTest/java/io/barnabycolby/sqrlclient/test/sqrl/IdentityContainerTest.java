@@ -0,0 +1,82 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.helpers.Lambda;
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.IdentityContainer;
+import io.barnabycolby.sqrlclient.test.TestHelper;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class IdentityContainerTest {
+    @Test
+    public void identityShouldSurviveARoundTrip() throws Exception {
+        EncryptedIdentity identity = createIdentity();
+        EncryptedIdentity loaded = IdentityContainer.fromByteArray(IdentityContainer.toByteArray(identity));
+
+        assertArrayEquals(identity.getEncryptedMasterKey(), loaded.getEncryptedMasterKey());
+        assertArrayEquals(identity.getSalt(), loaded.getSalt());
+        assertEquals(identity.getIterations(), loaded.getIterations());
+        assertArrayEquals(identity.getIv(), loaded.getIv());
+    }
+
+    @Test
+    public void corruptedContainerShouldBeRejected() throws Exception {
+        final byte[] container = IdentityContainer.toByteArray(createIdentity());
+
+        // Flip a bit in the middle of the encrypted master key
+        container[container.length - 20] ^= 1;
+        TestHelper.assertExceptionThrown(IOException.class, new Lambda() {
+            public void run() throws Exception {
+                IdentityContainer.fromByteArray(container);
+            }
+        });
+    }
+
+    @Test
+    public void truncatedContainerShouldBeRejected() throws Exception {
+        byte[] container = IdentityContainer.toByteArray(createIdentity());
+
+        for (final int length : new int[] { 0, 8, 20, container.length - 1 }) {
+            final byte[] truncated = Arrays.copyOf(container, length);
+            TestHelper.assertExceptionThrown(IOException.class, new Lambda() {
+                public void run() throws Exception {
+                    IdentityContainer.fromByteArray(truncated);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void containerWithoutSignatureShouldBeRejected() throws Exception {
+        final byte[] container = IdentityContainer.toByteArray(createIdentity());
+        container[0] = 'x';
+        TestHelper.assertExceptionThrown(IOException.class, new Lambda() {
+            public void run() throws Exception {
+                IdentityContainer.fromByteArray(container);
+            }
+        });
+    }
+
+    private static EncryptedIdentity createIdentity() {
+        byte[] encryptedMasterKey = new byte[48];
+        byte[] salt = new byte[16];
+        byte[] iv = new byte[12];
+        for (int i = 0; i < encryptedMasterKey.length; i++) {
+            encryptedMasterKey[i] = (byte)(i * 7);
+        }
+        Arrays.fill(salt, (byte)0x5A);
+        Arrays.fill(iv, (byte)0xA5);
+
+        return new EncryptedIdentity(encryptedMasterKey, salt, 123, iv);
+    }
+}
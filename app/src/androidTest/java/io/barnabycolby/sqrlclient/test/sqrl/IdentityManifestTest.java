@@ -0,0 +1,57 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.helpers.Lambda;
+import io.barnabycolby.sqrlclient.sqrl.IdentityManifest;
+import io.barnabycolby.sqrlclient.test.TestHelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class IdentityManifestTest {
+    @Test
+    public void manifestShouldSurviveARoundTrip() throws Exception {
+        IdentityManifest loaded = IdentityManifest.fromByteArray(createManifest().toByteArray());
+
+        assertEquals(1234567890123L, loaded.getFolderLastModified());
+        assertEquals(2, loaded.getEntries().size());
+        IdentityManifest.Entry entry = loaded.getEntries().get(1);
+        assertEquals("Grace Hopper", entry.getIdentityName());
+        assertEquals("R3JhY2UgSG9wcGVy.identity", entry.getFileName());
+        assertEquals(106, entry.getFileLength());
+        assertEquals(42L, entry.getFileLastModified());
+        assertEquals(0xFEDCBA98L, entry.getContainerChecksum());
+    }
+
+    @Test
+    public void corruptedManifestShouldBeRejected() throws Exception {
+        final byte[] serialised = createManifest().toByteArray();
+        serialised[12] ^= 1;
+        TestHelper.assertExceptionThrown(IOException.class, new Lambda() {
+            public void run() throws Exception {
+                IdentityManifest.fromByteArray(serialised);
+            }
+        });
+
+        TestHelper.assertExceptionThrown(IOException.class, new Lambda() {
+            public void run() throws Exception {
+                IdentityManifest.fromByteArray(new byte[3]);
+            }
+        });
+    }
+
+    private static IdentityManifest createManifest() {
+        List<IdentityManifest.Entry> entries = new ArrayList<IdentityManifest.Entry>();
+        entries.add(new IdentityManifest.Entry("Alan Turing", "QWxhbiBUdXJpbmc.identity", 106, 41L, 0x01234567L));
+        entries.add(new IdentityManifest.Entry("Grace Hopper", "R3JhY2UgSG9wcGVy.identity", 106, 42L, 0xFEDCBA98L));
+        return new IdentityManifest(1234567890123L, entries);
+    }
+}
@@ -0,0 +1,135 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.IdentityContainer;
+import io.barnabycolby.sqrlclient.sqrl.IdentityManifest;
+import io.barnabycolby.sqrlclient.sqrl.IdentityPack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class IdentityPackTest {
+    private File mPackFile;
+    private EncryptedIdentity mFirstIdentity;
+    private EncryptedIdentity mSecondIdentity;
+    private IdentityManifest.Entry mFirstEntry;
+    private IdentityManifest.Entry mSecondEntry;
+    private long mSecondChecksum;
+    private byte[] mPack;
+
+    @Before
+    public void setUp() throws Exception {
+        this.mPackFile = new File(App.getContext().getCacheDir(), "test.pack");
+
+        byte[] encryptedMasterKey = new byte[48];
+        Arrays.fill(encryptedMasterKey, (byte)0x42);
+        this.mFirstIdentity = new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]);
+        this.mSecondIdentity = new EncryptedIdentity(encryptedMasterKey, new byte[16], 9, new byte[12]);
+        ByteBuffer firstContainer = ByteBuffer.wrap(IdentityContainer.toByteArray(this.mFirstIdentity));
+        ByteBuffer secondContainer = ByteBuffer.wrap(IdentityContainer.toByteArray(this.mSecondIdentity));
+        this.mSecondChecksum = IdentityContainer.getStoredChecksum(secondContainer);
+        this.mFirstEntry = new IdentityManifest.Entry("Alan Turing", "first.identity", 100, 1000, IdentityContainer.getStoredChecksum(firstContainer));
+        this.mSecondEntry = new IdentityManifest.Entry("Grace Hopper", "second.identity", 100, 2000, this.mSecondChecksum);
+        this.mPack = IdentityPack.toByteArray(Arrays.asList(this.mFirstEntry, this.mSecondEntry), Arrays.asList(firstContainer, secondContainer));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.mPackFile.delete();
+    }
+
+    @Test
+    public void mappedIdentitiesShouldMatchThePackedIdentities() throws Exception {
+        FileUtils.writeByteArrayToFile(this.mPackFile, this.mPack);
+        IdentityPack pack = IdentityPack.map(this.mPackFile);
+        assertEquals(2, pack.size());
+
+        EncryptedIdentity identity = pack.getIdentity(this.mSecondEntry);
+        assertNotNull(identity);
+        assertEquals(9, identity.getIterations());
+        assertArrayEquals(this.mSecondIdentity.getEncryptedMasterKey(), identity.getEncryptedMasterKey());
+        assertArrayEquals(this.mSecondIdentity.getSalt(), identity.getSalt());
+        assertArrayEquals(this.mSecondIdentity.getIv(), identity.getIv());
+        assertEquals(7, pack.getIdentity(this.mFirstEntry).getIterations());
+    }
+
+    @Test
+    public void identitiesThatHaveChangedSinceThePackWasWrittenShouldNotBeServed() throws Exception {
+        FileUtils.writeByteArrayToFile(this.mPackFile, this.mPack);
+        IdentityPack pack = IdentityPack.map(this.mPackFile);
+
+        assertNull(pack.getIdentity(new IdentityManifest.Entry("Grace Hopper", "second.identity", 100, 3000, this.mSecondChecksum)));
+        assertNull(pack.getIdentity(new IdentityManifest.Entry("Grace Hopper", "second.identity", 101, 2000, this.mSecondChecksum)));
+        assertNull(pack.getIdentity(new IdentityManifest.Entry("Ada Lovelace", "third.identity", 100, 1000, this.mSecondChecksum)));
+    }
+
+    @Test
+    public void identitiesRewrittenWithTheSameLengthAndModificationTimeShouldNotBeServed() throws Exception {
+        FileUtils.writeByteArrayToFile(this.mPackFile, this.mPack);
+        IdentityPack pack = IdentityPack.map(this.mPackFile);
+
+        assertNotNull(pack.getContainer(this.mSecondEntry));
+        IdentityManifest.Entry rewrittenEntry = new IdentityManifest.Entry("Grace Hopper", "second.identity", 100, 2000, this.mSecondChecksum ^ 0x01);
+        assertNull(pack.getContainer(rewrittenEntry));
+        assertNull(pack.getIdentity(rewrittenEntry));
+    }
+
+    @Test
+    public void mappingShouldSurviveThePackBeingReplaced() throws Exception {
+        FileUtils.writeByteArrayToFile(this.mPackFile, this.mPack);
+        IdentityPack pack = IdentityPack.map(this.mPackFile);
+        EncryptedIdentity identity = pack.getIdentity(this.mSecondEntry);
+
+        // Packs are replaced by renaming a new file over them, which leaves the mapped file intact
+        File replacement = new File(App.getContext().getCacheDir(), "test.pack.tmp");
+        FileUtils.writeByteArrayToFile(replacement, IdentityPack.toByteArray(Arrays.<IdentityManifest.Entry>asList(), Arrays.<ByteBuffer>asList()));
+        replacement.renameTo(this.mPackFile);
+        assertEquals(9, identity.getIterations());
+        assertEquals(0, IdentityPack.map(this.mPackFile).size());
+    }
+
+    @Test
+    public void corruptHeaderShouldBeRejected() throws Exception {
+        this.mPack[20] ^= 0x01;
+        FileUtils.writeByteArrayToFile(this.mPackFile, this.mPack);
+        try {
+            IdentityPack.map(this.mPackFile);
+            fail("IOException was not thrown.");
+        } catch (IOException ex) {
+            // This indicates success!
+        }
+    }
+
+    @Test
+    public void corruptContainerShouldBeRejectedWhenRead() throws Exception {
+        // The final four bytes are the checksum of the second container, so this corrupts the end of its contents
+        this.mPack[this.mPack.length - 5] ^= 0x01;
+        FileUtils.writeByteArrayToFile(this.mPackFile, this.mPack);
+        IdentityPack pack = IdentityPack.map(this.mPackFile);
+        assertNotNull(pack.getIdentity(this.mFirstEntry));
+        try {
+            pack.getIdentity(this.mSecondEntry);
+            fail("IOException was not thrown.");
+        } catch (IOException ex) {
+            // This indicates success!
+        }
+    }
+}
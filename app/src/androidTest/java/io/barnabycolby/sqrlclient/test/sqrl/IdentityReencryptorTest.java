@@ -0,0 +1,103 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.IdentityReencryptor;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
+import io.barnabycolby.sqrlclient.sqrl.UnlockedIdentityCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+@RunWith(AndroidJUnit4.class)
+public class IdentityReencryptorTest {
+    private static final byte[] MASTER_KEY = Helper.hexStringToByteArray("5A078E19A846275E34F525895BA90AA0CC1FA274B5582E121FA216E30CBB04A7");
+    private static final String PASSWORD = "mKkyWf*5K&@pSEcU";
+
+    /**
+     * Queues the re-encryptions until the test runs them, so that it can lock the identities whilst they are still waiting.
+     */
+    private static class QueuedExecutor implements Executor {
+        private List<Runnable> mQueue = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            this.mQueue.add(runnable);
+        }
+
+        public int size() {
+            return this.mQueue.size();
+        }
+
+        public void runAll() {
+            while (!this.mQueue.isEmpty()) {
+                this.mQueue.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void identitiesShouldOnlyBeReencryptedWhenMarkedlyStronger() {
+        assertFalse(IdentityReencryptor.shouldReencrypt(100, 100));
+        assertFalse(IdentityReencryptor.shouldReencrypt(100, 149));
+        assertTrue(IdentityReencryptor.shouldReencrypt(100, 150));
+        assertTrue(IdentityReencryptor.shouldReencrypt(100, 1000));
+
+        // Identities that are already stronger than the device can afford should be left alone
+        assertFalse(IdentityReencryptor.shouldReencrypt(1000, 100));
+    }
+
+    @Test
+    public void scheduledReencryptionShouldReplaceTheIdentityUnlessLockedFirst() throws Exception {
+        SQRLIdentityManager identityManager = mock(SQRLIdentityManager.class);
+        when(identityManager.replaceIdentity(anyString(), any(EncryptedIdentity.class), any(EncryptedIdentity.class))).thenReturn(true);
+        QueuedExecutor executor = new QueuedExecutor();
+        final IdentityReencryptor reencryptor = new IdentityReencryptor(identityManager, executor);
+
+        // An identity protected by a single iteration is always weaker than the device can afford
+        EncryptedIdentity weakIdentity = new EncryptedIdentity(new byte[48], new byte[16], 1, new byte[12]);
+        byte[] masterKey = MASTER_KEY.clone();
+        reencryptor.schedule("Alan Turing", weakIdentity, masterKey, PASSWORD);
+        reencryptor.schedule("Alan Turing", weakIdentity, masterKey, PASSWORD);
+        assertEquals(1, executor.size());
+
+        // Wiping the callers copy of the master key should not affect the re-encryption
+        masterKey[0] = 0;
+        executor.runAll();
+        ArgumentCaptor<EncryptedIdentity> reencryptedIdentity = ArgumentCaptor.forClass(EncryptedIdentity.class);
+        verify(identityManager).replaceIdentity(eq("Alan Turing"), same(weakIdentity), reencryptedIdentity.capture());
+        assertTrue(reencryptedIdentity.getValue().getIterations() > 1);
+        assertArrayEquals(MASTER_KEY, reencryptedIdentity.getValue().decrypt(PASSWORD, null));
+
+        // The identity manager cancels re-encryptions whenever its cache locks, including when the idle timeout passes
+        UnlockedIdentityCache cache = new UnlockedIdentityCache(60000);
+        cache.setLockListener(new UnlockedIdentityCache.LockListener() {
+            @Override
+            public void onLocked() {
+                reencryptor.cancelAll();
+            }
+        });
+        cache.unlock("Alan Turing", MASTER_KEY);
+        reencryptor.schedule("Alan Turing", weakIdentity, MASTER_KEY, PASSWORD);
+        Thread.sleep(50);
+        cache.setIdleTimeout(10);
+
+        // The cancelled re-encryption should leave the identity alone once it reaches the front of the queue
+        assertEquals(1, executor.size());
+        executor.runAll();
+        verify(identityManager, times(1)).replaceIdentity(anyString(), any(EncryptedIdentity.class), any(EncryptedIdentity.class));
+    }
+}
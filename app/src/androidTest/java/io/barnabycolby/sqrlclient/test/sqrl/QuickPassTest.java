@@ -0,0 +1,65 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.helpers.Lambda;
+import io.barnabycolby.sqrlclient.sqrl.QuickPass;
+import io.barnabycolby.sqrlclient.test.TestHelper;
+
+import javax.crypto.AEADBadTagException;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class QuickPassTest {
+    private static final byte[] MASTER_KEY = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E882D077EFA0215A5B37521884376156A");
+    private static final String PASSWORD = "jR7#kWq2!vNs";
+
+    @Test
+    public void correctPrefixShouldDecryptTheMasterKey() throws Exception {
+        QuickPass quickPass = QuickPass.create("Alan Turing", MASTER_KEY, PASSWORD, 4, 1, 60000);
+        assertNotNull(quickPass);
+        assertTrue(quickPass.isValid());
+        assertEquals("Alan Turing", quickPass.getIdentityName());
+        assertEquals(4, quickPass.getPrefixLength());
+
+        assertArrayEquals(MASTER_KEY, quickPass.decrypt("jR7#", null, null));
+    }
+
+    @Test
+    public void quickPassShouldOnlyAllowOneAttempt() throws Exception {
+        final QuickPass quickPass = QuickPass.create("Alan Turing", MASTER_KEY, PASSWORD, 4, 1, 60000);
+        TestHelper.assertExceptionThrown(AEADBadTagException.class, new Lambda() {
+            public void run() throws Exception {
+                quickPass.decrypt("jR7!", null, null);
+            }
+        });
+
+        assertFalse(quickPass.isValid());
+        assertNull(quickPass.decrypt("jR7#", null, null));
+    }
+
+    @Test
+    public void quickPassShouldExpire() throws Exception {
+        QuickPass quickPass = QuickPass.create("Alan Turing", MASTER_KEY, PASSWORD, 4, 1, 100);
+        Thread.sleep(150);
+
+        assertFalse(quickPass.isValid());
+        assertNull(quickPass.decrypt("jR7#", null, null));
+    }
+
+    @Test
+    public void quickPassShouldNotBeCreatedForPasswordsNoLongerThanThePrefix() throws Exception {
+        assertNull(QuickPass.create("Alan Turing", MASTER_KEY, "jR7#", 4, 1, 60000));
+        assertNull(QuickPass.create("Alan Turing", MASTER_KEY, "jR7", 4, 1, 60000));
+    }
+}
@@ -0,0 +1,268 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.util.SimpleArrayMap;
+import android.util.Base64;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.exceptions.IdentityDoesNotExistException;
+import io.barnabycolby.sqrlclient.helpers.AtomicFileWriter;
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.IdentityContainer;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityFolder;
+import io.barnabycolby.sqrlclient.test.helpers.AtomicFileWriterTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class SQRLIdentityFolderTest {
+    private static final String IDENTITY_NAME = "Grace Hopper";
+
+    @After
+    public void tearDown() throws Exception {
+        new SQRLIdentityFolder().remove(IDENTITY_NAME);
+    }
+
+    @Test
+    public void legacyIdentityFolderShouldBeMigratedToASingleFile() throws Exception {
+        byte[] encryptedMasterKey = new byte[48];
+        Arrays.fill(encryptedMasterKey, (byte)0x42);
+        byte[] salt = new byte[16];
+        byte[] iv = new byte[12];
+
+        // Write the identity in the folder per identity layout
+        File identitiesFolder = new File(App.getContext().getFilesDir(), "identities");
+        String encodedName = Base64.encodeToString(IDENTITY_NAME.getBytes(Charset.forName("UTF-8")), Base64.NO_PADDING | Base64.URL_SAFE | Base64.NO_WRAP);
+        File legacyFolder = new File(identitiesFolder, encodedName);
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "masterKey"), encryptedMasterKey);
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "salt"), salt);
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "iterations"), ByteBuffer.allocate(4).putInt(42).array());
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "iv"), iv);
+
+        SimpleArrayMap<String, EncryptedIdentity> identities = new SQRLIdentityFolder().load();
+        EncryptedIdentity identity = identities.get(IDENTITY_NAME);
+        assertNotNull(identity);
+        assertArrayEquals(encryptedMasterKey, identity.getEncryptedMasterKey());
+        assertEquals(42, identity.getIterations());
+        assertFalse(legacyFolder.exists());
+        assertTrue(new File(identitiesFolder, encodedName + ".identity").isFile());
+
+        // The migrated identity should load identically from its new file, which is only read once requested
+        SQRLIdentityFolder folder = new SQRLIdentityFolder();
+        assertTrue(folder.load().containsKey(IDENTITY_NAME));
+        identity = folder.loadIdentity(IDENTITY_NAME);
+        assertNotNull(identity);
+        assertArrayEquals(encryptedMasterKey, identity.getEncryptedMasterKey());
+        assertArrayEquals(salt, identity.getSalt());
+        assertArrayEquals(iv, identity.getIv());
+    }
+
+    @Test
+    public void createdIdentityShouldBeLoadedAndRemoved() throws Exception {
+        EncryptedIdentity identity = new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]);
+        SQRLIdentityFolder folder = new SQRLIdentityFolder();
+        folder.createNewIdentity(IDENTITY_NAME, identity);
+
+        // The manifest should allow the name to be listed without reading the identity
+        SQRLIdentityFolder newFolder = new SQRLIdentityFolder();
+        SimpleArrayMap<String, EncryptedIdentity> identities = newFolder.load();
+        assertTrue(identities.containsKey(IDENTITY_NAME));
+        assertNull(identities.get(IDENTITY_NAME));
+        assertEquals(7, newFolder.loadIdentity(IDENTITY_NAME).getIterations());
+
+        folder.remove(IDENTITY_NAME);
+        assertFalse(new SQRLIdentityFolder().load().containsKey(IDENTITY_NAME));
+    }
+
+    @Test
+    public void staleManifestShouldBeRepaired() throws Exception {
+        EncryptedIdentity identity = new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]);
+        new SQRLIdentityFolder().createNewIdentity(IDENTITY_NAME, identity);
+
+        // Overwrite the identity behind the manifest's back
+        File identitiesFolder = new File(App.getContext().getFilesDir(), "identities");
+        String encodedName = Base64.encodeToString(IDENTITY_NAME.getBytes(Charset.forName("UTF-8")), Base64.NO_PADDING | Base64.URL_SAFE | Base64.NO_WRAP);
+        File identityFile = new File(identitiesFolder, encodedName + ".identity");
+        EncryptedIdentity replacement = new EncryptedIdentity(new byte[48], new byte[16], 8, new byte[12]);
+        FileUtils.writeByteArrayToFile(identityFile, IdentityContainer.toByteArray(replacement));
+        identityFile.setLastModified(identityFile.lastModified() - 10000);
+
+        SQRLIdentityFolder folder = new SQRLIdentityFolder();
+        assertTrue(folder.load().containsKey(IDENTITY_NAME));
+        assertNull(folder.loadIdentity(IDENTITY_NAME));
+        assertEquals(8, folder.repair().get(IDENTITY_NAME).getIterations());
+        assertEquals(8, folder.loadIdentity(IDENTITY_NAME).getIterations());
+
+        // Deleting the identity changes the folder, so the manifest should be rebuilt on load
+        assertTrue(identityFile.delete());
+        assertFalse(new SQRLIdentityFolder().load().containsKey(IDENTITY_NAME));
+    }
+
+    @Test
+    public void loadedIdentitiesShouldBeServedFromThePack() throws Exception {
+        EncryptedIdentity identity = new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]);
+        new SQRLIdentityFolder().createNewIdentity(IDENTITY_NAME, identity);
+
+        // Loading brings the pack up to date with the new identity
+        SQRLIdentityFolder folder = new SQRLIdentityFolder();
+        folder.load();
+        assertTrue(new File(App.getContext().getFilesDir(), "identities.pack").isFile());
+
+        // Scramble the identity file without changing its length or modification time, which only the pack can survive
+        File identitiesFolder = new File(App.getContext().getFilesDir(), "identities");
+        String encodedName = Base64.encodeToString(IDENTITY_NAME.getBytes(Charset.forName("UTF-8")), Base64.NO_PADDING | Base64.URL_SAFE | Base64.NO_WRAP);
+        File identityFile = new File(identitiesFolder, encodedName + ".identity");
+        long lastModified = identityFile.lastModified();
+        FileUtils.writeByteArrayToFile(identityFile, new byte[(int)identityFile.length()]);
+        identityFile.setLastModified(lastModified);
+
+        EncryptedIdentity packedIdentity = folder.loadIdentity(IDENTITY_NAME);
+        assertNotNull(packedIdentity);
+        assertEquals(7, packedIdentity.getIterations());
+        assertArrayEquals(identity.getEncryptedMasterKey(), packedIdentity.getEncryptedMasterKey());
+    }
+
+    @Test
+    public void packedIdentityShouldNotBeServedOnceReplaced() throws Exception {
+        // Re-encrypting within the resolution of the file system clock leaves the length and modification time of the file unchanged
+        AtomicFileWriter coarseClockWriter = new AtomicFileWriter() {
+            @Override
+            protected void writeTemporaryFile(File temporaryFile, Contents contents) throws IOException {
+                super.writeTemporaryFile(temporaryFile, contents);
+                temporaryFile.setLastModified(1000000000000L);
+            }
+        };
+        new SQRLIdentityFolder(coarseClockWriter).createNewIdentity(IDENTITY_NAME, new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]));
+        SQRLIdentityFolder folder = new SQRLIdentityFolder(coarseClockWriter);
+        folder.load();
+        assertEquals(7, folder.loadIdentity(IDENTITY_NAME).getIterations());
+
+        folder.replaceIdentity(IDENTITY_NAME, new EncryptedIdentity(new byte[48], new byte[16], 70, new byte[12]));
+        assertEquals(70, folder.loadIdentity(IDENTITY_NAME).getIterations());
+    }
+
+    @Test
+    public void replacedIdentityShouldBeLoadedInPlaceOfTheOriginal() throws Exception {
+        EncryptedIdentity identity = new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]);
+        SQRLIdentityFolder folder = new SQRLIdentityFolder();
+        folder.load();
+        folder.createNewIdentity(IDENTITY_NAME, identity);
+
+        EncryptedIdentity replacement = new EncryptedIdentity(new byte[48], new byte[16], 70, new byte[12]);
+        folder.replaceIdentity(IDENTITY_NAME, replacement);
+        assertEquals(70, folder.loadIdentity(IDENTITY_NAME).getIterations());
+
+        // The manifest should describe the replacement, rather than needing to be repaired
+        SQRLIdentityFolder newFolder = new SQRLIdentityFolder();
+        newFolder.load();
+        assertEquals(70, newFolder.loadIdentity(IDENTITY_NAME).getIterations());
+
+        try {
+            folder.replaceIdentity("Ada Lovelace", replacement);
+            fail("IdentityDoesNotExistException was not thrown.");
+        } catch (IdentityDoesNotExistException ex) {
+            // This indicates success!
+        }
+    }
+
+    @Test
+    public void exportedIdentitiesShouldBeImportedInOneBatch() throws Exception {
+        byte[] key = new byte[32];
+        EncryptedIdentity identity = new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]);
+        SQRLIdentityFolder folder = new SQRLIdentityFolder();
+        folder.load();
+        folder.createNewIdentity(IDENTITY_NAME, identity);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        folder.exportIdentities(archive, key);
+
+        // Importing over the existing identity should leave it untouched
+        assertTrue(folder.importIdentities(new ByteArrayInputStream(archive.toByteArray()), key).isEmpty());
+
+        folder.remove(IDENTITY_NAME);
+        List<String> importedIdentityNames = folder.importIdentities(new ByteArrayInputStream(archive.toByteArray()), key);
+        assertEquals(Collections.singletonList(IDENTITY_NAME), importedIdentityNames);
+        assertEquals(7, folder.loadIdentity(IDENTITY_NAME).getIterations());
+        assertTrue(new SQRLIdentityFolder().load().containsKey(IDENTITY_NAME));
+    }
+
+    @Test
+    public void identityThatCouldNotBeMigratedShouldStillBeExported() throws Exception {
+        byte[] key = new byte[32];
+        File identitiesFolder = new File(App.getContext().getFilesDir(), "identities");
+        String encodedName = Base64.encodeToString(IDENTITY_NAME.getBytes(Charset.forName("UTF-8")), Base64.NO_PADDING | Base64.URL_SAFE | Base64.NO_WRAP);
+        File legacyFolder = new File(identitiesFolder, encodedName);
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "masterKey"), new byte[48]);
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "salt"), new byte[16]);
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "iterations"), ByteBuffer.allocate(4).putInt(42).array());
+        FileUtils.writeByteArrayToFile(new File(legacyFolder, "iv"), new byte[12]);
+
+        // Every write fails, so the identity stays in the old layout and out of the manifest
+        SQRLIdentityFolder folder = new SQRLIdentityFolder(new AtomicFileWriter() {
+            @Override
+            protected void writeTemporaryFile(File temporaryFile, Contents contents) throws IOException {
+                throw new IOException("The disk is full.");
+            }
+        });
+        assertEquals(42, folder.load().get(IDENTITY_NAME).getIterations());
+        assertTrue(legacyFolder.isDirectory());
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        folder.exportIdentities(archive, key);
+
+        SQRLIdentityFolder newFolder = new SQRLIdentityFolder();
+        newFolder.remove(IDENTITY_NAME);
+        assertEquals(Collections.singletonList(IDENTITY_NAME), newFolder.importIdentities(new ByteArrayInputStream(archive.toByteArray()), key));
+        assertEquals(42, newFolder.loadIdentity(IDENTITY_NAME).getIterations());
+    }
+
+    @Test
+    public void crashWhilstCreatingIdentityShouldNeverLeaveACorruptIdentity() throws Exception {
+        EncryptedIdentity identity = new EncryptedIdentity(new byte[48], new byte[16], 7, new byte[12]);
+        File identitiesFolder = new File(App.getContext().getFilesDir(), "identities");
+
+        for (AtomicFileWriterTest.Step step : AtomicFileWriterTest.Step.values()) {
+            try {
+                new SQRLIdentityFolder(new AtomicFileWriterTest.CrashingAtomicFileWriter(step)).createNewIdentity(IDENTITY_NAME, identity);
+                fail("The write did not crash at " + step);
+            } catch (AtomicFileWriterTest.SimulatedCrash ex) {
+                // Expected
+            }
+
+            // Only a crash after the rename should leave the identity behind, and then it must be intact
+            SQRLIdentityFolder folder = new SQRLIdentityFolder();
+            SimpleArrayMap<String, EncryptedIdentity> identities = folder.repair();
+            if (step == AtomicFileWriterTest.Step.SYNC_DIRECTORY) {
+                assertEquals(7, identities.get(IDENTITY_NAME).getIterations());
+            } else {
+                assertFalse(identities.containsKey(IDENTITY_NAME));
+            }
+            for (String fileName : identitiesFolder.list()) {
+                assertFalse(fileName.endsWith(AtomicFileWriter.TEMPORARY_FILE_SUFFIX));
+            }
+
+            folder.remove(IDENTITY_NAME);
+        }
+    }
+}
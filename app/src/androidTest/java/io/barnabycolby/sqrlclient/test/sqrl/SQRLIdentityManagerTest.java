@@ -1,25 +1,42 @@
 package io.barnabycolby.sqrlclient.test.sqrl;
 
+import android.os.SystemClock;
 import android.support.test.runner.AndroidJUnit4;
 
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.exceptions.IdentityDoesNotExistException;
 import io.barnabycolby.sqrlclient.exceptions.IncorrectPasswordException;
 import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.helpers.IdentityChangeListener;
 import io.barnabycolby.sqrlclient.helpers.Lambda;
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
 import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+import io.barnabycolby.sqrlclient.sqrl.UnlockedIdentityCache;
 import io.barnabycolby.sqrlclient.test.TestHelper;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 @RunWith(AndroidJUnit4.class)
@@ -107,4 +124,219 @@ public class SQRLIdentityManagerTest {
             }
         });
     }
+
+    @Test
+    public void decryptedIdentityShouldBeUsableWithoutPasswordUntilLocked() throws Exception {
+        String identityName = "Ada Lovelace";
+        String password = "Vq8#nR2!mLp4^sTz";
+        byte[] masterKey = Helper.hexStringToByteArray("2F9A60D1C3B57E8841A0F6C2D94B3E7051C8A2F6E1D3B5A79C0E4F2816B3D5A7");
+        SQRLUri uri = mock(SQRLUri.class);
+        when(uri.getHost()).thenReturn("example.com");
+
+        this.mIdentityManager.save(identityName, masterKey, password, null);
+        this.mIdentityManager.setCurrentIdentity(identityName);
+        assertFalse(this.mIdentityManager.isCurrentIdentityUnlocked());
+        assertNull(this.mIdentityManager.getCurrentIdentityForSiteIfUnlocked(uri));
+
+        SQRLIdentity decryptedIdentity = this.mIdentityManager.getCurrentIdentityForSite(uri, password, null);
+        assertTrue(this.mIdentityManager.isCurrentIdentityUnlocked());
+        SQRLIdentity unlockedIdentity = this.mIdentityManager.getCurrentIdentityForSiteIfUnlocked(uri);
+        assertNotNull(unlockedIdentity);
+        assertEquals(decryptedIdentity.getIdentityKey(), unlockedIdentity.getIdentityKey());
+
+        // A different identity should not be unlocked
+        this.mIdentityManager.setCurrentIdentity(this.mIdentityName);
+        assertNull(this.mIdentityManager.getCurrentIdentityForSiteIfUnlocked(uri));
+        this.mIdentityManager.setCurrentIdentity(identityName);
+
+        this.mIdentityManager.lock();
+        assertFalse(this.mIdentityManager.isCurrentIdentityUnlocked());
+        assertNull(this.mIdentityManager.getCurrentIdentityForSiteIfUnlocked(uri));
+    }
+
+    @Test
+    public void removingUnlockedIdentityShouldLockIt() throws Exception {
+        SQRLUri uri = mock(SQRLUri.class);
+        when(uri.getHost()).thenReturn("example.com");
+
+        this.mIdentityManager.setCurrentIdentity(this.mIdentityName);
+        this.mIdentityManager.getCurrentIdentityForSite(uri, "C5E8Yz5T4&kbipkN", null);
+        assertTrue(this.mIdentityManager.isCurrentIdentityUnlocked());
+
+        this.mIdentityManager.removeIdentity(this.mIdentityName);
+        this.mIdentityManager.save(this.mIdentityName, new byte[32], "C5E8Yz5T4&kbipkN", null);
+        this.mIdentityManager.setCurrentIdentity(this.mIdentityName);
+        assertFalse(this.mIdentityManager.isCurrentIdentityUnlocked());
+    }
+
+    @Test
+    public void quickPassShouldUnlockIdentityWithPasswordPrefixOnlyOnce() throws Exception {
+        SQRLUri uri = mock(SQRLUri.class);
+        when(uri.getHost()).thenReturn("example.com");
+
+        this.mIdentityManager.setCurrentIdentity(this.mIdentityName);
+        assertFalse(this.mIdentityManager.isQuickPassAvailable());
+        SQRLIdentity decryptedIdentity = this.mIdentityManager.getCurrentIdentityForSite(uri, "C5E8Yz5T4&kbipkN", null);
+        assertTrue(this.waitForQuickPass());
+
+        // Locking wipes the master key but the QuickPass should survive the unlocked identity timing out
+        this.mIdentityManager.setUnlockedIdleTimeout(0);
+        assertFalse(this.mIdentityManager.isCurrentIdentityUnlocked());
+        this.mIdentityManager.setUnlockedIdleTimeout(UnlockedIdentityCache.DEFAULT_IDLE_TIMEOUT_IN_MILLIS);
+        assertTrue(this.mIdentityManager.isQuickPassAvailable());
+
+        String prefix = "C5E8Yz5T4&kbipkN".substring(0, this.mIdentityManager.getQuickPassPrefixLength());
+        SQRLIdentity quickPassIdentity = this.mIdentityManager.getCurrentIdentityForSite(uri, prefix, null);
+        assertEquals(decryptedIdentity.getIdentityKey(), quickPassIdentity.getIdentityKey());
+        assertTrue(this.mIdentityManager.isCurrentIdentityUnlocked());
+        assertFalse(this.mIdentityManager.isQuickPassAvailable());
+
+        this.mIdentityManager.lock();
+    }
+
+    @Test
+    public void incorrectQuickPassPrefixShouldDiscardQuickPass() throws Exception {
+        final SQRLUri uri = mock(SQRLUri.class);
+        when(uri.getHost()).thenReturn("example.com");
+
+        this.mIdentityManager.setCurrentIdentity(this.mIdentityName);
+        this.mIdentityManager.getCurrentIdentityForSite(uri, "C5E8Yz5T4&kbipkN", null);
+        this.mIdentityManager.lock();
+        assertFalse(this.mIdentityManager.isQuickPassAvailable());
+
+        this.mIdentityManager.getCurrentIdentityForSite(uri, "C5E8Yz5T4&kbipkN", null);
+        assertTrue(this.waitForQuickPass());
+        final String incorrectPrefix = "TJjt*G9GP$@M&c*D".substring(0, this.mIdentityManager.getQuickPassPrefixLength());
+        TestHelper.assertExceptionThrown(IncorrectPasswordException.class, new Lambda() {
+            public void run() throws Exception {
+                mIdentityManager.getCurrentIdentityForSite(uri, incorrectPrefix, null);
+            }
+        });
+        assertFalse(this.mIdentityManager.isQuickPassAvailable());
+
+        this.mIdentityManager.lock();
+    }
+
+    @Test
+    public void lockShouldCancelQuickPassStillBeingCreated() throws Exception {
+        SQRLUri uri = mock(SQRLUri.class);
+        when(uri.getHost()).thenReturn("example.com");
+
+        this.mIdentityManager.setCurrentIdentity(this.mIdentityName);
+        this.mIdentityManager.getCurrentIdentityForSite(uri, "C5E8Yz5T4&kbipkN", null);
+        this.mIdentityManager.lock();
+        assertFalse(this.waitForQuickPass());
+    }
+
+    @Test
+    public void changeListenersShouldBeNotifiedOfEachChangeInOrder() throws Exception {
+        String identityName = "Grace Hopper";
+        IdentityChangeListener listener = mock(IdentityChangeListener.class);
+        this.mIdentityManager.addIdentityChangeListener(listener);
+        try {
+            this.mIdentityManager.save(identityName, new byte[32], "C5E8Yz5T4&kbipkN", null);
+            this.mIdentityManager.setCurrentIdentity(identityName);
+            // Setting the same identity again is not a change
+            this.mIdentityManager.setCurrentIdentity(identityName);
+            this.mIdentityManager.removeIdentity(identityName);
+        } finally {
+            this.mIdentityManager.removeIdentityChangeListener(listener);
+        }
+
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).onIdentityAdded(identityName);
+        inOrder.verify(listener).onCurrentIdentityChanged(identityName);
+        inOrder.verify(listener).onIdentityRemoved(identityName);
+        inOrder.verify(listener).onCurrentIdentityChanged(null);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void removedChangeListenerShouldNotBeNotified() throws Exception {
+        IdentityChangeListener listener = mock(IdentityChangeListener.class);
+        this.mIdentityManager.addIdentityChangeListener(listener);
+        this.mIdentityManager.removeIdentityChangeListener(listener);
+
+        this.mIdentityManager.setCurrentIdentity(this.mIdentityName);
+        this.mIdentityManager.removeIdentity(this.mIdentityName);
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test
+    public void concurrentReadersAndWritersShouldSeeConsistentIdentities() throws Exception {
+        final int numberOfWriters = 4;
+        final int numberOfReaders = 4;
+        final int iterations = 25;
+        final EncryptedIdentity encryptedIdentity = new EncryptedIdentity(new byte[48], new byte[16], 1, new byte[12]);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch writersFinished = new CountDownLatch(numberOfWriters);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < numberOfWriters; i++) {
+            final String identityName = "Stress Test " + i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < iterations; j++) {
+                            mIdentityManager.save(identityName, encryptedIdentity);
+                            assertTrue(mIdentityManager.identityExists(identityName));
+                            mIdentityManager.setCurrentIdentity(identityName);
+                            mIdentityManager.removeIdentity(identityName);
+                            assertFalse(mIdentityManager.identityExists(identityName));
+                        }
+                    } catch (Throwable ex) {
+                        failures.add(ex);
+                    } finally {
+                        writersFinished.countDown();
+                    }
+                }
+            }));
+        }
+
+        for (int i = 0; i < numberOfReaders; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (writersFinished.getCount() > 0) {
+                            List<String> identityNames = mIdentityManager.getIdentityNames();
+                            assertEquals(new HashSet<String>(identityNames).size(), identityNames.size());
+                            assertTrue(identityNames.contains(mIdentityName));
+                            assertTrue(mIdentityManager.containsIdentities());
+                        }
+                    } catch (Throwable ex) {
+                        failures.add(ex);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(60000);
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(Collections.singletonList(mIdentityName), this.mIdentityManager.getIdentityNames());
+    }
+
+    /**
+     * Waits for the QuickPass that is created in the background after a full decryption.
+     *
+     * @return True if the QuickPass became available within a few seconds, false otherwise.
+     */
+    private boolean waitForQuickPass() {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (!this.mIdentityManager.isQuickPassAvailable()) {
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                return false;
+            }
+            SystemClock.sleep(50);
+        }
+
+        return true;
+    }
 }
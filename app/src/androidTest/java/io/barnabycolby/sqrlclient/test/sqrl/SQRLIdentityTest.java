@@ -14,12 +14,14 @@ import org.abstractj.kalium.Sodium;
 import org.junit.*;
 import org.junit.runner.RunWith;
 
+import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.exceptions.InvalidMasterKeyException;
 import io.barnabycolby.sqrlclient.sqrl.*;
 import io.barnabycolby.sqrlclient.test.TestHelper;
 import io.barnabycolby.sqrlclient.helpers.Lambda;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -106,14 +108,40 @@ public class SQRLIdentityTest {
         SQRLUri uri = new SQRLUri(Uri.parse("sqrl://sqrldemo.barnabycolby.io/login/sqrlauth.php?nut=54cf51b66a357f414441fff2ddad3b0ce060385bb5ce40ab7e170dc910be3942"));
         SQRLIdentity identity = new SQRLIdentity(this.mMasterKey, uri);
 
-        // Parcel and unparcel the identity
-        Parcel parcel = Parcel.obtain();
-        identity.writeToParcel(parcel, 0);
-        parcel.setDataPosition(0);
-        SQRLIdentity recreatedIdentity = SQRLIdentity.CREATOR.createFromParcel(parcel);
-        parcel.recycle();
+        // Parcel and unparcel the identity, and check that the two instances are equivalent
+        assertEquals(identity, parcelAndUnparcel(identity));
+    }
 
-        // Check that the two instances are equivalent
-        assertEquals(identity, recreatedIdentity);
+    @Test
+    public void unparcellingShouldOnlyReadTheUnlockedIdentityCache() throws Exception {
+        SQRLUri uri = new SQRLUri(Uri.parse("sqrl://sqrldemo.barnabycolby.io/login/sqrlauth.php?nut=54cf51b66a357f414441fff2ddad3b0ce060385bb5ce40ab7e170dc910be3942"));
+        SQRLIdentity identity = new SQRLIdentity(this.mMasterKey.clone(), uri);
+        UnlockedIdentityCache unlockedIdentityCache = App.getSQRLIdentityManager().getUnlockedIdentityCache();
+        unlockedIdentityCache.unlock("Alan Turing", this.mMasterKey);
+        try {
+            // Unparcelling should not add the key pair it derives to the cache
+            assertEquals(identity, parcelAndUnparcel(identity));
+            assertFalse(unlockedIdentityCache.getSiteKeyPair(this.mMasterKey, "sqrldemo.barnabycolby.io", new byte[32], new byte[64]));
+
+            // A key pair that is already cached should be used rather than derived again
+            byte[] cachedPublicKey = new byte[32];
+            cachedPublicKey[0] = 1;
+            unlockedIdentityCache.putSiteKeyPair(this.mMasterKey, "sqrldemo.barnabycolby.io", cachedPublicKey, new byte[64]);
+            String expectedIdentityKey = Base64.encodeToString(cachedPublicKey, Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE);
+            assertEquals(expectedIdentityKey, parcelAndUnparcel(identity).getIdentityKey());
+        } finally {
+            unlockedIdentityCache.lock();
+        }
+    }
+
+    private static SQRLIdentity parcelAndUnparcel(SQRLIdentity identity) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            identity.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return SQRLIdentity.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
     }
 }
@@ -0,0 +1,114 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.sqrl.SiteKeyPairCache;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
+import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+import io.barnabycolby.sqrlclient.sqrl.UnlockedIdentityCache;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+public class SiteKeyPairCacheTest {
+    private static final byte[] MASTER_KEY = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E882D077EFA0215A5B37521884376156A");
+    private static final byte[] OTHER_MASTER_KEY = Helper.hexStringToByteArray("2F9A60D1C3B57E8841A0F6C2D94B3E7051C8A2F6E1D3B5A79C0E4F2816B3D5A7");
+
+    @Test
+    public void cachedKeyPairShouldOnlyBeReturnedForTheSameMasterKeyAndHost() {
+        SiteKeyPairCache cache = new SiteKeyPairCache(4);
+        byte[] publicKey = createKey(32, 1);
+        byte[] privateKey = createKey(64, 2);
+        cache.put(MASTER_KEY, "example.com", publicKey, privateKey);
+
+        byte[] cachedPublicKey = new byte[32];
+        byte[] cachedPrivateKey = new byte[64];
+        assertTrue(cache.get(MASTER_KEY, "example.com", cachedPublicKey, cachedPrivateKey));
+        assertArrayEquals(publicKey, cachedPublicKey);
+        assertArrayEquals(privateKey, cachedPrivateKey);
+
+        assertFalse(cache.get(OTHER_MASTER_KEY, "example.com", cachedPublicKey, cachedPrivateKey));
+        assertFalse(cache.get(MASTER_KEY, "example.org", cachedPublicKey, cachedPrivateKey));
+    }
+
+    @Test
+    public void replacingAKeyPairShouldKeepItRetrievable() {
+        SiteKeyPairCache cache = new SiteKeyPairCache(4);
+        cache.put(MASTER_KEY, "example.com", createKey(32, 1), createKey(64, 2));
+        cache.put(MASTER_KEY, "example.com", createKey(32, 3), createKey(64, 4));
+        assertEquals(1, cache.size());
+
+        byte[] cachedPublicKey = new byte[32];
+        assertTrue(cache.get(MASTER_KEY, "example.com", cachedPublicKey, new byte[64]));
+        assertArrayEquals(createKey(32, 3), cachedPublicKey);
+    }
+
+    @Test
+    public void leastRecentlyUsedKeyPairShouldBeEvicted() {
+        SiteKeyPairCache cache = new SiteKeyPairCache(2);
+        cache.put(MASTER_KEY, "a.com", createKey(32, 1), createKey(64, 1));
+        cache.put(MASTER_KEY, "b.com", createKey(32, 2), createKey(64, 2));
+
+        // Using a.com makes b.com the least recently used
+        assertTrue(cache.get(MASTER_KEY, "a.com", new byte[32], new byte[64]));
+        cache.put(MASTER_KEY, "c.com", createKey(32, 3), createKey(64, 3));
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.get(MASTER_KEY, "a.com", new byte[32], new byte[64]));
+        assertFalse(cache.get(MASTER_KEY, "b.com", new byte[32], new byte[64]));
+        assertTrue(cache.get(MASTER_KEY, "c.com", new byte[32], new byte[64]));
+    }
+
+    @Test
+    public void lockingAnIdentityShouldEvictItsKeyPairs() throws Exception {
+        SQRLUri uri = mock(SQRLUri.class);
+        when(uri.getHost()).thenReturn("example.com");
+        UnlockedIdentityCache unlockedIdentityCache = new UnlockedIdentityCache(60000);
+        unlockedIdentityCache.unlock("Alan Turing", MASTER_KEY);
+
+        SQRLIdentity identity = new SQRLIdentity(MASTER_KEY.clone(), uri, unlockedIdentityCache);
+        assertTrue(unlockedIdentityCache.getSiteKeyPair(MASTER_KEY, "example.com", new byte[32], new byte[64]));
+        assertEquals(identity, new SQRLIdentity(MASTER_KEY.clone(), uri, unlockedIdentityCache));
+
+        unlockedIdentityCache.lock();
+        assertFalse(unlockedIdentityCache.getSiteKeyPair(MASTER_KEY, "example.com", new byte[32], new byte[64]));
+
+        // Once locked, constructing the identity again must not refill the cache
+        assertEquals(identity, new SQRLIdentity(MASTER_KEY.clone(), uri, unlockedIdentityCache));
+        unlockedIdentityCache.unlock("Alan Turing", MASTER_KEY);
+        assertFalse(unlockedIdentityCache.getSiteKeyPair(MASTER_KEY, "example.com", new byte[32], new byte[64]));
+        unlockedIdentityCache.lock();
+    }
+
+    @Test
+    public void keyPairsShouldOnlyBeCachedForTheUnlockedMasterKey() throws Exception {
+        UnlockedIdentityCache unlockedIdentityCache = new UnlockedIdentityCache(60000);
+        unlockedIdentityCache.unlock("Alan Turing", MASTER_KEY);
+
+        unlockedIdentityCache.putSiteKeyPair(OTHER_MASTER_KEY, "example.com", createKey(32, 1), createKey(64, 2));
+        assertFalse(unlockedIdentityCache.getSiteKeyPair(OTHER_MASTER_KEY, "example.com", new byte[32], new byte[64]));
+
+        // Each cache holds its own key pairs, so locking another instance leaves them in place
+        unlockedIdentityCache.putSiteKeyPair(MASTER_KEY, "example.com", createKey(32, 1), createKey(64, 2));
+        new UnlockedIdentityCache(60000).lock();
+        assertTrue(unlockedIdentityCache.getSiteKeyPair(MASTER_KEY, "example.com", new byte[32], new byte[64]));
+        unlockedIdentityCache.lock();
+    }
+
+    private static byte[] createKey(int length, int seed) {
+        byte[] key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = (byte)(i * seed);
+        }
+        return key;
+    }
+}
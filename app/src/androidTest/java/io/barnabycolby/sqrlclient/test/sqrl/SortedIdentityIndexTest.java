@@ -0,0 +1,98 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.util.SimpleArrayMap;
+
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
+import io.barnabycolby.sqrlclient.sqrl.SortedIdentityIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedSet;
+
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class SortedIdentityIndexTest {
+    private SortedIdentityIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        this.mIndex = new SortedIdentityIndex();
+        for (String identityName : new String[] { "bob", "Alice", "alan", "Bobby", "carol", "ALAN" }) {
+            this.mIndex.put(identityName, null);
+        }
+    }
+
+    @Test
+    public void namesShouldBeSortedIgnoringCase() {
+        assertEquals(Arrays.asList("ALAN", "alan", "Alice", "bob", "Bobby", "carol"), new ArrayList<String>(this.mIndex.getNames()));
+    }
+
+    @Test
+    public void prefixSearchShouldIgnoreCase() {
+        assertEquals(Arrays.asList("ALAN", "alan", "Alice"), new ArrayList<String>(this.mIndex.getNamesWithPrefix("a")));
+        assertEquals(Arrays.asList("ALAN", "alan"), new ArrayList<String>(this.mIndex.getNamesWithPrefix("alan")));
+        assertEquals(Arrays.asList("bob", "Bobby"), new ArrayList<String>(this.mIndex.getNamesWithPrefix("BOB")));
+        assertTrue(this.mIndex.getNamesWithPrefix("dave").isEmpty());
+        assertEquals(6, this.mIndex.getNamesWithPrefix("").size());
+    }
+
+    @Test
+    public void prefixSearchShouldReflectLaterChanges() {
+        SortedSet<String> names = this.mIndex.getNamesWithPrefix("car");
+        assertEquals(Collections.singletonList("carol"), new ArrayList<String>(names));
+
+        this.mIndex.put("Carl", null);
+        this.mIndex.remove("carol");
+        assertEquals(Collections.singletonList("Carl"), new ArrayList<String>(names));
+    }
+
+    @Test
+    public void viewsShouldBeReadOnly() {
+        try {
+            this.mIndex.getNamesWithPrefix("a").remove("alan");
+            fail("UnsupportedOperationException was not thrown.");
+        } catch (UnsupportedOperationException ex) {
+            // This indicates success!
+        }
+        assertTrue(this.mIndex.contains("alan"));
+    }
+
+    @Test
+    public void substringSearchShouldIgnoreCase() {
+        assertEquals(Arrays.asList("bob", "Bobby"), this.mIndex.findNamesContaining("OB"));
+        assertEquals(Arrays.asList("ALAN", "alan"), this.mIndex.findNamesContaining("la"));
+        assertTrue(this.mIndex.findNamesContaining("xyz").isEmpty());
+    }
+
+    @Test
+    public void identitiesShouldBeRetrievableOnceRead() {
+        EncryptedIdentity encryptedIdentity = new EncryptedIdentity(new byte[48], new byte[16], 1, new byte[12]);
+        SimpleArrayMap<String, EncryptedIdentity> identities = new SimpleArrayMap<String, EncryptedIdentity>();
+        identities.put("dave", null);
+        identities.put("erin", encryptedIdentity);
+        SortedIdentityIndex index = new SortedIdentityIndex(identities);
+
+        assertTrue(index.contains("dave"));
+        assertNull(index.get("dave"));
+        assertSame(encryptedIdentity, index.get("erin"));
+        assertFalse(index.contains(null));
+
+        index.put("dave", encryptedIdentity);
+        assertSame(encryptedIdentity, index.get("dave"));
+        assertTrue(index.remove("dave"));
+        assertFalse(index.remove("dave"));
+        assertEquals(1, index.size());
+    }
+}
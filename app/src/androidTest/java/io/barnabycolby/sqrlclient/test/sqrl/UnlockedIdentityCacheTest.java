@@ -0,0 +1,101 @@
+package io.barnabycolby.sqrlclient.test.sqrl;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.sqrl.UnlockedIdentityCache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class UnlockedIdentityCacheTest {
+    private static final byte[] MASTER_KEY = Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E882D077EFA0215A5B37521884376156A");
+
+    @Test
+    public void unlockedIdentityShouldReturnACopyOfItsMasterKey() {
+        UnlockedIdentityCache cache = new UnlockedIdentityCache(60000);
+        byte[] masterKey = MASTER_KEY.clone();
+        cache.unlock("Alan Turing", masterKey);
+
+        // Wiping the callers copy should not affect the cache
+        masterKey[0] = 0;
+        byte[] cachedMasterKey = cache.getMasterKey("Alan Turing");
+        assertArrayEquals(MASTER_KEY, cachedMasterKey);
+
+        cachedMasterKey[1] = 0;
+        assertArrayEquals(MASTER_KEY, cache.getMasterKey("Alan Turing"));
+    }
+
+    @Test
+    public void onlyTheMostRecentlyUnlockedIdentityShouldBeUnlocked() {
+        UnlockedIdentityCache cache = new UnlockedIdentityCache(60000);
+        cache.unlock("Alan Turing", MASTER_KEY);
+        cache.unlock("Grace Hopper", new byte[32]);
+
+        assertFalse(cache.isUnlocked("Alan Turing"));
+        assertNull(cache.getMasterKey("Alan Turing"));
+        assertTrue(cache.isUnlocked("Grace Hopper"));
+        assertFalse(cache.isUnlocked(null));
+    }
+
+    @Test
+    public void lockShouldForgetTheMasterKey() {
+        UnlockedIdentityCache cache = new UnlockedIdentityCache(60000);
+        cache.unlock("Alan Turing", MASTER_KEY);
+        cache.lock();
+
+        assertFalse(cache.isUnlocked("Alan Turing"));
+        assertNull(cache.getMasterKey("Alan Turing"));
+    }
+
+    @Test
+    public void identityShouldLockAfterTheIdleTimeout() throws Exception {
+        UnlockedIdentityCache cache = new UnlockedIdentityCache(200);
+        cache.unlock("Alan Turing", MASTER_KEY);
+
+        // Using the identity should reset the timeout
+        Thread.sleep(150);
+        assertTrue(cache.getMasterKey("Alan Turing") != null);
+        Thread.sleep(150);
+        assertTrue(cache.isUnlocked("Alan Turing"));
+
+        Thread.sleep(250);
+        assertFalse(cache.isUnlocked("Alan Turing"));
+    }
+
+    @Test
+    public void lockListenerShouldBeNotifiedWhenTheIdleTimeoutPasses() throws Exception {
+        UnlockedIdentityCache cache = new UnlockedIdentityCache(100);
+        final CountDownLatch locked = new CountDownLatch(1);
+        cache.setLockListener(new UnlockedIdentityCache.LockListener() {
+            @Override
+            public void onLocked() {
+                locked.countDown();
+            }
+        });
+        cache.unlock("Alan Turing", MASTER_KEY);
+
+        // Nothing touches the cache, so only its own timer can lock it
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+        assertFalse(cache.isUnlocked("Alan Turing"));
+    }
+
+    @Test
+    public void reducingTheIdleTimeoutShouldTakeEffectImmediately() throws Exception {
+        UnlockedIdentityCache cache = new UnlockedIdentityCache(60000);
+        cache.unlock("Alan Turing", MASTER_KEY);
+        Thread.sleep(50);
+
+        cache.setIdleTimeout(10);
+        assertFalse(cache.isUnlocked("Alan Turing"));
+    }
+}
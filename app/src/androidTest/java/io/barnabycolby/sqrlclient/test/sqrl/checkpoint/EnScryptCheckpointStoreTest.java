@@ -0,0 +1,157 @@
+package io.barnabycolby.sqrlclient.test.sqrl.checkpoint;
+
+import android.os.Build;
+import android.support.test.runner.AndroidJUnit4;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpoint;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpointStore;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.FileEnScryptCheckpointStore;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.MemoryEnScryptCheckpointStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class EnScryptCheckpointStoreTest {
+    private File mFolder;
+    private List<EnScryptCheckpointStore> mStores;
+
+    @Before
+    public void setUp() throws Exception {
+        this.mFolder = new File(App.getContext().getCacheDir(), "enscryptCheckpointStoreTest");
+        FileUtils.deleteDirectory(this.mFolder);
+
+        this.mStores = new ArrayList<EnScryptCheckpointStore>();
+        this.mStores.add(new MemoryEnScryptCheckpointStore());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            this.mStores.add(new FileEnScryptCheckpointStore(this.mFolder));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(this.mFolder);
+    }
+
+    @Test
+    public void savedCheckpointShouldBeLoadedIntact() {
+        for (EnScryptCheckpointStore store : this.mStores) {
+            EnScryptCheckpoint checkpoint = createCheckpoint();
+            store.save("checkpoint", checkpoint);
+
+            EnScryptCheckpoint loaded = store.load("checkpoint");
+            assertNotNull(loaded);
+            assertArrayEquals(checkpoint.getSalt(), loaded.getSalt());
+            assertEquals(checkpoint.getTargetIterations(), loaded.getTargetIterations());
+            assertEquals(checkpoint.getCompletedIterations(), loaded.getCompletedIterations());
+            assertArrayEquals(checkpoint.getAccumulator(), loaded.getAccumulator());
+            assertArrayEquals(checkpoint.getLastOutput(), loaded.getLastOutput());
+            assertTrue(loaded.matches(checkpoint.getSalt(), checkpoint.getTargetIterations()));
+            assertFalse(loaded.matches(checkpoint.getSalt(), checkpoint.getTargetIterations() + 1));
+        }
+    }
+
+    @Test
+    public void boundCheckpointShouldOnlyBeLoadedWithTheSameSecret() {
+        byte[] secret = new byte[32];
+        secret[0] = 1;
+        for (EnScryptCheckpointStore store : this.mStores) {
+            EnScryptCheckpoint checkpoint = createCheckpoint();
+            store.save("checkpoint", secret, checkpoint);
+
+            EnScryptCheckpoint loaded = store.load("checkpoint", secret);
+            assertNotNull(loaded);
+            assertArrayEquals(checkpoint.getAccumulator(), loaded.getAccumulator());
+            assertArrayEquals(checkpoint.getLastOutput(), loaded.getLastOutput());
+
+            store.save("checkpoint", secret, checkpoint);
+            assertNull(store.load("checkpoint", new byte[32]));
+            assertNull(store.load("checkpoint"));
+        }
+    }
+
+    @Test
+    public void checkpointBoundToAPasswordShouldOnlyBeLoadedWithTheSamePassword() {
+        for (EnScryptCheckpointStore store : this.mStores) {
+            byte[] secret = store.deriveBindingSecret("checkpoint", "correct horse");
+            assertNotNull(secret);
+            assertArrayEquals(secret, store.deriveBindingSecret("checkpoint", "correct horse"));
+            assertFalse(Arrays.equals(secret, store.deriveBindingSecret("otherCheckpoint", "correct horse")));
+
+            EnScryptCheckpoint checkpoint = createCheckpoint();
+            store.save("checkpoint", secret, checkpoint);
+            assertNull(store.load("checkpoint", store.deriveBindingSecret("checkpoint", "battery staple")));
+
+            // The checkpoint of the wrong password should have been discarded, rather than left for the right one to resume
+            store.save("checkpoint", secret, checkpoint);
+            store.load("checkpoint", store.deriveBindingSecret("checkpoint", "battery staple"));
+            assertNull(store.load("checkpoint", secret));
+        }
+    }
+
+    @Test
+    public void removedCheckpointShouldNotBeLoaded() {
+        for (EnScryptCheckpointStore store : this.mStores) {
+            store.save("checkpoint", createCheckpoint());
+            store.remove("checkpoint");
+            assertNull(store.load("checkpoint"));
+            assertNull(store.load("neverSaved"));
+        }
+    }
+
+    @Test
+    public void checkpointFilesShouldBeEncrypted() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+
+        EnScryptCheckpoint checkpoint = createCheckpoint();
+        new FileEnScryptCheckpointStore(this.mFolder).save("checkpoint", checkpoint);
+        byte[] contents = FileUtils.readFileToByteArray(new File(this.mFolder, "checkpoint"));
+        assertFalse(new String(contents, "ISO-8859-1").contains(new String(checkpoint.getAccumulator(), "ISO-8859-1")));
+    }
+
+    @Test
+    public void corruptCheckpointFileShouldBeDiscarded() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+
+        EnScryptCheckpointStore store = new FileEnScryptCheckpointStore(this.mFolder);
+        store.save("checkpoint", createCheckpoint());
+        File file = new File(this.mFolder, "checkpoint");
+        byte[] contents = FileUtils.readFileToByteArray(file);
+        contents[contents.length - 1] ^= 1;
+        FileUtils.writeByteArrayToFile(file, contents);
+
+        assertNull(store.load("checkpoint"));
+        assertFalse(file.exists());
+    }
+
+    private static EnScryptCheckpoint createCheckpoint() {
+        byte[] accumulator = new byte[32];
+        byte[] lastOutput = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            accumulator[i] = (byte)i;
+            lastOutput[i] = (byte)(i * 3);
+        }
+
+        return new EnScryptCheckpoint(new byte[16], 100, 42, accumulator, lastOutput);
+    }
+}
@@ -0,0 +1,153 @@
+package io.barnabycolby.sqrlclient.test.sqrl.factories;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Base64;
+
+import io.barnabycolby.sqrlclient.exceptions.CommandFailedException;
+import io.barnabycolby.sqrlclient.sqrl.AccountStateCache;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
+import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+import io.barnabycolby.sqrlclient.sqrl.factories.SQRLConnectionFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.SQRLRequestFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.SQRLResponseFactory;
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLConnection;
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Mockito.*;
+
+@RunWith(AndroidJUnit4.class)
+public class SQRLRequestFactoryTest {
+    private SQRLIdentity mIdentity;
+    private SQRLConnectionFactory mConnectionFactory;
+    private SQRLResponseFactory mResponseFactory;
+    private AccountStateCache mAccountStateCache;
+    private List<ByteArrayOutputStream> mRequestBodies = new ArrayList<ByteArrayOutputStream>();
+    private SQRLRequestFactory mRequestFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        mIdentity = mock(SQRLIdentity.class);
+        when(mIdentity.getIdentityKey()).thenReturn("TLkr7WmDr8YAd4eRk2dy6LZq0tL8vzyYy1fpJ9CvGxM");
+        when(mIdentity.signUsingIdentityPrivateKey(anyString())).thenReturn("signature");
+
+        // Every connection records the body of the request written to it
+        final SQRLUri uri = mock(SQRLUri.class);
+        when(uri.getFullUriAsString()).thenReturn("sqrl://www.grc.com/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA");
+        Answer<SQRLConnection> createConnection = new Answer<SQRLConnection>() {
+            @Override
+            public SQRLConnection answer(InvocationOnMock invocation) {
+                ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+                mRequestBodies.add(requestBody);
+                SQRLConnection connection = mock(SQRLConnection.class);
+                when(connection.getOutputStream()).thenReturn(requestBody);
+                when(connection.getSQRLUri()).thenReturn(uri);
+                return connection;
+            }
+        };
+        mConnectionFactory = mock(SQRLConnectionFactory.class);
+        when(mConnectionFactory.create()).thenAnswer(createConnection);
+        when(mConnectionFactory.create(anyString())).thenAnswer(createConnection);
+
+        mResponseFactory = mock(SQRLResponseFactory.class);
+        mAccountStateCache = mock(AccountStateCache.class);
+        mRequestFactory = new SQRLRequestFactory(mIdentity, mConnectionFactory, mResponseFactory, mAccountStateCache);
+    }
+
+    @Test
+    public void queryShouldBeSentWhenTheAccountStateIsUnknown() throws Exception {
+        SQRLResponse response = createResponse(true);
+        when(mResponseFactory.create(any(SQRLConnection.class))).thenReturn(response);
+
+        Assert.assertSame(response, mRequestFactory.createAndSendQuery());
+        Assert.assertEquals(1, mRequestBodies.size());
+        Assert.assertTrue(getClientValue(0).contains("cmd=query"));
+        verify(mAccountStateCache).setAccountExists(mIdentity, true);
+    }
+
+    @Test
+    public void identShouldBeSentInPlaceOfTheQueryWhenTheAccountIsKnownToExist() throws Exception {
+        when(mAccountStateCache.isAccountKnownToExist(mIdentity)).thenReturn(true);
+        SQRLResponse response = createResponse(true);
+        when(mResponseFactory.create(any(SQRLConnection.class))).thenReturn(response);
+
+        Assert.assertSame(response, mRequestFactory.createAndSendQuery());
+        Assert.assertSame(response, mRequestFactory.createAndSendIdent());
+
+        // Only one round trip was made, and it could not have created an account
+        Assert.assertEquals(1, mRequestBodies.size());
+        Assert.assertTrue(getClientValue(0).contains("cmd=ident"));
+        Assert.assertFalse(getClientValue(0).contains("suk="));
+    }
+
+    @Test
+    public void queryShouldBeSentWhenTheServerRejectsTheOptimisticIdent() throws Exception {
+        when(mAccountStateCache.isAccountKnownToExist(mIdentity)).thenReturn(true);
+        SQRLResponse identResponse = createResponse(false);
+        SQRLResponse queryResponse = createResponse(false);
+        when(mResponseFactory.create(any(SQRLConnection.class))).thenThrow(new CommandFailedException("Client failure", identResponse)).thenReturn(queryResponse);
+
+        Assert.assertSame(queryResponse, mRequestFactory.createAndSendQuery());
+        Assert.assertEquals(2, mRequestBodies.size());
+        Assert.assertTrue(getClientValue(0).contains("cmd=ident"));
+        Assert.assertTrue(getClientValue(1).contains("cmd=query"));
+        verify(mAccountStateCache, atLeastOnce()).setAccountExists(mIdentity, false);
+    }
+
+    @Test
+    public void queryShouldBeSentWhenTheServerDoesNotRecogniseTheIdentity() throws Exception {
+        when(mAccountStateCache.isAccountKnownToExist(mIdentity)).thenReturn(true);
+        SQRLResponse identResponse = createResponse(false);
+        SQRLResponse queryResponse = createResponse(false);
+        when(mResponseFactory.create(any(SQRLConnection.class))).thenReturn(identResponse).thenReturn(queryResponse);
+
+        Assert.assertSame(queryResponse, mRequestFactory.createAndSendQuery());
+        Assert.assertEquals(2, mRequestBodies.size());
+    }
+
+    @Test
+    public void queryAfterARejectedOptimisticIdentShouldBeChainedFromItsResponse() throws Exception {
+        when(mAccountStateCache.isAccountKnownToExist(mIdentity)).thenReturn(true);
+        SQRLResponse identResponse = createResponse(false);
+        when(identResponse.getQry()).thenReturn("/sqrl?nut=Xc2ysz7q0YuTqmbFIXmk4A");
+        when(identResponse.toString()).thenReturn("dmVyPTENCm51dD1YYzJ5c3o3cTBZdVRxbWJGSVhtazRBDQp0aWY9NDANCg");
+        SQRLResponse queryResponse = createResponse(false);
+        when(mResponseFactory.create(any(SQRLConnection.class))).thenThrow(new CommandFailedException("Client failure", identResponse)).thenReturn(queryResponse);
+
+        Assert.assertSame(queryResponse, mRequestFactory.createAndSendQuery());
+
+        // The original nut was used up by the ident, so the query must use the new qry and the server value of the ident's response
+        verify(mConnectionFactory).create();
+        verify(mConnectionFactory).create("/sqrl?nut=Xc2ysz7q0YuTqmbFIXmk4A");
+        Assert.assertTrue(getClientValue(1).contains("cmd=query"));
+        Assert.assertEquals("dmVyPTENCm51dD1YYzJ5c3o3cTBZdVRxbWJGSVhtazRBDQp0aWY9NDANCg", getServerValue(1));
+    }
+
+    private SQRLResponse createResponse(boolean currentAccountExists) {
+        SQRLResponse response = mock(SQRLResponse.class);
+        when(response.currentAccountExists()).thenReturn(currentAccountExists);
+        when(response.getQry()).thenReturn("/sqrl?nut=oOB4QOFJux5Z1upsFGu3Tw");
+        return response;
+    }
+
+    private String getServerValue(int requestIndex) {
+        String requestBody = new String(mRequestBodies.get(requestIndex).toByteArray(), Charset.forName("UTF-8"));
+        int serverValueStart = requestBody.indexOf("&server=") + "&server=".length();
+        return requestBody.substring(serverValueStart, requestBody.indexOf('&', serverValueStart));
+    }
+
+    private String getClientValue(int requestIndex) {
+        String requestBody = new String(mRequestBodies.get(requestIndex).toByteArray(), Charset.forName("UTF-8"));
+        String encodedClientValue = requestBody.substring("client=".length(), requestBody.indexOf('&'));
+        return new String(Base64.decode(encodedClientValue, Base64.URL_SAFE), Charset.forName("UTF-8"));
+    }
+}
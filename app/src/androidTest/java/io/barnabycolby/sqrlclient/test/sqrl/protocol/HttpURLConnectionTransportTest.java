@@ -0,0 +1,161 @@
+package io.barnabycolby.sqrlclient.test.sqrl.protocol;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.net.Uri;
+
+import io.barnabycolby.sqrlclient.sqrl.protocol.Deadline;
+import io.barnabycolby.sqrlclient.sqrl.protocol.HttpURLConnectionTransport;
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLConnectionManager;
+import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import static org.mockito.Mockito.*;
+
+@RunWith(AndroidJUnit4.class)
+public class HttpURLConnectionTransportTest {
+    private Uri uri;
+    private SQRLUri sqrlUri;
+    private HttpURLConnectionTransport transport;
+    private HttpURLConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        // Create the SQRL URI
+        uri = Uri.parse("sqrl://www.grc.com/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA&sfn=R1JD");
+        sqrlUri = new SQRLUri(uri);
+        transport = new HttpURLConnectionTransport();
+        connection = transport.openConnection(sqrlUri);
+    }
+
+    @Test
+    public void createConnectionToTheCorrectURLAllowingIncomingAndOutgoingTraffic() throws Exception {
+        String expected = "https://www.grc.com/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA&sfn=R1JD";
+        Assert.assertEquals(expected, connection.getURL().toExternalForm());
+        Assert.assertTrue(connection.getDoInput());
+        Assert.assertTrue(connection.getDoOutput());
+    }
+
+    @Test
+    public void setCorrectMethodAndHeadersBasedOnURI() throws Exception {
+        Assert.assertEquals("POST", connection.getRequestMethod());
+        Assert.assertEquals(uri.getHost(), connection.getRequestProperty("Host"));
+        Assert.assertEquals("SQRL/1", connection.getRequestProperty("User-Agent"));
+        Assert.assertEquals("application/x-www-form-urlencoded", connection.getRequestProperty("Content-type"));
+    }
+
+    @Test
+    public void connectionsShouldShareTheSameSSLSocketFactory() throws Exception {
+        // Sockets and TLS sessions are only reused between connections that share a socket factory
+        HttpsURLConnection firstConnection = (HttpsURLConnection)connection;
+        HttpsURLConnection secondConnection = (HttpsURLConnection)transport.openConnection(sqrlUri);
+        Assert.assertSame(firstConnection.getSSLSocketFactory(), secondConnection.getSSLSocketFactory());
+    }
+
+    @Test
+    public void consecutiveRequestsShouldShareOneConnection() throws Exception {
+        StandInSQRLServer server = StandInSQRLServer.createEchoServer();
+        try {
+            for (int i = 0; i < 3; i++) {
+                RecordingTransportListener listener = new RecordingTransportListener();
+                transport.send(server.getSQRLUri(), ("request " + i).getBytes(Charset.forName("UTF-8")), Deadline.NONE, listener);
+                listener.assertResponse(200, "request " + i);
+            }
+
+            Assert.assertEquals(3, server.getRequestCount());
+            Assert.assertEquals(1, server.getConnectionCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void connectionShouldBeReleasedRatherThanDisconnected() throws Exception {
+        SQRLConnectionManager connectionManager = mock(SQRLConnectionManager.class);
+        HttpURLConnection httpURLConnection = mock(HttpURLConnection.class);
+        when(connectionManager.openConnection(any(URL.class))).thenReturn(httpURLConnection);
+        when(httpURLConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        when(httpURLConnection.getResponseCode()).thenReturn(200);
+        when(httpURLConnection.getInputStream()).thenReturn(new ByteArrayInputStream("response".getBytes(Charset.forName("UTF-8"))));
+
+        RecordingTransportListener listener = new RecordingTransportListener();
+        new HttpURLConnectionTransport(connectionManager).send(sqrlUri, "request".getBytes(Charset.forName("UTF-8")), Deadline.NONE, listener);
+        listener.assertResponse(200, "response");
+
+        // Disconnecting would close the socket, preventing the next request from reusing it
+        verify(connectionManager).release(httpURLConnection);
+        verify(httpURLConnection, never()).disconnect();
+    }
+
+    @Test
+    public void requestShouldFailWhenTheServerDoesNotRespondBeforeTheDeadline() throws Exception {
+        StandInSQRLServer server = StandInSQRLServer.createSlowServer(5000);
+        try {
+            long startTime = System.currentTimeMillis();
+            RecordingTransportListener listener = new RecordingTransportListener();
+            transport.send(server.getSQRLUri(), "request".getBytes(Charset.forName("UTF-8")), Deadline.after(300), listener);
+            listener.assertFailure(SocketTimeoutException.class);
+            Assert.assertTrue(System.currentTimeMillis() - startTime < 4000);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void requestShouldFailAtTheDeadlineWhenTheServerTricklesItsResponse() throws Exception {
+        StandInSQRLServer server = StandInSQRLServer.createEchoServer();
+        try {
+            // Each byte arrives well within the read timeout, but the whole response would take 20 seconds
+            server.setTrickleInterval(200);
+            byte[] requestBody = new byte[100];
+            long startTime = System.currentTimeMillis();
+            RecordingTransportListener listener = new RecordingTransportListener();
+            transport.send(server.getSQRLUri(), requestBody, Deadline.after(1000), listener);
+            listener.assertFailure(SocketTimeoutException.class);
+            Assert.assertTrue(System.currentTimeMillis() - startTime < 4000);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void firstRequestShouldUseThePrewarmedConnection() throws Exception {
+        StandInSQRLServer server = StandInSQRLServer.createEchoServer();
+        try {
+            transport.prewarm(server.getSQRLUri());
+            RecordingTransportListener listener = new RecordingTransportListener();
+            transport.send(server.getSQRLUri(), "request".getBytes(Charset.forName("UTF-8")), Deadline.NONE, listener);
+            listener.assertResponse(200, "request");
+
+            // The pre-warming HEAD request and the real request
+            Assert.assertEquals(2, server.getRequestCount());
+            Assert.assertEquals(1, server.getConnectionCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void prewarmShouldNotFollowRedirects() throws Exception {
+        SQRLConnectionManager connectionManager = spy(SQRLConnectionManager.getInstance());
+        HttpURLConnection httpURLConnection = mock(HttpURLConnection.class);
+        doReturn(httpURLConnection).when(connectionManager).openConnection(any(URL.class));
+        when(httpURLConnection.getResponseCode()).thenReturn(301);
+
+        // A redirect could send the pre-warming request to another server, or repeat it on this one
+        connectionManager.prewarm(new URL("https://www.grc.com/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA"));
+        verify(connectionManager).openConnection(new URL("https://www.grc.com/"));
+        verify(httpURLConnection).setRequestMethod("HEAD");
+        verify(httpURLConnection).setInstanceFollowRedirects(false);
+        verify(connectionManager).release(httpURLConnection);
+    }
+}
@@ -0,0 +1,54 @@
+package io.barnabycolby.sqrlclient.test.sqrl.protocol;
+
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLTransportListener;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+
+/**
+ * Records the outcome of a request sent using a SQRLTransport, so that tests can wait for it and check it.
+ */
+public class RecordingTransportListener implements SQRLTransportListener {
+    private CountDownLatch mLatch = new CountDownLatch(1);
+    private volatile int mResponseCode;
+    private volatile byte[] mResponseBody;
+    private volatile IOException mFailure;
+
+    @Override
+    public void onResponse(int responseCode, byte[] responseBody) {
+        this.mResponseCode = responseCode;
+        this.mResponseBody = responseBody;
+        this.mLatch.countDown();
+    }
+
+    @Override
+    public void onFailure(IOException ex) {
+        this.mFailure = ex;
+        this.mLatch.countDown();
+    }
+
+    /**
+     * Waits for the outcome, and asserts that it was the given response.
+     */
+    public void assertResponse(int expectedResponseCode, String expectedResponseBody) throws Exception {
+        Assert.assertTrue("The transport did not respond in time.", this.mLatch.await(10, TimeUnit.SECONDS));
+        if (this.mFailure != null) {
+            throw this.mFailure;
+        }
+        Assert.assertEquals(expectedResponseCode, this.mResponseCode);
+        Assert.assertEquals(expectedResponseBody, new String(this.mResponseBody, Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Waits for the outcome, and asserts that it was a failure of the given type.
+     */
+    public void assertFailure(Class<? extends IOException> expectedFailureClass) throws Exception {
+        Assert.assertTrue("The transport did not respond in time.", this.mLatch.await(10, TimeUnit.SECONDS));
+        Assert.assertNotNull("The request did not fail.", this.mFailure);
+        Assert.assertTrue("Unexpected failure: " + this.mFailure, expectedFailureClass.isInstance(this.mFailure));
+    }
+}
@@ -3,55 +3,95 @@ package io.barnabycolby.sqrlclient.test.sqrl.protocol;
 import android.support.test.runner.AndroidJUnit4;
 import android.net.Uri;
 
+import io.barnabycolby.sqrlclient.sqrl.protocol.Deadline;
 import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLConnection;
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLTransport;
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLTransportListener;
 import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
 
 import java.io.*;
-import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.*;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.*;
 
 @RunWith(AndroidJUnit4.class)
 public class SQRLConnectionTest {
-    private Uri uri;
     private SQRLUri sqrlUri;
+    private SQRLTransport transport;
     private SQRLConnection sqrlConnection;
-    private HttpURLConnection connection;
 
     @Before
     public void setUp() throws Exception {
         // Create the SQRL URI
-        uri = Uri.parse("sqrl://www.grc.com/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA&sfn=R1JD");
+        Uri uri = Uri.parse("sqrl://www.grc.com/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA&sfn=R1JD");
         sqrlUri = new SQRLUri(uri);
-        sqrlConnection = new SQRLConnection(sqrlUri);
-        connection = sqrlConnection.getConnection();
+        transport = mock(SQRLTransport.class);
+        sqrlConnection = new SQRLConnection(sqrlUri, transport);
     }
 
     @Test
-    public void createConnectionToTheCorrectURLAllowingIncomingAndOutgoingTraffic() throws Exception {
-        String expected = "https://www.grc.com/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA&sfn=R1JD";
-        checkConnectionCreatedToTheCorrectURLAllowingIncomingAndOutgoingTraffic(expected);
+    public void requestShouldOnlyBeSentOnceTheResponseIsNeeded() throws Exception {
+        respondWith(200, "response");
+        sqrlConnection.getOutputStream().write("request".getBytes(Charset.forName("UTF-8")));
+        verify(transport, never()).send(any(SQRLUri.class), any(byte[].class), any(Deadline.class), any(SQRLTransportListener.class));
+
+        Assert.assertEquals(200, sqrlConnection.getResponseCode());
+        Assert.assertEquals("response", IOUtils.toString(sqrlConnection.getInputStream(), "UTF-8"));
+
+        // The request should have been sent exactly once, to the connection's URI
+        ArgumentCaptor<byte[]> requestBody = ArgumentCaptor.forClass(byte[].class);
+        verify(transport, times(1)).send(same(sqrlUri), requestBody.capture(), any(Deadline.class), any(SQRLTransportListener.class));
+        Assert.assertEquals("request", new String(requestBody.getValue(), Charset.forName("UTF-8")));
     }
 
     @Test
-    public void setCorrectMethodAndHeadersBasedOnURI() throws Exception {
-        checkConnectionMethodsAndHeaders();
-    }
+    public void transportFailureShouldBeThrownEachTimeTheResponseIsRequested() throws Exception {
+        final IOException failure = new IOException("Connection refused");
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((SQRLTransportListener)invocation.getArguments()[3]).onFailure(failure);
+                return null;
+            }
+        }).when(transport).send(any(SQRLUri.class), any(byte[].class), any(Deadline.class), any(SQRLTransportListener.class));
 
-    private void checkConnectionMethodsAndHeaders() throws Exception {
-        Assert.assertEquals("POST", connection.getRequestMethod());
-        Assert.assertEquals(uri.getHost(), connection.getRequestProperty("Host"));
-        Assert.assertEquals("SQRL/1", connection.getRequestProperty("User-Agent"));
-        Assert.assertEquals("application/x-www-form-urlencoded", connection.getRequestProperty("Content-type"));
+        for (int i = 0; i < 2; i++) {
+            try {
+                sqrlConnection.getResponseCode();
+                Assert.fail("IOException was not thrown.");
+            } catch (IOException ex) {
+                Assert.assertSame(failure, ex);
+            }
+        }
+        verify(transport, times(1)).send(any(SQRLUri.class), any(byte[].class), any(Deadline.class), any(SQRLTransportListener.class));
     }
 
-    private void checkConnectionCreatedToTheCorrectURLAllowingIncomingAndOutgoingTraffic(String expectedURL) throws Exception {
-        String actual = connection.getURL().toExternalForm();
-        Assert.assertEquals(expectedURL, actual);
+    @Test
+    public void requestShouldNotBeSentOnceTheDeadlineHasPassed() throws Exception {
+        SQRLConnection connection = new SQRLConnection(sqrlUri, transport, Deadline.after(0));
+        try {
+            connection.getResponseCode();
+            Assert.fail("SocketTimeoutException was not thrown.");
+        } catch (SocketTimeoutException ex) {
+            // This indicates success!
+        }
+        verify(transport, never()).send(any(SQRLUri.class), any(byte[].class), any(Deadline.class), any(SQRLTransportListener.class));
+    }
 
-        Assert.assertTrue(connection.getDoInput());
-        Assert.assertTrue(connection.getDoOutput());
+    private void respondWith(final int responseCode, final String responseBody) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((SQRLTransportListener)invocation.getArguments()[3]).onResponse(responseCode, responseBody.getBytes(Charset.forName("UTF-8")));
+                return null;
+            }
+        }).when(transport).send(any(SQRLUri.class), any(byte[].class), any(Deadline.class), any(SQRLTransportListener.class));
     }
 }
@@ -4,7 +4,6 @@ import android.net.Uri;
 import android.support.test.runner.AndroidJUnit4;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 
 import org.junit.*;
 import org.junit.runner.RunWith;
@@ -13,6 +12,7 @@ import static org.mockito.Mockito.*;
 
 import io.barnabycolby.sqrlclient.exceptions.TransientErrorException;
 import io.barnabycolby.sqrlclient.sqrl.factories.SQRLConnectionFactory;
+import io.barnabycolby.sqrlclient.sqrl.protocol.Deadline;
 import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLConnection;
 import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLResponse;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
@@ -37,7 +37,6 @@ public class SQRLRequestTest {
     private static String signatureOfExpectedTransientData = "h9hvfEq0u21TD2QkxsBiYwyPWw9VBjCd9WfB5oOpJy0CSODIvEMjYlNu5cJRHyQqb5sq0bDaGWutzjFxBXjnDA";
     private SQRLConnection mConnection;
     private SQRLConnectionFactory mConnectionFactory;
-    private HttpURLConnection mHttpURLConnection;
 
     @Before
     public void setUp() throws Exception {
@@ -48,17 +47,16 @@ public class SQRLRequestTest {
         // Create the required mocks
         this.mConnection = mock(SQRLConnection.class);
         this.mConnectionFactory = mock(SQRLConnectionFactory.class);
-        this.mHttpURLConnection = mock(HttpURLConnection.class);
         when(mConnectionFactory.create()).thenReturn(mConnection);
         when(mConnectionFactory.create(any(String.class))).thenReturn(mConnection);
-        when(mConnection.getConnection()).thenReturn(mHttpURLConnection);
         when(mConnection.getSQRLUri()).thenReturn(sqrlUri);
+        when(mConnectionFactory.getDeadline()).thenReturn(Deadline.NONE);
         
         // We create a partial mock so that we can verify the final message (by calling to string)
         // without having to specify how the message should be constructed
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         ByteArrayOutputStream spyOutputStream = spy(outputStream);
-        when(mHttpURLConnection.getOutputStream()).thenReturn(spyOutputStream);
+        when(mConnection.getOutputStream()).thenReturn(spyOutputStream);
     }
 
     //region TESTS
@@ -85,9 +83,9 @@ public class SQRLRequestTest {
     }
 
     @Test
-    public void shouldThrowTransientErrorExceptionIfItOccursTwice() throws Exception {
+    public void shouldThrowTransientErrorExceptionOnceRetriesAreExhausted() throws Exception {
         // Create the required mocks
-        when(mHttpURLConnection.getOutputStream()).thenReturn(mock(ByteArrayOutputStream.class));
+        when(mConnection.getOutputStream()).thenReturn(mock(ByteArrayOutputStream.class));
         SQRLIdentity sqrlIdentity = getMockTransientSQRLIdentity();
 
         // Create the TransientErrorRetryThenSucceedFactory that allows us to mock SQRLResponse behaviour
@@ -98,10 +96,33 @@ public class SQRLRequestTest {
         try {
             request.send();
         } catch (TransientErrorException ex) {
+            // The request should have been sent five times in all
+            verify(mConnectionFactory, times(4)).create(any(String.class));
             return;
         }
 
-        Assert.fail("TransientErrorException should have been thrown the second time a TransientErrorException occurred.");
+        Assert.fail("TransientErrorException should have been thrown once every attempt resulted in a TransientErrorException.");
+    }
+
+    @Test
+    public void shouldStopRetryingIfTheDeadlineWouldPassBeforeTheNextAttempt() throws Exception {
+        // Create the required mocks
+        when(mConnection.getOutputStream()).thenReturn(mock(ByteArrayOutputStream.class));
+        when(mConnectionFactory.getDeadline()).thenReturn(Deadline.after(50));
+        SQRLIdentity sqrlIdentity = getMockTransientSQRLIdentity();
+        TransientErrorEveryTimeFactory sqrlResponseFactory = new TransientErrorEveryTimeFactory(defaultExpectedServerValue);
+
+        SQRLTestRequest request = new SQRLTestRequest(mConnectionFactory, sqrlIdentity, sqrlResponseFactory, false);
+
+        try {
+            request.send();
+        } catch (TransientErrorException ex) {
+            // The first retry is immediate, but the delay before the second is longer than the time that remains
+            verify(mConnectionFactory, times(1)).create(any(String.class));
+            return;
+        }
+
+        Assert.fail("TransientErrorException should have been thrown rather than waiting beyond the deadline.");
     }
 
     @Test
@@ -119,7 +140,7 @@ public class SQRLRequestTest {
 
         // Ask the request object to send the data, and then verify it
         request.send();
-        String dataSent = mConnection.getConnection().getOutputStream().toString();
+        String dataSent = mConnection.getOutputStream().toString();
         Assert.assertEquals(expectedData, dataSent);
     }
 
@@ -147,7 +168,7 @@ public class SQRLRequestTest {
 
         // Ask the request object to send the data, and then verify it
         request.send();
-        String dataSent = mConnection.getConnection().getOutputStream().toString();
+        String dataSent = mConnection.getOutputStream().toString();
         Assert.assertEquals(expectedData, dataSent);
     }
 
@@ -172,7 +193,7 @@ public class SQRLRequestTest {
 
         // Ask the request object to send the data, and then verify it
         request.send();
-        String dataSent = mConnection.getConnection().getOutputStream().toString();
+        String dataSent = mConnection.getOutputStream().toString();
         Assert.assertEquals(expectedData, dataSent);
     }
 
@@ -205,7 +226,7 @@ public class SQRLRequestTest {
 
         // Ask the request object to send the data, and then verify it
         request.send();
-        String dataSent = mConnection.getConnection().getOutputStream().toString();
+        String dataSent = mConnection.getOutputStream().toString();
         Assert.assertEquals(expectedData, dataSent);
     }
 
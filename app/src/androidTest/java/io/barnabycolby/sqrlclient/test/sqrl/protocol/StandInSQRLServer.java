@@ -0,0 +1,252 @@
+package io.barnabycolby.sqrlclient.test.sqrl.protocol;
+
+import android.net.Uri;
+
+import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface that stands in for a SQRL server, so that the transports can be tested and
+ * benchmarked without a network.
+ *
+ * Every request is answered with a 200 response whose body is produced by the handler, or with no body if it was a HEAD request. Connections are kept alive unless the client asks
+ * otherwise, and each is served by its own thread.
+ */
+public class StandInSQRLServer implements Closeable {
+    /**
+     * Produces the body of the response to each request.
+     */
+    public interface Handler {
+        public byte[] handle(String pathAndQuery, byte[] requestBody);
+    }
+
+    private ServerSocket mServerSocket;
+    private Handler mHandler;
+    private AtomicInteger mConnectionCount = new AtomicInteger();
+    private AtomicInteger mRequestCount = new AtomicInteger();
+    private volatile long mTrickleIntervalInMillis = 0;
+
+    /**
+     * Starts a server on an ephemeral port.
+     *
+     * @param handler  The handler that produces the body of each response.
+     *
+     * @throws IOException  If the server socket could not be opened.
+     */
+    public StandInSQRLServer(Handler handler) throws IOException {
+        this.mHandler = handler;
+        this.mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "StandInSQRLServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Starts a server that echoes the body of each request back in its response.
+     *
+     * @return The server.
+     *
+     * @throws IOException  If the server socket could not be opened.
+     */
+    public static StandInSQRLServer createEchoServer() throws IOException {
+        return new StandInSQRLServer(new Handler() {
+            @Override
+            public byte[] handle(String pathAndQuery, byte[] requestBody) {
+                return requestBody;
+            }
+        });
+    }
+
+    /**
+     * Starts a server that waits before echoing the body of each request back, as an overloaded or hung server would.
+     *
+     * @param delayInMillis  How long to wait before each response.
+     *
+     * @return The server.
+     *
+     * @throws IOException  If the server socket could not be opened.
+     */
+    public static StandInSQRLServer createSlowServer(final long delayInMillis) throws IOException {
+        return new StandInSQRLServer(new Handler() {
+            @Override
+            public byte[] handle(String pathAndQuery, byte[] requestBody) {
+                try {
+                    Thread.sleep(delayInMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return requestBody;
+            }
+        });
+    }
+
+    /**
+     * Sends the body of each response one byte at a time, waiting between bytes, as a server stalling a client without ever quite going
+     * silent would.
+     *
+     * @param trickleIntervalInMillis  How long to wait before each byte of the body, or 0 to send the body all at once.
+     */
+    public void setTrickleInterval(long trickleIntervalInMillis) {
+        this.mTrickleIntervalInMillis = trickleIntervalInMillis;
+    }
+
+    /**
+     * Gets a SQRL URI that communicates with this server over plain HTTP.
+     *
+     * @return The SQRL URI.
+     *
+     * @throws Exception  If the URI could not be created.
+     */
+    public SQRLUri getSQRLUri() throws Exception {
+        return new SQRLUri(Uri.parse("qrl://127.0.0.1:" + this.mServerSocket.getLocalPort() + "/sqrl?nut=P2Kr_4GB49GrwAF_kpDuJA&sfn=R1JD"));
+    }
+
+    /**
+     * Gets the number of connections accepted so far.
+     */
+    public int getConnectionCount() {
+        return this.mConnectionCount.get();
+    }
+
+    /**
+     * Gets the number of requests answered so far.
+     */
+    public int getRequestCount() {
+        return this.mRequestCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.mServerSocket.close();
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                final Socket socket = this.mServerSocket.accept();
+                this.mConnectionCount.incrementAndGet();
+                Thread connectionThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+                connectionThread.setDaemon(true);
+                connectionThread.start();
+            }
+        } catch (IOException ex) {
+            // The server has been closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            while (true) {
+                String requestLine = readLine(input);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+
+                int contentLength = 0;
+                boolean close = false;
+                String header;
+                while ((header = readLine(input)) != null && !header.isEmpty()) {
+                    String lowerCaseHeader = header.toLowerCase(Locale.ROOT);
+                    if (lowerCaseHeader.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(header.indexOf(':') + 1).trim());
+                    } else if (lowerCaseHeader.startsWith("connection:") && lowerCaseHeader.contains("close")) {
+                        close = true;
+                    }
+                }
+                byte[] requestBody = new byte[contentLength];
+                new DataInputStream(input).readFully(requestBody);
+
+                // Count the request before responding, so that the count is up to date by the time the client sees the response
+                byte[] responseBody = this.mHandler.handle(requestLine.split(" ")[1], requestBody);
+                this.mRequestCount.incrementAndGet();
+                this.writeResponse(output, requestLine.startsWith("HEAD ") ? null : responseBody, close);
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            // The client has gone away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // The socket is already closed
+            }
+        }
+    }
+
+    private void writeResponse(OutputStream output, byte[] responseBody, boolean close) throws IOException {
+        String head = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n";
+        if (close) {
+            head += "Connection: close\r\n";
+        }
+        if (responseBody == null) {
+            output.write((head + "Content-Length: 0\r\n\r\n").getBytes(Charset.forName("ISO-8859-1")));
+            output.flush();
+            return;
+        }
+        head += "Content-Length: " + responseBody.length + "\r\n\r\n";
+        output.write(head.getBytes(Charset.forName("ISO-8859-1")));
+
+        long trickleIntervalInMillis = this.mTrickleIntervalInMillis;
+        if (trickleIntervalInMillis == 0) {
+            output.write(responseBody);
+            output.flush();
+            return;
+        }
+
+        output.flush();
+        for (byte nextByte : responseBody) {
+            try {
+                Thread.sleep(trickleIntervalInMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted whilst trickling the response.");
+            }
+            output.write(nextByte);
+            output.flush();
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int nextByte;
+        while ((nextByte = input.read()) != -1) {
+            if (nextByte == '\n') {
+                String lineString = new String(line.toByteArray(), Charset.forName("ISO-8859-1"));
+                return lineString.endsWith("\r") ? lineString.substring(0, lineString.length() - 1) : lineString;
+            }
+            line.write(nextByte);
+        }
+
+        return (line.size() == 0) ? null : new String(line.toByteArray(), Charset.forName("ISO-8859-1"));
+    }
+}
@@ -8,7 +8,6 @@ import io.barnabycolby.sqrlclient.sqrl.factories.SQRLResponseFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 
 import static org.mockito.Mockito.*;
 
@@ -30,9 +29,7 @@ public class TransientErrorRetryThenSucceedFactory implements SQRLResponseFactor
             // We restub the SQRLConnection.getOutputStream method, to return a brand new output stream
             // This is so that we can see the data sent AFTER the exception was thrown
             this.spyOutputStream = spy(new ByteArrayOutputStream());
-            HttpURLConnection httpURLConnection = mock(HttpURLConnection.class);
-            when(this.mockConnection.getConnection()).thenReturn(httpURLConnection);
-            when(httpURLConnection.getOutputStream()).thenReturn(spyOutputStream);
+            when(this.mockConnection.getOutputStream()).thenReturn(spyOutputStream);
 
             throw new TransientErrorException(getNut(), getQry(), getLastServerResponse());
         } else {
@@ -0,0 +1,95 @@
+package io.barnabycolby.sqrlclient.test.sqrl.scrypt;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.JavaScryptEngine;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.SodiumScryptEngine;
+
+import java.nio.charset.Charset;
+
+import org.junit.runner.RunWith;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class JavaScryptEngineTest {
+    private static final String TAG = JavaScryptEngineTest.class.getName();
+    private static final int WARM_UP_ITERATIONS = 3;
+    private static final int BENCHMARK_ITERATIONS = 20;
+
+    @Test
+    public void shouldReproduceTheScryptSpecificationTestVector() throws Exception {
+        // Test vector taken from RFC 7914, section 12
+        JavaScryptEngine engine = new JavaScryptEngine(16, 1);
+        byte[] output = new byte[64];
+        engine.deriveKey(new byte[0], new byte[0], output);
+        assertEquals("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906", toHexString(output));
+    }
+
+    @Test
+    public void shouldMatchLibsodiumWhenTheWorkspaceIsReused() throws Exception {
+        JavaScryptEngine engine = new JavaScryptEngine(512, 256);
+        SodiumScryptEngine sodiumEngine = new SodiumScryptEngine(512, 256);
+        byte[][] passwords = { "\0".getBytes(Charset.forName("UTF-8")), "password\0".getBytes(Charset.forName("UTF-8")) };
+        byte[][] salts = { new byte[0], new byte[16], Helper.hexStringToByteArray("A001A1B086A1AD531831208011D3451E882D077EFA0215A5B37521884376156A") };
+
+        for (byte[] password : passwords) {
+            for (byte[] salt : salts) {
+                byte[] expected = new byte[32];
+                sodiumEngine.deriveKey(password, salt, expected);
+
+                byte[] actual = new byte[32];
+                engine.deriveKey(password, salt, actual);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+
+    /**
+     * Measures the number of EnScrypt iterations per second achieved by libsodium (which allocates its workspace on every call) and by the
+     * persistent workspace engine, logging both as a benchmark. Which is faster depends on the device, which is why the engine is chosen at
+     * runtime, so nothing is asserted.
+     */
+    @Test
+    public void benchmarkPersistentWorkspaceAgainstLibsodium() throws Exception {
+        byte[] password = "password\0".getBytes(Charset.forName("UTF-8"));
+        double libsodiumIterationsPerSecond = measureIterationsPerSecond(new SodiumScryptEngine(512, 256), password);
+        double workspaceIterationsPerSecond = measureIterationsPerSecond(new JavaScryptEngine(512, 256), password);
+
+        Log.i(TAG, String.format("libsodium: %.2f iterations/s, persistent workspace: %.2f iterations/s (%.2fx)",
+                    libsodiumIterationsPerSecond, workspaceIterationsPerSecond, workspaceIterationsPerSecond / libsodiumIterationsPerSecond));
+    }
+
+    private static double measureIterationsPerSecond(ScryptEngine engine, byte[] password) throws Exception {
+        byte[] salt = new byte[32];
+        byte[] output = new byte[32];
+
+        // Let the JIT compile the engine, and any workspace be allocated, before anything is timed
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            engine.deriveKey(password, salt, output);
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            engine.deriveKey(password, salt, output);
+            System.arraycopy(output, 0, salt, 0, salt.length);
+        }
+        long duration = System.nanoTime() - startTime;
+
+        return BENCHMARK_ITERATIONS / (duration / 1e9);
+    }
+
+    private static String toHexString(byte[] array) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : array) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+}
@@ -3,16 +3,35 @@ package io.barnabycolby.sqrlclient;
 import android.app.Application;
 import android.content.Context;
 import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
 
 import io.barnabycolby.sqrlclient.exceptions.IdentitiesCouldNotBeLoadedException;
+import io.barnabycolby.sqrlclient.helpers.IdentityManagerReadyListener;
+import io.barnabycolby.sqrlclient.sqrl.EnScryptCalibrator;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 /**
  * This class allows static global access to the application resources.
  */
 public class App extends Application {
     private static Context sContext;
-    private static SQRLIdentityManager sIdentityManager;
+    private static volatile SQRLIdentityManager sIdentityManager;
+
+    /**
+     * Loads the identity manager in the background, so that reading the identity store is kept off the path to the first frame.
+     */
+    private static FutureTask<SQRLIdentityManager> sIdentityManagerLoader;
+    private static Exception sIdentityManagerFailure;
+    private static List<IdentityManagerReadyListener> sReadyListeners = new ArrayList<IdentityManagerReadyListener>();
+    private static final Object sReadyLock = new Object();
 
     /**
      * Gets the application resources.
@@ -35,25 +54,187 @@ public class App extends Application {
     /**
      * Gets the SQRLIdentityManager associated with this application instance.
      *
-     * If an instance does not already exist, it will be created.
+     * If the identity store is still being loaded in the background, this waits for it to finish, so code running on the main thread
+     * should check isSQRLIdentityManagerReady or use whenSQRLIdentityManagerReady instead. If loading was never started, or the last attempt
+     * failed, the instance is created on the calling thread.
      *
      * @return The SQRLIdentityManager.
+     *
+     * @throws RuntimeException  If the identity store could not be loaded, wrapping the reason. The next call tries to load it again.
      */
     public static SQRLIdentityManager getSQRLIdentityManager() {
-        if (sIdentityManager == null) {
-            try {
-                sIdentityManager = new SQRLIdentityManager();
-            } catch (IdentitiesCouldNotBeLoadedException ex) {
-                // TODO: Handle this crash in a cleaner way, perhaps displaying a dialog to the user before gracefully terminating
-                throw new RuntimeException(ex);
+        if (sIdentityManager != null) {
+            return sIdentityManager;
+        }
+
+        FutureTask<SQRLIdentityManager> loader;
+        boolean loadOnThisThread = false;
+        synchronized (sReadyLock) {
+            if (sIdentityManagerLoader == null) {
+                // Listeners added whilst retrying after a failure should hear the outcome of the retry
+                sIdentityManagerFailure = null;
+                sIdentityManagerLoader = createIdentityManagerLoader();
+                loadOnThisThread = true;
+            }
+            loader = sIdentityManagerLoader;
+        }
+        if (loadOnThisThread) {
+            loader.run();
+        }
+
+        Trace.beginSection("App.waitForSQRLIdentityManager");
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return loader.get();
+                } catch (InterruptedException ex) {
+                    // The identity manager is required to continue, so keep waiting and restore the interrupt afterwards
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Determines whether the identity store has finished loading, in which case getSQRLIdentityManager will not block.
+     *
+     * @return True if the identity manager is ready, false otherwise.
+     */
+    public static boolean isSQRLIdentityManagerReady() {
+        return sIdentityManager != null;
+    }
+
+    /**
+     * Calls the listener once the identity store has finished loading, or failed to load.
+     *
+     * If loading has already finished, the listener is called immediately on the calling thread. Otherwise, it is called on the main thread
+     * once loading completes, unless it has been removed using removeSQRLIdentityManagerReadyListener in the meantime.
+     *
+     * @param listener  The listener to call.
+     */
+    public static void whenSQRLIdentityManagerReady(IdentityManagerReadyListener listener) {
+        Exception failure;
+        synchronized (sReadyLock) {
+            failure = sIdentityManagerFailure;
+            if (sIdentityManager == null && failure == null) {
+                sReadyListeners.add(listener);
+                return;
+            }
+        }
+
+        if (failure != null) {
+            listener.onIdentityManagerFailed(failure);
+        } else {
+            listener.onIdentityManagerReady(sIdentityManager);
+        }
+    }
+
+    /**
+     * Removes a listener added using whenSQRLIdentityManagerReady, so that it is not called, and is no longer referenced, once loading
+     * completes. Listeners often refer to an activity, so they should be removed when that activity is destroyed.
+     *
+     * Must be called on the main thread.
+     *
+     * @param listener  The listener to remove.
+     */
+    public static void removeSQRLIdentityManagerReadyListener(IdentityManagerReadyListener listener) {
+        synchronized (sReadyLock) {
+            sReadyListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Creates the task that loads the identity manager, and notifies any waiting listeners once it has either succeeded or failed.
+     */
+    private static FutureTask<SQRLIdentityManager> createIdentityManagerLoader() {
+        return new FutureTask<SQRLIdentityManager>(new Callable<SQRLIdentityManager>() {
+            @Override
+            public SQRLIdentityManager call() throws IdentitiesCouldNotBeLoadedException {
+                Trace.beginSection("SQRLIdentityManager.load");
+                try {
+                    SQRLIdentityManager identityManager = new SQRLIdentityManager();
+                    publishIdentityManager(identityManager, null);
+                    return identityManager;
+                } catch (IdentitiesCouldNotBeLoadedException | RuntimeException ex) {
+                    publishIdentityManager(null, ex);
+                    throw ex;
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Records the outcome of loading the identity manager, and notifies the waiting listeners of it on the main thread.
+     *
+     * @param identityManager  The loaded identity manager, or null if loading failed.
+     * @param failure  The reason loading failed, or null if it succeeded.
+     */
+    private static void publishIdentityManager(final SQRLIdentityManager identityManager, final Exception failure) {
+        synchronized (sReadyLock) {
+            sIdentityManager = identityManager;
+            sIdentityManagerFailure = failure;
+
+            // Forget a failed loader, so that the next call to getSQRLIdentityManager tries again rather than failing forever
+            if (failure != null) {
+                sIdentityManagerLoader = null;
+            }
+            if (sReadyListeners.isEmpty()) {
+                return;
             }
         }
 
-        return sIdentityManager;
+        // The listeners are only taken once the main thread gets to them, so that any removed in the meantime are not called
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                List<IdentityManagerReadyListener> listeners;
+                synchronized (sReadyLock) {
+                    try {
+                        listeners = new ArrayList<IdentityManagerReadyListener>(sReadyListeners);
+                    } finally {
+                        sReadyListeners.clear();
+                    }
+                }
+
+                for (IdentityManagerReadyListener listener : listeners) {
+                    if (failure != null) {
+                        listener.onIdentityManagerFailed(failure);
+                    } else {
+                        listener.onIdentityManagerReady(identityManager);
+                    }
+                }
+            }
+        });
     }
 
     public void onCreate() {
-        super.onCreate();
-        sContext = getApplicationContext();
+        Trace.beginSection("App.onCreate");
+        try {
+            super.onCreate();
+            sContext = getApplicationContext();
+
+            // Start reading the identity store straight away, whilst the first activity is being created
+            synchronized (sReadyLock) {
+                if (sIdentityManagerLoader == null) {
+                    sIdentityManagerLoader = createIdentityManagerLoader();
+                    new Thread(sIdentityManagerLoader, "IdentityStoreLoader").start();
+                }
+            }
+
+            // Selecting the scrypt engine and measuring it takes several seconds, so it is done before the user needs a key derivation
+            EnScryptCalibrator.getInstance().calibrateInBackground();
+        } finally {
+            Trace.endSection();
+        }
     }
 }
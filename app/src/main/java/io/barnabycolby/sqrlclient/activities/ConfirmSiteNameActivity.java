@@ -4,6 +4,7 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -11,14 +12,20 @@ import android.widget.*;
 
 import io.barnabycolby.sqrlclient.activities.IdentityMustExistActivity;
 import io.barnabycolby.sqrlclient.activities.MainActivity;
+import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.dialogs.CreateAccountDialogFragment;
 import io.barnabycolby.sqrlclient.exceptions.*;
+import io.barnabycolby.sqrlclient.helpers.IdentityManagerReadyListener;
 import io.barnabycolby.sqrlclient.helpers.ProceedAbortListener;
 import io.barnabycolby.sqrlclient.helpers.SwappableTextView;
 import io.barnabycolby.sqrlclient.R;
 import io.barnabycolby.sqrlclient.tasks.AccountExistsTask;
 import io.barnabycolby.sqrlclient.tasks.IdentRequestTask;
+import io.barnabycolby.sqrlclient.tasks.PrewarmConnectionTask;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
 import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+import io.barnabycolby.sqrlclient.sqrl.factories.SQRLConnectionFactory;
 import io.barnabycolby.sqrlclient.sqrl.factories.SQRLRequestFactory;
 
 /**
@@ -35,6 +42,33 @@ public class ConfirmSiteNameActivity extends IdentityMustExistActivity {
     private TextView mInformationTextView;
     private TextView mFriendlySiteNameTextView;
     private Uri mUri;
+    private SQRLUri mSQRLUri;
+
+    private IdentityManagerReadyListener mConfirmSiteListener = new IdentityManagerReadyListener() {
+        @Override
+        public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+            // If the current identity is still unlocked from a previous login, the password does not need to be entered again
+            SQRLIdentity identity = identityManager.getCurrentIdentityForSiteIfUnlocked(mSQRLUri);
+            if (identity != null) {
+                Intent intent = new Intent(ConfirmSiteNameActivity.this, LoginActivity.class);
+                Bundle extras = new Bundle();
+                extras.putParcelable("sqrlIdentity", identity);
+                intent.putExtras(extras);
+                startActivity(intent);
+                return;
+            }
+
+            Intent intent = new Intent(ConfirmSiteNameActivity.this, EnterPasswordActivity.class);
+            intent.setData(mUri);
+            startActivity(intent);
+        }
+
+        @Override
+        public void onIdentityManagerFailed(Exception ex) {
+            String message = getResources().getString(R.string.identities_could_not_be_loaded);
+            Toast.makeText(ConfirmSiteNameActivity.this, message, Toast.LENGTH_LONG).show();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,6 +95,13 @@ public class ConfirmSiteNameActivity extends IdentityMustExistActivity {
             Log.e(TAG, "Could not create SQRLUri: " + ex.getMessage());
             return;
         }
+        this.mSQRLUri = sqrlUri;
+
+        // Connect to the server whilst the user confirms the site and enters their password, so that the first request finds a warm connection
+        // This is only done once, rather than every time the activity is recreated
+        if (savedInstanceState == null) {
+            new PrewarmConnectionTask(new SQRLConnectionFactory(sqrlUri)).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
 
         // Display the friendly name
         this.mFriendlySiteNameTextView = (TextView)findViewById(R.id.FriendlySiteNameTextView);
@@ -96,8 +137,14 @@ public class ConfirmSiteNameActivity extends IdentityMustExistActivity {
      * @param view  The view that was clicked.
      */
     public void confirmSite(View view) {
-        Intent intent = new Intent(this, EnterPasswordActivity.class);
-        intent.setData(this.mUri);
-        startActivity(intent);
+        // If the identity store is still loading, continue once it is ready, but only once however many times the button is pressed
+        App.removeSQRLIdentityManagerReadyListener(this.mConfirmSiteListener);
+        App.whenSQRLIdentityManagerReady(this.mConfirmSiteListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        App.removeSQRLIdentityManagerReadyListener(this.mConfirmSiteListener);
+        super.onDestroy();
     }
 }
@@ -1,6 +1,7 @@
 package io.barnabycolby.sqrlclient.activities;
 
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.widget.ProgressBar;
@@ -8,6 +9,7 @@ import android.widget.Toast;
 
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.R;
+import io.barnabycolby.sqrlclient.sqrl.EncryptedIdentity;
 import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
 import io.barnabycolby.sqrlclient.tasks.SaveIdentityTask;
 
@@ -15,9 +17,11 @@ import io.barnabycolby.sqrlclient.tasks.SaveIdentityTask;
  * This activity encrypts a new identity.
  */
 public class EncryptIdentityActivity extends AppCompatActivity implements PasswordCryptListener {
+    private static final String CHECKPOINT_ID_KEY = "checkpointId";
 
     private ProgressBar mEncryptProgressBar;
     private SaveIdentityTask mSaveIdentityTask;
+    private String mCheckpointId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -35,13 +39,39 @@ public class EncryptIdentityActivity extends AppCompatActivity implements Passwo
         String password = extras.getString("password");
         boolean asyncTasksDisabled = extras.getBoolean("disableAsyncTasks", false);
 
+        // The checkpoint id is kept with the pending identity, so that an encryption interrupted by the process being killed can be resumed
+        if (savedInstanceState != null) {
+            this.mCheckpointId = savedInstanceState.getString(CHECKPOINT_ID_KEY);
+        }
+        if (this.mCheckpointId == null) {
+            this.mCheckpointId = EncryptedIdentity.generateCheckpointId();
+        }
+
         // Start the save identity async task
         if (!asyncTasksDisabled) {
-            this.mSaveIdentityTask = new SaveIdentityTask(identityName, masterKey, password, this);
+            this.mSaveIdentityTask = new SaveIdentityTask(identityName, masterKey, password, this.mCheckpointId, this);
             this.mSaveIdentityTask.execute();
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(CHECKPOINT_ID_KEY, this.mCheckpointId);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // If the user backs out before the identity has been encrypted, there is no point in continuing to encrypt it
+        if (this.isFinishing()) {
+            if (this.mSaveIdentityTask != null && this.mSaveIdentityTask.getStatus() != AsyncTask.Status.FINISHED) {
+                this.mSaveIdentityTask.abort();
+            }
+        }
+    }
+
     @Override
     public void onPasswordCryptProgressUpdate(int progress) {
         this.mEncryptProgressBar.setProgress(progress);
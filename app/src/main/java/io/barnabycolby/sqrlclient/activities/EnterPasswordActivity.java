@@ -20,10 +20,12 @@ import io.barnabycolby.sqrlclient.activities.StateFragmentActivity;
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.exceptions.SQRLException;
 import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.helpers.IdentityManagerReadyListener;
 import io.barnabycolby.sqrlclient.helpers.Lambda;
 import io.barnabycolby.sqrlclient.R;
 import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
 import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
 import io.barnabycolby.sqrlclient.tasks.DecryptIdentityTask;
 import io.barnabycolby.sqrlclient.views.IdentitySpinner;
@@ -54,6 +56,24 @@ public class EnterPasswordActivity extends StateFragmentActivity<EnterPasswordSt
     private String mPasswordKey = "password";
     private SQRLUri mSQRLUri;
 
+    private IdentityManagerReadyListener mPasswordHelpListener = new IdentityManagerReadyListener() {
+        @Override
+        public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+            // Let the user know if they only need to enter the start of their password
+            if (identityManager.isQuickPassAvailable()) {
+                String help = getResources().getString(R.string.enter_quick_pass_help, identityManager.getQuickPassPrefixLength());
+                mInformationTextView.setText(help);
+            } else {
+                mInformationTextView.setText(R.string.enter_password_help);
+            }
+        }
+
+        @Override
+        public void onIdentityManagerFailed(Exception ex) {
+            // checkIdentitiesExist already tells the user that the identities could not be loaded
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         // Standard Android stuff
@@ -219,6 +239,17 @@ public class EnterPasswordActivity extends StateFragmentActivity<EnterPasswordSt
     public void onResume() {
         super.onResume();
         Helper.checkIdentitiesExist(this);
+
+        // The help text depends on whether QuickPass is available, which is only known once the identity store has loaded
+        if (!this.mLoginClicked) {
+            App.whenSQRLIdentityManagerReady(this.mPasswordHelpListener);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        App.removeSQRLIdentityManagerReadyListener(this.mPasswordHelpListener);
+        super.onPause();
     }
 
     // These methods are required by the TextWatcher interface, but we don't use them
@@ -1,9 +1,8 @@
 package io.barnabycolby.sqrlclient.activities;
 
-import android.content.Intent;
 import android.support.v7.app.AppCompatActivity;
 
-import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.helpers.Helper;
 
 /**
  * Activities that should only work when identities already exist should extend this activity.
@@ -22,15 +21,9 @@ public class IdentityMustExistActivity extends AppCompatActivity {
      * Checks whether any identities still exist, starting the NoIdentity activity if not.
      *
      * @return True if some identities exist, and false if not. Note that false also indicates an intent has been started for the NoIdentityActivity.
+     *         If the identities are still loading, the check is deferred until they have loaded and true is returned.
      */
     public boolean checkIdentitiesExist() {
-        // Check whether there are actually some identities
-        if (!App.getSQRLIdentityManager().containsIdentities()) {
-            Intent intent = new Intent(this, NoIdentityActivity.class);
-            startActivity(intent);
-            return false;
-        }
-
-        return true;
+        return Helper.checkIdentitiesExist(this);
     }
 }
@@ -24,6 +24,7 @@ import io.barnabycolby.sqrlclient.tasks.AccountExistsTask;
 import io.barnabycolby.sqrlclient.tasks.IdentRequestTask;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
 import io.barnabycolby.sqrlclient.sqrl.factories.SQRLRequestFactory;
+import io.barnabycolby.sqrlclient.sqrl.protocol.Deadline;
 
 /**
  * Performs the login sequence to a given site.
@@ -31,6 +32,11 @@ import io.barnabycolby.sqrlclient.sqrl.factories.SQRLRequestFactory;
 public class LoginActivity extends StateFragmentActivity<LoginStateFragment> implements IdentRequestListener {
     private static final String TAG = LoginActivity.class.getName();
 
+    /**
+     * How long the server is given to complete the login, so that the user sees a definite failure rather than waiting indefinitely.
+     */
+    private static final long LOGIN_TIMEOUT_IN_MILLIS = 30 * 1000;
+
     private boolean mInitialiseSucceeded = true;
 
     private SwappableTextView informationTextView;
@@ -82,7 +88,7 @@ public class LoginActivity extends StateFragmentActivity<LoginStateFragment> imp
         this.informationTextView = new SwappableTextView(rawInformationTextView);
 
         // Create the SQRLRequestFactory used to generate requests
-        SQRLRequestFactory requestFactory = new SQRLRequestFactory(identity);
+        SQRLRequestFactory requestFactory = new SQRLRequestFactory(identity, Deadline.after(LOGIN_TIMEOUT_IN_MILLIS));
 
         // Retrieve the friendly name
         String displayName = identity.getSQRLUri().getDisplayName();
@@ -221,6 +227,8 @@ public class LoginActivity extends StateFragmentActivity<LoginStateFragment> imp
         return new ProceedAbortListener() {
             @Override
             public void proceed() {
+                // The time the user spent deciding should not count against the server
+                mStateFragment.getRequestFactory().setDeadline(Deadline.after(LOGIN_TIMEOUT_IN_MILLIS));
                 proceedWithIdentRequest();
             }
 
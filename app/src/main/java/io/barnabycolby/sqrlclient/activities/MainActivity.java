@@ -3,8 +3,12 @@ package io.barnabycolby.sqrlclient.activities;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Trace;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.Toast;
 
 import com.google.zxing.integration.android.IntentIntegrator;
@@ -16,6 +20,7 @@ import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.exceptions.IdentitiesCouldNotBeLoadedException;
 import io.barnabycolby.sqrlclient.exceptions.SQRLException;
 import io.barnabycolby.sqrlclient.helpers.Helper;
+import io.barnabycolby.sqrlclient.helpers.IdentityManagerReadyListener;
 import io.barnabycolby.sqrlclient.R;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
 import io.barnabycolby.sqrlclient.views.IdentitySpinner;
@@ -23,23 +28,64 @@ import io.barnabycolby.sqrlclient.views.IdentitySpinner;
 /**
  * Activity displayed when the user enters the application, offering a menu of choices for interaction with the application.
  */
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements TextWatcher {
     private static String TAG = MainActivity.class.getName();
 
-    private SQRLIdentityManager mIdentityManager;
     private IdentitySpinner mIdentitySpinner;
 
+    private IdentityManagerReadyListener mFullyDrawnListener = new IdentityManagerReadyListener() {
+        @Override
+        public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+            reportFullyDrawn();
+        }
+
+        @Override
+        public void onIdentityManagerFailed(Exception ex) {
+            // The spinner displays the failure instead of the identities
+            reportFullyDrawn();
+        }
+    };
+
+    private IdentityManagerReadyListener mLockListener = new IdentityManagerReadyListener() {
+        @Override
+        public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+            identityManager.lock();
+            String message = getResources().getString(R.string.identity_locked);
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+        }
+
+        @Override
+        public void onIdentityManagerFailed(Exception ex) {
+            String message = getResources().getString(R.string.identities_could_not_be_loaded);
+            Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        // Standard Android stuff
-        super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
+        Trace.beginSection("MainActivity.onCreate");
+        try {
+            // Standard Android stuff
+            super.onCreate(savedInstanceState);
+            setContentView(R.layout.activity_main);
+
+            // Initialise the spinner, and narrow it down as the user types in the search box
+            this.mIdentitySpinner = (IdentitySpinner)findViewById(R.id.IdentitySpinner);
+            EditText identitySearchEditText = (EditText)findViewById(R.id.IdentitySearchEditText);
+            identitySearchEditText.addTextChangedListener(this);
+        } finally {
+            Trace.endSection();
+        }
 
-        // Get the identity manager
-        this.mIdentityManager = App.getSQRLIdentityManager();
+        // The identity store loads in the background, so the activity is only fully drawn once the spinner has been populated
+        App.whenSQRLIdentityManagerReady(this.mFullyDrawnListener);
+    }
 
-        // Initialise the spinner
-        this.mIdentitySpinner = (IdentitySpinner)findViewById(R.id.IdentitySpinner);
+    @Override
+    protected void onDestroy() {
+        App.removeSQRLIdentityManagerReadyListener(this.mFullyDrawnListener);
+        App.removeSQRLIdentityManagerReadyListener(this.mLockListener);
+        super.onDestroy();
     }
 
     /**
@@ -83,28 +129,61 @@ public class MainActivity extends AppCompatActivity {
      * @param view  The view that was clicked.
      */
     public void deleteIdentity(View view) {
-        String currentlySelectedIdentityName = (String)this.mIdentitySpinner.getSelectedItem();
-        boolean identitySuccessfullyRemoved = false;
-        try {
-            this.mIdentityManager.removeIdentity(currentlySelectedIdentityName);
-            identitySuccessfullyRemoved = true;
-        } catch (SQRLException ex) {
-            Toast.makeText(this, ex.getMessage(), Toast.LENGTH_LONG).show();
+        // Until the identity store has loaded, the spinner only holds a placeholder, so there is nothing to delete
+        if (!this.mIdentitySpinner.isPopulated()) {
+            return;
         }
 
-        // Display a toast message if successful
-        if (identitySuccessfullyRemoved) {
-            String message = this.getResources().getString(R.string.identity_deleted);
-            Toast.makeText(this, message, Toast.LENGTH_LONG).show();
-        }
+        // The spinner is only populated once the identity manager is ready, so the listener is called straight away
+        final String currentlySelectedIdentityName = (String)this.mIdentitySpinner.getSelectedItem();
+        App.whenSQRLIdentityManagerReady(new IdentityManagerReadyListener() {
+            @Override
+            public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+                boolean identitySuccessfullyRemoved = false;
+                try {
+                    identityManager.removeIdentity(currentlySelectedIdentityName);
+                    identitySuccessfullyRemoved = true;
+                } catch (SQRLException ex) {
+                    Toast.makeText(MainActivity.this, ex.getMessage(), Toast.LENGTH_LONG).show();
+                }
+
+                // Display a toast message if successful
+                if (identitySuccessfullyRemoved) {
+                    String message = getResources().getString(R.string.identity_deleted);
+                    Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+                }
+
+                // The identity spinner removes the deleted identity itself, so only the move to NoIdentityActivity needs handling here
+                Helper.checkIdentitiesExist(MainActivity.this);
+            }
+
+            @Override
+            public void onIdentityManagerFailed(Exception ex) {
+                // The spinner cannot have been populated if the identity store failed to load
+            }
+        });
+    }
 
-        if (!Helper.checkIdentitiesExist(this)) {
-            // Because checkIdentitiesExist returned false, we must be about to move to the NoIdentityActivity
-            // So we don't care about updating the UI components on this activity
-            return;
-        }
-        
-        this.mIdentitySpinner.repopulate(this);
+    @Override
+    public void afterTextChanged(Editable s) {
+        this.mIdentitySpinner.setSearchQuery(s.toString());
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+    /**
+     * Called when the lock identity button is pressed.
+     *
+     * @param view  The view that was clicked.
+     */
+    public void lockIdentity(View view) {
+        // If the identity store is still loading, lock as soon as it is ready, but only once however many times the button is pressed
+        App.removeSQRLIdentityManagerReadyListener(this.mLockListener);
+        App.whenSQRLIdentityManagerReady(this.mLockListener);
     }
 
     @Override
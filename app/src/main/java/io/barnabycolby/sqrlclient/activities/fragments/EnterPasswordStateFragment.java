@@ -1,6 +1,7 @@
 package io.barnabycolby.sqrlclient.activities.fragments;
 
 import android.app.Fragment;
+import android.os.AsyncTask;
 import android.os.Bundle;
 
 import io.barnabycolby.sqrlclient.helpers.DetachableListener;
@@ -60,4 +61,14 @@ public class EnterPasswordStateFragment extends Fragment {
     public void setDecryptIdentityTask(DecryptIdentityTask decryptIdentityTask) {
         this.mDecryptIdentityTask = decryptIdentityTask;
     }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // This fragment is retained, so it is only destroyed when the user leaves the activity, at which point the result is no longer wanted
+        if (this.mDecryptIdentityTask != null && this.mDecryptIdentityTask.getStatus() != AsyncTask.Status.FINISHED) {
+            this.mDecryptIdentityTask.abort();
+        }
+    }
 }
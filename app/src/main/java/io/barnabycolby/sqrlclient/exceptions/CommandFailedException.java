@@ -1,10 +1,36 @@
 package io.barnabycolby.sqrlclient.exceptions;
 
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLResponse;
+
 /**
  * Signifies that the SQRL server responded with a command failed error, indicated by the tif flags.
+ *
+ * Even a failed command comes with a new nut and qry value, so the response is kept in order that a following request can be chained from it.
  */
 public class CommandFailedException extends SQRLException {
+    private SQRLResponse response;
+
     public CommandFailedException(String message) {
+        this(message, null);
+    }
+
+    /**
+     * Constructs a new instance that carries the response reporting the failure.
+     *
+     * @param message  The error message.
+     * @param response  The server response whose tif value reported the failure, or null if it is not available.
+     */
+    public CommandFailedException(String message, SQRLResponse response) {
         super(message);
+        this.response = response;
+    }
+
+    /**
+     * Gets the server response whose tif value reported the failure.
+     *
+     * @return The response, or null if it is not available.
+     */
+    public SQRLResponse getResponse() {
+        return this.response;
     }
 }
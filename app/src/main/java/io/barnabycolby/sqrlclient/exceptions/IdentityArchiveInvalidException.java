@@ -0,0 +1,14 @@
+package io.barnabycolby.sqrlclient.exceptions;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.R;
+
+/**
+ * Signifies that an identity archive could not be imported because it was malformed, corrupted, or not created using the same key.
+ */
+public class IdentityArchiveInvalidException extends SQRLException {
+
+    public IdentityArchiveInvalidException() {
+        super(App.getApplicationResources().getString(R.string.identity_archive_invalid));
+    }
+}
@@ -0,0 +1,261 @@
+package io.barnabycolby.sqrlclient.helpers;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replaces the contents of files atomically and durably, so that a crash at any point leaves either the complete old file or the complete
+ * new file on disk, and never a partially written one.
+ *
+ * <p>
+ * The contents are written to a temporary file alongside the target, which is flushed to the storage device and then renamed over the
+ * target. Finally the parent directory is flushed, so that the rename itself survives a power loss. Temporary files left behind by a crash
+ * end in TEMPORARY_FILE_SUFFIX, and can be removed using deleteTemporaryFiles.
+ * </p>
+ *
+ * <p>
+ * Many files can also be written as a Batch, in which every file is written to its temporary file before any of them is renamed, and the
+ * directories are flushed once at the end. Each file in a batch is replaced atomically, but a crash part way through a commit may leave only
+ * some of the files replaced.
+ * </p>
+ *
+ * <p>
+ * Each step is a separate protected method, which allows tests to simulate a crash at any point in the write.
+ * </p>
+ */
+public class AtomicFileWriter {
+    /**
+     * The suffix appended to the name of the target file to create the temporary file.
+     */
+    public static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Produces the new contents of a file by writing them to a stream, so that large files never need to be held in memory in full.
+     */
+    public interface Contents {
+        /**
+         * Writes the contents.
+         *
+         * @param output  The stream to write to, which must not be closed.
+         *
+         * @throws IOException  If the contents could not be written.
+         */
+        public void writeTo(OutputStream output) throws IOException;
+    }
+
+    /**
+     * Atomically replaces the contents of a file, creating it if it does not exist.
+     *
+     * If an IOException is thrown, the target file is left untouched and the temporary file is removed, unless it was the final directory
+     * flush that failed, in which case the new contents are in place but may not survive a power loss.
+     *
+     * @param file  The file to write.
+     * @param contents  The new contents of the file.
+     *
+     * @throws IOException  If the file could not be written.
+     */
+    public void write(File file, byte[] contents) throws IOException {
+        this.write(file, wrap(contents));
+    }
+
+    /**
+     * Atomically replaces the contents of a file with contents that are streamed straight to the temporary file.
+     *
+     * @param file  The file to write.
+     * @param contents  Writes the new contents of the file.
+     *
+     * @throws IOException  If the file could not be written.
+     */
+    public void write(File file, Contents contents) throws IOException {
+        File temporaryFile = getTemporaryFile(file);
+        try {
+            this.writeTemporaryFile(temporaryFile, contents);
+            this.rename(temporaryFile, file);
+        } catch (IOException ex) {
+            temporaryFile.delete();
+            throw ex;
+        }
+
+        this.syncDirectory(file.getParentFile());
+    }
+
+    /**
+     * Starts a batch of writes, none of which take effect until the batch is committed.
+     *
+     * @return The new batch.
+     */
+    public Batch beginBatch() {
+        return new Batch();
+    }
+
+    /**
+     * A set of files that are written to their temporary files one at a time, and then all replaced together by commit.
+     *
+     * Only the names of the files are held in memory, so a batch can contain any number of files.
+     */
+    public class Batch {
+        private List<File> mFiles = new ArrayList<File>();
+
+        /**
+         * Writes the new contents of a file to its temporary file and flushes them to the storage device, without replacing the file.
+         *
+         * @param file  The file to write.
+         * @param contents  The new contents of the file.
+         *
+         * @throws IOException  If the file could not be written, in which case the batch should be aborted.
+         */
+        public void write(File file, byte[] contents) throws IOException {
+            File temporaryFile = getTemporaryFile(file);
+            try {
+                writeTemporaryFile(temporaryFile, wrap(contents));
+            } catch (IOException ex) {
+                temporaryFile.delete();
+                throw ex;
+            }
+            this.mFiles.add(file);
+        }
+
+        /**
+         * Replaces every file written in the batch, and then flushes each directory that contains them.
+         *
+         * @throws IOException  If a file could not be replaced, in which case the files before it have been replaced and the rest have not.
+         */
+        public void commit() throws IOException {
+            Set<File> directories = new LinkedHashSet<File>();
+            try {
+                for (File file : this.mFiles) {
+                    rename(getTemporaryFile(file), file);
+                    directories.add(file.getParentFile());
+                }
+            } catch (IOException ex) {
+                this.abort();
+                throw ex;
+            }
+
+            for (File directory : directories) {
+                syncDirectory(directory);
+            }
+            this.mFiles.clear();
+        }
+
+        /**
+         * Removes the temporary files of a batch that will not be committed.
+         */
+        public void abort() {
+            for (File file : this.mFiles) {
+                getTemporaryFile(file).delete();
+            }
+            this.mFiles.clear();
+        }
+    }
+
+    private static Contents wrap(final byte[] contents) {
+        return new Contents() {
+            @Override
+            public void writeTo(OutputStream output) throws IOException {
+                output.write(contents);
+            }
+        };
+    }
+
+    private static File getTemporaryFile(File file) {
+        return new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+    }
+
+    /**
+     * Removes any temporary files left in a directory by writes that were interrupted by a crash.
+     *
+     * @param directory  The directory to clean up.
+     */
+    public static void deleteTemporaryFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(TEMPORARY_FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the contents to the temporary file and flushes them to the storage device.
+     *
+     * @param temporaryFile  The temporary file.
+     * @param contents  Writes the contents.
+     *
+     * @throws IOException  If the file could not be written.
+     */
+    protected void writeTemporaryFile(File temporaryFile, Contents contents) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+        try {
+            BufferedOutputStream bufferedStream = new BufferedOutputStream(outputStream);
+            contents.writeTo(bufferedStream);
+            bufferedStream.flush();
+            this.syncFile(outputStream);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Flushes a file to the storage device.
+     *
+     * @param outputStream  The stream the file was written through.
+     *
+     * @throws IOException  If the file could not be flushed.
+     */
+    protected void syncFile(FileOutputStream outputStream) throws IOException {
+        outputStream.getFD().sync();
+    }
+
+    /**
+     * Renames the temporary file over the target, which replaces the target atomically.
+     *
+     * @param temporaryFile  The temporary file.
+     * @param file  The target file.
+     *
+     * @throws IOException  If the file could not be renamed.
+     */
+    protected void rename(File temporaryFile, File file) throws IOException {
+        try {
+            Os.rename(temporaryFile.getPath(), file.getPath());
+        } catch (ErrnoException ex) {
+            throw new IOException("Could not rename " + temporaryFile.getName() + " to " + file.getName(), ex);
+        }
+    }
+
+    /**
+     * Flushes a directory to the storage device, which makes any renames within it durable.
+     *
+     * @param directory  The directory to flush.
+     *
+     * @throws IOException  If the directory could not be flushed.
+     */
+    protected void syncDirectory(File directory) throws IOException {
+        try {
+            FileDescriptor descriptor = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(descriptor);
+            } finally {
+                Os.close(descriptor);
+            }
+        } catch (ErrnoException ex) {
+            throw new IOException("Could not sync " + directory.getName(), ex);
+        }
+    }
+}
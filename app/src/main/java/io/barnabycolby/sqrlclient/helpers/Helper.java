@@ -4,9 +4,14 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Looper;
+import android.widget.Toast;
 
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.activities.NoIdentityActivity;
+import io.barnabycolby.sqrlclient.R;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
+
+import java.lang.ref.WeakReference;
 
 /**
  * A helper class that contains static functions, encapsulating common functionality across the codebase.
@@ -43,8 +48,34 @@ public class Helper {
      * @param context  The context that should be used to start the NoIdentity activity.
      *
      * @return True if some identities exist, and false if not. Note that false also indicates an intent has been started for the NoIdentityActivity.
+     *         If the identities are still loading, the check is deferred until they have loaded and true is returned.
      */
     public static boolean checkIdentitiesExist(Context context) {
+        // Rather than blocking the main thread whilst the identity store loads, perform the check once it has loaded
+        if (!App.isSQRLIdentityManagerReady()) {
+            // The context is usually an activity, which should not be kept alive just for this check
+            final WeakReference<Context> contextReference = new WeakReference<Context>(context);
+            App.whenSQRLIdentityManagerReady(new IdentityManagerReadyListener() {
+                @Override
+                public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+                    Context context = contextReference.get();
+                    if (context != null) {
+                        checkIdentitiesExist(context);
+                    }
+                }
+
+                @Override
+                public void onIdentityManagerFailed(Exception ex) {
+                    Context context = contextReference.get();
+                    if (context != null) {
+                        String message = context.getResources().getString(R.string.identities_could_not_be_loaded);
+                        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+                    }
+                }
+            });
+            return true;
+        }
+
         // Check whether there are actually some identities
         if (!App.getSQRLIdentityManager().containsIdentities()) {
             Intent intent = new Intent(context, NoIdentityActivity.class);
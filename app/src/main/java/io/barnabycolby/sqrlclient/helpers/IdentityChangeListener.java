@@ -0,0 +1,33 @@
+package io.barnabycolby.sqrlclient.helpers;
+
+/**
+ * This listener interface should be used to receive notifications of individual changes to the identities held by a SQRLIdentityManager.
+ *
+ * <p>
+ * Notifications are delivered on the thread that made the change, whilst the identity manager holds its writer lock, and in the order in
+ * which the changes were made. Implementations must therefore return quickly, must not call back into the identity manager to make further
+ * changes, and should post any UI work to the main thread.
+ * </p>
+ */
+public interface IdentityChangeListener {
+    /**
+     * Called after a new identity has been added.
+     *
+     * @param identityName  The name of the new identity.
+     */
+    public void onIdentityAdded(String identityName);
+
+    /**
+     * Called after an identity has been removed.
+     *
+     * @param identityName  The name of the removed identity.
+     */
+    public void onIdentityRemoved(String identityName);
+
+    /**
+     * Called after the current identity has changed.
+     *
+     * @param identityName  The name of the new current identity, or null if no identity is selected.
+     */
+    public void onCurrentIdentityChanged(String identityName);
+}
@@ -0,0 +1,23 @@
+package io.barnabycolby.sqrlclient.helpers;
+
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
+
+/**
+ * This listener interface should be used to receive a notification once the identity store has finished loading in the background.
+ */
+public interface IdentityManagerReadyListener {
+    /**
+     * Called on the main thread once the identity manager is ready for use.
+     *
+     * @param identityManager  The loaded identity manager.
+     */
+    public void onIdentityManagerReady(SQRLIdentityManager identityManager);
+
+    /**
+     * Called on the main thread if the identity store could not be loaded. Loading is only attempted again by the next call to
+     * App.getSQRLIdentityManager, so the listener will not be called again.
+     *
+     * @param ex  The reason the identity store could not be loaded.
+     */
+    public void onIdentityManagerFailed(Exception ex);
+}
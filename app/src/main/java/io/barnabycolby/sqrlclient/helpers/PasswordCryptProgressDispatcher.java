@@ -0,0 +1,113 @@
+package io.barnabycolby.sqrlclient.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sits between EnScrypt and a PasswordCryptListener, throttling progress updates and delivering them on the main thread.
+ *
+ * <p>
+ * EnScrypt reports progress after every iteration, and the listener is often a DetachableListener proxy that dispatches each call
+ * reflectively. This class drops updates that do not change the percentage, and coalesces the rest so that the wrapped listener receives at
+ * most one update per frame. Only the latest value is delivered, and the work of calling the listener happens on the main thread rather than
+ * the thread performing the key derivation.
+ * </p>
+ *
+ * <p>
+ * Results are also delivered on the main thread, after any outstanding progress update, so that a late progress update can never overwrite
+ * the UI state set by the result.
+ * </p>
+ */
+public class PasswordCryptProgressDispatcher implements PasswordCryptListener {
+    private static final long MINIMUM_INTERVAL_IN_MILLIS = 16;
+    private static final int NO_PENDING_PROGRESS = -1;
+
+    private PasswordCryptListener mListener;
+    private Handler mHandler;
+
+    // Only accessed by the thread reporting progress
+    private int mLastReceivedProgress = NO_PENDING_PROGRESS;
+    private long mNextDispatchTime = 0;
+
+    // Shared between the reporting thread and the main thread
+    private AtomicInteger mPendingProgress = new AtomicInteger(NO_PENDING_PROGRESS);
+    private volatile int mDispatchedProgress = 0;
+
+    private Runnable mDispatchProgressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchPendingProgress();
+        }
+    };
+
+    /**
+     * Constructs a new instance that dispatches to the given listener.
+     *
+     * @param listener  The listener to dispatch to.
+     */
+    public PasswordCryptProgressDispatcher(PasswordCryptListener listener) {
+        this.mListener = listener;
+        this.mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    @Override
+    public void onPasswordCryptProgressUpdate(int progress) {
+        if (progress == this.mLastReceivedProgress) {
+            return;
+        }
+        this.mLastReceivedProgress = progress;
+
+        // If an update is already scheduled, it will pick up the new value when it runs
+        if (this.mPendingProgress.getAndSet(progress) != NO_PENDING_PROGRESS) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long dispatchTime = Math.max(now, this.mNextDispatchTime);
+        this.mNextDispatchTime = dispatchTime + MINIMUM_INTERVAL_IN_MILLIS;
+        this.mHandler.postAtTime(this.mDispatchProgressRunnable, dispatchTime);
+    }
+
+    @Override
+    public void onPasswordCryptResult(final boolean result) {
+        Runnable deliverResult = new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mDispatchProgressRunnable);
+                dispatchPendingProgress();
+                mListener.onPasswordCryptResult(result);
+            }
+        };
+
+        if (Looper.getMainLooper().getThread() == Thread.currentThread()) {
+            deliverResult.run();
+        } else {
+            this.mHandler.post(deliverResult);
+        }
+    }
+
+    /**
+     * Gets the most recent progress value delivered to the wrapped listener.
+     *
+     * @return The 0-100 progress value.
+     */
+    public int getProgress() {
+        return this.mDispatchedProgress;
+    }
+
+    /**
+     * Delivers the pending progress value to the wrapped listener, if there is one. Must be called on the main thread.
+     */
+    private void dispatchPendingProgress() {
+        int progress = this.mPendingProgress.getAndSet(NO_PENDING_PROGRESS);
+        if (progress != NO_PENDING_PROGRESS) {
+            this.mDispatchedProgress = progress;
+            this.mListener.onPasswordCryptProgressUpdate(progress);
+        }
+    }
+}
@@ -50,6 +50,18 @@ public abstract class TestableAsyncTask<Params, Progress, Result> extends AsyncT
         this.executionFinished();
     }
 
+    /**
+     * This default implementation of onCancelled simply calls executionFinished().
+     *
+     * As onPostExecute is not called for a cancelled task, this ensures that await() still returns. Subclasses that override this must also
+     * call executionFinished().
+     *
+     * @param result The result of the execution, which may be null.
+     */
+    protected void onCancelled(Result result) {
+        this.executionFinished();
+    }
+
     /**
      * Call this to wait for the execution and post execution of the task to complete.
      *
@@ -0,0 +1,80 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import io.barnabycolby.sqrlclient.App;
+
+/**
+ * Remembers which sites each identity is known to have an account with, so that logging in to them again can skip the query request.
+ *
+ * <p>
+ * Entries are keyed by the identity key, which is derived from both the identity and the host of the site, so one entry covers exactly
+ * one identity and site pair without storing either in the clear. Only accounts that are known to exist are stored, and the entries are
+ * persisted in shared preferences. The cache is only a hint, as the server always has the final say.
+ * </p>
+ *
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class AccountStateCache {
+    private static final String PREFERENCES_NAME = "account_states";
+
+    private static AccountStateCache sInstance;
+
+    private SharedPreferences mPreferences;
+
+    /**
+     * Gets the shared instance, which persists its entries in the application's shared preferences.
+     *
+     * @return The shared instance.
+     */
+    public static synchronized AccountStateCache getInstance() {
+        if (sInstance == null) {
+            SharedPreferences preferences = App.getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            sInstance = new AccountStateCache(preferences);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param preferences  The preferences that the entries should be persisted in.
+     */
+    public AccountStateCache(SharedPreferences preferences) {
+        this.mPreferences = preferences;
+    }
+
+    /**
+     * Determines whether the identity was known to have an account with its site the last time the site was contacted.
+     *
+     * @param identity  The identity, which determines the site by way of its identity key.
+     *
+     * @return True if the account is believed to exist, false if it does not or nothing is known.
+     */
+    public boolean isAccountKnownToExist(SQRLIdentity identity) {
+        return this.mPreferences.getBoolean(identity.getIdentityKey(), false);
+    }
+
+    /**
+     * Records whether the identity has an account with its site, as the site most recently reported.
+     *
+     * @param identity  The identity, which determines the site by way of its identity key.
+     * @param accountExists  True if the account exists, false otherwise.
+     */
+    public void setAccountExists(SQRLIdentity identity, boolean accountExists) {
+        String identityKey = identity.getIdentityKey();
+        if (accountExists == this.isAccountKnownToExist(identity)) {
+            return;
+        }
+
+        if (accountExists) {
+            this.mPreferences.edit().putBoolean(identityKey, true).apply();
+        } else {
+            this.mPreferences.edit().remove(identityKey).apply();
+        }
+    }
+}
@@ -1,43 +1,94 @@
 package io.barnabycolby.sqrlclient.sqrl;
 
-import eu.artemisc.stodium.Scrypt;
-import eu.artemisc.stodium.Stodium;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.helpers.Helper;
 import io.barnabycolby.sqrlclient.R;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpoint;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpointStore;
+import io.barnabycolby.sqrlclient.sqrl.factories.FastestScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.ScryptEngineFactory;
 import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
 
 import java.nio.charset.Charset;
-
-import org.abstractj.kalium.Sodium;
+import java.security.GeneralSecurityException;
 
 /**
  * An implementation of the EnScrypt password based key derivation function, described in detail at https://www.grc.com/sqrl/scrypt.htm.
  */
 public class EnScrypt {
-    static {
-        Stodium.StodiumInit();
-    }
+    // The scrypt parameters used by EnScrypt, which require a 16MB workspace
+    static final int SCRYPT_N = 512;
+    static final int SCRYPT_R = 256;
+
+    // How often a checkpointed derivation saves its progress, which is about halfway through a standard 5 second derivation
+    private static final long CHECKPOINT_INTERVAL_IN_MILLIS = 2500;
 
     private int mIterations;
+    private int mResumedIterations;
+    private long mDurationInMillis;
 
     private enum OperationCount { ITERATIONS, SECONDS };
 
     private PasswordCryptListener mListener;
+    private ScryptEngineFactory mScryptEngineFactory;
+    private CancellationSignal mCancellationSignal;
 
     /**
      * Default constructor, should be used when you don't need to listen for progress updates.
      */
-    public EnScrypt() {}
+    public EnScrypt() {
+        this(null);
+    }
 
     /**
      * Use this constructor when you need to listen to progress updates.
      *
+     * The scrypt iterations will be performed by whichever scrypt engine the calibration found to be fastest on this device, or by libsodium
+     * if the calibration has not yet run. The derivation never waits for the engine selection.
+     *
      * @param listener  The listener for progress updates.
      */
     public EnScrypt(PasswordCryptListener listener) {
+        this(listener, (CancellationSignal)null);
+    }
+
+    /**
+     * Use this constructor when the key derivation may need to be abandoned part way through.
+     *
+     * The cancellation signal is checked before every iteration, so a derivation stops within one iteration of the signal being cancelled.
+     *
+     * @param listener  The listener for progress updates, or null.
+     * @param cancellationSignal  The signal used to cancel the derivation, or null.
+     */
+    public EnScrypt(PasswordCryptListener listener, CancellationSignal cancellationSignal) {
+        this(listener, FastestScryptEngineFactory.getInstance(), cancellationSignal);
+    }
+
+    /**
+     * Use this constructor when a specific scrypt engine implementation should be used.
+     *
+     * @param listener  The listener for progress updates, or null.
+     * @param scryptEngineFactory  The factory used to create the scrypt engine for each derivation.
+     */
+    public EnScrypt(PasswordCryptListener listener, ScryptEngineFactory scryptEngineFactory) {
+        this(listener, scryptEngineFactory, null);
+    }
+
+    /**
+     * Use this constructor when a specific scrypt engine implementation should be used and the derivation may need to be cancelled.
+     *
+     * @param listener  The listener for progress updates, or null.
+     * @param scryptEngineFactory  The factory used to create the scrypt engine for each derivation.
+     * @param cancellationSignal  The signal used to cancel the derivation, or null.
+     */
+    public EnScrypt(PasswordCryptListener listener, ScryptEngineFactory scryptEngineFactory, CancellationSignal cancellationSignal) {
         this.mListener = listener;
+        this.mScryptEngineFactory = scryptEngineFactory;
+        this.mCancellationSignal = cancellationSignal;
     }
 
     /**
@@ -48,6 +99,8 @@ public class EnScrypt {
      * @param iterations  The number of SCRYPT iterations that should be performed.
      *
      * @return The derived key.
+     *
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the derivation completed.
      */
     public String deriveKey(String password, String salt, int iterations) throws SecurityException {
         return deriveKey(password, salt, OperationCount.ITERATIONS, iterations);
@@ -61,9 +114,40 @@ public class EnScrypt {
      * @param iterations  The number of SCRYPT iterations that should be performed.
      *
      * @return The derived key.
+     *
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the derivation completed.
      */
     public byte[] deriveKey(String password, byte[] salt, int iterations) throws SecurityException {
-        return deriveKey(password, salt, OperationCount.ITERATIONS, iterations);
+        return deriveKey(password, salt, OperationCount.ITERATIONS, iterations, null, null, null);
+    }
+
+    /**
+     * Performs a resumable EnScrypt key derivation on the given password, using the given password, salt and number of iterations.
+     *
+     * <p>
+     * The state of the derivation is saved to the checkpoint store every few seconds, and when the derivation is cancelled. If the store
+     * already holds a checkpoint with the given id, binding secret, salt and iteration count, the derivation continues from that checkpoint
+     * rather than starting again. The checkpoint is removed once the derivation completes.
+     * </p>
+     *
+     * <p>
+     * A checkpoint cannot tell which password it was produced with, so the caller must ensure that a checkpoint id is only ever used with
+     * one password, or must check the derived key and repeat the derivation without checkpoints if it turns out to be wrong.
+     * </p>
+     *
+     * @param password  The password to derive a key from.
+     * @param salt  The salt to use.
+     * @param iterations  The number of SCRYPT iterations that should be performed.
+     * @param checkpointStore  The store to save checkpoints to and resume from.
+     * @param checkpointId  The id identifying this derivation within the checkpoint store.
+     * @param bindingSecret  The secret that checkpoints are bound to, or null if they should not be bound.
+     *
+     * @return The derived key.
+     *
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the derivation completed.
+     */
+    public byte[] deriveKey(String password, byte[] salt, int iterations, EnScryptCheckpointStore checkpointStore, String checkpointId, byte[] bindingSecret) throws SecurityException {
+        return deriveKey(password, salt, OperationCount.ITERATIONS, iterations, checkpointStore, checkpointId, bindingSecret);
     }
 
     /**
@@ -87,7 +171,7 @@ public class EnScrypt {
      * @return The derived key.
      */
     public byte[] deriveKeyFor5Seconds(String password, byte[] salt) throws SecurityException {
-        return deriveKey(password, salt, OperationCount.SECONDS, 5);
+        return deriveKey(password, salt, OperationCount.SECONDS, 5, null, null, null);
     }
 
     /**
@@ -100,7 +184,7 @@ public class EnScrypt {
      */
     private String deriveKey(String password, String salt, OperationCount operationType, int count) {
         byte[] saltAsByteArray = salt == null ? null : Helper.hexStringToByteArray(salt);
-        byte[] key = deriveKey(password, saltAsByteArray, operationType, count);
+        byte[] key = deriveKey(password, saltAsByteArray, operationType, count, null, null, null);
         return byteArrayToHexString(key);
     }
 
@@ -111,8 +195,11 @@ public class EnScrypt {
      * @param salt  The salt to use.
      * @param operationType  Whether the count is in terms of no. of iterations of no. of seconds.
      * @param count  The count of iterations or seconds to perform.
+     * @param checkpointStore  The store used to make an iteration count derivation resumable, or null.
+     * @param checkpointId  The id of the derivation within the checkpoint store.
+     * @param bindingSecret  The secret that checkpoints are bound to, or null.
      */
-    private byte[] deriveKey(String password, byte[] salt, OperationCount operationType, int count) {
+    private byte[] deriveKey(String password, byte[] salt, OperationCount operationType, int count, EnScryptCheckpointStore checkpointStore, String checkpointId, byte[] bindingSecret) {
         // Handle null arguments
         if (password == null) {
             password = "";
@@ -129,61 +216,201 @@ public class EnScrypt {
 
         // Append the null terminating byte to the password (part of the SQRL protocol)
         password += '\0';
-
-        // Set up the required byte arrays
-        byte[] key = new byte[32];
         byte[] passwordAsByteArray = password.getBytes(Charset.forName("UTF-8"));
 
-        // Perform the chaining of the scrypt operations
-        byte[] scryptOutput = salt;
+        // A single scrypt engine is used for the whole derivation, so that any workspace it keeps is allocated once rather than on every iteration
+        ScryptEngine engine = this.mScryptEngineFactory.create(SCRYPT_N, SCRYPT_R);
+
+        // The key acts as the accumulator that every scrypt output is XORed into
+        byte[] key = new byte[32];
         long startTime = System.currentTimeMillis();
+        this.mResumedIterations = 0;
+        if (operationType == OperationCount.ITERATIONS && checkpointStore != null) {
+            this.mIterations = deriveKeyForIterationsWithCheckpoints(engine, passwordAsByteArray, salt, count, key, checkpointStore, checkpointId, bindingSecret);
+        } else if (operationType == OperationCount.ITERATIONS) {
+            this.mIterations = deriveKeyForIterations(engine, passwordAsByteArray, salt, count, key);
+        } else {
+            this.mIterations = deriveKeyForDuration(engine, passwordAsByteArray, salt, count * 1000L, key);
+        }
+        this.mDurationInMillis = System.currentTimeMillis() - startTime;
+
+        return key;
+    }
+
+    /**
+     * Performs the chaining of the scrypt operations for a fixed number of iterations, XORing each output into the given key.
+     *
+     * No allocations are made inside the loop, the two scrypt output buffers are simply swapped between iterations.
+     *
+     * @param engine  The scrypt engine to perform the iterations with.
+     * @param password  The password to derive a key from, including the null terminating byte.
+     * @param salt  The salt to use for the first iteration.
+     * @param iterations  The number of iterations to perform.
+     * @param key  The accumulator that the scrypt outputs are XORed into.
+     *
+     * @return The number of iterations performed.
+     */
+    private int deriveKeyForIterations(ScryptEngine engine, byte[] password, byte[] salt, int iterations, byte[] key) {
+        byte[] input = salt;
+        byte[] output = new byte[32];
+        byte[] spare = new byte[32];
+
         int numberOfIterationsPerformed = 0;
-        while (true) {
-            scryptOutput = scryptDeriveKey(passwordAsByteArray, scryptOutput);
-            key = xorByteArrays(key, scryptOutput);
+        do {
+            throwIfCancelled();
+            scryptDeriveKey(engine, password, input, output);
+            xorByteArrays(key, output);
             numberOfIterationsPerformed++;
 
-            if (operationType.equals(OperationCount.ITERATIONS)) {
-                // If we have a listener, we need to give it a progress update
-                if (this.mListener != null) {
-                    int progress = (numberOfIterationsPerformed * 100) / count;
-                    this.mListener.onPasswordCryptProgressUpdate(progress);
-                }
+            // If we have a listener, we need to give it a progress update
+            if (this.mListener != null) {
+                int progress = (numberOfIterationsPerformed * 100) / iterations;
+                this.mListener.onPasswordCryptProgressUpdate(progress);
+            }
 
-                if (numberOfIterationsPerformed == count) {
-                    break;
-                }
-            } else if (operationType.equals(OperationCount.SECONDS)) {
-                long duration = System.currentTimeMillis() - startTime;
+            // The output of this iteration becomes the salt of the next
+            input = output;
+            output = spare;
+            spare = input;
+        } while (numberOfIterationsPerformed < iterations);
 
-                // If we have a listener, we need to give it a progress update
-                if (this.mListener != null) {
-                    int progress = (int)duration / (count * 10);
-                    this.mListener.onPasswordCryptProgressUpdate(progress);
-                }
+        return numberOfIterationsPerformed;
+    }
+
+    /**
+     * Performs the chaining of the scrypt operations for a fixed number of iterations, saving checkpoints as it goes and resuming from an
+     * existing checkpoint if there is a valid one.
+     *
+     * @param engine  The scrypt engine to perform the iterations with.
+     * @param password  The password to derive a key from, including the null terminating byte.
+     * @param salt  The salt to use for the first iteration.
+     * @param iterations  The number of iterations to perform.
+     * @param key  The accumulator that the scrypt outputs are XORed into.
+     * @param checkpointStore  The store to save checkpoints to and resume from.
+     * @param checkpointId  The id of the derivation within the checkpoint store.
+     * @param bindingSecret  The secret that checkpoints are bound to, or null.
+     *
+     * @return The number of iterations performed, including any that were resumed from a checkpoint.
+     */
+    private int deriveKeyForIterationsWithCheckpoints(ScryptEngine engine, byte[] password, byte[] salt, int iterations, byte[] key, EnScryptCheckpointStore checkpointStore, String checkpointId, byte[] bindingSecret) {
+        byte[] input = salt;
+        byte[] output = new byte[32];
+        byte[] spare = new byte[32];
 
-                if (duration >= count * 1000) {
-                    break;
+        int numberOfIterationsPerformed = 0;
+        EnScryptCheckpoint checkpoint = checkpointStore.load(checkpointId, bindingSecret);
+        if (checkpoint != null) {
+            if (checkpoint.matches(salt, iterations)) {
+                System.arraycopy(checkpoint.getAccumulator(), 0, key, 0, key.length);
+                System.arraycopy(checkpoint.getLastOutput(), 0, spare, 0, spare.length);
+                input = spare;
+                numberOfIterationsPerformed = checkpoint.getCompletedIterations();
+                this.mResumedIterations = numberOfIterationsPerformed;
+            }
+            checkpoint.wipe();
+        }
+
+        long lastCheckpointTime = System.currentTimeMillis();
+        while (numberOfIterationsPerformed < iterations) {
+            if (this.mCancellationSignal != null && this.mCancellationSignal.isCanceled()) {
+                if (numberOfIterationsPerformed > 0) {
+                    checkpointStore.save(checkpointId, bindingSecret, new EnScryptCheckpoint(salt, iterations, numberOfIterationsPerformed, key, input));
                 }
+                throwIfCancelled();
+            }
+
+            scryptDeriveKey(engine, password, input, output);
+            xorByteArrays(key, output);
+            numberOfIterationsPerformed++;
+
+            // If we have a listener, we need to give it a progress update
+            if (this.mListener != null) {
+                int progress = (numberOfIterationsPerformed * 100) / iterations;
+                this.mListener.onPasswordCryptProgressUpdate(progress);
+            }
+
+            // The output of this iteration becomes the salt of the next
+            input = output;
+            output = spare;
+            spare = input;
+
+            long now = System.currentTimeMillis();
+            if (now - lastCheckpointTime >= CHECKPOINT_INTERVAL_IN_MILLIS && numberOfIterationsPerformed < iterations) {
+                checkpointStore.save(checkpointId, bindingSecret, new EnScryptCheckpoint(salt, iterations, numberOfIterationsPerformed, key, input));
+                lastCheckpointTime = now;
             }
         }
 
-        // Store the number of iterations performed, this will be required by the caller if using deriveKeyFor5Seconds
-        this.mIterations = numberOfIterationsPerformed;
+        checkpointStore.remove(checkpointId);
+        return numberOfIterationsPerformed;
+    }
 
-        return key;
+    /**
+     * Performs the chaining of the scrypt operations until the given duration has elapsed, XORing each output into the given key.
+     *
+     * No allocations are made inside the loop, the two scrypt output buffers are simply swapped between iterations.
+     *
+     * @param engine  The scrypt engine to perform the iterations with.
+     * @param password  The password to derive a key from, including the null terminating byte.
+     * @param salt  The salt to use for the first iteration.
+     * @param durationInMillis  The length of time to perform iterations for.
+     * @param key  The accumulator that the scrypt outputs are XORed into.
+     *
+     * @return The number of iterations performed.
+     */
+    private int deriveKeyForDuration(ScryptEngine engine, byte[] password, byte[] salt, long durationInMillis, byte[] key) {
+        byte[] input = salt;
+        byte[] output = new byte[32];
+        byte[] spare = new byte[32];
+
+        long startTime = System.currentTimeMillis();
+        long duration;
+        int numberOfIterationsPerformed = 0;
+        do {
+            throwIfCancelled();
+            scryptDeriveKey(engine, password, input, output);
+            xorByteArrays(key, output);
+            numberOfIterationsPerformed++;
+            duration = System.currentTimeMillis() - startTime;
+
+            // If we have a listener, we need to give it a progress update
+            if (this.mListener != null) {
+                int progress = (int)((duration * 100) / durationInMillis);
+                this.mListener.onPasswordCryptProgressUpdate(progress);
+            }
+
+            // The output of this iteration becomes the salt of the next
+            input = output;
+            output = spare;
+            spare = input;
+        } while (duration < durationInMillis);
+
+        return numberOfIterationsPerformed;
+    }
+
+    /**
+     * Throws an OperationCanceledException if the cancellation signal has been cancelled.
+     */
+    private void throwIfCancelled() {
+        if (this.mCancellationSignal != null) {
+            this.mCancellationSignal.throwIfCanceled();
+        }
     }
 
     /**
      * Performs a single iteration of the Scrypt key derivation algorithm.
      *
-     * @param password  The password to derive a key from, or a previous output from scrypt.
-     * @param salt  The salt to use.
+     * @param engine  The scrypt engine to use.
+     * @param password  The password to derive a key from.
+     * @param salt  The salt to use, or a previous output from scrypt.
+     * @param output  The 32 byte array that the derived key will be written to.
      */
-    private byte[] scryptDeriveKey(byte[] password, byte[] salt) {
-        byte[] key = new byte[32];
-        Stodium.checkStatus(Sodium.crypto_pwhash_scryptsalsa208sha256_ll(password, password.length, salt, salt.length, 512, 256, 1, key, key.length));
-        return key;
+    private void scryptDeriveKey(ScryptEngine engine, byte[] password, byte[] salt, byte[] output) {
+        try {
+            engine.deriveKey(password, salt, output);
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException(ex);
+        }
     }
 
     private String byteArrayToHexString(byte[] array) {
@@ -195,18 +422,38 @@ public class EnScrypt {
         return builder.toString();
     }
 
-    private byte[] xorByteArrays(byte[] xs, byte[] ys) {
-        byte[] result = new byte[xs.length];
-        for (int i = 0; i < xs.length; i++) {
-            int x = (int)xs[i];
-            int y = (int)ys[i];
-            int xor = x ^ y;
-            result[i] = (byte)(0xff & xor);
+    /**
+     * XORs the second array into the first, in place.
+     *
+     * @param accumulator  The array that will hold the result.
+     * @param ys  The array to XOR into the accumulator, which must be at least as long as the accumulator.
+     */
+    private void xorByteArrays(byte[] accumulator, byte[] ys) {
+        for (int i = 0; i < accumulator.length; i++) {
+            accumulator[i] ^= ys[i];
         }
-        return result;
     }
 
     public int getIterations() {
         return this.mIterations;
     }
+
+    /**
+     * Gets the number of iterations of the last key derivation that were restored from a checkpoint rather than performed.
+     *
+     * @return The number of resumed iterations, or zero if the last derivation was not resumed.
+     */
+    public int getResumedIterations() {
+        return this.mResumedIterations;
+    }
+
+    /**
+     * Gets the length of time taken by the iterations of the last key derivation. The creation of the scrypt engine happens before timing
+     * starts, so is not included.
+     *
+     * @return The duration of the last key derivation in milliseconds.
+     */
+    public long getDurationInMillis() {
+        return this.mDurationInMillis;
+    }
 }
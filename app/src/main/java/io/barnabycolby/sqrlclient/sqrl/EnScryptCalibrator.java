@@ -0,0 +1,267 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.sqrl.factories.FastestScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.factories.ScryptEngineFactory;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Plans the number of EnScrypt iterations to perform using a persisted measurement of this device's scrypt performance.
+ *
+ * <p>
+ * Rather than running EnScrypt until a wall-clock deadline has passed, which makes the stored iteration count depend on whatever the
+ * device happened to be doing at the time, a fixed iteration count is planned up front from an iterations per second profile. The profile
+ * is produced by a short micro-benchmark of single scrypt iterations and is persisted in shared preferences, so the benchmark normally only
+ * runs once per install. Calibrating also selects the fastest scrypt engine for this device, and is started in the background when the
+ * application starts, so that the first key derivation does not normally have to wait for either.
+ * </p>
+ *
+ * <p>
+ * Completed derivations should be reported back using onDerivationCompleted. If the rate they achieved drifts too far from the profile,
+ * the profile is discarded and the benchmark is run again the next time an iteration count is planned. The profile is also ignored if
+ * EnScrypt would now use a different scrypt engine from the one it was measured with.
+ * </p>
+ */
+public class EnScryptCalibrator {
+    private static final String TAG = EnScryptCalibrator.class.getName();
+    public static final String PREFERENCES_NAME = "enscrypt_calibration";
+    private static final String ITERATIONS_PER_SECOND_KEY = "iterationsPerSecond";
+
+    // The class name of the factory of the scrypt engine that the profile was measured with
+    private static final String ENGINE_KEY = "engine";
+
+    private static final int WARM_UP_ITERATIONS = 1;
+    private static final int BENCHMARK_ITERATIONS = 5;
+
+    // Derivations with fewer iterations than this are too short to give a reliable measurement of the rate
+    private static final int MINIMUM_ITERATIONS_FOR_DRIFT_CHECK = 10;
+
+    // The fraction by which a measured rate can differ from the profile before the profile is discarded
+    private static final double MAXIMUM_DRIFT = 0.25;
+
+    private static EnScryptCalibrator sInstance;
+
+    private SharedPreferences mPreferences;
+    private FastestScryptEngineFactory mScryptEngineFactory;
+
+    /**
+     * Held whilst the benchmark runs, so that only one calibration runs at a time. Reading the profile never waits for it.
+     */
+    private final Object mCalibrationLock = new Object();
+
+    /**
+     * Gets the shared instance, which persists its profile in the application's shared preferences.
+     *
+     * @return The shared instance.
+     */
+    public static synchronized EnScryptCalibrator getInstance() {
+        if (sInstance == null) {
+            SharedPreferences preferences = App.getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            sInstance = new EnScryptCalibrator(preferences, FastestScryptEngineFactory.getInstance());
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param preferences  The preferences that the profile should be persisted in.
+     * @param scryptEngineFactory  The factory that selects the scrypt engine to benchmark, which should be the one used by EnScrypt.
+     */
+    public EnScryptCalibrator(SharedPreferences preferences, FastestScryptEngineFactory scryptEngineFactory) {
+        this.mPreferences = preferences;
+        this.mScryptEngineFactory = scryptEngineFactory;
+    }
+
+    /**
+     * Plans the number of EnScrypt iterations that will take approximately the given length of time on this device.
+     *
+     * If no profile exists, the micro-benchmark will be run first.
+     *
+     * @param durationInMillis  The desired length of the key derivation.
+     *
+     * @return The number of iterations to perform, which will be at least one.
+     */
+    public int planIterations(long durationInMillis) {
+        return this.planIterations(durationInMillis, null);
+    }
+
+    /**
+     * Plans the number of EnScrypt iterations that will take approximately the given length of time on this device.
+     *
+     * If no profile exists, the micro-benchmark will be run first, or waited for if it is already running in the background.
+     *
+     * @param durationInMillis  The desired length of the key derivation.
+     * @param cancellationSignal  The signal used to cancel the micro-benchmark, or null.
+     *
+     * @return The number of iterations to perform, which will be at least one.
+     *
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the micro-benchmark completed.
+     */
+    public int planIterations(long durationInMillis, CancellationSignal cancellationSignal) {
+        double iterations = this.getIterationsPerSecond(cancellationSignal) * durationInMillis / 1000.0;
+        return (int)Math.max(1, Math.round(iterations));
+    }
+
+    /**
+     * Gets the number of EnScrypt iterations per second that this device can perform, running the micro-benchmark if no profile exists.
+     *
+     * @return The number of iterations per second.
+     */
+    public double getIterationsPerSecond() {
+        return this.getIterationsPerSecond(null);
+    }
+
+    /**
+     * Gets the number of EnScrypt iterations per second that this device can perform, running the micro-benchmark if no profile exists.
+     *
+     * @param cancellationSignal  The signal used to cancel the micro-benchmark, or null.
+     *
+     * @return The number of iterations per second.
+     *
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the micro-benchmark completed.
+     */
+    public double getIterationsPerSecond(CancellationSignal cancellationSignal) {
+        synchronized (this.mCalibrationLock) {
+            if (!this.isCalibrated()) {
+                return this.calibrate(cancellationSignal);
+            }
+
+            return this.mPreferences.getFloat(ITERATIONS_PER_SECOND_KEY, 0);
+        }
+    }
+
+    /**
+     * Determines whether a profile currently exists for the scrypt engine that EnScrypt would use.
+     *
+     * @return True if a profile exists, false otherwise.
+     */
+    public boolean isCalibrated() {
+        String engineName = this.mScryptEngineFactory.getSelectedFactory(EnScrypt.SCRYPT_N, EnScrypt.SCRYPT_R).getClass().getName();
+        return this.mPreferences.getFloat(ITERATIONS_PER_SECOND_KEY, 0) > 0 && engineName.equals(this.mPreferences.getString(ENGINE_KEY, null));
+    }
+
+    /**
+     * Calibrates on a low priority background thread if no profile exists. Returns immediately.
+     *
+     * Anything that needs the profile whilst this is running waits for it to finish rather than starting a second benchmark.
+     */
+    public void calibrateInBackground() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                getIterationsPerSecond(null);
+            }
+        }, "EnScryptCalibrator").start();
+    }
+
+    /**
+     * Runs the micro-benchmark and persists the resulting profile, replacing any existing one.
+     *
+     * @return The measured number of iterations per second.
+     */
+    public double calibrate() {
+        return this.calibrate(null);
+    }
+
+    /**
+     * Selects the fastest scrypt engine if this has not already been done, then runs the micro-benchmark using it and persists the
+     * resulting profile, replacing any existing one.
+     *
+     * Each benchmark iteration is timed individually and the median is used, so that a single iteration that is interrupted by the
+     * scheduler or the garbage collector does not skew the result.
+     *
+     * @param cancellationSignal  The signal used to cancel the calibration, or null. It is checked before every scrypt operation.
+     *
+     * @return The measured number of iterations per second.
+     *
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the calibration completed, in which case any
+     *                                     existing profile is left unchanged.
+     */
+    public double calibrate(CancellationSignal cancellationSignal) {
+        synchronized (this.mCalibrationLock) {
+            ScryptEngineFactory engineFactory = this.mScryptEngineFactory.select(EnScrypt.SCRYPT_N, EnScrypt.SCRYPT_R, cancellationSignal);
+            ScryptEngine engine = engineFactory.create(EnScrypt.SCRYPT_N, EnScrypt.SCRYPT_R);
+            byte[] password = new byte[1];
+            byte[] salt = new byte[32];
+            byte[] output = new byte[32];
+
+            // The first iterations pay for page faulting the workspace, which only happens once in a real derivation
+            for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+                throwIfCancelled(cancellationSignal);
+                scryptDeriveKey(engine, password, salt, output);
+            }
+
+            long[] durations = new long[BENCHMARK_ITERATIONS];
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                throwIfCancelled(cancellationSignal);
+                long startTime = System.nanoTime();
+                scryptDeriveKey(engine, password, salt, output);
+                durations[i] = System.nanoTime() - startTime;
+            }
+            Arrays.sort(durations);
+            long medianDuration = Math.max(1, durations[BENCHMARK_ITERATIONS / 2]);
+
+            double iterationsPerSecond = 1e9 / medianDuration;
+            this.mPreferences.edit()
+                    .putFloat(ITERATIONS_PER_SECOND_KEY, (float)iterationsPerSecond)
+                    .putString(ENGINE_KEY, engineFactory.getClass().getName())
+                    .apply();
+            Log.i(TAG, String.format("Calibrated EnScrypt at %.2f iterations per second", iterationsPerSecond));
+
+            return iterationsPerSecond;
+        }
+    }
+
+    /**
+     * Reports the rate achieved by a completed key derivation, discarding the profile if the rate has drifted too far from it.
+     *
+     * @param iterations  The number of iterations that were performed.
+     * @param durationInMillis  The length of time that the iterations took.
+     *
+     * @return True if the profile was discarded, false otherwise.
+     */
+    public boolean onDerivationCompleted(int iterations, long durationInMillis) {
+        if (!this.isCalibrated() || iterations < MINIMUM_ITERATIONS_FOR_DRIFT_CHECK || durationInMillis <= 0) {
+            return false;
+        }
+
+        double profiledIterationsPerSecond = this.mPreferences.getFloat(ITERATIONS_PER_SECOND_KEY, 0);
+        double measuredIterationsPerSecond = iterations * 1000.0 / durationInMillis;
+        double drift = Math.abs(measuredIterationsPerSecond - profiledIterationsPerSecond) / profiledIterationsPerSecond;
+        if (drift <= MAXIMUM_DRIFT) {
+            return false;
+        }
+
+        Log.i(TAG, String.format("EnScrypt rate drifted from %.2f to %.2f iterations per second, recalibration required",
+                    profiledIterationsPerSecond, measuredIterationsPerSecond));
+        this.mPreferences.edit().remove(ITERATIONS_PER_SECOND_KEY).apply();
+        return true;
+    }
+
+    private static void throwIfCancelled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    private static void scryptDeriveKey(ScryptEngine engine, byte[] password, byte[] salt, byte[] output) {
+        try {
+            engine.deriveKey(password, salt, output);
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException(ex);
+        }
+    }
+}
@@ -1,7 +1,15 @@
 package io.barnabycolby.sqrlclient.sqrl;
 
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Base64;
+
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpoint;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpointStore;
 import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 import java.security.GeneralSecurityException;
 import java.security.Key;
@@ -16,11 +24,14 @@ import javax.crypto.spec.SecretKeySpec;
  * Provides the required functionality for encrypting/decrypting SQRL master keys using passwords, according to the SQRL protocol.
  */
 public class EncryptedIdentity {
-    private byte[] mEncryptedMasterKey;
-    private byte[] mSalt;
-    private byte[] mIv;
+    private ByteBuffer mEncryptedMasterKey;
+    private ByteBuffer mSalt;
+    private ByteBuffer mIv;
     private int mIterations;
 
+    // The length of time that the key derivation should take when an identity is created
+    static final long CREATE_DURATION_IN_MILLIS = 5000;
+
     // The tag value was randomly generated
     private static byte[] sTag = "wOGRGI$H6AAaxX77GZ\"(aetC]ChZBfz_B:ef_HjPtWua%\"&zaze]0iK(<[y%{Zd".getBytes();
 
@@ -35,16 +46,31 @@ public class EncryptedIdentity {
      * @param iv  The IV that was used to encrypt the master key.
      */
     public EncryptedIdentity(byte[] encryptedMasterKey, byte[] salt, int iterations, byte[] iv) {
+        this(ByteBuffer.wrap(encryptedMasterKey), ByteBuffer.wrap(salt), iterations, ByteBuffer.wrap(iv));
+    }
+
+    /**
+     * Constructs a new encrypted identity whose components are views into a larger buffer, such as a memory mapped identity pack.
+     *
+     * The remaining bytes of each buffer are the component, and are only copied onto the heap when they are used.
+     *
+     * @param encryptedMasterKey  The identities master key in encrypted form.
+     * @param salt  The EnScrypt salt used to derive the encryption key from the password.
+     * @param iterations  The number of EnScrypt iterations used to derive the key.
+     * @param iv  The IV that was used to encrypt the master key.
+     */
+    EncryptedIdentity(ByteBuffer encryptedMasterKey, ByteBuffer salt, int iterations, ByteBuffer iv) {
         this.mEncryptedMasterKey = encryptedMasterKey;
         this.mSalt = salt;
         this.mIterations = iterations;
         this.mIv = iv;
     }
-    
+
     /**
      * Creates an EncryptedIdentity instance by encrypting the given master key with the given password.
      *
-     * Callers of this function should be aware that it will take at least 5 seconds to return.
+     * The number of EnScrypt iterations is planned in advance by the EnScryptCalibrator so that the derivation takes approximately 5
+     * seconds. Callers of this function should be aware that it may take longer still if the device needs to be calibrated first.
      *
      * @param masterKey  The master key to encrypt.
      * @param password  The password to encrypt the master key with.
@@ -55,11 +81,74 @@ public class EncryptedIdentity {
      * @throws GeneralSecurityException  If the encryption cannot be completed.
      */
     public static EncryptedIdentity create(byte[] masterKey, String password, PasswordCryptListener listener) throws GeneralSecurityException {
+        return EncryptedIdentity.create(masterKey, password, listener, null);
+    }
+
+    /**
+     * Creates an EncryptedIdentity instance by encrypting the given master key with the given password, allowing the encryption to be
+     * cancelled.
+     *
+     * @param masterKey  The master key to encrypt.
+     * @param password  The password to encrypt the master key with.
+     * @param listener  The listener used for progress updates.
+     * @param cancellationSignal  The signal used to cancel the key derivation, or null.
+     *
+     * @return The newly created EncryptedIdentity.
+     *
+     * @throws GeneralSecurityException  If the encryption cannot be completed.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the encryption completed.
+     */
+    public static EncryptedIdentity create(byte[] masterKey, String password, PasswordCryptListener listener, CancellationSignal cancellationSignal) throws GeneralSecurityException {
+        return EncryptedIdentity.create(masterKey, password, listener, cancellationSignal, null);
+    }
+
+    /**
+     * Creates an EncryptedIdentity instance by encrypting the given master key with the given password, allowing the encryption to be
+     * cancelled and resumed.
+     *
+     * <p>
+     * The key derivation saves checkpoints under the given id, bound to the master key. If a previous attempt with the same id was
+     * interrupted, the key derivation resumes from its last checkpoint, reusing the salt and iteration count of that attempt. The id should
+     * be generated using generateCheckpointId and kept alongside the pending master key and password, as a checkpoint must never be resumed
+     * with a different password.
+     * </p>
+     *
+     * @param masterKey  The master key to encrypt.
+     * @param password  The password to encrypt the master key with.
+     * @param listener  The listener used for progress updates.
+     * @param cancellationSignal  The signal used to cancel the key derivation, or null.
+     * @param checkpointId  The id under which checkpoints are saved, or null if the encryption should not be resumable.
+     *
+     * @return The newly created EncryptedIdentity.
+     *
+     * @throws GeneralSecurityException  If the encryption cannot be completed.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the encryption completed.
+     */
+    public static EncryptedIdentity create(byte[] masterKey, String password, PasswordCryptListener listener, CancellationSignal cancellationSignal, String checkpointId) throws GeneralSecurityException {
+        // If an earlier attempt was interrupted, we need its salt and iteration count in order to resume it
+        EnScryptCheckpointStore checkpointStore = EnScryptCheckpointStore.getInstance();
+        EnScryptCheckpoint checkpoint = (checkpointId == null) ? null : checkpointStore.load(checkpointId, masterKey);
+        EnScryptCalibrator calibrator = EnScryptCalibrator.getInstance();
+        byte[] salt;
+        int iterations;
+        if (checkpoint != null) {
+            salt = checkpoint.getSalt();
+            iterations = checkpoint.getTargetIterations();
+            checkpoint.wipe();
+        } else {
+            salt = EncryptedIdentity.generateSalt();
+            iterations = calibrator.planIterations(CREATE_DURATION_IN_MILLIS, cancellationSignal);
+        }
+
         // Generate the encryption key
-        EnScrypt enScrypt = new EnScrypt(listener);
-        byte[] salt = EncryptedIdentity.generateSalt();
-        byte[] derivedKey = enScrypt.deriveKeyFor5Seconds(password, salt);
-        int iterations = enScrypt.getIterations();
+        EnScrypt enScrypt = new EnScrypt(listener, cancellationSignal);
+        byte[] derivedKey;
+        if (checkpointId == null) {
+            derivedKey = enScrypt.deriveKey(password, salt, iterations);
+        } else {
+            derivedKey = enScrypt.deriveKey(password, salt, iterations, checkpointStore, checkpointId, masterKey);
+        }
+        calibrator.onDerivationCompleted(iterations - enScrypt.getResumedIterations(), enScrypt.getDurationInMillis());
         Key key = new SecretKeySpec(derivedKey, "AES");
 
         // Perform the encryption
@@ -87,44 +176,100 @@ public class EncryptedIdentity {
      * @throws GeneralSecurityException  If the decryption could not be completed.
      */
     public byte[] decrypt(String password, PasswordCryptListener listener) throws GeneralSecurityException {
+        return this.decrypt(password, listener, null);
+    }
+
+    /**
+     * Decrypts the identities master key using the given password, allowing the decryption to be cancelled.
+     *
+     * <p>
+     * If a previous decryption of this identity with the same password was cancelled or interrupted, the key derivation resumes from its
+     * last checkpoint. The checkpoints are bound to a secret derived from the password by the checkpoint store, so they can be kept on disk,
+     * and a checkpoint left behind by a different password is discarded rather than resumed.
+     * </p>
+     *
+     * @param password  The password used to encrypt the master key.
+     * @param listener  The listener for decryption progress updates.
+     * @param cancellationSignal  The signal used to cancel the key derivation, or null.
+     *
+     * @return The decrypted master key.
+     *
+     * @throws AEADBadTagException  If the password used was incorrect.
+     * @throws GeneralSecurityException  If the decryption could not be completed.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the decryption completed.
+     */
+    public byte[] decrypt(String password, PasswordCryptListener listener, CancellationSignal cancellationSignal) throws GeneralSecurityException {
         // Generate the decryption key
-        EnScrypt enScrypt = new EnScrypt(listener);
-        byte[] derivedKey = enScrypt.deriveKey(password, this.getSalt(), this.getIterations());
-        Key key = new SecretKeySpec(derivedKey, "AES");
+        EnScrypt enScrypt = new EnScrypt(listener, cancellationSignal);
+        EnScryptCheckpointStore checkpointStore = EnScryptCheckpointStore.getInstance();
+        byte[] salt = this.getSalt();
+        String checkpointId = "decrypt-" + base64UrlEncode(salt) + "-" + this.getIterations();
+        byte[] bindingSecret = checkpointStore.deriveBindingSecret(checkpointId, password);
+        byte[] derivedKey;
+        try {
+            if (bindingSecret == null) {
+                derivedKey = enScrypt.deriveKey(password, salt, this.getIterations());
+            } else {
+                derivedKey = enScrypt.deriveKey(password, salt, this.getIterations(), checkpointStore, checkpointId, bindingSecret);
+            }
+        } finally {
+            if (bindingSecret != null) {
+                Arrays.fill(bindingSecret, (byte)0);
+            }
+        }
+        EnScryptCalibrator.getInstance().onDerivationCompleted(this.getIterations() - enScrypt.getResumedIterations(), enScrypt.getDurationInMillis());
 
-        // Perform the decryption
+        return this.decryptMasterKey(derivedKey);
+    }
+
+    /**
+     * Decrypts the master key using a key derived from the password.
+     *
+     * @throws AEADBadTagException  If the key was derived from the wrong password.
+     */
+    private byte[] decryptMasterKey(byte[] derivedKey) throws GeneralSecurityException {
+        Key key = new SecretKeySpec(derivedKey, "AES");
         GCMParameterSpec params = new GCMParameterSpec(128, this.getIv());
         Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
         cipher.init(Cipher.DECRYPT_MODE, key, params);
         cipher.updateAAD(EncryptedIdentity.sTag);
-        return cipher.doFinal(this.mEncryptedMasterKey);
+        return cipher.doFinal(this.getEncryptedMasterKey());
     }
 
     /**
-     * Gets the master key in encrypted form.
+     * Gets a copy of the master key in encrypted form.
      *
      * @return The encrypted master key.
      */
     public byte[] getEncryptedMasterKey() {
-        return this.mEncryptedMasterKey;
+        return copy(this.mEncryptedMasterKey);
     }
 
     /**
-     * Gets the salt used for EnScrypt key derivation.
+     * Gets a copy of the salt used for EnScrypt key derivation.
      *
      * @return The salt used for EnScrypt key derivation.
      */
     public byte[] getSalt() {
-        return this.mSalt;
+        return copy(this.mSalt);
     }
 
     /**
-     * Gets the IV used for AES-GCM encryption.
+     * Gets a copy of the IV used for AES-GCM encryption.
      *
      * @return The AES-GCM IV value.
      */
     public byte[] getIv() {
-        return this.mIv;
+        return copy(this.mIv);
+    }
+
+    /**
+     * Copies the remaining bytes of a component onto the heap, leaving its position unchanged.
+     */
+    private static byte[] copy(ByteBuffer component) {
+        byte[] copy = new byte[component.remaining()];
+        component.duplicate().get(copy);
+        return copy;
     }
 
     /**
@@ -136,6 +281,23 @@ public class EncryptedIdentity {
         return this.mIterations;
     }
 
+    /**
+     * Generates a new random id for the checkpoints of a resumable create.
+     *
+     * The id reveals nothing about the identity, and should be kept with the pending master key and password until the create completes.
+     *
+     * @return The checkpoint id.
+     */
+    public static String generateCheckpointId() {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        return "create-" + base64UrlEncode(random);
+    }
+
+    private static String base64UrlEncode(byte[] data) {
+        return Base64.encodeToString(data, Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE);
+    }
+
     private static byte[] generateSalt() {
         final Random rng = new SecureRandom();
         byte[] salt = new byte[16];
@@ -0,0 +1,301 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import io.barnabycolby.sqrlclient.exceptions.IdentityArchiveInvalidException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streams many identities into, and back out of, a single archive, so that they can be moved between devices in bulk.
+ *
+ * <p>
+ * The archive starts with the ASCII signature "sqrlarch" and a format version. Each identity follows as an entry marker, its name, and its
+ * identity container prefixed by its length. An end marker follows the final entry, and the archive finishes with an HMAC-SHA256 tag of
+ * everything before it, so an archive that has been truncated, reordered or tampered with is rejected as a whole. Neither the writer nor
+ * the reader holds more than one identity in memory at a time.
+ * </p>
+ *
+ * <p>
+ * The identities in the archive remain encrypted by their passwords, so the authentication key only protects the integrity of the archive.
+ * </p>
+ */
+public class IdentityArchive {
+    private static final byte[] SIGNATURE = "sqrlarch".getBytes(Charset.forName("US-ASCII"));
+    private static final int FORMAT_VERSION = 1;
+    private static final int END_MARKER = 0;
+    private static final int ENTRY_MARKER = 1;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The largest identity container that will be read, which bounds the memory needed to import a single entry.
+     */
+    private static final int MAX_CONTAINER_LENGTH = 0x10000;
+
+    /**
+     * Writes identities to an archive one at a time.
+     */
+    public static class Writer {
+        private OutputStream mOutput;
+        private DataOutputStream mAuthenticatedOutput;
+        private Mac mMac;
+
+        /**
+         * Constructs a new instance, writing the archive header immediately.
+         *
+         * @param output  The stream to write the archive to.
+         * @param authenticationKey  The key used to compute the authentication tag.
+         *
+         * @throws IOException  If the header could not be written.
+         * @throws GeneralSecurityException  If the authentication tag could not be set up.
+         */
+        public Writer(OutputStream output, byte[] authenticationKey) throws IOException, GeneralSecurityException {
+            this.mOutput = output;
+            this.mMac = createMac(authenticationKey);
+
+            // Buffer in front of the MAC, so that it is updated in large chunks
+            this.mAuthenticatedOutput = new DataOutputStream(new BufferedOutputStream(new MacOutputStream(output, this.mMac)));
+            this.mAuthenticatedOutput.write(SIGNATURE);
+            this.mAuthenticatedOutput.writeByte(FORMAT_VERSION);
+        }
+
+        /**
+         * Writes a single identity.
+         *
+         * @param identityName  The name of the identity.
+         * @param container  The identity container. Its remaining bytes are written, and its position is left unchanged.
+         *
+         * @throws IOException  If the identity could not be written.
+         */
+        public void write(String identityName, ByteBuffer container) throws IOException {
+            ByteBuffer duplicate = container.duplicate();
+            byte[] containerBytes = new byte[duplicate.remaining()];
+            duplicate.get(containerBytes);
+
+            this.mAuthenticatedOutput.writeByte(ENTRY_MARKER);
+            this.mAuthenticatedOutput.writeUTF(identityName);
+            this.mAuthenticatedOutput.writeInt(containerBytes.length);
+            this.mAuthenticatedOutput.write(containerBytes);
+        }
+
+        /**
+         * Completes the archive by writing the end marker and the authentication tag. The stream is flushed, but not closed.
+         *
+         * @throws IOException  If the archive could not be completed.
+         */
+        public void finish() throws IOException {
+            this.mAuthenticatedOutput.writeByte(END_MARKER);
+            this.mAuthenticatedOutput.flush();
+
+            // The tag itself is not authenticated
+            this.mOutput.write(this.mMac.doFinal());
+            this.mOutput.flush();
+        }
+    }
+
+    /**
+     * Reads identities from an archive one at a time, validating each as it arrives.
+     *
+     * The authentication tag can only be checked once the whole archive has been read, so nothing read from the archive should be committed
+     * until next has returned false.
+     */
+    public static class Reader {
+        private InputStream mInput;
+        private DataInputStream mAuthenticatedInput;
+        private Mac mMac;
+        private String mIdentityName;
+        private byte[] mContainer;
+        private EncryptedIdentity mIdentity;
+
+        /**
+         * Constructs a new instance, reading the archive header immediately.
+         *
+         * @param input  The stream to read the archive from.
+         * @param authenticationKey  The key that was used to compute the authentication tag.
+         *
+         * @throws IdentityArchiveInvalidException  If the header was invalid.
+         * @throws IOException  If the header could not be read.
+         * @throws GeneralSecurityException  If the authentication tag could not be set up.
+         */
+        public Reader(InputStream input, byte[] authenticationKey) throws IdentityArchiveInvalidException, IOException, GeneralSecurityException {
+            this.mMac = createMac(authenticationKey);
+
+            // Buffer behind the MAC, so that it only sees the bytes that are actually read
+            this.mInput = new BufferedInputStream(input);
+            this.mAuthenticatedInput = new DataInputStream(new MacInputStream(this.mInput, this.mMac));
+
+            try {
+                byte[] signature = new byte[SIGNATURE.length];
+                this.mAuthenticatedInput.readFully(signature);
+                if (!MessageDigest.isEqual(signature, SIGNATURE) || this.mAuthenticatedInput.readUnsignedByte() != FORMAT_VERSION) {
+                    throw new IdentityArchiveInvalidException();
+                }
+            } catch (EOFException ex) {
+                throw new IdentityArchiveInvalidException();
+            }
+        }
+
+        /**
+         * Reads the next identity from the archive.
+         *
+         * @return True if an identity was read, or false if the end of the archive was reached and its authentication tag was valid.
+         *
+         * @throws IdentityArchiveInvalidException  If the entry was malformed or corrupted, or the authentication tag was invalid.
+         * @throws IOException  If the archive could not be read.
+         */
+        public boolean next() throws IdentityArchiveInvalidException, IOException {
+            this.mIdentityName = null;
+            this.mContainer = null;
+            this.mIdentity = null;
+
+            try {
+                int marker = this.mAuthenticatedInput.readUnsignedByte();
+                if (marker == END_MARKER) {
+                    this.verifyTag();
+                    return false;
+                } else if (marker != ENTRY_MARKER) {
+                    throw new IdentityArchiveInvalidException();
+                }
+
+                String identityName = this.mAuthenticatedInput.readUTF();
+                int containerLength = this.mAuthenticatedInput.readInt();
+                if (containerLength < 0 || containerLength > MAX_CONTAINER_LENGTH) {
+                    throw new IdentityArchiveInvalidException();
+                }
+                byte[] container = new byte[containerLength];
+                this.mAuthenticatedInput.readFully(container);
+
+                try {
+                    this.mIdentity = IdentityContainer.fromByteArray(container);
+                } catch (IOException ex) {
+                    // The container itself is malformed, rather than the stream having failed
+                    throw new IdentityArchiveInvalidException();
+                }
+                this.mIdentityName = identityName;
+                this.mContainer = container;
+                return true;
+            } catch (EOFException ex) {
+                throw new IdentityArchiveInvalidException();
+            } catch (UTFDataFormatException ex) {
+                throw new IdentityArchiveInvalidException();
+            }
+        }
+
+        private void verifyTag() throws IdentityArchiveInvalidException, IOException {
+            byte[] expectedTag = this.mMac.doFinal();
+            byte[] tag = new byte[expectedTag.length];
+            new DataInputStream(this.mInput).readFully(tag);
+            if (!MessageDigest.isEqual(expectedTag, tag)) {
+                throw new IdentityArchiveInvalidException();
+            }
+        }
+
+        /**
+         * Gets the name of the identity most recently read by next.
+         *
+         * @return The identity name.
+         */
+        public String getIdentityName() {
+            return this.mIdentityName;
+        }
+
+        /**
+         * Gets the container of the identity most recently read by next, which has already been validated.
+         *
+         * @return The identity container.
+         */
+        public byte[] getContainer() {
+            return this.mContainer;
+        }
+
+        /**
+         * Gets the identity most recently read by next.
+         *
+         * @return The encrypted identity.
+         */
+        public EncryptedIdentity getIdentity() {
+            return this.mIdentity;
+        }
+    }
+
+    private static Mac createMac(byte[] authenticationKey) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(authenticationKey, MAC_ALGORITHM));
+        return mac;
+    }
+
+    /**
+     * Passes everything written through to another stream, updating a MAC with it on the way.
+     */
+    private static class MacOutputStream extends FilterOutputStream {
+        private Mac mMac;
+
+        public MacOutputStream(OutputStream output, Mac mac) {
+            super(output);
+            this.mMac = mac;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            this.out.write(oneByte);
+            this.mMac.update((byte)oneByte);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            this.out.write(buffer, offset, count);
+            this.mMac.update(buffer, offset, count);
+        }
+    }
+
+    /**
+     * Reads from another stream, updating a MAC with everything read on the way.
+     */
+    private static class MacInputStream extends FilterInputStream {
+        private Mac mMac;
+
+        public MacInputStream(InputStream input, Mac mac) {
+            super(input);
+            this.mMac = mac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int oneByte = this.in.read();
+            if (oneByte != -1) {
+                this.mMac.update((byte)oneByte);
+            }
+            return oneByte;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int bytesRead = this.in.read(buffer, offset, count);
+            if (bytesRead > 0) {
+                this.mMac.update(buffer, offset, bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            // Skipped bytes would not be authenticated
+            throw new IOException("Skipping is not supported.");
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Serialises a single encrypted identity into a self-contained binary container, so that each identity can be stored in one file.
+ *
+ * <p>
+ * The layout is modelled on the SQRL S4 storage format. The container starts with the ASCII signature "sqrldata", followed by a sequence
+ * of blocks. Each block starts with its total length and its type, both as little endian 16 bit integers, which allows readers to skip blocks
+ * of types they do not recognise. The final block holds a CRC32 of everything before it, so truncated or corrupted files are rejected
+ * rather than producing an identity that can never be decrypted.
+ * </p>
+ *
+ * <p>
+ * The identity block holds its own format version, followed by the iv, salt, EnScrypt iterations and encrypted master key.
+ * </p>
+ */
+public class IdentityContainer {
+    private static final byte[] SIGNATURE = "sqrldata".getBytes(Charset.forName("US-ASCII"));
+    private static final int BLOCK_HEADER_LENGTH = 4;
+    private static final int TYPE_ENCRYPTED_IDENTITY = 1;
+    private static final int TYPE_CHECKSUM = 0xFFFF;
+    private static final int CHECKSUM_BLOCK_LENGTH = BLOCK_HEADER_LENGTH + 4;
+    private static final int IDENTITY_FORMAT_VERSION = 1;
+
+    /**
+     * Serialises an encrypted identity.
+     *
+     * @param identity  The identity to serialise.
+     *
+     * @return The container.
+     */
+    public static byte[] toByteArray(EncryptedIdentity identity) {
+        byte[] iv = identity.getIv();
+        byte[] salt = identity.getSalt();
+        byte[] encryptedMasterKey = identity.getEncryptedMasterKey();
+        if (iv.length > 0xFF || salt.length > 0xFF || encryptedMasterKey.length > 0xFFFF) {
+            throw new IllegalArgumentException("The identity is too large to fit in a container.");
+        }
+
+        int identityBlockLength = BLOCK_HEADER_LENGTH + 2 + 1 + iv.length + 1 + salt.length + 4 + 2 + encryptedMasterKey.length;
+        ByteBuffer buffer = ByteBuffer.allocate(SIGNATURE.length + identityBlockLength + CHECKSUM_BLOCK_LENGTH);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(SIGNATURE);
+
+        buffer.putShort((short)identityBlockLength);
+        buffer.putShort((short)TYPE_ENCRYPTED_IDENTITY);
+        buffer.putShort((short)IDENTITY_FORMAT_VERSION);
+        buffer.put((byte)iv.length);
+        buffer.put(iv);
+        buffer.put((byte)salt.length);
+        buffer.put(salt);
+        buffer.putInt(identity.getIterations());
+        buffer.putShort((short)encryptedMasterKey.length);
+        buffer.put(encryptedMasterKey);
+
+        long checksum = checksum(buffer, buffer.position());
+        buffer.putShort((short)CHECKSUM_BLOCK_LENGTH);
+        buffer.putShort((short)TYPE_CHECKSUM);
+        buffer.putInt((int)checksum);
+
+        return buffer.array();
+    }
+
+    /**
+     * Deserialises an encrypted identity from a container previously created by toByteArray.
+     *
+     * @param container  The container. It must not be modified afterwards, as the identity is a view into it.
+     *
+     * @return The encrypted identity.
+     *
+     * @throws IOException  If the container was malformed, corrupted, or of an unsupported version.
+     */
+    public static EncryptedIdentity fromByteArray(byte[] container) throws IOException {
+        return fromByteBuffer(ByteBuffer.wrap(container));
+    }
+
+    /**
+     * Deserialises an encrypted identity from a container held in a buffer, such as a region of a memory mapped file.
+     *
+     * @param container  A buffer whose remaining bytes are the container. Its position is left unchanged, and it must not be modified
+     *                   afterwards.
+     *
+     * @return The encrypted identity, whose components are views into the buffer that are only copied when they are used.
+     *
+     * @throws IOException  If the container was malformed, corrupted, or of an unsupported version.
+     */
+    public static EncryptedIdentity fromByteBuffer(ByteBuffer container) throws IOException {
+        ByteBuffer buffer = container.slice();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int containerLength = buffer.limit();
+
+        try {
+            byte[] signature = new byte[SIGNATURE.length];
+            buffer.get(signature);
+            if (!ByteBuffer.wrap(signature).equals(ByteBuffer.wrap(SIGNATURE))) {
+                throw new IOException("The identity container signature was invalid.");
+            }
+
+            EncryptedIdentity identity = null;
+            while (true) {
+                int blockStart = buffer.position();
+                int blockLength = buffer.getShort() & 0xFFFF;
+                int blockType = buffer.getShort() & 0xFFFF;
+                if (blockLength < BLOCK_HEADER_LENGTH || blockStart + blockLength > containerLength) {
+                    throw new IOException("The identity container contained a block of invalid length.");
+                }
+
+                if (blockType == TYPE_CHECKSUM) {
+                    if (blockLength != CHECKSUM_BLOCK_LENGTH || blockStart + blockLength != containerLength) {
+                        throw new IOException("The identity container checksum was misplaced.");
+                    }
+                    long expectedChecksum = buffer.getInt() & 0xFFFFFFFFL;
+                    if (checksum(buffer, blockStart) != expectedChecksum) {
+                        throw new IOException("The identity container checksum did not match.");
+                    }
+                    break;
+                } else if (blockType == TYPE_ENCRYPTED_IDENTITY) {
+                    identity = readIdentityBlock(buffer);
+                    if (buffer.position() != blockStart + blockLength) {
+                        throw new IOException("The identity block length did not match its contents.");
+                    }
+                } else {
+                    // Blocks added by future versions are skipped, as in S4
+                    buffer.position(blockStart + blockLength);
+                }
+            }
+
+            if (identity == null) {
+                throw new IOException("The identity container did not contain an identity.");
+            }
+            return identity;
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("The identity container was truncated.", ex);
+        }
+    }
+
+    /**
+     * Gets the checksum stored at the end of a container, without validating the rest of the container.
+     *
+     * @param container  A buffer whose remaining bytes are the container. Its position is left unchanged.
+     *
+     * @return The stored checksum.
+     *
+     * @throws IOException  If the container is too short to hold a checksum.
+     */
+    public static long getStoredChecksum(ByteBuffer container) throws IOException {
+        if (container.remaining() < SIGNATURE.length + CHECKSUM_BLOCK_LENGTH) {
+            throw new IOException("The identity container was truncated.");
+        }
+
+        ByteBuffer buffer = container.slice();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.getInt(buffer.limit() - 4) & 0xFFFFFFFFL;
+    }
+
+    private static EncryptedIdentity readIdentityBlock(ByteBuffer buffer) throws IOException {
+        int version = buffer.getShort() & 0xFFFF;
+        if (version != IDENTITY_FORMAT_VERSION) {
+            throw new IOException("Unsupported identity version: " + version);
+        }
+
+        ByteBuffer iv = readComponent(buffer, buffer.get() & 0xFF);
+        ByteBuffer salt = readComponent(buffer, buffer.get() & 0xFF);
+        int iterations = buffer.getInt();
+        ByteBuffer encryptedMasterKey = readComponent(buffer, buffer.getShort() & 0xFFFF);
+
+        return new EncryptedIdentity(encryptedMasterKey, salt, iterations, iv);
+    }
+
+    /**
+     * Takes a read only view of the next bytes of a buffer, advancing past them.
+     */
+    private static ByteBuffer readComponent(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        ByteBuffer component = buffer.asReadOnlyBuffer();
+        component.limit(component.position() + length);
+        buffer.position(buffer.position() + length);
+        return component.slice();
+    }
+
+    /**
+     * Calculates the checksum of the first bytes of a buffer, regardless of its position.
+     */
+    private static long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset(), length);
+        } else {
+            // Direct buffers, such as memory mapped files, are copied out through a small buffer rather than all at once
+            byte[] chunk = new byte[Math.min(length, 4096)];
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(0);
+            for (int remaining = length; remaining > 0; remaining -= chunk.length) {
+                int chunkLength = Math.min(chunk.length, remaining);
+                duplicate.get(chunk, 0, chunkLength);
+                crc.update(chunk, 0, chunkLength);
+            }
+        }
+        return crc.getValue();
+    }
+}
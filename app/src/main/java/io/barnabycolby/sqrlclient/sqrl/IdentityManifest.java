@@ -0,0 +1,192 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A compact index of the identities stored on disk, allowing the identity names to be listed without reading every identity file.
+ *
+ * <p>
+ * For each identity, the manifest records its name, the name of its container file, and the length and modification time of that file,
+ * which are used to detect files that have been changed behind the manifest's back. It also records the checksum stored at the end of the
+ * container, which tells apart two versions of an identity written within the resolution of the file system clock without reopening the
+ * file. The manifest also records the modification time of the
+ * identities folder itself, which changes whenever an identity file is added, removed or renamed. If that no longer matches, the manifest is
+ * stale and must be rebuilt from the folder.
+ * </p>
+ */
+public class IdentityManifest {
+    private static final int FORMAT_VERSION = 2;
+
+    private long mFolderLastModified;
+    private List<Entry> mEntries;
+
+    /**
+     * Describes a single identity in the manifest.
+     */
+    public static class Entry {
+        private String mIdentityName;
+        private String mFileName;
+        private long mFileLength;
+        private long mFileLastModified;
+        private long mContainerChecksum;
+
+        /**
+         * Constructs a new instance.
+         *
+         * @param identityName  The name of the identity.
+         * @param fileName  The name of the identity container file, relative to the identities folder.
+         * @param fileLength  The length of the container file in bytes.
+         * @param fileLastModified  The modification time of the container file.
+         * @param containerChecksum  The checksum stored at the end of the container, as returned by IdentityContainer.getStoredChecksum.
+         */
+        public Entry(String identityName, String fileName, long fileLength, long fileLastModified, long containerChecksum) {
+            this.mIdentityName = identityName;
+            this.mFileName = fileName;
+            this.mFileLength = fileLength;
+            this.mFileLastModified = fileLastModified;
+            this.mContainerChecksum = containerChecksum;
+        }
+
+        public String getIdentityName() {
+            return this.mIdentityName;
+        }
+
+        public String getFileName() {
+            return this.mFileName;
+        }
+
+        public long getFileLength() {
+            return this.mFileLength;
+        }
+
+        public long getFileLastModified() {
+            return this.mFileLastModified;
+        }
+
+        public long getContainerChecksum() {
+            return this.mContainerChecksum;
+        }
+
+        /**
+         * Determines whether two entries describe the same version of the same identity file.
+         *
+         * @param other  The entry to compare with.
+         *
+         * @return True if every field matches, false otherwise.
+         */
+        public boolean matches(Entry other) {
+            return this.mIdentityName.equals(other.mIdentityName)
+                    && this.mFileName.equals(other.mFileName)
+                    && this.mFileLength == other.mFileLength
+                    && this.mFileLastModified == other.mFileLastModified
+                    && this.mContainerChecksum == other.mContainerChecksum;
+        }
+    }
+
+    /**
+     * Constructs a new manifest.
+     *
+     * @param folderLastModified  The modification time of the identities folder once all of the entries had been written.
+     * @param entries  The identities in the folder.
+     */
+    public IdentityManifest(long folderLastModified, List<Entry> entries) {
+        this.mFolderLastModified = folderLastModified;
+        this.mEntries = entries;
+    }
+
+    /**
+     * Deserialises a manifest previously serialised using toByteArray.
+     *
+     * @param serialised  The serialised manifest.
+     *
+     * @return The manifest.
+     *
+     * @throws IOException  If the serialised manifest was malformed or corrupted.
+     */
+    public static IdentityManifest fromByteArray(byte[] serialised) throws IOException {
+        if (serialised.length < 4) {
+            throw new IOException("The identity manifest was truncated.");
+        }
+
+        // The checksum is stored in the final four bytes
+        int contentLength = serialised.length - 4;
+        DataInputStream checksumInput = new DataInputStream(new ByteArrayInputStream(serialised, contentLength, 4));
+        if ((checksumInput.readInt() & 0xFFFFFFFFL) != checksum(serialised, contentLength)) {
+            throw new IOException("The identity manifest checksum did not match.");
+        }
+
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(serialised, 0, contentLength));
+        int version = input.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported identity manifest version: " + version);
+        }
+
+        long folderLastModified = input.readLong();
+        int numberOfEntries = input.readInt();
+        if (numberOfEntries < 0) {
+            throw new IOException("The identity manifest contained a negative number of entries.");
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        for (int i = 0; i < numberOfEntries; i++) {
+            String identityName = input.readUTF();
+            String fileName = input.readUTF();
+            long fileLength = input.readLong();
+            long fileLastModified = input.readLong();
+            long containerChecksum = input.readInt() & 0xFFFFFFFFL;
+            entries.add(new Entry(identityName, fileName, fileLength, fileLastModified, containerChecksum));
+        }
+
+        return new IdentityManifest(folderLastModified, entries);
+    }
+
+    /**
+     * Serialises the manifest.
+     *
+     * @return The serialised manifest.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        try {
+            output.writeByte(FORMAT_VERSION);
+            output.writeLong(this.mFolderLastModified);
+            output.writeInt(this.mEntries.size());
+            for (Entry entry : this.mEntries) {
+                output.writeUTF(entry.getIdentityName());
+                output.writeUTF(entry.getFileName());
+                output.writeLong(entry.getFileLength());
+                output.writeLong(entry.getFileLastModified());
+                output.writeInt((int)entry.getContainerChecksum());
+            }
+
+            byte[] content = byteStream.toByteArray();
+            output.writeInt((int)checksum(content, content.length));
+        } catch (IOException ex) {
+            // Writing to a ByteArrayOutputStream cannot fail
+            throw new RuntimeException(ex);
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    public long getFolderLastModified() {
+        return this.mFolderLastModified;
+    }
+
+    public List<Entry> getEntries() {
+        return this.mEntries;
+    }
+
+    private static long checksum(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,311 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import android.support.v4.util.SimpleArrayMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A read only file that packs the containers of many identities together, so that they can be memory mapped in one go rather than read
+ * into the heap one file at a time.
+ *
+ * <p>
+ * The pack starts with a header listing, for each identity, its manifest entry and the location of its container in the file, followed by
+ * a CRC32 of the header. The identity containers follow the header, and are each protected by their own checksum, so only the header needs
+ * to be read when the pack is opened. An identity is only served from the pack if its manifest entry, including the checksum of its
+ * container, matches the one recorded in the pack, so the identity files themselves are never opened. Every write through the identities
+ * folder records the new checksum in the manifest, so a rewrite that leaves the length and modification time of a file unchanged, for
+ * example re-encrypting the identity within the resolution of the file system clock, still stops the old version being served.
+ * </p>
+ *
+ * <p>
+ * Identities served from the pack are views into the mapped file, and their components are only copied onto the heap when they are used.
+ * The mapping remains valid even if the pack is replaced on disk. Packs are written by streaming the containers to the output one at a time,
+ * so copying containers from an existing mapping never needs the whole pack on the heap.
+ * </p>
+ */
+public class IdentityPack {
+    private static final byte[] SIGNATURE = "sqrlpack".getBytes(Charset.forName("US-ASCII"));
+    private static final int FORMAT_VERSION = 2;
+
+    private ByteBuffer mMappedFile;
+
+    /**
+     * The location of each identity container in the mapped file, keyed by identity name.
+     */
+    private SimpleArrayMap<String, Location> mLocations;
+
+    private static class Location {
+        public final IdentityManifest.Entry entry;
+        public final int offset;
+        public final int length;
+
+        public Location(IdentityManifest.Entry entry, int offset, int length) {
+            this.entry = entry;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private IdentityPack(ByteBuffer mappedFile, SimpleArrayMap<String, Location> locations) {
+        this.mMappedFile = mappedFile;
+        this.mLocations = locations;
+    }
+
+    /**
+     * Memory maps a pack file, reading only its header.
+     *
+     * @param file  The pack file.
+     *
+     * @return The pack.
+     *
+     * @throws IOException  If the file could not be mapped, or its header was malformed or corrupted.
+     */
+    public static IdentityPack map(File file) throws IOException {
+        ByteBuffer mappedFile;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping outlives the file handle
+            randomAccessFile.close();
+        }
+
+        return new IdentityPack(mappedFile, readHeader(mappedFile));
+    }
+
+    private static SimpleArrayMap<String, Location> readHeader(ByteBuffer mappedFile) throws IOException {
+        CheckedBufferInputStream headerStream = new CheckedBufferInputStream(mappedFile.duplicate());
+        DataInputStream input = new DataInputStream(headerStream);
+        byte[] signature = new byte[SIGNATURE.length];
+        input.readFully(signature);
+        if (!ByteBuffer.wrap(signature).equals(ByteBuffer.wrap(SIGNATURE))) {
+            throw new IOException("The identity pack signature was invalid.");
+        }
+        int version = input.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported identity pack version: " + version);
+        }
+
+        int numberOfEntries = input.readInt();
+        if (numberOfEntries < 0) {
+            throw new IOException("The identity pack contained a negative number of entries.");
+        }
+        SimpleArrayMap<String, Location> locations = new SimpleArrayMap<String, Location>();
+        for (int i = 0; i < numberOfEntries; i++) {
+            String identityName = input.readUTF();
+            String fileName = input.readUTF();
+            long fileLength = input.readLong();
+            long fileLastModified = input.readLong();
+            long containerChecksum = input.readInt() & 0xFFFFFFFFL;
+            int offset = input.readInt();
+            int length = input.readInt();
+            if (offset < 0 || length < 0 || (long)offset + length > mappedFile.capacity()) {
+                throw new IOException("The identity pack contained a container outside of the file.");
+            }
+
+            IdentityManifest.Entry entry = new IdentityManifest.Entry(identityName, fileName, fileLength, fileLastModified, containerChecksum);
+            locations.put(identityName, new Location(entry, offset, length));
+        }
+
+        long checksum = headerStream.getChecksum();
+        if ((input.readInt() & 0xFFFFFFFFL) != checksum) {
+            throw new IOException("The identity pack checksum did not match.");
+        }
+        return locations;
+    }
+
+    /**
+     * Serialises a pack into memory. Large packs should be streamed using write instead.
+     *
+     * @param entries  The manifest entries of the identities to pack.
+     * @param containers  The identity containers, in the same order as the entries. Only their remaining bytes are packed.
+     *
+     * @return The serialised pack.
+     */
+    public static byte[] toByteArray(List<IdentityManifest.Entry> entries, List<ByteBuffer> containers) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try {
+            write(byteStream, entries, containers);
+        } catch (IOException ex) {
+            // Writing to a ByteArrayOutputStream cannot fail
+            throw new RuntimeException(ex);
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Serialises a pack to a stream, copying one container at a time.
+     *
+     * @param output  The stream to write the pack to. It is not closed.
+     * @param entries  The manifest entries of the identities to pack.
+     * @param containers  The identity containers, in the same order as the entries. Only their remaining bytes are packed.
+     *
+     * @throws IOException  If the pack could not be written.
+     */
+    public static void write(OutputStream output, List<IdentityManifest.Entry> entries, List<ByteBuffer> containers) throws IOException {
+        if (entries.size() != containers.size()) {
+            throw new IllegalArgumentException("Every entry must have exactly one container.");
+        }
+
+        // The header length depends on the names, so write it once to measure it, and again with the container offsets filled in
+        byte[] header = writeHeader(entries, containers, 0);
+        header = writeHeader(entries, containers, header.length + 4);
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        dataOutput.write(header);
+        dataOutput.writeInt((int)checksum(header));
+
+        // Containers in the mapped file are direct buffers, so they are copied through a small buffer rather than all at once
+        byte[] chunk = new byte[4096];
+        for (ByteBuffer container : containers) {
+            ByteBuffer duplicate = container.duplicate();
+            while (duplicate.hasRemaining()) {
+                int length = Math.min(chunk.length, duplicate.remaining());
+                duplicate.get(chunk, 0, length);
+                dataOutput.write(chunk, 0, length);
+            }
+        }
+        dataOutput.flush();
+    }
+
+    private static byte[] writeHeader(List<IdentityManifest.Entry> entries, List<ByteBuffer> containers, int firstContainerOffset) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.write(SIGNATURE);
+        output.writeByte(FORMAT_VERSION);
+        output.writeInt(entries.size());
+
+        int offset = firstContainerOffset;
+        for (int i = 0; i < entries.size(); i++) {
+            IdentityManifest.Entry entry = entries.get(i);
+            int length = containers.get(i).remaining();
+            output.writeUTF(entry.getIdentityName());
+            output.writeUTF(entry.getFileName());
+            output.writeLong(entry.getFileLength());
+            output.writeLong(entry.getFileLastModified());
+            output.writeInt((int)entry.getContainerChecksum());
+            output.writeInt(offset);
+            output.writeInt(length);
+            offset += length;
+        }
+
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Determines whether the pack holds the version of an identity that the given manifest entry describes.
+     *
+     * @param entry  The manifest entry of the identity.
+     *
+     * @return True if the pack holds a matching identity, false otherwise.
+     */
+    public boolean contains(IdentityManifest.Entry entry) {
+        Location location = this.mLocations.get(entry.getIdentityName());
+        return location != null && location.entry.matches(entry);
+    }
+
+    /**
+     * Gets the container of an identity, if the pack holds the version of it that the given manifest entry describes.
+     *
+     * @param entry  The manifest entry of the identity.
+     *
+     * @return A read only view of the container in the mapped file, or null if the identity is not in the pack, has changed since the pack
+     *         was written, or its container does not end with the checksum recorded in the header.
+     */
+    public ByteBuffer getContainer(IdentityManifest.Entry entry) {
+        if (!this.contains(entry)) {
+            return null;
+        }
+
+        Location location = this.mLocations.get(entry.getIdentityName());
+        ByteBuffer container = this.mMappedFile.asReadOnlyBuffer();
+        container.position(location.offset);
+        container.limit(location.offset + location.length);
+        container = container.slice();
+        try {
+            if (IdentityContainer.getStoredChecksum(container) != entry.getContainerChecksum()) {
+                return null;
+            }
+        } catch (IOException ex) {
+            // A container too short to hold a checksum cannot be the one described by the entry
+            return null;
+        }
+
+        return container;
+    }
+
+    /**
+     * Parses an identity from the mapped file, if the pack holds the version of it that the given manifest entry describes.
+     *
+     * The container is validated once, and the components of the identity remain views into the mapped file until they are used.
+     *
+     * @param entry  The manifest entry of the identity.
+     *
+     * @return The encrypted identity, or null if the identity is not in the pack or has changed since the pack was written.
+     *
+     * @throws IOException  If the container in the pack was malformed or corrupted.
+     */
+    public EncryptedIdentity getIdentity(IdentityManifest.Entry entry) throws IOException {
+        ByteBuffer container = this.getContainer(entry);
+        if (container == null) {
+            return null;
+        }
+
+        return IdentityContainer.fromByteBuffer(container);
+    }
+
+    /**
+     * Gets the number of identities in the pack.
+     *
+     * @return The number of identities.
+     */
+    public int size() {
+        return this.mLocations.size();
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads from a buffer, keeping a checksum of the bytes that have been read so far.
+     */
+    private static class CheckedBufferInputStream extends InputStream {
+        private ByteBuffer mBuffer;
+        private CRC32 mCrc = new CRC32();
+
+        public CheckedBufferInputStream(ByteBuffer buffer) {
+            this.mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!this.mBuffer.hasRemaining()) {
+                return -1;
+            }
+
+            int value = this.mBuffer.get() & 0xFF;
+            this.mCrc.update(value);
+            return value;
+        }
+
+        public long getChecksum() {
+            return this.mCrc.getValue();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Re-encrypts identities in the background using the number of EnScrypt iterations that this device can currently afford, so that
+ * identities created on a slower or throttled device are brought up to strength.
+ *
+ * <p>
+ * Re-encryption needs the master key and password, so it is scheduled just after an identity has been unlocked. The work happens on a
+ * single low priority thread, so it never delays the login that unlocked the identity. The new identity replaces the old one atomically
+ * on disk, so if the process dies at any point the old identity is still intact. If the key derivation itself is cancelled, it resumes
+ * from its last checkpoint the next time the identity is re-encrypted by this process.
+ * </p>
+ *
+ * <p>
+ * Whilst a re-encryption waits to run, it only holds copies of the master key and password in arrays, which are wiped as soon as it
+ * finishes or is cancelled. The password only becomes a string, which cannot be wiped, whilst the key derivation that needs it is running.
+ * </p>
+ */
+public class IdentityReencryptor {
+    private static final String TAG = IdentityReencryptor.class.getName();
+
+    /**
+     * Identities are only re-encrypted if this device can afford at least this many times their current iterations, so that normal
+     * variation in the calibration does not cause them to be re-encrypted after every login.
+     */
+    public static final double UPGRADE_FACTOR = 1.5;
+
+    private SQRLIdentityManager mIdentityManager;
+    private Executor mExecutor;
+
+    /**
+     * The scheduled re-encryptions, keyed by identity name. Only accessed whilst holding the lock on this map.
+     */
+    private final Map<String, Reencryption> mPendingReencryptions = new HashMap<String, Reencryption>();
+
+    /**
+     * The ids of the checkpoints of cancelled re-encryptions, keyed by identity name, so that they can be resumed. Only accessed whilst
+     * holding the lock on mPendingReencryptions.
+     */
+    private final Map<String, String> mCheckpointIds = new HashMap<String, String>();
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param identityManager  The identity manager whose identities should be replaced once re-encrypted.
+     */
+    public IdentityReencryptor(SQRLIdentityManager identityManager) {
+        this(identityManager, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "IdentityReencryptor");
+            }
+        }));
+    }
+
+    /**
+     * Constructs a new instance that re-encrypts identities using the given executor.
+     *
+     * @param identityManager  The identity manager whose identities should be replaced once re-encrypted.
+     * @param executor  The executor to run the re-encryptions on, which should run them one at a time.
+     */
+    public IdentityReencryptor(SQRLIdentityManager identityManager, Executor executor) {
+        this.mIdentityManager = identityManager;
+        this.mExecutor = executor;
+    }
+
+    /**
+     * Determines whether an identity should be re-encrypted.
+     *
+     * @param currentIterations  The number of EnScrypt iterations protecting the identity.
+     * @param affordableIterations  The number of EnScrypt iterations this device can currently perform in the time allowed.
+     *
+     * @return True if the identity should be re-encrypted, false otherwise.
+     */
+    public static boolean shouldReencrypt(int currentIterations, int affordableIterations) {
+        return affordableIterations >= currentIterations * UPGRADE_FACTOR;
+    }
+
+    /**
+     * Schedules an unlocked identity to be re-encrypted in the background, if it is weaker than this device can now afford.
+     *
+     * Returns immediately. If the identity is already scheduled, this call has no effect.
+     *
+     * @param identityName  The name of the identity.
+     * @param encryptedIdentity  The encrypted identity that was unlocked, which is only replaced if it has not changed in the meantime.
+     * @param masterKey  The decrypted master key, which is copied.
+     * @param password  The password that unlocked the identity, which is copied.
+     */
+    public void schedule(String identityName, EncryptedIdentity encryptedIdentity, byte[] masterKey, String password) {
+        Reencryption reencryption;
+        synchronized (this.mPendingReencryptions) {
+            if (this.mPendingReencryptions.containsKey(identityName)) {
+                return;
+            }
+            reencryption = new Reencryption(identityName, encryptedIdentity, masterKey.clone(), password.toCharArray());
+            this.mPendingReencryptions.put(identityName, reencryption);
+            if (!this.mCheckpointIds.containsKey(identityName)) {
+                this.mCheckpointIds.put(identityName, EncryptedIdentity.generateCheckpointId());
+            }
+        }
+
+        this.mExecutor.execute(reencryption);
+    }
+
+    /**
+     * Cancels every scheduled re-encryption, for example because the identities have been locked. The identities are left unchanged.
+     *
+     * Re-encryptions that have not started yet wipe their copies of the master key and password immediately, rather than when they reach
+     * the front of the queue.
+     */
+    public void cancelAll() {
+        synchronized (this.mPendingReencryptions) {
+            for (Reencryption reencryption : this.mPendingReencryptions.values()) {
+                reencryption.cancellationSignal.cancel();
+                if (!reencryption.started) {
+                    reencryption.wipe();
+                }
+            }
+            this.mPendingReencryptions.clear();
+        }
+    }
+
+    /**
+     * A scheduled re-encryption, holding the copies of the secrets it needs. Its fields are only changed whilst holding the lock on
+     * mPendingReencryptions.
+     */
+    private class Reencryption implements Runnable {
+        public final String identityName;
+        public final EncryptedIdentity encryptedIdentity;
+        public final byte[] masterKey;
+        public final char[] password;
+        public final CancellationSignal cancellationSignal = new CancellationSignal();
+        public boolean started;
+
+        public Reencryption(String identityName, EncryptedIdentity encryptedIdentity, byte[] masterKey, char[] password) {
+            this.identityName = identityName;
+            this.encryptedIdentity = encryptedIdentity;
+            this.masterKey = masterKey;
+            this.password = password;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mPendingReencryptions) {
+                // A cancelled re-encryption has already been wiped and removed
+                if (this.cancellationSignal.isCanceled()) {
+                    return;
+                }
+                this.started = true;
+            }
+
+            try {
+                reencrypt(this.identityName, this.encryptedIdentity, this.masterKey, new String(this.password), this.cancellationSignal);
+            } finally {
+                synchronized (mPendingReencryptions) {
+                    this.wipe();
+                    if (mPendingReencryptions.get(this.identityName) == this) {
+                        mPendingReencryptions.remove(this.identityName);
+                    }
+                }
+            }
+        }
+
+        public void wipe() {
+            Arrays.fill(this.masterKey, (byte)0);
+            Arrays.fill(this.password, '\0');
+        }
+    }
+
+    private void reencrypt(String identityName, EncryptedIdentity encryptedIdentity, byte[] masterKey, String password, CancellationSignal cancellationSignal) {
+        if (cancellationSignal.isCanceled()) {
+            return;
+        }
+
+        try {
+            // Planning may need to run the calibration benchmark, which is why it happens here rather than when scheduling
+            int affordableIterations = EnScryptCalibrator.getInstance().planIterations(EncryptedIdentity.CREATE_DURATION_IN_MILLIS, cancellationSignal);
+            if (!shouldReencrypt(encryptedIdentity.getIterations(), affordableIterations)) {
+                return;
+            }
+
+            Log.i(TAG, "Re-encrypting identity with " + encryptedIdentity.getIterations() + " iterations, as " + affordableIterations + " are now affordable.");
+            String checkpointId;
+            synchronized (this.mPendingReencryptions) {
+                checkpointId = this.mCheckpointIds.get(identityName);
+            }
+            EncryptedIdentity reencryptedIdentity = EncryptedIdentity.create(masterKey, password, null, cancellationSignal, checkpointId);
+            synchronized (this.mPendingReencryptions) {
+                this.mCheckpointIds.remove(identityName);
+            }
+            if (!this.mIdentityManager.replaceIdentity(identityName, encryptedIdentity, reencryptedIdentity)) {
+                Log.i(TAG, "Identity changed whilst it was being re-encrypted, so the re-encrypted copy was discarded.");
+            }
+        } catch (OperationCanceledException ex) {
+            Log.i(TAG, "Re-encryption was cancelled.");
+        } catch (GeneralSecurityException ex) {
+            Log.e(TAG, "Could not re-encrypt identity.", ex);
+        }
+    }
+}
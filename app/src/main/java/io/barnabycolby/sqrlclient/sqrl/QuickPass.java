@@ -0,0 +1,223 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Allows an identity that has recently been unlocked with its full password to be unlocked again using only the first few characters of
+ * that password, as described by the SQRL "QuickPass" hint.
+ *
+ * <p>
+ * When an identity is unlocked, its master key is re-encrypted in memory using a key derived from the password prefix with a short EnScrypt.
+ * Decrypting it again therefore costs a fraction of a second rather than the several seconds of a full decryption. As the prefix is much
+ * weaker than the full password, a QuickPass only allows a single attempt and expires after a fixed length of time. Once it has been used
+ * up, the full password must be entered again.
+ * </p>
+ *
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class QuickPass {
+    /**
+     * The number of password characters used by default.
+     */
+    public static final int DEFAULT_PREFIX_LENGTH = 4;
+
+    /**
+     * The number of EnScrypt iterations used by default.
+     */
+    public static final int DEFAULT_ITERATIONS = 5;
+
+    /**
+     * The length of time a QuickPass lasts by default.
+     */
+    public static final long DEFAULT_EXPIRY_IN_MILLIS = 60 * 60 * 1000;
+
+    private String mIdentityName;
+    private int mPrefixLength;
+    private int mIterations;
+    private long mExpiryTime;
+    private byte[] mSalt;
+    private byte[] mIv;
+    private byte[] mEncryptedMasterKey;
+
+    private QuickPass(String identityName, int prefixLength, int iterations, long expiryTime, byte[] salt, byte[] iv, byte[] encryptedMasterKey) {
+        this.mIdentityName = identityName;
+        this.mPrefixLength = prefixLength;
+        this.mIterations = iterations;
+        this.mExpiryTime = expiryTime;
+        this.mSalt = salt;
+        this.mIv = iv;
+        this.mEncryptedMasterKey = encryptedMasterKey;
+    }
+
+    /**
+     * Creates a QuickPass for an identity that has just been unlocked.
+     *
+     * @param identityName  The name of the identity.
+     * @param masterKey  The decrypted master key of the identity.
+     * @param password  The full password of the identity.
+     * @param prefixLength  The number of leading password characters that will unlock the QuickPass.
+     * @param iterations  The number of EnScrypt iterations used to derive the QuickPass key.
+     * @param expiryInMillis  The length of time for which the QuickPass can be used.
+     *
+     * @return The new QuickPass, or null if the password is not long enough for its prefix to be shorter than it.
+     *
+     * @throws GeneralSecurityException  If the master key could not be encrypted.
+     */
+    public static QuickPass create(String identityName, byte[] masterKey, String password, int prefixLength, int iterations, long expiryInMillis) throws GeneralSecurityException {
+        return QuickPass.create(identityName, masterKey, password, prefixLength, iterations, expiryInMillis, null);
+    }
+
+    /**
+     * Creates a QuickPass for an identity that has just been unlocked, allowing the key derivation to be cancelled.
+     *
+     * @param identityName  The name of the identity.
+     * @param masterKey  The decrypted master key of the identity.
+     * @param password  The full password of the identity.
+     * @param prefixLength  The number of leading password characters that will unlock the QuickPass.
+     * @param iterations  The number of EnScrypt iterations used to derive the QuickPass key.
+     * @param expiryInMillis  The length of time for which the QuickPass can be used.
+     * @param cancellationSignal  The signal used to cancel the key derivation, or null.
+     *
+     * @return The new QuickPass, or null if the password is not long enough for its prefix to be shorter than it.
+     *
+     * @throws GeneralSecurityException  If the master key could not be encrypted.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the QuickPass was created.
+     */
+    public static QuickPass create(String identityName, byte[] masterKey, String password, int prefixLength, int iterations, long expiryInMillis, CancellationSignal cancellationSignal) throws GeneralSecurityException {
+        // If the prefix is the whole password then the weaker key would be protecting the full password
+        if (password == null || password.length() <= prefixLength) {
+            return null;
+        }
+
+        SecureRandom rng = new SecureRandom();
+        byte[] salt = new byte[16];
+        rng.nextBytes(salt);
+        byte[] iv = new byte[12];
+        rng.nextBytes(iv);
+
+        byte[] derivedKey = new EnScrypt(null, cancellationSignal).deriveKey(password.substring(0, prefixLength), salt, iterations);
+        try {
+            Cipher cipher = QuickPass.createCipher(Cipher.ENCRYPT_MODE, derivedKey, iv, identityName);
+            byte[] encryptedMasterKey = cipher.doFinal(masterKey);
+            long expiryTime = SystemClock.elapsedRealtime() + expiryInMillis;
+            return new QuickPass(identityName, prefixLength, iterations, expiryTime, salt, iv, encryptedMasterKey);
+        } finally {
+            Arrays.fill(derivedKey, (byte)0);
+        }
+    }
+
+    /**
+     * Attempts to decrypt the master key using the given password prefix.
+     *
+     * Whether it succeeds or not, the QuickPass is used up by this call, so further attempts will fail.
+     *
+     * @param prefix  The password prefix.
+     * @param listener  The listener for decryption progress updates, or null.
+     * @param cancellationSignal  The signal used to cancel the key derivation, or null. A cancelled attempt does not use up the QuickPass.
+     *
+     * @return The decrypted master key, or null if the QuickPass has expired or already been used.
+     *
+     * @throws AEADBadTagException  If the prefix was incorrect.
+     * @throws GeneralSecurityException  If the decryption could not be completed.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the decryption completed.
+     */
+    public byte[] decrypt(String prefix, PasswordCryptListener listener, CancellationSignal cancellationSignal) throws GeneralSecurityException {
+        byte[] salt;
+        byte[] iv;
+        byte[] encryptedMasterKey;
+        int iterations;
+        synchronized (this) {
+            if (!this.isValid()) {
+                return null;
+            }
+
+            salt = this.mSalt;
+            iv = this.mIv;
+            // Copied, as discarding the QuickPass below wipes the original
+            encryptedMasterKey = this.mEncryptedMasterKey.clone();
+            iterations = this.mIterations;
+        }
+
+        byte[] derivedKey = new EnScrypt(listener, cancellationSignal).deriveKey(prefix, salt, iterations);
+
+        // Only one attempt is allowed, so the QuickPass is discarded before we find out whether the prefix was correct
+        synchronized (this) {
+            if (!this.isValid()) {
+                Arrays.fill(derivedKey, (byte)0);
+                return null;
+            }
+            this.discard();
+        }
+
+        try {
+            Cipher cipher = QuickPass.createCipher(Cipher.DECRYPT_MODE, derivedKey, iv, this.mIdentityName);
+            return cipher.doFinal(encryptedMasterKey);
+        } finally {
+            Arrays.fill(derivedKey, (byte)0);
+        }
+    }
+
+    /**
+     * Determines whether this QuickPass can still be used.
+     *
+     * @return True if the QuickPass has neither expired nor been used, false otherwise.
+     */
+    public synchronized boolean isValid() {
+        if (this.mEncryptedMasterKey != null && SystemClock.elapsedRealtime() >= this.mExpiryTime) {
+            this.discard();
+        }
+
+        return this.mEncryptedMasterKey != null;
+    }
+
+    /**
+     * Permanently invalidates this QuickPass.
+     */
+    public synchronized void discard() {
+        if (this.mEncryptedMasterKey != null) {
+            Arrays.fill(this.mEncryptedMasterKey, (byte)0);
+        }
+        this.mEncryptedMasterKey = null;
+    }
+
+    /**
+     * Gets the name of the identity this QuickPass belongs to.
+     *
+     * @return The identity name.
+     */
+    public String getIdentityName() {
+        return this.mIdentityName;
+    }
+
+    /**
+     * Gets the number of leading password characters that unlock this QuickPass.
+     *
+     * @return The prefix length.
+     */
+    public int getPrefixLength() {
+        return this.mPrefixLength;
+    }
+
+    private static Cipher createCipher(int mode, byte[] derivedKey, byte[] iv, String identityName) throws GeneralSecurityException {
+        Key key = new SecretKeySpec(derivedKey, "AES");
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(128, iv));
+        cipher.updateAAD(identityName.getBytes(Charset.forName("UTF-8")));
+        return cipher;
+    }
+}
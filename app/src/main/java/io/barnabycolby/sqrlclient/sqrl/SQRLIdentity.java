@@ -13,6 +13,7 @@ import io.barnabycolby.sqrlclient.exceptions.InvalidMasterKeyException;
 import io.barnabycolby.sqrlclient.R;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import org.abstractj.kalium.Sodium;
 
@@ -30,6 +31,35 @@ public class SQRLIdentity implements Parcelable {
     private byte[] mPublicKey = new byte[32];
 
     public SQRLIdentity(byte[] masterKey, SQRLUri uri) throws InvalidMasterKeyException, CryptographyException {
+        this(masterKey, uri, null);
+    }
+
+    /**
+     * Constructs the identity for the given site, reusing the site key pair cached whilst the identity is unlocked.
+     *
+     * @param masterKey  The master key of the identity, which is owned by the new instance.
+     * @param uri  The SQRLUri for the site.
+     * @param unlockedIdentityCache  The cache holding the unlocked identity, or null to always derive the key pair.
+     *
+     * @throws InvalidMasterKeyException  If the master key is not 32 bytes long.
+     * @throws CryptographyException  If the site key pair could not be derived.
+     */
+    public SQRLIdentity(byte[] masterKey, SQRLUri uri, UnlockedIdentityCache unlockedIdentityCache) throws InvalidMasterKeyException, CryptographyException {
+        this(masterKey, uri, unlockedIdentityCache, true);
+    }
+
+    /**
+     * Constructs the identity for the given site, optionally leaving the cache of site key pairs untouched.
+     *
+     * @param masterKey  The master key of the identity, which is owned by the new instance.
+     * @param uri  The SQRLUri for the site.
+     * @param unlockedIdentityCache  The cache holding the unlocked identity, or null to always derive the key pair.
+     * @param cacheDerivedKeyPair  Whether a key pair that had to be derived should be added to the cache.
+     *
+     * @throws InvalidMasterKeyException  If the master key is not 32 bytes long.
+     * @throws CryptographyException  If the site key pair could not be derived.
+     */
+    private SQRLIdentity(byte[] masterKey, SQRLUri uri, UnlockedIdentityCache unlockedIdentityCache, boolean cacheDerivedKeyPair) throws InvalidMasterKeyException, CryptographyException {
         if (masterKey == null || uri == null) {
             throw new NullPointerException();
         }
@@ -41,15 +71,27 @@ public class SQRLIdentity implements Parcelable {
         this.mMasterKey = masterKey;
         this.mUri = uri;
 
+        // Repeat visits to a site whilst the identity is unlocked can reuse the previously derived key pair
+        String host = uri.getHost();
+        if (unlockedIdentityCache != null && unlockedIdentityCache.getSiteKeyPair(masterKey, host, this.mPublicKey, this.mPrivateKey)) {
+            return;
+        }
+
         // Compute the private and public key pair for the identity
         byte[] hmacResult = new byte[32];
-        byte[] hostNameAsByteArray = uri.getHost().getBytes(Charset.forName("UTF-8"));
+        byte[] hostNameAsByteArray = host.getBytes(Charset.forName("UTF-8"));
         int result = Sodium.crypto_auth_hmacsha256(hmacResult, hostNameAsByteArray, hostNameAsByteArray.length, masterKey);
         checkForCryptographyError(result, R.string.key_generation_failed);
         try {
             Ed25519.keypairSeed(this.mPublicKey, this.mPrivateKey, hmacResult);
         } catch (SecurityException ex) {
             checkForCryptographyError(-1, R.string.key_generation_failed);
+        } finally {
+            Arrays.fill(hmacResult, (byte)0);
+        }
+
+        if (unlockedIdentityCache != null && cacheDerivedKeyPair) {
+            unlockedIdentityCache.putSiteKeyPair(masterKey, host, this.mPublicKey, this.mPrivateKey);
         }
     }
 
@@ -132,10 +174,17 @@ public class SQRLIdentity implements Parcelable {
             byte[] masterKey = new byte[32];
             in.readByteArray(masterKey);
 
+            // Identities are unparcelled whenever an activity is recreated, so the key pair derived when the identity was unlocked is reused
+            // if it is still cached. The cache is only read, as a parcel can outlive the unlocking of the identity it holds.
+            UnlockedIdentityCache unlockedIdentityCache = null;
+            if (App.isSQRLIdentityManagerReady()) {
+                unlockedIdentityCache = App.getSQRLIdentityManager().getUnlockedIdentityCache();
+            }
+
             // Create the SQRLIdentity
             SQRLIdentity identity = null;
             try {
-                identity = new SQRLIdentity(masterKey, uri);
+                identity = new SQRLIdentity(masterKey, uri, unlockedIdentityCache, false);
             } catch (InvalidMasterKeyException ex) {
                 // As this was a valid master key before, this exception will not be thrown
             } catch (CryptographyException ex) {
@@ -2,96 +2,471 @@ package io.barnabycolby.sqrlclient.sqrl;
 
 import android.support.v4.util.SimpleArrayMap;
 import android.util.Base64;
+import android.util.Log;
 
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.exceptions.IdentitiesCouldNotBeLoadedException;
+import io.barnabycolby.sqrlclient.exceptions.IdentityArchiveInvalidException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityAlreadyExistsException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityCouldNotBeDeletedException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityDoesNotExistException;
+import io.barnabycolby.sqrlclient.helpers.AtomicFileWriter;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 
 /**
  * Provides functionality for interacting with SQRL Identities stored on disk, including loading and saving of identities.
+ *
+ * <p>
+ * Each identity is stored in its own file, but a copy of every identity is also kept in a single memory mapped pack file. Identities are
+ * served from the pack where possible, without opening their own files, so they take up no heap until they are decrypted. The pack is
+ * brought up to date whenever the identities are loaded, and identities created since then are read from their own files.
+ * </p>
  */
 public class SQRLIdentityFolder {
+    private static final String TAG = SQRLIdentityFolder.class.getName();
+    private static final String IDENTITY_FILE_EXTENSION = ".identity";
+    private static final String MANIFEST_FILE_NAME = "identities.manifest";
+    private static final String PACK_FILE_NAME = "identities.pack";
+
     private File mIdentitiesFolder;
 
     /**
-     * Loads the SQRL identities from disk into a map.
+     * The manifest entries of the identities in the folder, keyed by identity name.
+     */
+    private SimpleArrayMap<String, IdentityManifest.Entry> mManifestEntries = new SimpleArrayMap<String, IdentityManifest.Entry>();
+
+    /**
+     * The memory mapped pack of identities, or null if there is no usable pack.
+     */
+    private IdentityPack mPack;
+
+    /**
+     * Performs every write to disk, so that a crash can never leave a partially written identity or manifest behind.
+     */
+    private AtomicFileWriter mFileWriter;
+
+    /**
+     * Constructs a new instance.
+     */
+    public SQRLIdentityFolder() {
+        this(new AtomicFileWriter());
+    }
+
+    /**
+     * Constructs a new instance that writes files using the given writer.
+     *
+     * @param fileWriter  The writer to use.
+     */
+    public SQRLIdentityFolder(AtomicFileWriter fileWriter) {
+        this.mFileWriter = fileWriter;
+    }
+
+    /**
+     * Loads the names of the SQRL identities into a map, using the manifest so that the identity files themselves do not need to be read.
+     *
+     * Identities that have not been read are mapped to null, and can be read when needed using loadIdentity. If the manifest is missing or
+     * no longer matches the identities folder, it is rebuilt using repair.
      *
      * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be loaded.
      */
     public SimpleArrayMap<String, EncryptedIdentity> load() throws IdentitiesCouldNotBeLoadedException {
+        File identitiesFolder = this.getIdentitiesFolder();
+
+        IdentityManifest manifest = this.readManifest();
+        if (manifest == null || manifest.getFolderLastModified() != identitiesFolder.lastModified()) {
+            return this.repair();
+        }
+
         SimpleArrayMap<String, EncryptedIdentity> identities = new SimpleArrayMap<String, EncryptedIdentity>();
+        this.mManifestEntries.clear();
+        for (IdentityManifest.Entry entry : manifest.getEntries()) {
+            this.mManifestEntries.put(entry.getIdentityName(), entry);
+            identities.put(entry.getIdentityName(), null);
+        }
+
+        this.updatePack();
+        return identities;
+    }
 
-        // Open the identities folder
+    /**
+     * Reads every identity in the identities folder into a map, and rebuilds the manifest to match.
+     *
+     * Identities stored in the folder-per-identity layout used by earlier versions are migrated to single identity containers as they are
+     * loaded.
+     *
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be loaded.
+     */
+    public SimpleArrayMap<String, EncryptedIdentity> repair() throws IdentitiesCouldNotBeLoadedException {
+        SimpleArrayMap<String, EncryptedIdentity> identities = new SimpleArrayMap<String, EncryptedIdentity>();
+        this.mManifestEntries.clear();
+
+        // Open the identities folder, removing the remains of any interrupted writes
         File identitiesFolder = this.getIdentitiesFolder();
+        AtomicFileWriter.deleteTemporaryFiles(identitiesFolder);
 
         // Loop over the identities, adding them if valid
-        for (File identityFolder : identitiesFolder.listFiles()) {
-            // Check the folder actually is a folder
-            if (!identityFolder.exists() || !identityFolder.isDirectory()) {
+        for (File file : identitiesFolder.listFiles()) {
+            String encodedIdentityName;
+            EncryptedIdentity identity;
+            byte[] container;
+            if (file.isDirectory()) {
+                encodedIdentityName = file.getName();
+                identity = loadLegacyIdentity(file);
+                container = (identity == null) ? null : this.migrateLegacyIdentity(file, identity);
+            } else if (file.getName().endsWith(IDENTITY_FILE_EXTENSION)) {
+                String fileName = file.getName();
+                encodedIdentityName = fileName.substring(0, fileName.length() - IDENTITY_FILE_EXTENSION.length());
+                try {
+                    container = FileUtils.readFileToByteArray(file);
+                    identity = IdentityContainer.fromByteArray(container);
+                } catch (IOException ex) {
+                    Log.w(TAG, "Ignoring unreadable identity file " + fileName + ": " + ex.getMessage());
+                    continue;
+                }
+            } else {
+                continue;
+            }
+
+            if (identity == null || !isValid(identity)) {
                 continue;
             }
 
             // Convert the filename to a human readable string (it should be in base64url format)
             String identityName;
             try {
-                identityName = base64DecodeFilename(identityFolder);
+                identityName = base64Decode(encodedIdentityName);
             } catch (IllegalArgumentException ex) {
                 // Bad base64
                 continue;
             }
 
-            // Retrieve the master key and check it is the correct length
-            byte[] masterKey = getFileFromDirectoryAsByteArray(identityFolder, "masterKey");
-            if (masterKey == null) {
-                continue;
+            identities.put(identityName, identity);
+
+            // An identity whose migration failed is still usable, but is left out of the manifest so that the migration is retried
+            if (container != null) {
+                File identityFile = new File(identitiesFolder, encodedIdentityName + IDENTITY_FILE_EXTENSION);
+                this.mManifestEntries.put(identityName, createManifestEntry(identityName, identityFile, container));
             }
-            // Master key is 32 bytes, but after encryption this increases to 48
-            if (masterKey.length != 48) {
-                continue;
+        }
+
+        this.writeManifest();
+        this.updatePack();
+        return identities;
+    }
+
+    /**
+     * Reads a single identity, from the pack if it holds the current version, or otherwise from its own file.
+     *
+     * @param identityName  The name of the identity.
+     *
+     * @return The encrypted identity, or null if the identity is not in the manifest, or its file is missing, corrupt, or has changed since
+     *         the manifest was written. In these cases the caller should call repair.
+     */
+    public EncryptedIdentity loadIdentity(String identityName) {
+        IdentityManifest.Entry entry = this.mManifestEntries.get(identityName);
+        if (entry == null || this.mIdentitiesFolder == null) {
+            return null;
+        }
+
+        File identityFile = new File(this.mIdentitiesFolder, entry.getFileName());
+        if (identityFile.length() != entry.getFileLength() || identityFile.lastModified() != entry.getFileLastModified()) {
+            return null;
+        }
+
+        if (this.mPack != null) {
+            try {
+                EncryptedIdentity identity = this.mPack.getIdentity(entry);
+                if (identity != null && isValid(identity)) {
+                    return identity;
+                }
+            } catch (IOException ex) {
+                Log.w(TAG, "Ignoring corrupt identity in pack: " + ex.getMessage());
             }
-            
-            // Retrieve the salt
-            byte[] salt = getFileFromDirectoryAsByteArray(identityFolder, "salt");
-            if (salt == null) {
-                continue;
+        }
+
+        EncryptedIdentity identity = loadIdentityFile(identityFile);
+        if (identity == null || !isValid(identity)) {
+            return null;
+        }
+
+        return identity;
+    }
+
+    /**
+     * Reads the manifest from disk.
+     *
+     * @return The manifest, or null if it does not exist or could not be read.
+     */
+    private IdentityManifest readManifest() {
+        File manifestFile = this.getManifestFile();
+        if (!manifestFile.isFile()) {
+            return null;
+        }
+
+        try {
+            return IdentityManifest.fromByteArray(FileUtils.readFileToByteArray(manifestFile));
+        } catch (IOException ex) {
+            Log.w(TAG, "Ignoring unreadable identity manifest: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the in-memory manifest entries to disk, recording the current state of the identities folder.
+     *
+     * Failure is not fatal, as a manifest that does not match the folder is simply rebuilt the next time the identities are loaded.
+     */
+    private void writeManifest() {
+        List<IdentityManifest.Entry> entries = new ArrayList<IdentityManifest.Entry>(this.mManifestEntries.size());
+        for (int i = 0; i < this.mManifestEntries.size(); i++) {
+            entries.add(this.mManifestEntries.valueAt(i));
+        }
+
+        // The manifest lives outside of the identities folder, so writing it does not change the modification time that it records
+        IdentityManifest manifest = new IdentityManifest(this.mIdentitiesFolder.lastModified(), entries);
+        File manifestFile = this.getManifestFile();
+        try {
+            this.mFileWriter.write(manifestFile, manifest.toByteArray());
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not write identity manifest: " + ex.getMessage());
+            manifestFile.delete();
+        }
+    }
+
+    private File getManifestFile() {
+        return new File(App.getContext().getFilesDir(), MANIFEST_FILE_NAME);
+    }
+
+    /**
+     * Maps the pack, rewriting it first if it does not hold the current version of every identity in the manifest.
+     *
+     * Failure is not fatal, as identities that are missing from the pack are read from their own files instead.
+     */
+    private void updatePack() {
+        File packFile = this.getPackFile();
+        if (this.mPack == null && packFile.isFile()) {
+            try {
+                this.mPack = IdentityPack.map(packFile);
+            } catch (IOException ex) {
+                Log.w(TAG, "Ignoring unreadable identity pack: " + ex.getMessage());
             }
+        }
+        if (this.isPackUpToDate()) {
+            return;
+        }
 
-            // Retrieve the iterations and check that it is an integer
-            byte[] iterationsAsByteArray = getFileFromDirectoryAsByteArray(identityFolder, "iterations");
-            if (iterationsAsByteArray == null) {
-                continue;
+        // Identities that are already in the pack are copied straight from the mapping, so only new or changed ones are read from disk
+        final List<IdentityManifest.Entry> entries = new ArrayList<IdentityManifest.Entry>(this.mManifestEntries.size());
+        final List<ByteBuffer> containers = new ArrayList<ByteBuffer>(this.mManifestEntries.size());
+        for (int i = 0; i < this.mManifestEntries.size(); i++) {
+            IdentityManifest.Entry entry = this.mManifestEntries.valueAt(i);
+            ByteBuffer container = this.getPackedContainer(entry);
+            if (container == null) {
+                container = this.readContainer(entry);
             }
-            int iterations;
-            try {
-                iterations = ByteBuffer.wrap(iterationsAsByteArray).getInt();
-            } catch (BufferUnderflowException ex) {
-                continue;
+            if (container != null) {
+                entries.add(entry);
+                containers.add(container);
             }
+        }
 
-            // Retrieve the iv and check that it is the correct length
-            byte[] iv = getFileFromDirectoryAsByteArray(identityFolder, "iv");
-            if (iv == null || iv.length != 12) {
-                continue;
+        try {
+            this.mFileWriter.write(packFile, new AtomicFileWriter.Contents() {
+                @Override
+                public void writeTo(OutputStream output) throws IOException {
+                    IdentityPack.write(output, entries, containers);
+                }
+            });
+            this.mPack = IdentityPack.map(packFile);
+        } catch (IOException ex) {
+            // Any existing mapping is still correct for the identities that have not changed
+            Log.w(TAG, "Could not write identity pack: " + ex.getMessage());
+        }
+    }
+
+    private boolean isPackUpToDate() {
+        if (this.mPack == null || this.mPack.size() != this.mManifestEntries.size()) {
+            return false;
+        }
+
+        // The manifest entries include the container checksums, so this never needs to open the identity files
+        for (int i = 0; i < this.mManifestEntries.size(); i++) {
+            if (!this.mPack.contains(this.mManifestEntries.valueAt(i))) {
+                return false;
             }
+        }
 
-            // Create the identity and add it to the map
-            EncryptedIdentity identity = new EncryptedIdentity(masterKey, salt, iterations, iv);
-            identities.put(identityName, identity);
+        return true;
+    }
+
+    /**
+     * Gets the container of an identity from the pack.
+     *
+     * @param entry  The manifest entry of the identity.
+     *
+     * @return The container in the mapped pack, or null if there is no pack, or it does not hold the current version of the identity.
+     */
+    private ByteBuffer getPackedContainer(IdentityManifest.Entry entry) {
+        if (this.mPack == null) {
+            return null;
         }
 
-        return identities;
+        return this.mPack.getContainer(entry);
+    }
+
+    /**
+     * Reads the container of an identity from its file, for inclusion in the pack.
+     *
+     * @param entry  The manifest entry of the identity.
+     *
+     * @return The container, or null if the file has changed since the manifest was written, or could not be read or was corrupt.
+     */
+    private ByteBuffer readContainer(IdentityManifest.Entry entry) {
+        File identityFile = new File(this.mIdentitiesFolder, entry.getFileName());
+        if (identityFile.length() != entry.getFileLength() || identityFile.lastModified() != entry.getFileLastModified()) {
+            return null;
+        }
+
+        try {
+            byte[] container = FileUtils.readFileToByteArray(identityFile);
+            IdentityContainer.fromByteArray(container);
+            if (IdentityContainer.getStoredChecksum(ByteBuffer.wrap(container)) != entry.getContainerChecksum()) {
+                return null;
+            }
+            return ByteBuffer.wrap(container);
+        } catch (IOException ex) {
+            Log.w(TAG, "Leaving unreadable identity file " + identityFile.getName() + " out of the pack: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private File getPackFile() {
+        return new File(App.getContext().getFilesDir(), PACK_FILE_NAME);
+    }
+
+    private static IdentityManifest.Entry createManifestEntry(String identityName, File identityFile, byte[] container) {
+        long containerChecksum;
+        try {
+            containerChecksum = IdentityContainer.getStoredChecksum(ByteBuffer.wrap(container));
+        } catch (IOException ex) {
+            // Every container written to disk has already been serialised or parsed, so it always ends with a checksum
+            throw new RuntimeException(ex);
+        }
+        return new IdentityManifest.Entry(identityName, identityFile.getName(), identityFile.length(), identityFile.lastModified(), containerChecksum);
+    }
+
+    /**
+     * Reads an identity container file.
+     *
+     * @param file  The identity file.
+     *
+     * @return The encrypted identity, or null if the file could not be read or was corrupt.
+     */
+    private EncryptedIdentity loadIdentityFile(File file) {
+        try {
+            return IdentityContainer.fromByteArray(FileUtils.readFileToByteArray(file));
+        } catch (IOException ex) {
+            Log.w(TAG, "Ignoring unreadable identity file " + file.getName() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reads an identity stored in the folder-per-identity layout, where each component is a separate file.
+     *
+     * @param identityFolder  The folder of the identity.
+     *
+     * @return The encrypted identity, or null if any of its components were missing or malformed.
+     */
+    private EncryptedIdentity loadLegacyIdentity(File identityFolder) {
+        // Retrieve the master key
+        byte[] masterKey = getFileFromDirectoryAsByteArray(identityFolder, "masterKey");
+        if (masterKey == null) {
+            return null;
+        }
+        
+        // Retrieve the salt
+        byte[] salt = getFileFromDirectoryAsByteArray(identityFolder, "salt");
+        if (salt == null) {
+            return null;
+        }
+
+        // Retrieve the iterations and check that it is an integer
+        byte[] iterationsAsByteArray = getFileFromDirectoryAsByteArray(identityFolder, "iterations");
+        if (iterationsAsByteArray == null) {
+            return null;
+        }
+        int iterations;
+        try {
+            iterations = ByteBuffer.wrap(iterationsAsByteArray).getInt();
+        } catch (BufferUnderflowException ex) {
+            return null;
+        }
+
+        // Retrieve the iv
+        byte[] iv = getFileFromDirectoryAsByteArray(identityFolder, "iv");
+        if (iv == null) {
+            return null;
+        }
+
+        return new EncryptedIdentity(masterKey, salt, iterations, iv);
+    }
+
+    /**
+     * Replaces an identity folder with a single identity container file.
+     *
+     * If anything goes wrong the folder is left in place, so the migration will be attempted again the next time the identities are loaded.
+     *
+     * @param identityFolder  The folder of the identity.
+     * @param identity  The identity loaded from the folder.
+     *
+     * @return The container written to the identity file, or null if the migration failed.
+     */
+    private byte[] migrateLegacyIdentity(File identityFolder, EncryptedIdentity identity) {
+        if (!isValid(identity)) {
+            return null;
+        }
+
+        File identityFile = new File(identityFolder.getParentFile(), identityFolder.getName() + IDENTITY_FILE_EXTENSION);
+        byte[] container = IdentityContainer.toByteArray(identity);
+        try {
+            // Any existing file is the remains of an interrupted migration, as the folder would otherwise have been deleted
+            this.mFileWriter.write(identityFile, container);
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not migrate identity folder " + identityFolder.getName() + ": " + ex.getMessage());
+            return null;
+        }
+
+        if (!deleteFolder(identityFolder)) {
+            Log.w(TAG, "Could not delete migrated identity folder " + identityFolder.getName());
+        }
+        return container;
+    }
+
+    /**
+     * Checks that the components of an identity are of the expected lengths.
+     *
+     * @param identity  The identity to check.
+     *
+     * @return True if the identity is valid, false otherwise.
+     */
+    private static boolean isValid(EncryptedIdentity identity) {
+        // Master key is 32 bytes, but after encryption this increases to 48
+        return identity.getEncryptedMasterKey().length == 48 && identity.getIv().length == 12;
     }
     
     /**
@@ -169,45 +544,163 @@ public class SQRLIdentityFolder {
      * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
      */
     public void createNewIdentity(String identityName, EncryptedIdentity identity) throws IdentityAlreadyExistsException, IdentitiesCouldNotBeLoadedException, IOException {
-        // Create the new folder
         String encodedFilename = base64Encode(identityName);
         File identitiesFolder = this.getIdentitiesFolder();
-        File newIdentityFolder = new File(identitiesFolder, encodedFilename);
-        if (newIdentityFolder.exists()) {
+        File newIdentityFile = new File(identitiesFolder, encodedFilename + IDENTITY_FILE_EXTENSION);
+        if (newIdentityFile.exists() || new File(identitiesFolder, encodedFilename).exists()) {
             throw new IdentityAlreadyExistsException();
         }
-        newIdentityFolder.mkdir();
 
-        // Write the components to files
-        writeByteArrayToFileInDirectory(newIdentityFolder, "masterKey", identity.getEncryptedMasterKey());
-        writeByteArrayToFileInDirectory(newIdentityFolder, "salt", identity.getSalt());
-        byte[] iterationsAsByteArray = ByteBuffer.allocate(4).putInt(identity.getIterations()).array(); // Converts the number of iterations to a byte array
-        writeByteArrayToFileInDirectory(newIdentityFolder, "iterations", iterationsAsByteArray);
-        writeByteArrayToFileInDirectory(newIdentityFolder, "iv", identity.getIv());
+        byte[] container = IdentityContainer.toByteArray(identity);
+        this.mFileWriter.write(newIdentityFile, container);
+        this.mManifestEntries.put(identityName, createManifestEntry(identityName, newIdentityFile, container));
+        this.writeManifest();
     }
 
     /**
-     * Writes a byte array to a new file in a given directory.
+     * Replaces an existing identity on disk, for example with a copy that has been re-encrypted.
      *
-     * @param directory  The directory to create the file in.
-     * @param filename  The name of the file.
-     * @param contents  The byte array to write.
+     * The identity file is replaced atomically, so if the process dies part way through, either the old or the new identity remains.
      *
-     * @throws IdentityAlreadyExistsException  If the file cannot be created because it already exists.
+     * @param identityName  The name of the identity to replace.
+     * @param identity  The replacement identity.
+     * @throws IdentityDoesNotExistException  If the identity is not in the manifest.
+     * @throws IOException  If an IO error occurred.
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
      */
-    private void writeByteArrayToFileInDirectory(File directory, String filename, byte[] contents) throws IdentityAlreadyExistsException, IOException {
-        // Create the file, checking whether it already exists
-        File file = new File(directory, filename);
-        if (file.exists()) {
-            throw new IdentityAlreadyExistsException();
+    public void replaceIdentity(String identityName, EncryptedIdentity identity) throws IdentityDoesNotExistException, IdentitiesCouldNotBeLoadedException, IOException {
+        IdentityManifest.Entry entry = this.mManifestEntries.get(identityName);
+        if (entry == null) {
+            throw new IdentityDoesNotExistException(identityName);
+        }
+
+        File identityFile = new File(this.getIdentitiesFolder(), entry.getFileName());
+        byte[] container = IdentityContainer.toByteArray(identity);
+        this.mFileWriter.write(identityFile, container);
+        this.mManifestEntries.put(identityName, createManifestEntry(identityName, identityFile, container));
+        this.writeManifest();
+    }
+
+    /**
+     * Streams every identity in the identities folder into an archive, one identity at a time.
+     *
+     * Identities in the manifest are copied from the pack or their own files. The folder is also listed, so that identities missing from the
+     * manifest, such as those whose migration from the folder-per-identity layout failed, are exported too.
+     *
+     * @param output  The stream to write the archive to. It is flushed, but not closed.
+     * @param authenticationKey  The key used to authenticate the archive.
+     *
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
+     * @throws IOException  If the archive could not be written, or an identity file has changed since the manifest was written.
+     * @throws GeneralSecurityException  If the archive could not be authenticated.
+     */
+    public void exportIdentities(OutputStream output, byte[] authenticationKey) throws IdentitiesCouldNotBeLoadedException, IOException, GeneralSecurityException {
+        IdentityArchive.Writer writer = new IdentityArchive.Writer(output, authenticationKey);
+        for (int i = 0; i < this.mManifestEntries.size(); i++) {
+            IdentityManifest.Entry entry = this.mManifestEntries.valueAt(i);
+            ByteBuffer container = this.getPackedContainer(entry);
+            if (container == null) {
+                container = this.readContainer(entry);
+            }
+            if (container == null) {
+                // Silently leaving the identity out would lose it if the archive is used to move to a new device
+                throw new IOException("The identity " + entry.getIdentityName() + " could not be read.");
+            }
+
+            writer.write(entry.getIdentityName(), container);
+        }
+
+        Set<String> exportedIdentityNames = new HashSet<String>();
+        for (File file : this.getIdentitiesFolder().listFiles()) {
+            String encodedIdentityName;
+            EncryptedIdentity identity;
+            if (file.isDirectory()) {
+                encodedIdentityName = file.getName();
+                identity = loadLegacyIdentity(file);
+            } else if (file.getName().endsWith(IDENTITY_FILE_EXTENSION)) {
+                String fileName = file.getName();
+                encodedIdentityName = fileName.substring(0, fileName.length() - IDENTITY_FILE_EXTENSION.length());
+                identity = loadIdentityFile(file);
+            } else {
+                continue;
+            }
+
+            // Identities that could not be read are skipped, as they are when the identities are loaded
+            String identityName;
+            try {
+                identityName = base64Decode(encodedIdentityName);
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            if (identity == null || !isValid(identity) || this.mManifestEntries.containsKey(identityName) || !exportedIdentityNames.add(identityName)) {
+                continue;
+            }
+
+            writer.write(identityName, ByteBuffer.wrap(IdentityContainer.toByteArray(identity)));
         }
-        file.createNewFile();
+        writer.finish();
+    }
 
-        // Write the byte array to the file
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(new FileOutputStream(file));
-        bufferedOutputStream.write(contents);
-        bufferedOutputStream.flush();
-        bufferedOutputStream.close();
+    /**
+     * Streams identities from an archive into the identities folder.
+     *
+     * Each identity is validated and written to a temporary file as it arrives, but none of them are added until the whole archive has been
+     * authenticated, at which point they are all committed together and the manifest is written once. Identities whose names already exist
+     * are left untouched.
+     *
+     * @param input  The stream to read the archive from.
+     * @param authenticationKey  The key that was used to authenticate the archive.
+     *
+     * @return The names of the identities that were added.
+     *
+     * @throws IdentityArchiveInvalidException  If the archive was malformed, corrupted, or not authenticated by the key.
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
+     * @throws IOException  If the archive could not be read, or the identities could not be written.
+     * @throws GeneralSecurityException  If the archive could not be authenticated.
+     */
+    public List<String> importIdentities(InputStream input, byte[] authenticationKey) throws IdentityArchiveInvalidException, IdentitiesCouldNotBeLoadedException, IOException, GeneralSecurityException {
+        File identitiesFolder = this.getIdentitiesFolder();
+        IdentityArchive.Reader reader = new IdentityArchive.Reader(input, authenticationKey);
+        AtomicFileWriter.Batch batch = this.mFileWriter.beginBatch();
+        List<String> importedIdentityNames = new ArrayList<String>();
+        List<byte[]> importedContainers = new ArrayList<byte[]>();
+        Set<String> seenIdentityNames = new HashSet<String>();
+        boolean committed = false;
+        try {
+            while (reader.next()) {
+                String identityName = reader.getIdentityName();
+                if (!isValid(reader.getIdentity())) {
+                    throw new IdentityArchiveInvalidException();
+                }
+
+                // Keep the existing identity, and the first of any duplicates in the archive
+                String encodedFilename = base64Encode(identityName);
+                File identityFile = new File(identitiesFolder, encodedFilename + IDENTITY_FILE_EXTENSION);
+                if (!seenIdentityNames.add(identityName) || identityFile.exists() || new File(identitiesFolder, encodedFilename).exists()) {
+                    continue;
+                }
+
+                batch.write(identityFile, reader.getContainer());
+                importedIdentityNames.add(identityName);
+                importedContainers.add(reader.getContainer());
+            }
+
+            batch.commit();
+            committed = true;
+        } finally {
+            if (!committed) {
+                batch.abort();
+            }
+        }
+
+        for (int i = 0; i < importedIdentityNames.size(); i++) {
+            String identityName = importedIdentityNames.get(i);
+            File identityFile = new File(identitiesFolder, base64Encode(identityName) + IDENTITY_FILE_EXTENSION);
+            this.mManifestEntries.put(identityName, createManifestEntry(identityName, identityFile, importedContainers.get(i)));
+        }
+        this.writeManifest();
+
+        return importedIdentityNames;
     }
 
     /**
@@ -233,14 +726,23 @@ public class SQRLIdentityFolder {
     public void remove(String identityName) throws IdentityDoesNotExistException, IdentityCouldNotBeDeletedException, IdentitiesCouldNotBeLoadedException {
         // Remove the identity file
         String identityFileName = base64Encode(identityName);
-        File identityFolder = new File(this.getIdentitiesFolder(), identityFileName);
+        File identityFile = new File(this.getIdentitiesFolder(), identityFileName + IDENTITY_FILE_EXTENSION);
         // We continue as normal if the identity file does not exist
+        if (identityFile.exists() && !identityFile.delete()) {
+            throw new IdentityCouldNotBeDeletedException(identityName);
+        }
+
+        // An identity that could not be migrated may still be stored in the old layout
+        File identityFolder = new File(this.getIdentitiesFolder(), identityFileName);
         if (identityFolder.exists()) {
             boolean deleteSucceeded = deleteFolder(identityFolder);
             if (!deleteSucceeded) {
                 throw new IdentityCouldNotBeDeletedException(identityName);
             }
         }
+
+        this.mManifestEntries.remove(identityName);
+        this.writeManifest();
     }
 
     /**
@@ -270,13 +772,13 @@ public class SQRLIdentityFolder {
     }
 
     /**
-     * Base64url decodes a filename.
+     * Base64url decodes an encoded identity name.
      *
-     * @param file  The file whose filename should be decoded.
-     * @throws IllegalArgumentException  If the filename is not valid base64url.
+     * @param encoded  The encoded identity name.
+     * @throws IllegalArgumentException  If the name is not valid base64url.
      */
-    private String base64DecodeFilename(File file) throws IllegalArgumentException {
-        byte[] decodedFileName = Base64.decode(file.getName(), Base64.URL_SAFE);
+    private String base64Decode(String encoded) throws IllegalArgumentException {
+        byte[] decodedFileName = Base64.decode(encoded, Base64.URL_SAFE);
         String identityName = new String(decodedFileName, Charset.forName("UTF-8"));
         return identityName;
     }
@@ -1,51 +1,137 @@
 package io.barnabycolby.sqrlclient.sqrl;
 
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.Process;
 import android.support.v4.util.SimpleArrayMap;
 import android.util.Log;
 
 import io.barnabycolby.sqrlclient.exceptions.CryptographyException;
 import io.barnabycolby.sqrlclient.exceptions.IdentitiesCouldNotBeLoadedException;
+import io.barnabycolby.sqrlclient.exceptions.IdentityArchiveInvalidException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityAlreadyExistsException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityCouldNotBeDeletedException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityCouldNotBeWrittenToDiskException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityDoesNotExistException;
 import io.barnabycolby.sqrlclient.exceptions.IncorrectPasswordException;
 import io.barnabycolby.sqrlclient.exceptions.InvalidMasterKeyException;
+import io.barnabycolby.sqrlclient.helpers.IdentityChangeListener;
 import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Manages the SQRL Identities of the application, including their persistence across application instances.
+ *
+ * <p>
+ * This class is thread safe. The identities are held in a concurrent index sorted by name, so reads never block. Every change is made by a
+ * single writer at a time, which updates the index once the change has been written to disk. The slow encryption of a new identity happens
+ * before the writer lock is taken, so neither readers nor other writers wait for it.
+ * </p>
+ *
+ * <p>
+ * Each change is also reported to any registered IdentityChangeListener as it is published, so that views can apply the individual change
+ * rather than copying the full list of identities again.
+ * </p>
  */
 public class SQRLIdentityManager {
     private static final String TAG = SQRLIdentityManager.class.getName();
 
     /**
-     * Stores the runtime object containing the identities, which is simply a mapping from identity name to master key.
+     * The identities, sorted by name. It is only modified whilst holding mWriteLock.
      */
-    private SimpleArrayMap<String, EncryptedIdentity> mIdentities;
+    private final SortedIdentityIndex mIdentities;
 
     /**
-     * Stores the currently selected identity, that should be used when creating SQRLIdentity objects.
+     * The currently selected identity, that should be used when creating SQRLIdentity objects. It is only set whilst holding mWriteLock,
+     * and whilst that lock is held it is always either null or in mIdentities. Readers that do not hold the lock may see it just before it
+     * is changed, so must read it again under the lock before relying on it being in mIdentities.
      */
-    private String mCurrentIdentity;
+    private volatile String mCurrentIdentity;
+
+    /**
+     * Serialises every change to the identities, including all access to the identities folder.
+     */
+    private final Object mWriteLock = new Object();
 
     private SQRLIdentityFolder mIdentityFolder;
 
+    /**
+     * The listeners to notify of each change, which are only ever notified whilst holding mWriteLock.
+     */
+    private final List<IdentityChangeListener> mChangeListeners = new CopyOnWriteArrayList<IdentityChangeListener>();
+
+    /**
+     * Holds the master key of the most recently decrypted identity, so that subsequent logins can skip the password and EnScrypt.
+     */
+    private UnlockedIdentityCache mUnlockedIdentityCache = new UnlockedIdentityCache(UnlockedIdentityCache.DEFAULT_IDLE_TIMEOUT_IN_MILLIS);
+
+    /**
+     * Allows the most recently decrypted identity to be unlocked again using only a prefix of its password, or null if there is none.
+     */
+    private volatile QuickPass mQuickPass;
+    private volatile int mQuickPassPrefixLength = QuickPass.DEFAULT_PREFIX_LENGTH;
+    private volatile int mQuickPassIterations = QuickPass.DEFAULT_ITERATIONS;
+    private volatile long mQuickPassExpiryInMillis = QuickPass.DEFAULT_EXPIRY_IN_MILLIS;
+
+    /**
+     * Creates each QuickPass on a low priority thread, after the login that unlocked the identity has returned.
+     */
+    private final ExecutorService mQuickPassExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "QuickPassCreator");
+        }
+    });
+
+    /**
+     * The signal used to cancel the QuickPass being created, and the identity it is for, or null if there is none. Only accessed whilst
+     * holding mQuickPassLock, which is also held when publishing mQuickPass, so that a cancelled QuickPass is never published.
+     */
+    private CancellationSignal mPendingQuickPass;
+    private String mPendingQuickPassIdentity;
+    private final Object mQuickPassLock = new Object();
+
+    /**
+     * Brings unlocked identities up to the strength this device can currently afford, without delaying the login that unlocked them.
+     */
+    private IdentityReencryptor mReencryptor = new IdentityReencryptor(this);
+
     /**
      * Constructs a new instance of the SQRLIdentityManager.
      *
-     * Handles the loading of identities from disk.
+     * Handles the loading of identity names from disk. The identities themselves are read when first used.
      * 
      * @throws IdentitiesCouldNotBeLoadedException  If the identities could not be loaded from disk.
      */
     public SQRLIdentityManager() throws IdentitiesCouldNotBeLoadedException {
         this.mIdentityFolder = new SQRLIdentityFolder();
-        this.mIdentities = this.mIdentityFolder.load();
+        this.mIdentities = new SortedIdentityIndex(this.mIdentityFolder.load());
+
+        // Re-encryptions hold a copy of the master key, so they must not outlive any lock, including the one caused by the idle timeout
+        this.mUnlockedIdentityCache.setLockListener(new UnlockedIdentityCache.LockListener() {
+            @Override
+            public void onLocked() {
+                mReencryptor.cancelAll();
+            }
+        });
     }
 
     /**
@@ -62,35 +148,181 @@ public class SQRLIdentityManager {
      * @throws GeneralSecurityException  If the cryptographic operations failed.
      */
     public void save(String identityName, byte[] masterKey, String password, PasswordCryptListener listener) throws IdentityAlreadyExistsException, IdentityCouldNotBeWrittenToDiskException, IdentitiesCouldNotBeLoadedException, GeneralSecurityException {
-        if (mIdentities.containsKey(identityName)) {
+        this.save(identityName, masterKey, password, listener, null);
+    }
+
+    /**
+     * Saves a new identity to the system, allowing the encryption of the identity to be cancelled.
+     *
+     * If the save is cancelled, nothing is written to disk.
+     *
+     * @param identityName  The name of the new identity. This will be used for UI identification and system identification.
+     * @param masterKey  The master key of the new identity.
+     * @param password  The password that protects the new identity.
+     * @param listener  The listener used for progress updates.
+     * @param cancellationSignal  The signal used to cancel the encryption, or null.
+     *
+     * @throws IdentityAlreadyExistsException  If an identity with the same name already exists.
+     * @throws IdentityCouldNotBeWrittenToDiskException  If the new identity could not be written to disk.
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
+     * @throws GeneralSecurityException  If the cryptographic operations failed.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the identity was encrypted.
+     */
+    public void save(String identityName, byte[] masterKey, String password, PasswordCryptListener listener, CancellationSignal cancellationSignal) throws IdentityAlreadyExistsException, IdentityCouldNotBeWrittenToDiskException, IdentitiesCouldNotBeLoadedException, GeneralSecurityException {
+        this.save(identityName, masterKey, password, listener, cancellationSignal, null);
+    }
+
+    /**
+     * Saves a new identity to the system, allowing the encryption of the identity to be cancelled and later resumed.
+     *
+     * If the save is cancelled, nothing is written to disk other than an encrypted checkpoint of the key derivation.
+     *
+     * @param identityName  The name of the new identity. This will be used for UI identification and system identification.
+     * @param masterKey  The master key of the new identity.
+     * @param password  The password that protects the new identity.
+     * @param listener  The listener used for progress updates.
+     * @param cancellationSignal  The signal used to cancel the encryption, or null.
+     * @param checkpointId  The id of the checkpoints of the encryption, generated by EncryptedIdentity.generateCheckpointId, or null.
+     *
+     * @throws IdentityAlreadyExistsException  If an identity with the same name already exists.
+     * @throws IdentityCouldNotBeWrittenToDiskException  If the new identity could not be written to disk.
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
+     * @throws GeneralSecurityException  If the cryptographic operations failed.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the identity was encrypted.
+     */
+    public void save(String identityName, byte[] masterKey, String password, PasswordCryptListener listener, CancellationSignal cancellationSignal, String checkpointId) throws IdentityAlreadyExistsException, IdentityCouldNotBeWrittenToDiskException, IdentitiesCouldNotBeLoadedException, GeneralSecurityException {
+        if (this.identityExists(identityName)) {
             throw new IdentityAlreadyExistsException();
         }
 
         // We need to encrypt the identity before we can use
-        EncryptedIdentity encryptedIdentity = EncryptedIdentity.create(masterKey, password, listener);
+        EncryptedIdentity encryptedIdentity = EncryptedIdentity.create(masterKey, password, listener, cancellationSignal, checkpointId);
+        this.save(identityName, encryptedIdentity);
+    }
 
-        // We write it to disk before adding it to the runtime array in case the writeNewIdentityToDisk call throws an exception
-        try {
-            this.mIdentityFolder.createNewIdentity(identityName, encryptedIdentity);
-        } catch (IOException ex) {
-            Log.e(TAG, "Could not write new identity to disk: " + ex.getMessage());
-            throw new IdentityCouldNotBeWrittenToDiskException();
+    /**
+     * Saves a new, already encrypted, identity to the system.
+     *
+     * @param identityName  The name of the new identity. This will be used for UI identification and system identification.
+     * @param encryptedIdentity  The encrypted identity.
+     *
+     * @throws IdentityAlreadyExistsException  If an identity with the same name already exists.
+     * @throws IdentityCouldNotBeWrittenToDiskException  If the new identity could not be written to disk.
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
+     */
+    public void save(String identityName, EncryptedIdentity encryptedIdentity) throws IdentityAlreadyExistsException, IdentityCouldNotBeWrittenToDiskException, IdentitiesCouldNotBeLoadedException {
+        synchronized (this.mWriteLock) {
+            // Another writer may have saved an identity with the same name whilst this one was being encrypted
+            if (this.mIdentities.contains(identityName)) {
+                throw new IdentityAlreadyExistsException();
+            }
+
+            // We write it to disk before adding it to the runtime array in case the writeNewIdentityToDisk call throws an exception
+            try {
+                this.mIdentityFolder.createNewIdentity(identityName, encryptedIdentity);
+            } catch (IOException ex) {
+                Log.e(TAG, "Could not write new identity to disk: " + ex.getMessage());
+                throw new IdentityCouldNotBeWrittenToDiskException();
+            }
+
+            this.mIdentities.put(identityName, encryptedIdentity);
+
+            for (IdentityChangeListener listener : this.mChangeListeners) {
+                listener.onIdentityAdded(identityName);
+            }
         }
-        mIdentities.put(identityName, encryptedIdentity);
     }
 
     /**
-     * Gets the list of identity names.
+     * Streams every identity into a single authenticated archive, which can be imported on another device using importIdentities.
+     *
+     * Other changes to the identities wait until the export has finished.
+     *
+     * @param output  The stream to write the archive to. It is flushed, but not closed.
+     * @param authenticationKey  The key used to authenticate the archive, which must also be used to import it.
+     *
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
+     * @throws IOException  If the archive could not be written, or an identity could not be read.
+     * @throws GeneralSecurityException  If the archive could not be authenticated.
+     */
+    public void exportIdentities(OutputStream output, byte[] authenticationKey) throws IdentitiesCouldNotBeLoadedException, IOException, GeneralSecurityException {
+        synchronized (this.mWriteLock) {
+            this.mIdentityFolder.exportIdentities(output, authenticationKey);
+        }
+    }
+
+    /**
+     * Adds the identities in an archive created by exportIdentities.
+     *
+     * No identities are added unless the whole archive is valid. Identities with the same name as an existing identity are skipped.
+     *
+     * @param input  The stream to read the archive from.
+     * @param authenticationKey  The key that was used to authenticate the archive.
+     *
+     * @return The names of the identities that were added.
+     *
+     * @throws IdentityArchiveInvalidException  If the archive was malformed, corrupted, or not authenticated by the key.
+     * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be opened.
+     * @throws IOException  If the archive could not be read, or the identities could not be written.
+     * @throws GeneralSecurityException  If the archive could not be authenticated.
+     */
+    public List<String> importIdentities(InputStream input, byte[] authenticationKey) throws IdentityArchiveInvalidException, IdentitiesCouldNotBeLoadedException, IOException, GeneralSecurityException {
+        synchronized (this.mWriteLock) {
+            List<String> importedIdentityNames = this.mIdentityFolder.importIdentities(input, authenticationKey);
+
+            // The identities are read from disk when they are first needed, like those loaded at startup
+            for (String identityName : importedIdentityNames) {
+                this.mIdentities.put(identityName, null);
+                for (IdentityChangeListener listener : this.mChangeListeners) {
+                    listener.onIdentityAdded(identityName);
+                }
+            }
+
+            return importedIdentityNames;
+        }
+    }
+
+    /**
+     * Gets a copy of the list of identity names, sorted by name.
      *
      * @return A list of identity names.
      */
     public List<String> getIdentityNames() {
-        int numberOfIdentities = this.mIdentities.size();
-        ArrayList<String> identityNames = new ArrayList<String>(numberOfIdentities);
-        for (int i = 0; i < numberOfIdentities; i++) {
-            identityNames.add(this.mIdentities.keyAt(i));
-        }
-        return identityNames;
+        return new ArrayList<String>(this.mIdentities.getNames());
+    }
+
+    /**
+     * Gets a live, read only, view of the identity names, sorted by name.
+     *
+     * The view reflects changes as they are made, so it is cheaper than getIdentityNames for large numbers of identities, but its size may
+     * change whilst it is being iterated over.
+     *
+     * @return The identity names.
+     */
+    public SortedSet<String> getSortedIdentityNames() {
+        return this.mIdentities.getNames();
+    }
+
+    /**
+     * Gets a live, read only, view of the identity names that start with the given prefix, ignoring case, sorted by name.
+     *
+     * @param prefix  The prefix to search for.
+     *
+     * @return The matching identity names.
+     */
+    public SortedSet<String> getIdentityNamesWithPrefix(String prefix) {
+        return this.mIdentities.getNamesWithPrefix(prefix);
+    }
+
+    /**
+     * Finds the identity names that contain the given text anywhere, ignoring case, sorted by name.
+     *
+     * @param text  The text to search for.
+     *
+     * @return A list of the matching identity names.
+     */
+    public List<String> findIdentityNamesContaining(String text) {
+        return this.mIdentities.findNamesContaining(text);
     }
 
     /**
@@ -101,15 +333,13 @@ public class SQRLIdentityManager {
      * @throws IdentityCouldNotBeDeletedException  If the identity file on disk could not be deleted.
      */
     public void removeAllIdentities() throws IOException, IdentitiesCouldNotBeLoadedException, IdentityCouldNotBeDeletedException {
-        // We need to iterate in reverse order as the removeIdentity call will remove the item from the list
-        for (int i = this.mIdentities.size() - 1; i >= 0; i--) {
-            String identityName = this.mIdentities.keyAt(i);
+        // Iterate over a copy, so that the removals do not affect the iteration
+        for (String identityName : this.getIdentityNames()) {
             try {
                 this.removeIdentity(identityName);
             } catch (IdentityDoesNotExistException ex) {
-                // We can ignore this case as we have already verified that the identity does exist
-                // But just in case, we can log a wtf error
-                Log.wtf(TAG, "Calling removeIdentity from removeAllIdentities threw a IdentityDoesNotExistException.");
+                // Another thread removed the identity first, which is fine as we wanted it gone anyway
+                Log.i(TAG, "Identity was removed concurrently with removeAllIdentities.");
             }
         }
     }
@@ -124,18 +354,31 @@ public class SQRLIdentityManager {
      * @throws IdentitiesCouldNotBeLoadedException  If the identities folder could not be loaded.
      */
     public void removeIdentity(String identityName) throws IdentityDoesNotExistException, IdentityCouldNotBeDeletedException, IdentitiesCouldNotBeLoadedException {
-        // Check that the given identityName is valid
-        if (!this.mIdentities.containsKey(identityName)) {
-            throw new IdentityDoesNotExistException(identityName);
-        }
+        synchronized (this.mWriteLock) {
+            // Check that the given identityName is valid
+            if (!this.mIdentities.contains(identityName)) {
+                throw new IdentityDoesNotExistException(identityName);
+            }
 
-        // Remove the identity
-        this.mIdentityFolder.remove(identityName);
-        this.mIdentities.remove(identityName);
+            // Remove the identity, deselecting it first if it is the currently selected identity
+            this.mIdentityFolder.remove(identityName);
+            boolean wasCurrentIdentity = identityName.equals(this.mCurrentIdentity);
+            if (wasCurrentIdentity) {
+                this.mCurrentIdentity = null;
+            }
+            this.mIdentities.remove(identityName);
+
+            if (this.mUnlockedIdentityCache.isUnlocked(identityName)) {
+                this.mUnlockedIdentityCache.lock();
+            }
+            this.discardQuickPass(identityName);
 
-        // If the identity is the currently selected identity then we need to deselect it
-        if (identityName.equals(this.getCurrentIdentityName())) {
-            this.setCurrentIdentity(null);
+            for (IdentityChangeListener listener : this.mChangeListeners) {
+                listener.onIdentityRemoved(identityName);
+            }
+            if (wasCurrentIdentity) {
+                this.notifyCurrentIdentityChanged(null);
+            }
         }
     }
 
@@ -155,12 +398,20 @@ public class SQRLIdentityManager {
      * @throws IdentityDoesNotExistException  If the name of the identity does not correspond to an identity managed by this object.
      */
     public void setCurrentIdentity(String identityName) throws IdentityDoesNotExistException {
-        if (identityName != null && !this.mIdentities.containsKey(identityName)) {
-            throw new IdentityDoesNotExistException(identityName);
-        }
+        synchronized (this.mWriteLock) {
+            if (identityName != null && !this.mIdentities.contains(identityName)) {
+                throw new IdentityDoesNotExistException(identityName);
+            }
+
+            // At this point, idenityName is either a valid identity name or null
+            String previousIdentity = this.mCurrentIdentity;
+            this.mCurrentIdentity = identityName;
 
-        // At this point, idenityName is either a valid identity name or null
-        this.mCurrentIdentity = identityName;
+            boolean changed = (identityName == null) ? previousIdentity != null : !identityName.equals(previousIdentity);
+            if (changed) {
+                this.notifyCurrentIdentityChanged(identityName);
+            }
+        }
     }
 
     /**
@@ -185,24 +436,428 @@ public class SQRLIdentityManager {
      *
      * @throws GeneralSecurityException  If a cryptographic operation failed.
      * @throws IncorrectPasswordException  If the password was incorrect.
+     * @throws IdentityDoesNotExistException  If the current identity was removed before it could be read.
      */
-    public SQRLIdentity getCurrentIdentityForSite(SQRLUri uri, String password, PasswordCryptListener listener) throws GeneralSecurityException, IncorrectPasswordException {
-        EncryptedIdentity encryptedIdentity = this.mIdentities.get(this.getCurrentIdentityName());
+    public SQRLIdentity getCurrentIdentityForSite(SQRLUri uri, String password, PasswordCryptListener listener) throws GeneralSecurityException, IncorrectPasswordException, IdentityDoesNotExistException {
+        return this.getCurrentIdentityForSite(uri, password, listener, null);
+    }
+
+    /**
+     * Gets a SQRLIdentity instance of the currently selected identity for the given site, allowing the decryption to be cancelled.
+     *
+     * If the current identity has a QuickPass and the password is exactly as long as its prefix, the password is treated as the prefix and
+     * only the short QuickPass decryption is performed. A single incorrect prefix discards the QuickPass. After a full decryption, the new
+     * QuickPass is created in the background once this call has returned.
+     *
+     * @param uri  The SQRLUri for the site.
+     * @param password  The password to unlock the identity.
+     * @param listener  The listener to listen for decryption progress updates.
+     * @param cancellationSignal  The signal used to cancel the decryption, or null.
+     *
+     * @return The current SQRLIdentity for the given site.
+     *
+     * @throws GeneralSecurityException  If a cryptographic operation failed.
+     * @throws IncorrectPasswordException  If the password was incorrect.
+     * @throws IdentityDoesNotExistException  If the current identity was removed before it could be read.
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the identity was decrypted.
+     */
+    public SQRLIdentity getCurrentIdentityForSite(SQRLUri uri, String password, PasswordCryptListener listener, CancellationSignal cancellationSignal) throws GeneralSecurityException, IncorrectPasswordException, IdentityDoesNotExistException {
+        String identityName = this.getCurrentIdentityName();
+        if (identityName == null) {
+            Log.wtf(TAG, "An identity was requested whilst no identity was selected.");
+            throw new RuntimeException();
+        }
+        QuickPass quickPass = this.getQuickPass(identityName);
+        if (quickPass != null && password.length() == quickPass.getPrefixLength()) {
+            return this.getCurrentIdentityForSiteUsingQuickPass(quickPass, uri, password, listener, cancellationSignal);
+        }
+
+        EncryptedIdentity encryptedIdentity = this.getEncryptedIdentity(identityName);
+        if (encryptedIdentity == null) {
+            // The current identity may have been changed or removed since it was read, so read both again whilst no writer can change them
+            String removedIdentityName = identityName;
+            synchronized (this.mWriteLock) {
+                identityName = this.mCurrentIdentity;
+                encryptedIdentity = (identityName == null) ? null : this.getEncryptedIdentity(identityName);
+            }
+            if (encryptedIdentity == null) {
+                throw new IdentityDoesNotExistException(removedIdentityName);
+            }
+        }
         byte[] masterKeyForCurrentIdentity = null;
         try {
-            masterKeyForCurrentIdentity = encryptedIdentity.decrypt(password, listener);
+            masterKeyForCurrentIdentity = encryptedIdentity.decrypt(password, listener, cancellationSignal);
         } catch (javax.crypto.AEADBadTagException ex) {
             throw new IncorrectPasswordException();
         }
-        if (masterKeyForCurrentIdentity == null) {
-            Log.wtf(TAG, "getCurrentIdentityName() returned a string not present in mIdentities");
-            throw new RuntimeException();
+
+        // Keep the identity unlocked so that the next login can skip the decryption
+        this.mUnlockedIdentityCache.unlock(identityName, masterKeyForCurrentIdentity);
+
+        // Once the unlocked identity times out, the next login only needs the start of the password
+        this.scheduleQuickPass(identityName, masterKeyForCurrentIdentity, password, cancellationSignal);
+
+        // Whilst the master key is in memory, re-encrypt the identity if it is weaker than this device can now afford
+        this.mReencryptor.schedule(identityName, encryptedIdentity, masterKeyForCurrentIdentity, password);
+
+        return this.createIdentity(masterKeyForCurrentIdentity, uri);
+    }
+
+    private SQRLIdentity getCurrentIdentityForSiteUsingQuickPass(QuickPass quickPass, SQRLUri uri, String prefix, PasswordCryptListener listener, CancellationSignal cancellationSignal) throws GeneralSecurityException, IncorrectPasswordException {
+        byte[] masterKey;
+        try {
+            masterKey = quickPass.decrypt(prefix, listener, cancellationSignal);
+        } catch (javax.crypto.AEADBadTagException ex) {
+            // The QuickPass has been used up, so the full password will be needed next time
+            throw new IncorrectPasswordException();
+        }
+        if (masterKey == null) {
+            // The QuickPass expired whilst the key was being derived
+            throw new IncorrectPasswordException();
+        }
+
+        this.mUnlockedIdentityCache.unlock(quickPass.getIdentityName(), masterKey);
+        return this.createIdentity(masterKey, uri);
+    }
+
+    /**
+     * Gets a SQRLIdentity instance of the currently selected identity for the given site, but only if the identity is already unlocked.
+     *
+     * This does not perform any EnScrypt iterations, so can be called from the main thread. It resets the idle timeout of the unlocked identity.
+     *
+     * @param uri  The SQRLUri for the site.
+     *
+     * @return The current SQRLIdentity for the given site, or null if the current identity is not unlocked.
+     */
+    public SQRLIdentity getCurrentIdentityForSiteIfUnlocked(SQRLUri uri) {
+        byte[] masterKey = this.mUnlockedIdentityCache.getMasterKey(this.getCurrentIdentityName());
+        if (masterKey == null) {
+            return null;
+        }
+
+        return this.createIdentity(masterKey, uri);
+    }
+
+    /**
+     * Determines whether the currently selected identity is unlocked, and can therefore be used without entering its password.
+     *
+     * @return True if the current identity is unlocked, false otherwise.
+     */
+    public boolean isCurrentIdentityUnlocked() {
+        return this.mUnlockedIdentityCache.isUnlocked(this.getCurrentIdentityName());
+    }
+
+    /**
+     * Determines whether the currently selected identity can be unlocked using only a prefix of its password.
+     *
+     * @return True if a QuickPass is available for the current identity, false otherwise.
+     */
+    public boolean isQuickPassAvailable() {
+        return this.getQuickPass(this.getCurrentIdentityName()) != null;
+    }
+
+    /**
+     * Gets the number of leading password characters needed to unlock an identity using its QuickPass.
+     *
+     * @return The QuickPass prefix length.
+     */
+    public int getQuickPassPrefixLength() {
+        QuickPass quickPass = this.getQuickPass(this.getCurrentIdentityName());
+        if (quickPass != null) {
+            return quickPass.getPrefixLength();
         }
 
-        // Create the new identity
+        return this.mQuickPassPrefixLength;
+    }
+
+    /**
+     * Configures the QuickPass created the next time an identity is decrypted using its full password.
+     *
+     * @param prefixLength  The number of leading password characters that unlock the QuickPass.
+     * @param iterations  The number of EnScrypt iterations used to protect the QuickPass.
+     * @param expiryInMillis  The length of time for which the QuickPass can be used.
+     */
+    public void setQuickPassSettings(int prefixLength, int iterations, long expiryInMillis) {
+        if (prefixLength < 1 || iterations < 1) {
+            throw new IllegalArgumentException("The QuickPass prefix length and iterations must be positive.");
+        }
+
+        this.mQuickPassPrefixLength = prefixLength;
+        this.mQuickPassIterations = iterations;
+        this.mQuickPassExpiryInMillis = expiryInMillis;
+    }
+
+    /**
+     * Locks any unlocked identity, wiping its master key from memory, discarding its QuickPass, even one still being created, and cancelling any re-encryption.
+     */
+    public void lock() {
+        // Locking the cache also cancels the re-encryptions, through its lock listener
+        this.mUnlockedIdentityCache.lock();
+        this.discardQuickPass(null);
+    }
+
+    /**
+     * Gets the cache holding the master key of the unlocked identity and the site key pairs derived from it.
+     *
+     * @return The unlocked identity cache.
+     */
+    public UnlockedIdentityCache getUnlockedIdentityCache() {
+        return this.mUnlockedIdentityCache;
+    }
+
+    /**
+     * Sets the length of time an unlocked identity can go unused before it is locked again.
+     *
+     * @param idleTimeoutInMillis  The idle timeout in milliseconds.
+     */
+    public void setUnlockedIdleTimeout(long idleTimeoutInMillis) {
+        this.mUnlockedIdentityCache.setIdleTimeout(idleTimeoutInMillis);
+    }
+
+    /**
+     * Gets the encrypted form of an identity, reading it from disk if this is the first time it has been needed.
+     *
+     * @param identityName  The name of the identity.
+     *
+     * @return The encrypted identity, or null if the identity does not exist.
+     */
+    private EncryptedIdentity getEncryptedIdentity(String identityName) {
+        EncryptedIdentity encryptedIdentity = this.mIdentities.get(identityName);
+        if (encryptedIdentity != null) {
+            return encryptedIdentity;
+        }
+
+        synchronized (this.mWriteLock) {
+            // Check again, in case it was removed, or loaded by another thread
+            if (!this.mIdentities.contains(identityName)) {
+                return null;
+            }
+            encryptedIdentity = this.mIdentities.get(identityName);
+            if (encryptedIdentity != null) {
+                return encryptedIdentity;
+            }
+
+            encryptedIdentity = this.mIdentityFolder.loadIdentity(identityName);
+            if (encryptedIdentity != null) {
+                this.mIdentities.put(identityName, encryptedIdentity);
+                return encryptedIdentity;
+            }
+
+            // The manifest no longer matches the identities on disk, so rebuild it, which also reads every identity
+            Log.w(TAG, "Identity manifest was stale, repairing.");
+            SimpleArrayMap<String, EncryptedIdentity> identities;
+            try {
+                identities = this.mIdentityFolder.repair();
+            } catch (IdentitiesCouldNotBeLoadedException ex) {
+                Log.e(TAG, "Could not repair the identities folder.", ex);
+                return null;
+            }
+            this.replaceIdentities(identities);
+            return identities.get(identityName);
+        }
+    }
+
+    /**
+     * Replaces an identity with a re-encrypted copy, as long as it has not been changed or removed since it was unlocked.
+     *
+     * @param identityName  The name of the identity.
+     * @param expectedIdentity  The encrypted identity that was re-encrypted.
+     * @param replacementIdentity  The re-encrypted identity.
+     *
+     * @return True if the identity was replaced, false otherwise.
+     */
+    public boolean replaceIdentity(String identityName, EncryptedIdentity expectedIdentity, EncryptedIdentity replacementIdentity) {
+        synchronized (this.mWriteLock) {
+            if (this.mIdentities.get(identityName) != expectedIdentity) {
+                return false;
+            }
+
+            try {
+                this.mIdentityFolder.replaceIdentity(identityName, replacementIdentity);
+            } catch (IdentityDoesNotExistException | IdentitiesCouldNotBeLoadedException | IOException ex) {
+                Log.e(TAG, "Could not replace the re-encrypted identity on disk.", ex);
+                return false;
+            }
+            this.mIdentities.put(identityName, replacementIdentity);
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the identities with those rebuilt from disk, notifying the listeners of every difference.
+     *
+     * Must be called whilst holding mWriteLock.
+     *
+     * @param identities  The identities on disk.
+     */
+    private void replaceIdentities(SimpleArrayMap<String, EncryptedIdentity> identities) {
+        String currentIdentity = this.mCurrentIdentity;
+        boolean currentIdentityRemoved = currentIdentity != null && !identities.containsKey(currentIdentity);
+        if (currentIdentityRemoved) {
+            this.mCurrentIdentity = null;
+        }
+
+        // Iterate over a copy, so that the removals do not affect the iteration
+        for (String identityName : this.getIdentityNames()) {
+            if (!identities.containsKey(identityName)) {
+                this.mIdentities.remove(identityName);
+                for (IdentityChangeListener listener : this.mChangeListeners) {
+                    listener.onIdentityRemoved(identityName);
+                }
+            }
+        }
+        for (int i = 0; i < identities.size(); i++) {
+            String identityName = identities.keyAt(i);
+            boolean added = !this.mIdentities.contains(identityName);
+            this.mIdentities.put(identityName, identities.valueAt(i));
+            if (added) {
+                for (IdentityChangeListener listener : this.mChangeListeners) {
+                    listener.onIdentityAdded(identityName);
+                }
+            }
+        }
+
+        if (currentIdentityRemoved) {
+            this.notifyCurrentIdentityChanged(null);
+        }
+    }
+
+    /**
+     * Registers a listener to be notified of each subsequent change to the identities.
+     *
+     * To avoid missing changes, the listener should be registered before reading the current identity names.
+     *
+     * @param listener  The listener to register.
+     */
+    public void addIdentityChangeListener(IdentityChangeListener listener) {
+        this.mChangeListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener previously registered using addIdentityChangeListener.
+     *
+     * @param listener  The listener to unregister.
+     */
+    public void removeIdentityChangeListener(IdentityChangeListener listener) {
+        this.mChangeListeners.remove(listener);
+    }
+
+    private void notifyCurrentIdentityChanged(String identityName) {
+        for (IdentityChangeListener listener : this.mChangeListeners) {
+            listener.onCurrentIdentityChanged(identityName);
+        }
+    }
+
+    private QuickPass getQuickPass(String identityName) {
+        QuickPass quickPass = this.mQuickPass;
+        if (quickPass == null || !quickPass.isValid() || !quickPass.getIdentityName().equals(identityName)) {
+            return null;
+        }
+
+        return quickPass;
+    }
+
+    private void discardQuickPass(String identityName) {
+        synchronized (this.mQuickPassLock) {
+            if (this.mPendingQuickPass != null && (identityName == null || this.mPendingQuickPassIdentity.equals(identityName))) {
+                this.mPendingQuickPass.cancel();
+                this.mPendingQuickPass = null;
+                this.mPendingQuickPassIdentity = null;
+            }
+
+            QuickPass quickPass = this.mQuickPass;
+            if (quickPass != null && (identityName == null || quickPass.getIdentityName().equals(identityName))) {
+                quickPass.discard();
+                this.mQuickPass = null;
+            }
+        }
+    }
+
+    /**
+     * Creates a QuickPass for an identity that has just been unlocked on a background thread, replacing any previous QuickPass once done.
+     *
+     * Returns immediately. The QuickPass is not created if the login is cancelled, or if the identities are locked or a later QuickPass is
+     * scheduled before it has been created.
+     *
+     * @param identityName  The name of the identity.
+     * @param masterKey  The decrypted master key, which is copied.
+     * @param password  The full password that unlocked the identity.
+     * @param loginCancellationSignal  The signal used to cancel the login that unlocked the identity, or null.
+     */
+    private void scheduleQuickPass(final String identityName, byte[] masterKey, final String password, final CancellationSignal loginCancellationSignal) {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        synchronized (this.mQuickPassLock) {
+            if (this.mPendingQuickPass != null) {
+                this.mPendingQuickPass.cancel();
+            }
+            this.mPendingQuickPass = cancellationSignal;
+            this.mPendingQuickPassIdentity = identityName;
+        }
+
+        final byte[] masterKeyCopy = masterKey.clone();
+        final int prefixLength = this.mQuickPassPrefixLength;
+        final int iterations = this.mQuickPassIterations;
+        final long expiryInMillis = this.mQuickPassExpiryInMillis;
+        this.mQuickPassExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                QuickPass quickPass = null;
+                try {
+                    if (!isQuickPassCancelled(cancellationSignal, loginCancellationSignal)) {
+                        quickPass = QuickPass.create(identityName, masterKeyCopy, password, prefixLength, iterations, expiryInMillis, cancellationSignal);
+                    }
+                } catch (OperationCanceledException ex) {
+                    Log.i(TAG, "QuickPass creation was cancelled.");
+                } catch (GeneralSecurityException ex) {
+                    Log.e(TAG, "Could not create QuickPass.", ex);
+                } finally {
+                    Arrays.fill(masterKeyCopy, (byte)0);
+                }
+
+                publishQuickPass(quickPass, cancellationSignal, loginCancellationSignal);
+            }
+        });
+    }
+
+    private void publishQuickPass(QuickPass quickPass, CancellationSignal cancellationSignal, CancellationSignal loginCancellationSignal) {
+        synchronized (this.mQuickPassLock) {
+            boolean superseded = this.mPendingQuickPass != cancellationSignal;
+            if (!superseded) {
+                this.mPendingQuickPass = null;
+                this.mPendingQuickPassIdentity = null;
+            }
+
+            if (superseded || isQuickPassCancelled(cancellationSignal, loginCancellationSignal)) {
+                if (quickPass != null) {
+                    quickPass.discard();
+                }
+                return;
+            }
+
+            QuickPass previousQuickPass = this.mQuickPass;
+            if (previousQuickPass != null) {
+                previousQuickPass.discard();
+            }
+            this.mQuickPass = quickPass;
+        }
+    }
+
+    private static boolean isQuickPassCancelled(CancellationSignal cancellationSignal, CancellationSignal loginCancellationSignal) {
+        return cancellationSignal.isCanceled() || (loginCancellationSignal != null && loginCancellationSignal.isCanceled());
+    }
+
+    /**
+     * Creates the SQRLIdentity for the given site from a decrypted master key.
+     *
+     * @param masterKey  The decrypted master key, which is owned by the new identity.
+     * @param uri  The SQRLUri for the site.
+     *
+     * @return The SQRLIdentity for the site.
+     */
+    private SQRLIdentity createIdentity(byte[] masterKey, SQRLUri uri) {
         SQRLIdentity identity;
         try {
-            identity = new SQRLIdentity(masterKeyForCurrentIdentity, uri);
+            identity = new SQRLIdentity(masterKey, uri, this.mUnlockedIdentityCache);
         } catch (InvalidMasterKeyException ex) {
             Log.wtf(TAG, "According to SQRLIdentity, the master key was invalid.", ex);
             throw new RuntimeException(ex);
@@ -221,6 +876,6 @@ public class SQRLIdentityManager {
      * @return  True if the identity exists, false otherwise.
      */
     public boolean identityExists(String identityName) {
-        return this.mIdentities.containsKey(identityName);
+        return this.mIdentities.contains(identityName);
     }
 }
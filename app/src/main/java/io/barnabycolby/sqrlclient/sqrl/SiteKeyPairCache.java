@@ -0,0 +1,165 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used, cache of the per-site key pairs derived from identity master keys.
+ *
+ * <p>
+ * Deriving a site key pair requires an HMAC and an Ed25519 key generation, which would otherwise be repeated every time a SQRLIdentity is
+ * constructed. Entries are keyed by both the master key and the host, and are held in direct buffers so that they can be reliably wiped when
+ * evicted. Each UnlockedIdentityCache owns one of these caches, and clears it whenever its identity is locked.
+ * </p>
+ *
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class SiteKeyPairCache {
+    /**
+     * The number of key pairs held unless another capacity is given.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private static final int MASTER_KEY_LENGTH = 32;
+    private static final int PUBLIC_KEY_LENGTH = 32;
+    private static final int PRIVATE_KEY_LENGTH = 64;
+
+    private LinkedHashMap<Key, ByteBuffer> mEntries;
+
+    /**
+     * Constructs a new, empty, cache.
+     *
+     * @param capacity  The maximum number of key pairs to hold before the least recently used is evicted.
+     */
+    public SiteKeyPairCache(final int capacity) {
+        // An access ordered map gives us least recently used ordering for free
+        this.mEntries = new LinkedHashMap<Key, ByteBuffer>(capacity + 1, 1.0f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ByteBuffer> eldest) {
+                if (this.size() > capacity) {
+                    wipe(eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the key pair for the given master key and host, if it is cached.
+     *
+     * @param masterKey  The master key of the identity.
+     * @param host  The host of the site.
+     * @param publicKey  The array to copy the public key into.
+     * @param privateKey  The array to copy the private key into.
+     *
+     * @return True if the key pair was cached and has been copied into the given arrays, false otherwise.
+     */
+    public synchronized boolean get(byte[] masterKey, String host, byte[] publicKey, byte[] privateKey) {
+        ByteBuffer entry = this.mEntries.get(new Key(host, ByteBuffer.wrap(masterKey)));
+        if (entry == null) {
+            return false;
+        }
+
+        entry.position(MASTER_KEY_LENGTH);
+        entry.get(publicKey, 0, PUBLIC_KEY_LENGTH);
+        entry.get(privateKey, 0, PRIVATE_KEY_LENGTH);
+        return true;
+    }
+
+    /**
+     * Caches the key pair for the given master key and host. All of the arrays are copied, so may be wiped by the caller afterwards.
+     *
+     * @param masterKey  The master key of the identity.
+     * @param host  The host of the site.
+     * @param publicKey  The public key for the site.
+     * @param privateKey  The private key for the site.
+     */
+    public synchronized void put(byte[] masterKey, String host, byte[] publicKey, byte[] privateKey) {
+        if (masterKey.length != MASTER_KEY_LENGTH || publicKey.length != PUBLIC_KEY_LENGTH || privateKey.length != PRIVATE_KEY_LENGTH) {
+            throw new IllegalArgumentException("The master key and key pair are of the wrong lengths.");
+        }
+
+        ByteBuffer entry = ByteBuffer.allocateDirect(MASTER_KEY_LENGTH + PUBLIC_KEY_LENGTH + PRIVATE_KEY_LENGTH);
+        entry.put(masterKey);
+        entry.put(publicKey);
+        entry.put(privateKey);
+
+        // The existing key must be removed first, as the map would otherwise keep it, and it refers to the buffer that is about to be wiped
+        Key key = new Key(host, entry);
+        ByteBuffer previous = this.mEntries.remove(key);
+        if (previous != null) {
+            wipe(previous);
+        }
+        this.mEntries.put(key, entry);
+    }
+
+    /**
+     * Gets the number of cached key pairs.
+     *
+     * @return The number of key pairs.
+     */
+    public synchronized int size() {
+        return this.mEntries.size();
+    }
+
+    /**
+     * Wipes and removes every cached key pair.
+     */
+    public synchronized void clear() {
+        Iterator<ByteBuffer> iterator = this.mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            wipe(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    private static void wipe(ByteBuffer entry) {
+        for (int i = 0; i < entry.capacity(); i++) {
+            entry.put(i, (byte)0);
+        }
+    }
+
+    /**
+     * Identifies a cache entry by host and master key, without keeping its own copy of the master key.
+     */
+    private static class Key {
+        private String mHost;
+        private ByteBuffer mMasterKey;
+
+        public Key(String host, ByteBuffer masterKey) {
+            this.mHost = host;
+            this.mMasterKey = masterKey;
+        }
+
+        @Override
+        public int hashCode() {
+            // The master key is deliberately left out so that it cannot leak through the hash
+            return this.mHost.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object thatBeforeCast) {
+            if (!(thatBeforeCast instanceof Key)) {
+                return false;
+            }
+
+            Key that = (Key)thatBeforeCast;
+            if (!this.mHost.equals(that.mHost)) {
+                return false;
+            }
+
+            // Compare the master keys in constant time
+            int difference = 0;
+            for (int i = 0; i < MASTER_KEY_LENGTH; i++) {
+                difference |= this.mMasterKey.get(i) ^ that.mMasterKey.get(i);
+            }
+            return difference == 0;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import android.support.v4.util.SimpleArrayMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A thread safe index of identities, kept sorted by name so that it can be listed in order and searched by prefix.
+ *
+ * <p>
+ * Names are ordered case insensitively, with names that differ only by case ordered by their exact characters. Insertion, removal and
+ * lookup take O(log n) time, and none of them block readers. A prefix search takes O(log n) time to find the first match, and returns a live
+ * view rather than a copy. Iterating over the names is weakly consistent: it never fails due to a concurrent change, but may or may not
+ * reflect changes made after it began.
+ * </p>
+ *
+ * <p>
+ * Identities are only read from disk the first time they are needed, so a name may be indexed before its encrypted identity is known.
+ * </p>
+ */
+public class SortedIdentityIndex {
+    /**
+     * The order in which identity names are listed.
+     */
+    public static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            int result = String.CASE_INSENSITIVE_ORDER.compare(lhs, rhs);
+            return (result != 0) ? result : lhs.compareTo(rhs);
+        }
+    };
+
+    /**
+     * The largest character, which sorts after every character that can follow a prefix.
+     */
+    private static final char MAX_CHARACTER = Character.MAX_VALUE;
+
+    /**
+     * Holds the encrypted identity, if it has been read from disk. ConcurrentSkipListMap does not permit null values.
+     */
+    private static class Entry {
+        public final EncryptedIdentity encryptedIdentity;
+
+        public Entry(EncryptedIdentity encryptedIdentity) {
+            this.encryptedIdentity = encryptedIdentity;
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Entry> mEntries = new ConcurrentSkipListMap<String, Entry>(NAME_ORDER);
+    private final SortedSet<String> mNames = Collections.unmodifiableSortedSet(this.mEntries.keySet());
+
+    /**
+     * Constructs an empty index.
+     */
+    public SortedIdentityIndex() {
+    }
+
+    /**
+     * Constructs an index containing the given identities.
+     *
+     * @param identities  A mapping from identity name to encrypted identity, where the encrypted identity may be null if it has not been
+     *                    read yet.
+     */
+    public SortedIdentityIndex(SimpleArrayMap<String, EncryptedIdentity> identities) {
+        this.putAll(identities);
+    }
+
+    /**
+     * Adds an identity to the index, or replaces the encrypted identity of an existing one.
+     *
+     * @param identityName  The name of the identity.
+     * @param encryptedIdentity  The encrypted identity, or null if it has not been read yet.
+     */
+    public void put(String identityName, EncryptedIdentity encryptedIdentity) {
+        this.mEntries.put(identityName, new Entry(encryptedIdentity));
+    }
+
+    /**
+     * Adds every identity in a map to the index.
+     *
+     * @param identities  A mapping from identity name to encrypted identity, where the encrypted identity may be null.
+     */
+    public void putAll(SimpleArrayMap<String, EncryptedIdentity> identities) {
+        for (int i = 0; i < identities.size(); i++) {
+            this.put(identities.keyAt(i), identities.valueAt(i));
+        }
+    }
+
+    /**
+     * Removes an identity from the index.
+     *
+     * @param identityName  The name of the identity.
+     *
+     * @return True if the identity was in the index, false otherwise.
+     */
+    public boolean remove(String identityName) {
+        return this.mEntries.remove(identityName) != null;
+    }
+
+    /**
+     * Determines whether an identity is in the index.
+     *
+     * @param identityName  The name of the identity, which may be null.
+     *
+     * @return True if the identity is in the index, false otherwise.
+     */
+    public boolean contains(String identityName) {
+        return identityName != null && this.mEntries.containsKey(identityName);
+    }
+
+    /**
+     * Gets the encrypted form of an identity.
+     *
+     * @param identityName  The name of the identity.
+     *
+     * @return The encrypted identity, or null if the identity is not in the index or has not been read yet.
+     */
+    public EncryptedIdentity get(String identityName) {
+        Entry entry = this.mEntries.get(identityName);
+        return (entry == null) ? null : entry.encryptedIdentity;
+    }
+
+    public int size() {
+        return this.mEntries.size();
+    }
+
+    public boolean isEmpty() {
+        return this.mEntries.isEmpty();
+    }
+
+    /**
+     * Gets a live, read only, view of the identity names in sorted order.
+     *
+     * @return The identity names.
+     */
+    public SortedSet<String> getNames() {
+        return this.mNames;
+    }
+
+    /**
+     * Gets a live, read only, view of the identity names that start with the given prefix, ignoring case, in sorted order.
+     *
+     * @param prefix  The prefix to search for.
+     *
+     * @return The matching identity names.
+     */
+    public SortedSet<String> getNamesWithPrefix(String prefix) {
+        if (prefix.isEmpty()) {
+            return this.mNames;
+        }
+
+        // Every name starting with the prefix sorts between the prefix itself and the prefix followed by the largest character. Names that
+        // are the prefix in a different case are tie-broken by their exact characters, so the search starts from the lowest such variant.
+        String lowestVariant = lowestCaseVariant(prefix);
+        return Collections.unmodifiableSortedSet(this.mEntries.keySet().subSet(lowestVariant, true, prefix + MAX_CHARACTER, true));
+    }
+
+    private static String lowestCaseVariant(String text) {
+        char[] characters = text.toCharArray();
+        for (int i = 0; i < characters.length; i++) {
+            char character = characters[i];
+            character = (char)Math.min(character, Character.toUpperCase(character));
+            character = (char)Math.min(character, Character.toLowerCase(character));
+            characters[i] = character;
+        }
+        return new String(characters);
+    }
+
+    /**
+     * Finds the identity names that contain the given text anywhere, ignoring case, in sorted order.
+     *
+     * Unlike a prefix search, this must examine every name.
+     *
+     * @param text  The text to search for.
+     *
+     * @return A new list of the matching identity names.
+     */
+    public List<String> findNamesContaining(String text) {
+        String lowerCaseText = text.toLowerCase(Locale.ROOT);
+        List<String> matches = new ArrayList<String>();
+        for (String identityName : this.mNames) {
+            if (identityName.toLowerCase(Locale.ROOT).contains(lowerCaseText)) {
+                matches.add(identityName);
+            }
+        }
+        return matches;
+    }
+}
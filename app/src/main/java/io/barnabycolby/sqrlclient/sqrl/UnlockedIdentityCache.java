@@ -0,0 +1,235 @@
+package io.barnabycolby.sqrlclient.sqrl;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the decrypted master key of the most recently unlocked identity, so that back-to-back logins do not each require a full EnScrypt
+ * decryption.
+ *
+ * <p>
+ * The master key is kept in a direct buffer, outside of the garbage collected heap, so that it is never copied around by the garbage
+ * collector and can be reliably overwritten. It is wiped when the cache is explicitly locked, when a different identity is unlocked, and once
+ * the cache has not been used for the idle timeout. The site key pairs derived from the master key are cached alongside it, but only whilst
+ * it is unlocked, and are evicted whenever it is wiped. A lock listener can be registered to hear about every lock, including those caused
+ * by the idle timeout.
+ * </p>
+ *
+ * <p>
+ * This class is thread safe.
+ * </p>
+ */
+public class UnlockedIdentityCache {
+    /**
+     * The idle timeout used unless another is configured.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_IN_MILLIS = 5 * 60 * 1000;
+
+    private static final int MASTER_KEY_LENGTH = 32;
+
+    /**
+     * Listens for the cache being locked.
+     */
+    public interface LockListener {
+        /**
+         * Called whenever the cache is locked, whether explicitly or because the idle timeout passed. This may be called on the main thread
+         * whilst holding the lock on the cache, so it should return quickly and must not block on other threads that use the cache.
+         */
+        void onLocked();
+    }
+
+    private ByteBuffer mMasterKey = ByteBuffer.allocateDirect(MASTER_KEY_LENGTH);
+    private SiteKeyPairCache mSiteKeyPairs = new SiteKeyPairCache(SiteKeyPairCache.DEFAULT_CAPACITY);
+    private String mIdentityName;
+    private long mIdleTimeoutInMillis;
+    private long mLastUsedTime;
+    private LockListener mLockListener;
+
+    private Handler mHandler;
+    private Runnable mLockRunnable = new Runnable() {
+        @Override
+        public void run() {
+            lockIfIdle();
+        }
+    };
+
+    /**
+     * Constructs a new, locked, cache.
+     *
+     * @param idleTimeoutInMillis  The length of time the cache can go unused before it locks itself.
+     */
+    public UnlockedIdentityCache(long idleTimeoutInMillis) {
+        this.mIdleTimeoutInMillis = idleTimeoutInMillis;
+        this.mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Stores the master key of the given identity, replacing any identity that is already unlocked.
+     *
+     * @param identityName  The name of the identity.
+     * @param masterKey  The decrypted master key, which is copied and so may be wiped by the caller afterwards.
+     */
+    public synchronized void unlock(String identityName, byte[] masterKey) {
+        if (masterKey.length != MASTER_KEY_LENGTH) {
+            throw new IllegalArgumentException("Master key must be " + MASTER_KEY_LENGTH + " bytes long.");
+        }
+
+        this.wipe();
+        this.mMasterKey.clear();
+        this.mMasterKey.put(masterKey);
+        this.mIdentityName = identityName;
+        this.touch();
+    }
+
+    /**
+     * Gets a copy of the master key of the given identity, if that identity is unlocked. This resets the idle timeout.
+     *
+     * @param identityName  The name of the identity.
+     *
+     * @return A copy of the master key that the caller should wipe once finished with, or null if the identity is not unlocked.
+     */
+    public synchronized byte[] getMasterKey(String identityName) {
+        if (!this.isUnlocked(identityName)) {
+            return null;
+        }
+
+        byte[] masterKey = new byte[MASTER_KEY_LENGTH];
+        this.mMasterKey.clear();
+        this.mMasterKey.get(masterKey);
+        this.touch();
+        return masterKey;
+    }
+
+    /**
+     * Retrieves the cached key pair for the given site, as long as the master key belongs to the unlocked identity.
+     *
+     * @param masterKey  The master key of the identity.
+     * @param host  The host of the site.
+     * @param publicKey  The array to copy the public key into.
+     * @param privateKey  The array to copy the private key into.
+     *
+     * @return True if the key pair was cached and has been copied into the given arrays, false otherwise.
+     */
+    public synchronized boolean getSiteKeyPair(byte[] masterKey, String host, byte[] publicKey, byte[] privateKey) {
+        if (!this.isUnlockedWith(masterKey)) {
+            return false;
+        }
+
+        return this.mSiteKeyPairs.get(masterKey, host, publicKey, privateKey);
+    }
+
+    /**
+     * Caches the key pair for the given site, as long as the master key belongs to the unlocked identity. Otherwise the key pair is not
+     * cached, so that nothing derived from a master key outlives its unlocking.
+     *
+     * @param masterKey  The master key of the identity.
+     * @param host  The host of the site.
+     * @param publicKey  The public key for the site, which is copied.
+     * @param privateKey  The private key for the site, which is copied.
+     */
+    public synchronized void putSiteKeyPair(byte[] masterKey, String host, byte[] publicKey, byte[] privateKey) {
+        if (!this.isUnlockedWith(masterKey)) {
+            return;
+        }
+
+        this.mSiteKeyPairs.put(masterKey, host, publicKey, privateKey);
+    }
+
+    /**
+     * Determines whether the given identity is unlocked.
+     *
+     * @param identityName  The name of the identity.
+     *
+     * @return True if the identity is unlocked and the idle timeout has not passed, false otherwise.
+     */
+    public synchronized boolean isUnlocked(String identityName) {
+        this.lockIfIdle();
+        return this.mIdentityName != null && this.mIdentityName.equals(identityName);
+    }
+
+    /**
+     * Wipes the cached master key and notifies the lock listener.
+     */
+    public synchronized void lock() {
+        this.mHandler.removeCallbacks(this.mLockRunnable);
+        this.wipe();
+        if (this.mLockListener != null) {
+            this.mLockListener.onLocked();
+        }
+    }
+
+    /**
+     * Sets the listener to notify whenever the cache is locked.
+     *
+     * @param lockListener  The listener, or null to stop notifying.
+     */
+    public synchronized void setLockListener(LockListener lockListener) {
+        this.mLockListener = lockListener;
+    }
+
+    /**
+     * Changes the idle timeout, which takes effect from the last time the cache was used.
+     *
+     * @param idleTimeoutInMillis  The length of time the cache can go unused before it locks itself.
+     */
+    public synchronized void setIdleTimeout(long idleTimeoutInMillis) {
+        this.mIdleTimeoutInMillis = idleTimeoutInMillis;
+        if (this.mIdentityName != null) {
+            this.scheduleLock();
+        }
+        this.lockIfIdle();
+    }
+
+    /**
+     * Gets the idle timeout.
+     *
+     * @return The length of time the cache can go unused before it locks itself.
+     */
+    public synchronized long getIdleTimeout() {
+        return this.mIdleTimeoutInMillis;
+    }
+
+    private void touch() {
+        this.mLastUsedTime = SystemClock.elapsedRealtime();
+        this.scheduleLock();
+    }
+
+    private void scheduleLock() {
+        // The handler's clock stops while the device is asleep, so lockIfIdle also checks the elapsed time whenever the cache is accessed
+        this.mHandler.removeCallbacks(this.mLockRunnable);
+        long remaining = Math.max(0, this.mLastUsedTime + this.mIdleTimeoutInMillis - SystemClock.elapsedRealtime());
+        this.mHandler.postDelayed(this.mLockRunnable, remaining);
+    }
+
+    private synchronized void lockIfIdle() {
+        if (this.mIdentityName != null && SystemClock.elapsedRealtime() - this.mLastUsedTime >= this.mIdleTimeoutInMillis) {
+            this.lock();
+        }
+    }
+
+    private boolean isUnlockedWith(byte[] masterKey) {
+        this.lockIfIdle();
+        if (this.mIdentityName == null || masterKey.length != MASTER_KEY_LENGTH) {
+            return false;
+        }
+
+        // Compare the master keys in constant time
+        int difference = 0;
+        for (int i = 0; i < MASTER_KEY_LENGTH; i++) {
+            difference |= this.mMasterKey.get(i) ^ masterKey[i];
+        }
+        return difference == 0;
+    }
+
+    private void wipe() {
+        this.mSiteKeyPairs.clear();
+        this.mMasterKey.clear();
+        for (int i = 0; i < MASTER_KEY_LENGTH; i++) {
+            this.mMasterKey.put(i, (byte)0);
+        }
+        this.mIdentityName = null;
+    }
+}
@@ -0,0 +1,154 @@
+package io.barnabycolby.sqrlclient.sqrl.checkpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A snapshot of a partially completed EnScrypt derivation, from which the derivation can be resumed.
+ *
+ * <p>
+ * The checkpoint holds the iteration count, the running XOR accumulator and the last scrypt output. It deliberately holds nothing that is
+ * cheaper to compute from a password than the iterations it records, such as the output of the first iteration, so it cannot be used to
+ * test a guessed password quickly. As a result a checkpoint cannot tell whether it is being resumed with the right password, which is
+ * why checkpoint stores bind each checkpoint to a key that only the rightful owner of the derivation holds.
+ * </p>
+ *
+ * <p>
+ * The contents of a checkpoint are derived from the password, so they should only ever be stored in encrypted form.
+ * </p>
+ */
+public class EnScryptCheckpoint {
+    private static final int FORMAT_VERSION = 2;
+    private static final int OUTPUT_LENGTH = 32;
+
+    private byte[] mSalt;
+    private int mTargetIterations;
+    private int mCompletedIterations;
+    private byte[] mAccumulator;
+    private byte[] mLastOutput;
+
+    /**
+     * Constructs a new checkpoint, copying the given arrays so that the derivation can continue to modify them.
+     *
+     * @param salt  The salt the derivation was started with.
+     * @param targetIterations  The total number of iterations the derivation will perform.
+     * @param completedIterations  The number of iterations completed so far.
+     * @param accumulator  The XOR of every scrypt output so far.
+     * @param lastOutput  The output of the most recent iteration, which is the salt of the next.
+     */
+    public EnScryptCheckpoint(byte[] salt, int targetIterations, int completedIterations, byte[] accumulator, byte[] lastOutput) {
+        if (accumulator.length != OUTPUT_LENGTH || lastOutput.length != OUTPUT_LENGTH) {
+            throw new IllegalArgumentException("Checkpoint outputs must be " + OUTPUT_LENGTH + " bytes long.");
+        }
+
+        this.mSalt = salt.clone();
+        this.mTargetIterations = targetIterations;
+        this.mCompletedIterations = completedIterations;
+        this.mAccumulator = accumulator.clone();
+        this.mLastOutput = lastOutput.clone();
+    }
+
+    /**
+     * Deserialises a checkpoint previously serialised using toByteArray.
+     *
+     * @param serialised  The serialised checkpoint.
+     *
+     * @return The checkpoint.
+     *
+     * @throws IOException  If the serialised checkpoint was malformed.
+     */
+    public static EnScryptCheckpoint fromByteArray(byte[] serialised) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(serialised));
+        int version = input.readUnsignedByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported checkpoint version: " + version);
+        }
+
+        int saltLength = input.readUnsignedShort();
+        byte[] salt = new byte[saltLength];
+        input.readFully(salt);
+        int targetIterations = input.readInt();
+        int completedIterations = input.readInt();
+        byte[] accumulator = new byte[OUTPUT_LENGTH];
+        input.readFully(accumulator);
+        byte[] lastOutput = new byte[OUTPUT_LENGTH];
+        input.readFully(lastOutput);
+
+        if (completedIterations < 1 || completedIterations > targetIterations || input.available() != 0) {
+            throw new IOException("Malformed checkpoint.");
+        }
+
+        EnScryptCheckpoint checkpoint = new EnScryptCheckpoint(salt, targetIterations, completedIterations, accumulator, lastOutput);
+        Arrays.fill(accumulator, (byte)0);
+        Arrays.fill(lastOutput, (byte)0);
+        return checkpoint;
+    }
+
+    /**
+     * Serialises this checkpoint.
+     *
+     * @return The serialised checkpoint.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeByte(FORMAT_VERSION);
+            output.writeShort(this.mSalt.length);
+            output.write(this.mSalt);
+            output.writeInt(this.mTargetIterations);
+            output.writeInt(this.mCompletedIterations);
+            output.write(this.mAccumulator);
+            output.write(this.mLastOutput);
+        } catch (IOException ex) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(ex);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Determines whether this checkpoint belongs to a derivation with the given parameters.
+     *
+     * @param salt  The salt of the derivation.
+     * @param targetIterations  The total number of iterations of the derivation.
+     *
+     * @return True if the parameters match, false otherwise.
+     */
+    public boolean matches(byte[] salt, int targetIterations) {
+        return this.mTargetIterations == targetIterations && Arrays.equals(this.mSalt, salt);
+    }
+
+    /**
+     * Overwrites the key material held by this checkpoint. The checkpoint must not be used afterwards.
+     */
+    public void wipe() {
+        Arrays.fill(this.mAccumulator, (byte)0);
+        Arrays.fill(this.mLastOutput, (byte)0);
+    }
+
+    public byte[] getSalt() {
+        return this.mSalt;
+    }
+
+    public int getTargetIterations() {
+        return this.mTargetIterations;
+    }
+
+    public int getCompletedIterations() {
+        return this.mCompletedIterations;
+    }
+
+    public byte[] getAccumulator() {
+        return this.mAccumulator;
+    }
+
+    public byte[] getLastOutput() {
+        return this.mLastOutput;
+    }
+}
@@ -0,0 +1,294 @@
+package io.barnabycolby.sqrlclient.sqrl.checkpoint;
+
+import android.os.Build;
+import android.util.Log;
+
+import io.barnabycolby.sqrlclient.App;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stores EnScrypt checkpoints in encrypted form, so that an interrupted derivation can be resumed.
+ *
+ * <p>
+ * Checkpoints are encrypted using AES-GCM, with the checkpoint id as additional authenticated data so that a checkpoint cannot be moved to a
+ * different id. Subclasses provide the key and the storage for the encrypted checkpoints.
+ * </p>
+ *
+ * <p>
+ * A checkpoint may also be bound to a secret held by the owner of the derivation, such as the master key being encrypted. A bound
+ * checkpoint is first sealed with a key derived from that secret, so it can only be loaded by someone holding the same secret, and what
+ * is stored is never derived from the password alone. A derivation with no other secret to hold, such as a decryption, can bind its
+ * checkpoints to a secret derived from the password using deriveBindingSecret instead.
+ * </p>
+ *
+ * <p>
+ * Checkpointing is an optimisation, so none of the methods of this class throw. If a checkpoint cannot be stored or retrieved, the failure
+ * is logged and the derivation simply starts from the beginning.
+ * </p>
+ */
+public abstract class EnScryptCheckpointStore {
+    private static final String TAG = EnScryptCheckpointStore.class.getName();
+    private static final int IV_LENGTH = 12;
+
+    private static EnScryptCheckpointStore sInstance;
+
+    /**
+     * Gets the shared checkpoint store.
+     *
+     * Where the Android Keystore can hold AES keys (API 23 and above) the checkpoints are stored on disk, allowing derivations to survive the
+     * process being killed. Otherwise they are kept in memory, which only allows derivations that were cancelled to be resumed.
+     *
+     * @return The shared checkpoint store.
+     */
+    public static synchronized EnScryptCheckpointStore getInstance() {
+        if (sInstance == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                File checkpointsFolder = new File(App.getContext().getNoBackupFilesDir(), "enscryptCheckpoints");
+                sInstance = new FileEnScryptCheckpointStore(checkpointsFolder);
+            } else {
+                sInstance = new MemoryEnScryptCheckpointStore();
+            }
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Loads the checkpoint with the given id.
+     *
+     * @param id  The id of the checkpoint.
+     *
+     * @return The checkpoint, or null if there is no valid checkpoint with the given id.
+     */
+    public EnScryptCheckpoint load(String id) {
+        return this.load(id, null);
+    }
+
+    /**
+     * Loads the checkpoint with the given id, which must have been bound to the given secret when it was saved.
+     *
+     * @param id  The id of the checkpoint.
+     * @param bindingSecret  The secret the checkpoint was bound to, or null if it was not bound.
+     *
+     * @return The checkpoint, or null if there is no valid checkpoint with the given id and secret.
+     */
+    public synchronized EnScryptCheckpoint load(String id, byte[] bindingSecret) {
+        byte[] encrypted = null;
+        byte[] sealed = null;
+        byte[] serialised = null;
+        try {
+            encrypted = this.read(id);
+            if (encrypted == null) {
+                return null;
+            }
+            if (encrypted.length <= IV_LENGTH) {
+                throw new IOException("Checkpoint is too short.");
+            }
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            GCMParameterSpec params = new GCMParameterSpec(128, encrypted, 0, IV_LENGTH);
+            cipher.init(Cipher.DECRYPT_MODE, this.getKey(), params);
+            cipher.updateAAD(id.getBytes(Charset.forName("UTF-8")));
+            sealed = cipher.doFinal(encrypted, IV_LENGTH, encrypted.length - IV_LENGTH);
+            serialised = (bindingSecret == null) ? sealed : unseal(id, bindingSecret, sealed);
+            return EnScryptCheckpoint.fromByteArray(serialised);
+        } catch (GeneralSecurityException | IOException ex) {
+            Log.w(TAG, "Discarding unreadable EnScrypt checkpoint: " + ex.getMessage());
+            this.remove(id);
+            return null;
+        } finally {
+            if (sealed != null) {
+                Arrays.fill(sealed, (byte)0);
+            }
+            if (serialised != null) {
+                Arrays.fill(serialised, (byte)0);
+            }
+        }
+    }
+
+    /**
+     * Saves the given checkpoint, replacing any existing checkpoint with the same id.
+     *
+     * @param id  The id of the checkpoint.
+     * @param checkpoint  The checkpoint to save.
+     */
+    public void save(String id, EnScryptCheckpoint checkpoint) {
+        this.save(id, null, checkpoint);
+    }
+
+    /**
+     * Saves the given checkpoint bound to the given secret, replacing any existing checkpoint with the same id.
+     *
+     * @param id  The id of the checkpoint.
+     * @param bindingSecret  The secret that must be supplied to load the checkpoint, or null if it should not be bound.
+     * @param checkpoint  The checkpoint to save.
+     */
+    public synchronized void save(String id, byte[] bindingSecret, EnScryptCheckpoint checkpoint) {
+        byte[] serialised = checkpoint.toByteArray();
+        byte[] sealed = null;
+        try {
+            sealed = (bindingSecret == null) ? serialised : seal(id, bindingSecret, serialised);
+
+            // The IV is chosen by the cipher, as keys held by the Android Keystore do not accept caller supplied IVs for encryption
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, this.getKey());
+            byte[] iv = cipher.getIV();
+            if (iv == null || iv.length != IV_LENGTH) {
+                throw new GeneralSecurityException("Unexpected IV length.");
+            }
+            cipher.updateAAD(id.getBytes(Charset.forName("UTF-8")));
+            byte[] ciphertext = cipher.doFinal(sealed);
+
+            ByteBuffer encrypted = ByteBuffer.allocate(IV_LENGTH + ciphertext.length);
+            encrypted.put(iv);
+            encrypted.put(ciphertext);
+            this.write(id, encrypted.array());
+        } catch (GeneralSecurityException | IOException ex) {
+            Log.w(TAG, "Could not save EnScrypt checkpoint: " + ex.getMessage());
+        } finally {
+            Arrays.fill(serialised, (byte)0);
+            if (sealed != null) {
+                Arrays.fill(sealed, (byte)0);
+            }
+        }
+    }
+
+    /**
+     * Removes the checkpoint with the given id, if it exists.
+     *
+     * @param id  The id of the checkpoint.
+     */
+    public synchronized void remove(String id) {
+        try {
+            this.delete(id);
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not remove EnScrypt checkpoint: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Derives a secret from a password that checkpoints can be bound to, for derivations that hold no other secret.
+     *
+     * The password is MACed under a key that never leaves this store, so a checkpoint bound to one password cannot be loaded with another,
+     * and neither the binding secret nor anything stored can be derived from the password alone.
+     *
+     * @param id  The id of the checkpoint that the secret will be used with.
+     * @param password  The password being used for the derivation.
+     *
+     * @return The binding secret, which the caller should wipe once the derivation is finished, or null if it could not be derived, in which
+     *         case the derivation should not be checkpointed.
+     */
+    public synchronized byte[] deriveBindingSecret(String id, String password) {
+        byte[] passwordBytes = password.getBytes(Charset.forName("UTF-8"));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(this.getBindingKey());
+            mac.update(id.getBytes(Charset.forName("UTF-8")));
+            mac.update((byte)0);
+            return mac.doFinal(passwordBytes);
+        } catch (GeneralSecurityException ex) {
+            Log.w(TAG, "Could not derive EnScrypt checkpoint binding secret: " + ex.getMessage());
+            return null;
+        } finally {
+            Arrays.fill(passwordBytes, (byte)0);
+        }
+    }
+
+    private static byte[] seal(String id, byte[] bindingSecret, byte[] serialised) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        new SecureRandom().nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, deriveSealingKey(id, bindingSecret), new GCMParameterSpec(128, iv));
+        byte[] ciphertext = cipher.doFinal(serialised);
+
+        ByteBuffer sealed = ByteBuffer.allocate(IV_LENGTH + ciphertext.length);
+        sealed.put(iv);
+        sealed.put(ciphertext);
+        return sealed.array();
+    }
+
+    private static byte[] unseal(String id, byte[] bindingSecret, byte[] sealed) throws GeneralSecurityException, IOException {
+        if (sealed.length <= IV_LENGTH) {
+            throw new IOException("Checkpoint is too short.");
+        }
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, deriveSealingKey(id, bindingSecret), new GCMParameterSpec(128, sealed, 0, IV_LENGTH));
+        return cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH);
+    }
+
+    /**
+     * Derives the key that seals a bound checkpoint, which differs for every checkpoint id.
+     */
+    private static Key deriveSealingKey(String id, byte[] bindingSecret) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(bindingSecret, "HmacSHA256"));
+        byte[] keyBytes = mac.doFinal(("EnScrypt checkpoint " + id).getBytes(Charset.forName("UTF-8")));
+        try {
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(keyBytes, (byte)0);
+        }
+    }
+
+    /**
+     * Gets the key used to encrypt and decrypt checkpoints.
+     *
+     * @return The AES key.
+     *
+     * @throws GeneralSecurityException  If the key could not be obtained.
+     */
+    protected abstract Key getKey() throws GeneralSecurityException;
+
+    /**
+     * Gets the HMAC-SHA256 key used to derive binding secrets from passwords.
+     *
+     * @return The HMAC key.
+     *
+     * @throws GeneralSecurityException  If the key could not be obtained.
+     */
+    protected abstract Key getBindingKey() throws GeneralSecurityException;
+
+    /**
+     * Reads the encrypted checkpoint with the given id.
+     *
+     * @param id  The id of the checkpoint.
+     *
+     * @return The encrypted checkpoint, or null if it does not exist.
+     *
+     * @throws IOException  If the checkpoint exists but could not be read.
+     */
+    protected abstract byte[] read(String id) throws IOException;
+
+    /**
+     * Writes an encrypted checkpoint.
+     *
+     * @param id  The id of the checkpoint.
+     * @param encrypted  The encrypted checkpoint.
+     *
+     * @throws IOException  If the checkpoint could not be written.
+     */
+    protected abstract void write(String id, byte[] encrypted) throws IOException;
+
+    /**
+     * Deletes the encrypted checkpoint with the given id, if it exists.
+     *
+     * @param id  The id of the checkpoint.
+     *
+     * @throws IOException  If the checkpoint exists but could not be deleted.
+     */
+    protected abstract void delete(String id) throws IOException;
+}
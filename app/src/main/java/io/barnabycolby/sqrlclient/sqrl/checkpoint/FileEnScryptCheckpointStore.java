@@ -0,0 +1,125 @@
+package io.barnabycolby.sqrlclient.sqrl.checkpoint;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Stores encrypted EnScrypt checkpoints on disk, so that derivations can be resumed after the process has been killed.
+ *
+ * The encryption and binding keys are generated inside, and never leave, the Android Keystore, so the checkpoint files are of no use off the
+ * device.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class FileEnScryptCheckpointStore extends EnScryptCheckpointStore {
+    private static final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "enscryptCheckpointKey";
+    private static final String BINDING_KEY_ALIAS = "enscryptCheckpointBindingKey";
+
+    private File mFolder;
+    private Key mKey;
+    private Key mBindingKey;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param folder  The folder that the checkpoints should be stored in. It will be created if it does not exist.
+     */
+    public FileEnScryptCheckpointStore(File folder) {
+        this.mFolder = folder;
+    }
+
+    @Override
+    protected Key getKey() throws GeneralSecurityException {
+        if (this.mKey != null) {
+            return this.mKey;
+        }
+
+        KeyStore keyStore = loadKeyStore();
+        if (!keyStore.containsAlias(KEY_ALIAS)) {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+            keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(256)
+                    .build());
+            keyGenerator.generateKey();
+        }
+
+        this.mKey = keyStore.getKey(KEY_ALIAS, null);
+        if (this.mKey == null) {
+            throw new GeneralSecurityException("The checkpoint key could not be retrieved from the keystore.");
+        }
+        return this.mKey;
+    }
+
+    @Override
+    protected Key getBindingKey() throws GeneralSecurityException {
+        if (this.mBindingKey != null) {
+            return this.mBindingKey;
+        }
+
+        KeyStore keyStore = loadKeyStore();
+        if (!keyStore.containsAlias(BINDING_KEY_ALIAS)) {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_HMAC_SHA256, KEYSTORE_PROVIDER);
+            keyGenerator.init(new KeyGenParameterSpec.Builder(BINDING_KEY_ALIAS, KeyProperties.PURPOSE_SIGN).build());
+            keyGenerator.generateKey();
+        }
+
+        this.mBindingKey = keyStore.getKey(BINDING_KEY_ALIAS, null);
+        if (this.mBindingKey == null) {
+            throw new GeneralSecurityException("The checkpoint binding key could not be retrieved from the keystore.");
+        }
+        return this.mBindingKey;
+    }
+
+    private static KeyStore loadKeyStore() throws GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
+        try {
+            keyStore.load(null);
+        } catch (IOException ex) {
+            throw new GeneralSecurityException(ex);
+        }
+
+        return keyStore;
+    }
+
+    @Override
+    protected byte[] read(String id) throws IOException {
+        File file = this.getFile(id);
+        if (!file.exists()) {
+            return null;
+        }
+
+        return FileUtils.readFileToByteArray(file);
+    }
+
+    @Override
+    protected void write(String id, byte[] encrypted) throws IOException {
+        FileUtils.forceMkdir(this.mFolder);
+        FileUtils.writeByteArrayToFile(this.getFile(id), encrypted);
+    }
+
+    @Override
+    protected void delete(String id) throws IOException {
+        File file = this.getFile(id);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file.getName());
+        }
+    }
+
+    private File getFile(String id) {
+        return new File(this.mFolder, id);
+    }
+}
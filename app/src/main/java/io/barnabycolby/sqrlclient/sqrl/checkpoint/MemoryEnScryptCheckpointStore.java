@@ -0,0 +1,57 @@
+package io.barnabycolby.sqrlclient.sqrl.checkpoint;
+
+import android.support.v4.util.SimpleArrayMap;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Keeps encrypted EnScrypt checkpoints in memory, using a key that is generated for the lifetime of the store.
+ *
+ * Checkpoints do not survive the process being killed, but a cancelled derivation can still be resumed.
+ */
+public class MemoryEnScryptCheckpointStore extends EnScryptCheckpointStore {
+    private SimpleArrayMap<String, byte[]> mCheckpoints = new SimpleArrayMap<String, byte[]>();
+    private Key mKey;
+    private Key mBindingKey;
+
+    @Override
+    protected Key getKey() throws GeneralSecurityException {
+        if (this.mKey == null) {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(256, new SecureRandom());
+            this.mKey = keyGenerator.generateKey();
+        }
+
+        return this.mKey;
+    }
+
+    @Override
+    protected Key getBindingKey() throws GeneralSecurityException {
+        if (this.mBindingKey == null) {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("HmacSHA256");
+            keyGenerator.init(256, new SecureRandom());
+            this.mBindingKey = keyGenerator.generateKey();
+        }
+
+        return this.mBindingKey;
+    }
+
+    @Override
+    protected byte[] read(String id) {
+        return this.mCheckpoints.get(id);
+    }
+
+    @Override
+    protected void write(String id, byte[] encrypted) {
+        this.mCheckpoints.put(id, encrypted);
+    }
+
+    @Override
+    protected void delete(String id) {
+        this.mCheckpoints.remove(id);
+    }
+}
@@ -0,0 +1,222 @@
+package io.barnabycolby.sqrlclient.sqrl.factories;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.sqrl.EnScryptCalibrator;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * ScryptEngineFactory that picks whichever of the available engine implementations is fastest on the current device.
+ *
+ * <p>
+ * Selecting an engine for a given set of cost parameters warms each candidate up, so that JIT compilation and the allocation of any
+ * workspace are not counted against it, and then times it as the best of several scrypt operations. This takes several seconds, so it is
+ * never done by create. Instead, select is called from the EnScryptCalibrator's background run, and the winner is persisted alongside the
+ * calibration profile so that the trial normally only runs once per install. Until a selection has been made, create uses the first
+ * candidate.
+ * </p>
+ */
+public class FastestScryptEngineFactory implements ScryptEngineFactory {
+    private static final String TAG = FastestScryptEngineFactory.class.getName();
+    private static final String SELECTED_ENGINE_KEY_PREFIX = "selectedScryptEngine";
+    private static final int WARM_UP_RUNS = 1;
+    private static final int TIMED_RUNS = 3;
+
+    private static FastestScryptEngineFactory sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final ScryptEngineFactory[] mCandidates;
+
+    /**
+     * Held whilst the candidates are being timed, so that concurrent selections run one at a time. Creating an engine never waits for it.
+     */
+    private final Object mSelectionLock = new Object();
+
+    /**
+     * Gets the shared instance that chooses between the libsodium and pure Java engines, persisting its selection with the EnScrypt
+     * calibration profile.
+     *
+     * libsodium is listed first, so it remains the default unless the pure Java engine proves to be faster on this device.
+     *
+     * @return The shared instance.
+     */
+    public static synchronized FastestScryptEngineFactory getInstance() {
+        if (sInstance == null) {
+            SharedPreferences preferences = App.getContext().getSharedPreferences(EnScryptCalibrator.PREFERENCES_NAME, Context.MODE_PRIVATE);
+            sInstance = new FastestScryptEngineFactory(preferences, new SodiumScryptEngineFactory(), new JavaScryptEngineFactory());
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Constructs a new instance that chooses between the given candidates.
+     *
+     * @param preferences  The preferences that the selection should be persisted in.
+     * @param candidates  The factories of the engines to choose between. The first is the default, which is used until a selection has
+     *                    been made, and if no other candidate is faster. The selection is persisted as the class name of the winner, so
+     *                    each candidate should be of a different class.
+     */
+    public FastestScryptEngineFactory(SharedPreferences preferences, ScryptEngineFactory... candidates) {
+        if (candidates.length == 0) {
+            throw new IllegalArgumentException("At least one candidate is required.");
+        }
+
+        this.mPreferences = preferences;
+        this.mCandidates = candidates;
+    }
+
+    /**
+     * Creates an engine using the selected factory for the given cost parameters, or the first candidate if no selection has been made.
+     *
+     * This never runs the selection, so it returns as quickly as the underlying factory does.
+     */
+    @Override
+    public ScryptEngine create(int n, int r) {
+        return this.getSelectedFactory(n, r).create(n, r);
+    }
+
+    /**
+     * Gets the factory that create uses for the given cost parameters, without running the selection.
+     *
+     * @param n  The CPU/memory cost parameter.
+     * @param r  The block size parameter.
+     *
+     * @return The persisted selection, or the first candidate if no selection has been made.
+     */
+    public ScryptEngineFactory getSelectedFactory(int n, int r) {
+        ScryptEngineFactory selected = this.findCandidate(this.mPreferences.getString(getSelectedEngineKey(n, r), null));
+        return selected == null ? this.mCandidates[0] : selected;
+    }
+
+    /**
+     * Determines whether a selection has been made for the given cost parameters.
+     *
+     * @param n  The CPU/memory cost parameter.
+     * @param r  The block size parameter.
+     *
+     * @return True if a selection has been persisted, false otherwise.
+     */
+    public boolean isSelected(int n, int r) {
+        return this.findCandidate(this.mPreferences.getString(getSelectedEngineKey(n, r), null)) != null;
+    }
+
+    /**
+     * Gets the factory of the fastest engine for the given cost parameters, timing each candidate if this has not already been done.
+     *
+     * The cancellation signal is checked before every scrypt operation, so a selection stops within one operation of the signal being
+     * cancelled, in which case nothing is persisted.
+     *
+     * @param n  The CPU/memory cost parameter.
+     * @param r  The block size parameter.
+     * @param cancellationSignal  The signal used to cancel the selection, or null.
+     *
+     * @return The factory of the fastest engine.
+     *
+     * @throws OperationCanceledException  If the cancellation signal was cancelled before the selection completed.
+     */
+    public ScryptEngineFactory select(int n, int r, CancellationSignal cancellationSignal) {
+        synchronized (this.mSelectionLock) {
+            // Another thread may have made the selection whilst we were waiting for it
+            if (this.isSelected(n, r)) {
+                return this.getSelectedFactory(n, r);
+            }
+
+            ScryptEngineFactory fastest = null;
+            long fastestDuration = Long.MAX_VALUE;
+            byte[] password = new byte[1];
+            byte[] salt = new byte[32];
+            byte[] output = new byte[32];
+            for (ScryptEngineFactory candidate : this.mCandidates) {
+                throwIfCancelled(cancellationSignal);
+
+                // The engine is created outside of the timed region, as it is only created once per derivation
+                long duration;
+                try {
+                    ScryptEngine engine = candidate.create(n, r);
+                    duration = this.measureBestDuration(engine, password, salt, output, cancellationSignal);
+                } catch (OperationCanceledException ex) {
+                    throw ex;
+                } catch (GeneralSecurityException | RuntimeException ex) {
+                    Log.w(TAG, candidate.getClass().getSimpleName() + " failed during selection: " + ex.getMessage());
+                    continue;
+                }
+
+                // A candidate must be strictly faster to replace an earlier one, so the first candidate wins a tie
+                if (duration < fastestDuration) {
+                    fastest = candidate;
+                    fastestDuration = duration;
+                }
+            }
+
+            // If every candidate failed then there is no way of knowing which is best, so we fall back to the first
+            if (fastest == null) {
+                fastest = this.mCandidates[0];
+            }
+
+            Log.i(TAG, "Selected " + fastest.getClass().getSimpleName() + " for scrypt N=" + n + ", r=" + r);
+            this.mPreferences.edit().putString(getSelectedEngineKey(n, r), fastest.getClass().getName()).apply();
+            return fastest;
+        }
+    }
+
+    /**
+     * Warms the given engine up, and then measures the shortest of several scrypt operations.
+     *
+     * The shortest run is used rather than the mean, as it is the least affected by whatever else the device happens to be doing.
+     *
+     * @return The duration of the fastest run in nanoseconds.
+     */
+    private long measureBestDuration(ScryptEngine engine, byte[] password, byte[] salt, byte[] output, CancellationSignal cancellationSignal) throws GeneralSecurityException {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            throwIfCancelled(cancellationSignal);
+            engine.deriveKey(password, salt, output);
+        }
+
+        long bestDuration = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            throwIfCancelled(cancellationSignal);
+            long startTime = System.nanoTime();
+            engine.deriveKey(password, salt, output);
+            bestDuration = Math.min(bestDuration, System.nanoTime() - startTime);
+        }
+
+        return bestDuration;
+    }
+
+    /**
+     * Finds the candidate with the given class name.
+     *
+     * @return The candidate, or null if none of the candidates have the given class name.
+     */
+    private ScryptEngineFactory findCandidate(String className) {
+        if (className == null) {
+            return null;
+        }
+
+        for (ScryptEngineFactory candidate : this.mCandidates) {
+            if (candidate.getClass().getName().equals(className)) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private static String getSelectedEngineKey(int n, int r) {
+        return SELECTED_ENGINE_KEY_PREFIX + "-" + n + "-" + r;
+    }
+
+    private static void throwIfCancelled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+}
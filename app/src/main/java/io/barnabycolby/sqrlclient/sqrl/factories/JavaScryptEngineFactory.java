@@ -0,0 +1,13 @@
+package io.barnabycolby.sqrlclient.sqrl.factories;
+
+import io.barnabycolby.sqrlclient.sqrl.scrypt.JavaScryptEngine;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
+
+/**
+ * ScryptEngineFactory that creates pure Java scrypt engines.
+ */
+public class JavaScryptEngineFactory implements ScryptEngineFactory {
+    public ScryptEngine create(int n, int r) {
+        return new JavaScryptEngine(n, r);
+    }
+}
@@ -1,7 +1,10 @@
 package io.barnabycolby.sqrlclient.sqrl.factories;
 
 import io.barnabycolby.sqrlclient.exceptions.NoNutException;
+import io.barnabycolby.sqrlclient.sqrl.protocol.Deadline;
+import io.barnabycolby.sqrlclient.sqrl.protocol.HttpURLConnectionTransport;
 import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLConnection;
+import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLTransport;
 import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
 
 import java.io.IOException;
@@ -9,13 +12,38 @@ import java.net.MalformedURLException;
 
 public class SQRLConnectionFactory {
     private SQRLUri mUri;
+    private SQRLTransport mTransport;
+    private Deadline mDeadline = Deadline.NONE;
 
     public SQRLConnectionFactory(SQRLUri uri) {
+        this(uri, new HttpURLConnectionTransport());
+    }
+
+    public SQRLConnectionFactory(SQRLUri uri, SQRLTransport transport) {
         this.mUri = uri;
+        this.mTransport = transport;
+    }
+
+    /**
+     * Sets the deadline by which the responses to every connection created from now on must have arrived.
+     */
+    public void setDeadline(Deadline deadline) {
+        this.mDeadline = deadline;
+    }
+
+    public Deadline getDeadline() {
+        return this.mDeadline;
     }
 
     public SQRLConnection create() throws MalformedURLException, IOException {
-        return new SQRLConnection(mUri);
+        return new SQRLConnection(mUri, mTransport, mDeadline);
+    }
+
+    /**
+     * Sets up a connection to the server ahead of the first request. This blocks, so must not be called on the UI thread.
+     */
+    public void prewarm() {
+        this.mTransport.prewarm(this.mUri);
     }
 
     public SQRLConnection create(String pathAndQuery) throws MalformedURLException, IOException, NoNutException {
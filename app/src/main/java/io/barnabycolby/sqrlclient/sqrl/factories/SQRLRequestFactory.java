@@ -1,10 +1,15 @@
 package io.barnabycolby.sqrlclient.sqrl.factories;
 
+import android.util.Log;
+
 import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.exceptions.CommandFailedException;
 import io.barnabycolby.sqrlclient.exceptions.IncorrectPasswordException;
 import io.barnabycolby.sqrlclient.exceptions.NoNutException;
 import io.barnabycolby.sqrlclient.exceptions.SQRLException;
+import io.barnabycolby.sqrlclient.sqrl.AccountStateCache;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
+import io.barnabycolby.sqrlclient.sqrl.protocol.Deadline;
 import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLIdentRequest;
 import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLQueryRequest;
 import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLResponse;
@@ -15,12 +20,29 @@ import java.security.GeneralSecurityException;
 
 /**
  * A factory to help with the creation of a SQRLRequest.
+ *
+ * <p>
+ * A login normally takes two round trips, a query to find out whether the account exists followed by an ident. If the account state cache
+ * says that the identity already has an account with the site, the ident is sent straight away in place of the query, and the server's
+ * response to it is handed back for both. Should the server disagree, the cache entry is dropped and the usual query is sent instead,
+ * chained from the server's response to the ident, as the server will have moved on to a new nut.
+ * </p>
+ *
+ * <p>
+ * Every request made by the factory shares one deadline, from which the timeouts of each connection are derived, and which also bounds
+ * how long transient errors are retried for.
+ * </p>
  */
 public class SQRLRequestFactory {
+    private static final String TAG = SQRLRequestFactory.class.getName();
+
     private SQRLIdentity mIdentity;
     private SQRLResponseFactory mResponseFactory;
     private SQRLConnectionFactory mConnectionFactory;
+    private AccountStateCache mAccountStateCache;
+    private Deadline mDeadline = Deadline.NONE;
     private SQRLResponse mPreviousResponse;
+    private SQRLResponse mOptimisticIdentResponse;
 
     /**
      * Constructs a new factory using the given uri.
@@ -31,9 +53,50 @@ public class SQRLRequestFactory {
         this.mIdentity = identity;
     }
 
+    /**
+     * Constructs a new factory whose requests must all have completed by the given deadline.
+     *
+     * @param identity  The SQRLIdentity which will be used to create requests.
+     * @param deadline  The deadline by which every request must have completed.
+     */
+    public SQRLRequestFactory(SQRLIdentity identity, Deadline deadline) {
+        this.mIdentity = identity;
+        this.mDeadline = deadline;
+    }
+
+    /**
+     * Constructs a new factory using the given collaborators, rather than the defaults.
+     *
+     * @param identity  The SQRLIdentity which will be used to create requests.
+     * @param connectionFactory  The factory used to create the connections that requests are sent over.
+     * @param responseFactory  The factory used to create the responses to requests.
+     * @param accountStateCache  The cache recording which sites the identity has an account with.
+     */
+    public SQRLRequestFactory(SQRLIdentity identity, SQRLConnectionFactory connectionFactory, SQRLResponseFactory responseFactory, AccountStateCache accountStateCache) {
+        this.mIdentity = identity;
+        this.mConnectionFactory = connectionFactory;
+        this.mResponseFactory = responseFactory;
+        this.mAccountStateCache = accountStateCache;
+    }
+
+    /**
+     * Replaces the deadline by which requests must have completed, for instance once the user has been given time to make a decision.
+     *
+     * @param deadline  The new deadline, which applies to requests created from now on.
+     */
+    public void setDeadline(Deadline deadline) {
+        this.mDeadline = deadline;
+        if (this.mConnectionFactory != null) {
+            this.mConnectionFactory.setDeadline(deadline);
+        }
+    }
+
     /**
      * Creates a new SQRLQueryRequest object, sends the request and returns the response.
      *
+     * If the account is known to exist, an ident request is sent instead, and if the server accepts it then its response is returned. The
+     * next call to createAndSendIdent then returns the same response without contacting the server again.
+     *
      * @return The response to the request.
      *
      * @throws MalformedURLException  If the URI used to create the request is malformed. The URI is retrieved from the SQRLUri object passed in via the constructor.
@@ -41,9 +104,39 @@ public class SQRLRequestFactory {
      * @throws SQRLException  If the send fails.
      */
     public SQRLResponse createAndSendQuery() throws MalformedURLException, IOException, SQRLException {
-        SQRLQueryRequest request = new SQRLQueryRequest(getConnectionFactory(), getIdentity(), getResponseFactory());
+        SQRLQueryRequest request = null;
+        if (this.mPreviousResponse == null && getAccountStateCache().isAccountKnownToExist(getIdentity())) {
+            SQRLResponse identResponse;
+            boolean accepted = false;
+            SQRLIdentRequest identRequest = new SQRLIdentRequest(getConnectionFactory(), getIdentity(), getResponseFactory());
+            try {
+                identResponse = identRequest.send();
+                accepted = identResponse.currentAccountExists();
+            } catch (CommandFailedException ex) {
+                // Without the server unlock and verify unlock keys, the server cannot have created an account instead
+                Log.i(TAG, "Optimistic ident was rejected: " + ex.getMessage());
+                identResponse = ex.getResponse();
+            }
+
+            if (accepted) {
+                this.mPreviousResponse = identResponse;
+                this.mOptimisticIdentResponse = identResponse;
+                return identResponse;
+            }
+
+            getAccountStateCache().setAccountExists(getIdentity(), false);
+            if (identResponse != null) {
+                // The server has replaced the original nut, so the query uses the qry and server values from its response
+                request = new SQRLQueryRequest(getConnectionFactory(), getIdentity(), getResponseFactory(), identResponse);
+            }
+        }
+
+        if (request == null) {
+            request = new SQRLQueryRequest(getConnectionFactory(), getIdentity(), getResponseFactory());
+        }
         this.mPreviousResponse = request.send();
-        
+        getAccountStateCache().setAccountExists(getIdentity(), this.mPreviousResponse.currentAccountExists());
+
         return this.mPreviousResponse;
     }
 
@@ -58,15 +151,26 @@ public class SQRLRequestFactory {
      * @throws SQRLException  If the send fails.
      */
     public SQRLResponse createAndSendIdent() throws MalformedURLException, IOException, NoNutException, SQRLException {
+        if (this.mOptimisticIdentResponse != null) {
+            // The ident was sent in place of the query, and the server has already accepted it
+            SQRLResponse identResponse = this.mOptimisticIdentResponse;
+            this.mOptimisticIdentResponse = null;
+            return identResponse;
+        }
+
         SQRLIdentRequest request = new SQRLIdentRequest(getConnectionFactory(), getIdentity(), getResponseFactory(), this.mPreviousResponse);
         this.mPreviousResponse = request.send();
 
+        // Any account that did not exist has now been created
+        getAccountStateCache().setAccountExists(getIdentity(), true);
+
         return this.mPreviousResponse;
     }
 
     private SQRLConnectionFactory getConnectionFactory() {
         if (this.mConnectionFactory == null) {
             this.mConnectionFactory = new SQRLConnectionFactory(this.mIdentity.getSQRLUri());
+            this.mConnectionFactory.setDeadline(this.mDeadline);
         }
 
         return this.mConnectionFactory;
@@ -83,4 +187,12 @@ public class SQRLRequestFactory {
 
         return this.mResponseFactory;
     }
+
+    private AccountStateCache getAccountStateCache() {
+        if (this.mAccountStateCache == null) {
+            this.mAccountStateCache = AccountStateCache.getInstance();
+        }
+
+        return this.mAccountStateCache;
+    }
 }
@@ -0,0 +1,18 @@
+package io.barnabycolby.sqrlclient.sqrl.factories;
+
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
+
+/**
+ * A factory used by EnScrypt to create the scrypt engine that performs its iterations.
+ */
+public interface ScryptEngineFactory {
+    /**
+     * Creates a new scrypt engine for the given cost parameters.
+     *
+     * @param n  The CPU/memory cost parameter, which must be a power of two.
+     * @param r  The block size parameter.
+     *
+     * @return The new scrypt engine.
+     */
+    public ScryptEngine create(int n, int r);
+}
@@ -0,0 +1,13 @@
+package io.barnabycolby.sqrlclient.sqrl.factories;
+
+import io.barnabycolby.sqrlclient.sqrl.scrypt.ScryptEngine;
+import io.barnabycolby.sqrlclient.sqrl.scrypt.SodiumScryptEngine;
+
+/**
+ * ScryptEngineFactory that creates libsodium backed scrypt engines.
+ */
+public class SodiumScryptEngineFactory implements ScryptEngineFactory {
+    public ScryptEngine create(int n, int r) {
+        return new SodiumScryptEngine(n, r);
+    }
+}
@@ -0,0 +1,82 @@
+package io.barnabycolby.sqrlclient.sqrl.protocol;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * A point in time by which a series of requests must have completed, so that a slow or hung server produces a definite failure rather than
+ * an indefinite wait.
+ *
+ * The time remaining is measured using a monotonic clock, so changes to the wall clock do not affect it.
+ */
+public class Deadline {
+    /**
+     * A deadline that never passes.
+     */
+    public static final Deadline NONE = new Deadline(0, false);
+
+    private final long mExpiryInNanos;
+    private final boolean mBounded;
+
+    private Deadline(long expiryInNanos, boolean bounded) {
+        this.mExpiryInNanos = expiryInNanos;
+        this.mBounded = bounded;
+    }
+
+    /**
+     * Creates a deadline the given length of time from now.
+     *
+     * @param durationInMillis  The time until the deadline passes.
+     *
+     * @return The deadline.
+     */
+    public static Deadline after(long durationInMillis) {
+        return new Deadline(System.nanoTime() + durationInMillis * 1000000L, true);
+    }
+
+    /**
+     * Gets the time remaining until the deadline passes, rounded up to the nearest millisecond.
+     *
+     * @return The time remaining, which is 0 once the deadline has passed, or Long.MAX_VALUE if the deadline never passes.
+     */
+    public long getRemainingMillis() {
+        if (!this.mBounded) {
+            return Long.MAX_VALUE;
+        }
+
+        long remainingNanos = this.mExpiryInNanos - System.nanoTime();
+        if (remainingNanos <= 0) {
+            return 0;
+        }
+
+        return (remainingNanos + 999999) / 1000000;
+    }
+
+    /**
+     * Determines whether the deadline has passed.
+     *
+     * @return True if the deadline has passed, false otherwise.
+     */
+    public boolean hasExpired() {
+        return this.getRemainingMillis() == 0;
+    }
+
+    /**
+     * Gets the time remaining in the form expected by the timeouts of java.net, where 0 means that there is no timeout.
+     *
+     * @return The time remaining in milliseconds, or 0 if the deadline never passes.
+     *
+     * @throws SocketTimeoutException  If the deadline has already passed.
+     */
+    public int getTimeoutInMillis() throws SocketTimeoutException {
+        if (!this.mBounded) {
+            return 0;
+        }
+
+        long remainingMillis = this.getRemainingMillis();
+        if (remainingMillis == 0) {
+            throw new SocketTimeoutException("The deadline for the request has passed.");
+        }
+
+        return (int)Math.min(remainingMillis, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,226 @@
+package io.barnabycolby.sqrlclient.sqrl.protocol;
+
+import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends SQRL requests using HttpURLConnection, blocking the calling thread for the whole exchange.
+ *
+ * The listener is always notified before send returns. Connections are opened and released through a SQRLConnectionManager, so that
+ * consecutive requests to the same server share a socket.
+ *
+ * <p>
+ * The connect and read timeouts of HttpURLConnection only bound each individual operation, and the read timeout starts again with every
+ * read, so a server that trickles out its response a byte at a time would never trip them. The deadline is therefore enforced by a
+ * watchdog, which disconnects the connection from another thread once the deadline passes, causing the blocked exchange to fail. The
+ * timeouts are still set to the time remaining, so that a single stalled operation fails without waiting for the watchdog.
+ * </p>
+ */
+public class HttpURLConnectionTransport implements SQRLTransport {
+    /**
+     * Runs the watchdogs of every request, on one thread, as each watchdog only ever disconnects a connection.
+     */
+    private static final ScheduledThreadPoolExecutor sWatchdogExecutor = createWatchdogExecutor();
+
+    private SQRLConnectionManager mConnectionManager;
+
+    /**
+     * Constructs a new instance using the shared connection manager.
+     */
+    public HttpURLConnectionTransport() {
+        this(SQRLConnectionManager.getInstance());
+    }
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param connectionManager  The connection manager used to open and release connections.
+     */
+    public HttpURLConnectionTransport(SQRLConnectionManager connectionManager) {
+        this.mConnectionManager = connectionManager;
+    }
+
+    /**
+     * Opens a connection to a SQRL server, setting the appropriate headers and other appropriate initialisations.
+     *
+     * @param uri  The SQRL URI describing the server to connect to.
+     *
+     * @return The connection, which is not yet connected.
+     *
+     * @throws IOException  If the URL described by the SQRLUri is malformed, or the connection could not be opened.
+     */
+    public HttpURLConnection openConnection(SQRLUri uri) throws IOException {
+        URL url = new URL(uri.getCommunicationURL());
+        HttpURLConnection connection = this.mConnectionManager.openConnection(url);
+
+        // Make sure that this is a post request
+        connection.setRequestMethod("POST");
+
+        // Set the request properties
+        connection.setRequestProperty("Host", uri.getHost());
+        connection.setRequestProperty("User-Agent", "SQRL/1");
+        connection.setRequestProperty("Content-type", "application/x-www-form-urlencoded");
+
+        // Allow outgoing and incoming data
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+
+        return connection;
+    }
+
+    @Override
+    public void send(SQRLUri uri, byte[] requestBody, Deadline deadline, SQRLTransportListener listener) {
+        HttpURLConnection connection;
+        try {
+            int timeoutInMillis = deadline.getTimeoutInMillis();
+            connection = this.openConnection(uri);
+            connection.setConnectTimeout(timeoutInMillis);
+            connection.setReadTimeout(timeoutInMillis);
+        } catch (IOException ex) {
+            listener.onFailure(ex);
+            return;
+        }
+
+        int responseCode;
+        byte[] responseBody = new byte[0];
+        Watchdog watchdog = Watchdog.start(connection, deadline);
+        try {
+            connection.setFixedLengthStreamingMode(requestBody.length);
+            OutputStream outputStream = connection.getOutputStream();
+            outputStream.write(requestBody);
+            outputStream.close();
+            responseCode = connection.getResponseCode();
+            if (responseCode == 200) {
+                responseBody = readFully(connection.getInputStream());
+            }
+        } catch (IOException ex) {
+            // The exchange did not complete, so there is nothing worth keeping
+            boolean timedOut = !watchdog.stop();
+            connection.disconnect();
+            listener.onFailure(timedOut ? new SocketTimeoutException("The server did not respond before the deadline.") : ex);
+            return;
+        }
+
+        // Once the watchdog has fired, the connection is being disconnected, so it must not be returned to the pool
+        if (!watchdog.stop()) {
+            listener.onFailure(new SocketTimeoutException("The server did not respond before the deadline."));
+            return;
+        }
+        this.mConnectionManager.release(connection);
+        listener.onResponse(responseCode, responseBody);
+    }
+
+    /**
+     * Sets up a connection to a SQRL server ahead of the first request.
+     *
+     * The connection is left idle in the pool shared by every HttpURLConnection, where the first request to the same server picks it up.
+     * This blocks until the connection is ready.
+     *
+     * @param uri  The SQRL URI describing the server to connect to.
+     */
+    @Override
+    public void prewarm(SQRLUri uri) {
+        URL url;
+        try {
+            url = new URL(uri.getCommunicationURL());
+        } catch (MalformedURLException ex) {
+            // The request itself will report the problem
+            return;
+        }
+
+        this.mConnectionManager.prewarm(url);
+    }
+
+    private static ScheduledThreadPoolExecutor createWatchdogExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SQRLDeadlineWatchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Almost every watchdog is stopped long before it fires, so it should not linger in the queue until then
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Disconnects a connection once its deadline passes, unless it is stopped first.
+     */
+    private static class Watchdog implements Runnable {
+        private HttpURLConnection mConnection;
+        private ScheduledFuture<?> mFuture;
+        private boolean mStopped = false;
+        private boolean mFired = false;
+
+        private Watchdog(HttpURLConnection connection) {
+            this.mConnection = connection;
+        }
+
+        /**
+         * Starts a watchdog for the given connection, which does nothing if the deadline never passes.
+         */
+        public static Watchdog start(HttpURLConnection connection, Deadline deadline) {
+            Watchdog watchdog = new Watchdog(connection);
+            long remainingMillis = deadline.getRemainingMillis();
+            if (remainingMillis != Long.MAX_VALUE) {
+                watchdog.mFuture = sWatchdogExecutor.schedule(watchdog, remainingMillis, TimeUnit.MILLISECONDS);
+            }
+
+            return watchdog;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (this.mStopped) {
+                    return;
+                }
+                this.mFired = true;
+            }
+
+            // Disconnecting closes the socket, which makes any read or write blocked on it in the sending thread fail
+            this.mConnection.disconnect();
+        }
+
+        /**
+         * Stops the watchdog.
+         *
+         * @return True if the watchdog was stopped before it fired, false if the deadline had already passed and the connection has been, or
+         *         is being, disconnected.
+         */
+        public synchronized boolean stop() {
+            this.mStopped = true;
+            if (this.mFuture != null) {
+                this.mFuture.cancel(false);
+            }
+
+            return !this.mFired;
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int numberOfBytesRead;
+        while ((numberOfBytesRead = inputStream.read(buffer)) != -1) {
+            dataStream.write(buffer, 0, numberOfBytesRead);
+        }
+
+        return dataStream.toByteArray();
+    }
+}
@@ -1,58 +1,71 @@
 package io.barnabycolby.sqrlclient.sqrl.protocol;
 
-import io.barnabycolby.sqrlclient.exceptions.NoNutException;
 import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 
 /**
- * Wraps a HttpURLConnection to make it easier to communicate with a SQRL server.
+ * Represents a single exchange with a SQRL server, making it easy to write a request and read the response.
  *
- * Ideally this class would extend HttpURLConnection, but this seems like more pain than it's worth as HttpURLConnection is an abstract class
- * with no easy to find concrete subclass.
+ * The request is buffered as it is written, and is only sent, using a SQRLTransport, the first time the response is asked for. The transport
+ * delivers the response before send returns, and enforces the deadline itself.
  */
 public class SQRLConnection {
-    private HttpURLConnection connection;
     private SQRLUri sqrlUri;
+    private SQRLTransport transport;
+    private Deadline deadline;
+    private ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+    private boolean sent = false;
+    private int responseCode;
+    private byte[] responseBody;
+    private IOException failure;
 
     /**
      * Constructor takes a SQRLUri object describing the information required to initialise communication with the SQRL server.
      *
+     * The request will be sent using HttpURLConnection.
+     *
      * @param sqrlUri  The SQRLUri containing information required to initialise communication with the server.
      * @throws MalformedURLException  If the url was not valid for communication.
      * @throws IOException  If an IO error occurred when creating the connection.
      */
     public SQRLConnection(SQRLUri sqrlUri) throws MalformedURLException, IOException {
-        this.sqrlUri = sqrlUri;
-        initialiseConnection();
+        this(sqrlUri, new HttpURLConnectionTransport());
     }
 
     /**
-     * Initialises the internal connection object, setting the appropriate headers and other appropriate initialisations.
+     * Constructs a new connection that will send its request using the given transport, with no deadline.
      *
-     * @throws MalformedURLException  If the URL described by the SQRLUri is malformed.
-     * @throws IOException  If communication with the server could not be initialised.
+     * @param sqrlUri  The SQRLUri containing information required to initialise communication with the server.
+     * @param transport  The transport used to send the request.
+     * @throws MalformedURLException  If the url was not valid for communication.
      */
-    private void initialiseConnection() throws MalformedURLException, IOException {
-        URL url = new URL(this.sqrlUri.getCommunicationURL());
-        this.connection = (HttpURLConnection)url.openConnection();
-
-        // Make sure that this is a post request
-        this.connection.setRequestMethod("POST");
+    public SQRLConnection(SQRLUri sqrlUri, SQRLTransport transport) throws MalformedURLException {
+        this(sqrlUri, transport, Deadline.NONE);
+    }
 
-        // Set the request properties
-        this.connection.setRequestProperty("Host", this.sqrlUri.getHost());
-        this.connection.setRequestProperty("User-Agent", "SQRL/1");
-        this.connection.setRequestProperty("Content-type", "application/x-www-form-urlencoded");
+    /**
+     * Constructs a new connection that will send its request using the given transport.
+     *
+     * @param sqrlUri  The SQRLUri containing information required to initialise communication with the server.
+     * @param transport  The transport used to send the request.
+     * @param deadline  The deadline by which the response must have arrived.
+     * @throws MalformedURLException  If the url was not valid for communication.
+     */
+    public SQRLConnection(SQRLUri sqrlUri, SQRLTransport transport, Deadline deadline) throws MalformedURLException {
+        // Fail now, rather than once the request has been written, if the server can never be reached
+        new URL(sqrlUri.getCommunicationURL());
 
-        // Allow outgoing and incoming data
-        this.connection.setDoOutput(true);
-        this.connection.setDoInput(true);
+        this.sqrlUri = sqrlUri;
+        this.transport = transport;
+        this.deadline = deadline;
     }
 
     /**
@@ -67,11 +80,67 @@ public class SQRLConnection {
     }
 
     /**
-     * Gets the connection object that this object wraps.
+     * Gets the stream that the body of the request should be written to.
+     *
+     * @return The output stream.
+     */
+    public OutputStream getOutputStream() {
+        return this.requestBody;
+    }
+
+    /**
+     * Gets the HTTP status code of the response, sending the request if it has not been sent yet.
      *
-     * @return The underlying connection object used by this class.
+     * @return The status code.
+     *
+     * @throws SocketTimeoutException  If the response did not arrive before the deadline.
+     * @throws IOException  If the request could not be sent, or the response could not be read.
      */
-    public HttpURLConnection getConnection() {
-        return this.connection;
+    public int getResponseCode() throws IOException {
+        this.send();
+        return this.responseCode;
+    }
+
+    /**
+     * Gets a stream containing the body of the response, sending the request if it has not been sent yet.
+     *
+     * @return The input stream, which is empty unless the status code was 200.
+     *
+     * @throws SocketTimeoutException  If the response did not arrive before the deadline.
+     * @throws IOException  If the request could not be sent, or the response could not be read.
+     */
+    public InputStream getInputStream() throws IOException {
+        this.send();
+        return new ByteArrayInputStream(this.responseBody);
+    }
+
+    private void send() throws IOException {
+        if (!this.sent) {
+            this.sent = true;
+            if (this.deadline.hasExpired()) {
+                this.failure = new SocketTimeoutException("The deadline passed before the request was sent.");
+            } else {
+                this.sendRequest();
+            }
+        }
+
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    private void sendRequest() {
+        this.transport.send(this.sqrlUri, this.requestBody.toByteArray(), this.deadline, new SQRLTransportListener() {
+            @Override
+            public void onResponse(int responseCode, byte[] responseBody) {
+                SQRLConnection.this.responseCode = responseCode;
+                SQRLConnection.this.responseBody = responseBody;
+            }
+
+            @Override
+            public void onFailure(IOException ex) {
+                SQRLConnection.this.failure = ex;
+            }
+        });
     }
 }
@@ -0,0 +1,188 @@
+package io.barnabycolby.sqrlclient.sqrl.protocol;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens and releases the connections used to communicate with SQRL servers, so that the requests making up a login share one socket and
+ * one TLS session wherever the server allows it.
+ *
+ * <p>
+ * HttpURLConnection keeps idle keep-alive sockets in a pool keyed by host, but a socket is only returned to the pool once its response has
+ * been read to the end and closed. Calling disconnect closes the socket instead. Sockets are also only reused by connections that use the
+ * same SSL socket factory. The manager therefore hands every connection the same socket factory, whose client session cache allows a new
+ * socket to resume an earlier TLS session rather than perform a full handshake, and releases connections by draining their response.
+ * </p>
+ */
+public class SQRLConnectionManager {
+    private static final String TAG = SQRLConnectionManager.class.getName();
+
+    /**
+     * How long a TLS session can be resumed for after it was established.
+     */
+    private static final int SESSION_TIMEOUT_IN_SECONDS = 10 * 60;
+
+    /**
+     * The most that will be read from an unread response to keep its socket, beyond which it is cheaper to close the socket.
+     */
+    private static final int MAX_DRAIN_LENGTH = 0x10000;
+
+    /**
+     * How long a pre-warming connection waits for the server, which is short because nothing is waiting for it.
+     */
+    private static final int PREWARM_TIMEOUT_IN_MILLIS = 10 * 1000;
+
+    private static SQRLConnectionManager sInstance;
+
+    private SSLSocketFactory mSslSocketFactory;
+
+    /**
+     * Gets the connection manager shared by every request, which owns the shared TLS session cache.
+     *
+     * @return The connection manager.
+     */
+    public static synchronized SQRLConnectionManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new SQRLConnectionManager();
+        }
+
+        return sInstance;
+    }
+
+    private SQRLConnectionManager() {
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_IN_SECONDS);
+            this.mSslSocketFactory = sslContext.getSocketFactory();
+        } catch (GeneralSecurityException ex) {
+            // The default factory still has a session cache, it just cannot be tuned
+            Log.w(TAG, "Could not create an SSL context, using the default socket factory instead.", ex);
+            this.mSslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+    }
+
+    /**
+     * Opens a connection to the given URL, which may reuse an idle socket to the same host.
+     *
+     * @param url  The URL to connect to.
+     *
+     * @return The connection, which is not yet connected.
+     *
+     * @throws IOException  If the connection could not be opened.
+     */
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection)connection).setSSLSocketFactory(this.mSslSocketFactory);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Opens a socket to the server hosting the given URL and leaves it idle in the pool, so that the next connection to that server skips
+     * the host name lookup, TCP connect and TLS handshake.
+     *
+     * HttpURLConnection only pools a socket once a response has been read from it, so a HEAD request is sent for the root of the server.
+     * HEAD requests must not change anything on the server, and the root is used so that the nut in the SQRL URL is left alone. The status
+     * code is irrelevant, as any complete response leaves the socket reusable, so redirects are not followed. Following one could open a
+     * socket to a different server, or make a second request to this one. This blocks until the response arrives.
+     *
+     * Servers commonly close idle keep-alive sockets after 5 to 15 seconds, which can be less than the time taken to enter the password and
+     * decrypt the identity. In that case the pre-warmed socket is simply gone, and the first request opens a new one, though it can still
+     * resume the TLS session.
+     *
+     * @param url  The URL of the server to connect to.
+     */
+    public void prewarm(URL url) {
+        HttpURLConnection connection;
+        try {
+            URL rootUrl = new URL(url.getProtocol(), url.getHost(), url.getPort(), "/");
+            connection = this.openConnection(rootUrl);
+            connection.setRequestMethod("HEAD");
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestProperty("User-Agent", "SQRL/1");
+            connection.setConnectTimeout(PREWARM_TIMEOUT_IN_MILLIS);
+            connection.setReadTimeout(PREWARM_TIMEOUT_IN_MILLIS);
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not pre-warm a connection: " + ex.getMessage());
+            return;
+        }
+
+        try {
+            connection.getResponseCode();
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not pre-warm a connection: " + ex.getMessage());
+            connection.disconnect();
+            return;
+        }
+        this.release(connection);
+    }
+
+    /**
+     * Releases a connection once its response is no longer needed, returning its socket to the pool so that the next request to the same
+     * host can reuse it.
+     *
+     * Any part of the response that has not been read is read and discarded. If that fails, or the remainder is too long to be worth
+     * reading, the socket is closed instead.
+     *
+     * @param connection  The connection to release, which must not be used afterwards.
+     */
+    public void release(HttpURLConnection connection) {
+        try {
+            InputStream responseStream;
+            try {
+                responseStream = connection.getInputStream();
+            } catch (IOException ex) {
+                // Responses with an error status code have their body in the error stream instead
+                responseStream = connection.getErrorStream();
+            }
+            if (responseStream == null) {
+                return;
+            }
+
+            try {
+                if (!drain(responseStream)) {
+                    connection.disconnect();
+                }
+            } finally {
+                responseStream.close();
+            }
+        } catch (IOException ex) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads a stream to the end, discarding its contents.
+     *
+     * @param stream  The stream to drain.
+     *
+     * @return True if the end of the stream was reached, or false if it was longer than MAX_DRAIN_LENGTH.
+     *
+     * @throws IOException  If the stream could not be read.
+     */
+    private static boolean drain(InputStream stream) throws IOException {
+        byte[] buffer = new byte[1024];
+        int totalBytesRead = 0;
+        int bytesRead;
+        while ((bytesRead = stream.read(buffer)) != -1) {
+            totalBytesRead += bytesRead;
+            if (totalBytesRead > MAX_DRAIN_LENGTH) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
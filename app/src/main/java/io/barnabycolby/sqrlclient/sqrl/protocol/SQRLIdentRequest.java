@@ -20,6 +20,23 @@ public class SQRLIdentRequest extends SQRLRequest {
     private HttpURLConnection connection;
     private SQRLResponse previousResponse;
 
+    /**
+     * Constructs a new SQRLIdentRequest object that is the first request sent to the server, rather than following a query.
+     *
+     * This should only be used when the account is already believed to exist, as the server unlock and verify unlock keys are never sent.
+     * A server that does not recognise the identity will therefore fail the command, rather than create a new account.
+     *
+     * @param sqrlConnectionFactory  The factory used to create the SQRL connection to send the request over.
+     * @param sqrlIdentity  The identity to use for server communication.
+     * @param sqrlResponseFactory  The factory to use when creating a new response object.
+     *
+     * @throws MalformedURLException If the SQRLRequest constructor throws this exception.
+     * @throws IOException If the SQRLRequest constructor throws this exception.
+     */
+    public SQRLIdentRequest(SQRLConnectionFactory sqrlConnectionFactory, SQRLIdentity sqrlIdentity, SQRLResponseFactory sqrlResponseFactory) throws MalformedURLException, IOException {
+        super(sqrlConnectionFactory, sqrlIdentity, sqrlResponseFactory);
+    }
+
     /**
      * Constructs a new SQRLIdentRequest object.
      *
@@ -39,6 +56,10 @@ public class SQRLIdentRequest extends SQRLRequest {
 
     @Override
     protected boolean areServerUnlockAndVerifyUnlockKeysRequired() {
+        if (this.previousResponse == null) {
+            return false;
+        }
+
         return !this.previousResponse.currentAccountExists();
     }
 
@@ -1,5 +1,6 @@
 package io.barnabycolby.sqrlclient.sqrl.protocol;
 
+import io.barnabycolby.sqrlclient.exceptions.NoNutException;
 import io.barnabycolby.sqrlclient.sqrl.factories.SQRLConnectionFactory;
 import io.barnabycolby.sqrlclient.sqrl.factories.SQRLResponseFactory;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
@@ -32,6 +33,22 @@ public class SQRLQueryRequest extends SQRLRequest {
         super(sqrlConnectionFactory, sqrlIdentity, sqrlResponseFactory);
     }
 
+    /**
+     * Constructs a new SQRLQueryRequest object that follows on from an earlier response, using its qry and server values.
+     *
+     * @param sqrlConnectionFactory  The factory used to create the SQRL connection to send the request over.
+     * @param sqrlIdentity  The identity to use for server communication.
+     * @param sqrlResponseFactory  The factory to use when creating a new response object.
+     * @param previousResponse  The last response sent by the server.
+     *
+     * @throws MalformedURLException If the SQRLRequest constructor throws this exception.
+     * @throws IOException If the SQRLRequest constructor throws this exception.
+     * @throws NoNutException If the SQRLRequest constructor throws this exception.
+     */
+    public SQRLQueryRequest(SQRLConnectionFactory sqrlConnectionFactory, SQRLIdentity sqrlIdentity, SQRLResponseFactory sqrlResponseFactory, SQRLResponse previousResponse) throws MalformedURLException, IOException, NoNutException {
+        super(sqrlConnectionFactory, sqrlIdentity, sqrlResponseFactory, previousResponse);
+    }
+
     @Override
     protected boolean areServerUnlockAndVerifyUnlockKeysRequired() {
         return false;
@@ -3,9 +3,9 @@ package io.barnabycolby.sqrlclient.sqrl.protocol;
 import android.util.Base64;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.nio.charset.Charset;
+import java.util.Random;
 
 import io.barnabycolby.sqrlclient.exceptions.*;
 import io.barnabycolby.sqrlclient.sqrl.factories.SQRLConnectionFactory;
@@ -16,12 +16,23 @@ import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
  * Implements common functionality of SQRL requests, allowing easy implementation of new SQRL requests.
  */
 public abstract class SQRLRequest {
+    /**
+     * The most times a request is sent before a transient error is given up on.
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The upper bound of the delay before the second retry, which doubles for each retry after it.
+     */
+    private static final long INITIAL_BACKOFF_IN_MILLIS = 250;
+    private static final long MAX_BACKOFF_IN_MILLIS = 4000;
+
+    private static final Random sJitter = new Random();
 
     private SQRLConnection sqrlConnection;
     private SQRLConnectionFactory sqrlConnectionFactory;
     private SQRLIdentity sqrlIdentity;
     private SQRLResponseFactory sqrlResponseFactory;
-    private HttpURLConnection connection;
     private SQRLResponse previousResponse;
 
     /**
@@ -125,35 +136,71 @@ public abstract class SQRLRequest {
     /**
      * Generates and sends the request to the SQRL server, returning a SQRLResponse object that can be used to easily inspect the servers response.
      *
+     * If the server reports a transient error, the request is resent using the nut and qry from its response. The first retry is sent
+     * straight away, as the error is usually just a stale nut. Later retries wait for a random, exponentially growing, delay so that a
+     * struggling server is not hammered, and stop once there is not enough time left before the connection factory's deadline.
+     *
      * @return The response returned by the server.
      *
      * @throws MalformedURLException  If the URL used to communicate with the server was malformed.
      * @throws IOException  If an IO error occurs during communication.
      * @throws SQRLException  If the servers response resulted in an unrecoverable error.
+     * @throws TransientErrorException  If the server was still reporting a transient error when the retries ran out.
      */
     public SQRLResponse send() throws MalformedURLException, IOException, SQRLException {
         // Get the output stream as a writer to make our life easier
-        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(this.sqrlConnection.getConnection().getOutputStream(), "UTF-8");
+        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(this.sqrlConnection.getOutputStream(), "UTF-8");
 
         String clientValue = getClientValue();
         generateAndSendRequest(outputStreamWriter, clientValue, getServerValue());
 
-        SQRLResponse response;
-        String lastServerResponse;
+        int attempts = 1;
+        while (true) {
+            try {
+                return this.sqrlResponseFactory.create(this.sqrlConnection);
+            } catch (TransientErrorException ex) {
+                if (attempts >= MAX_ATTEMPTS) {
+                    throw ex;
+                }
+                waitBeforeRetrying(attempts, ex);
+                attempts++;
+
+                // Update the connection to use the new qry value retrieved by the response
+                this.sqrlConnection = this.sqrlConnectionFactory.create(ex.getQry());
+                outputStreamWriter = new OutputStreamWriter(this.sqrlConnection.getOutputStream(), "UTF-8");
+
+                // The last server response replaces the server value of the original request
+                generateAndSendRequest(outputStreamWriter, clientValue, ex.getLastServerResponse());
+            }
+        }
+    }
+
+    /**
+     * Waits before a request is resent following a transient error.
+     *
+     * @param attempts  The number of times the request has been sent so far.
+     * @param transientError  The transient error, which is rethrown if there is not enough time left to retry.
+     *
+     * @throws TransientErrorException  If waiting would leave no time before the deadline.
+     * @throws InterruptedIOException  If the thread was interrupted whilst waiting.
+     */
+    private void waitBeforeRetrying(int attempts, TransientErrorException transientError) throws TransientErrorException, InterruptedIOException {
+        if (attempts == 1) {
+            return;
+        }
+
+        // Half of the delay is fixed and half random, so that clients that failed together do not all retry together
+        long backoff = Math.min(MAX_BACKOFF_IN_MILLIS, INITIAL_BACKOFF_IN_MILLIS << (attempts - 2));
+        long delay = backoff / 2 + (long)(sJitter.nextDouble() * (backoff / 2));
+        if (delay >= this.sqrlConnectionFactory.getDeadline().getRemainingMillis()) {
+            throw transientError;
+        }
+
         try {
-            response = this.sqrlResponseFactory.create(this.sqrlConnection);
-            return response;
-        } catch (TransientErrorException ex) {
-            // Update the connection to use the new qry value retrieved by the response
-            this.sqrlConnection = this.sqrlConnectionFactory.create(ex.getQry());
-            outputStreamWriter = new OutputStreamWriter(this.sqrlConnection.getConnection().getOutputStream(), "UTF-8");
-
-            // Store the last server response so that we can access it later
-            lastServerResponse = ex.getLastServerResponse();
-
-            // Now we try one last time to contact the server
-            generateAndSendRequest(outputStreamWriter, clientValue, lastServerResponse);
-            return this.sqrlResponseFactory.create(this.sqrlConnection);
+            Thread.sleep(delay);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting to retry the request.");
         }
     }
 
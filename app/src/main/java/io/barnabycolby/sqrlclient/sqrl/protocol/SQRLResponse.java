@@ -10,7 +10,6 @@ import io.barnabycolby.sqrlclient.sqrl.protocol.SQRLConnection;
 
 import java.io.*;
 import java.lang.Character;
-import java.net.HttpURLConnection;
 import java.nio.charset.Charset;
 import java.util.Map;
 
@@ -33,15 +32,13 @@ public class SQRLResponse {
      */
     public SQRLResponse(SQRLConnection sqrlConnection) throws IOException, SQRLException, TransientErrorException {
         // Check the response code
-        HttpURLConnection connection = sqrlConnection.getConnection();
-        int responseCode = connection.getResponseCode();
+        int responseCode = sqrlConnection.getResponseCode();
         if (responseCode != 200) {
-            connection.disconnect();
             throw new IOException(App.getApplicationResources().getString(R.string.non_200_response_code, responseCode));
         }
 
         // Extract the values from the data
-        InputStream inputStream = connection.getInputStream();
+        InputStream inputStream = sqrlConnection.getInputStream();
         byte[] encodedServerResponse = convertInputStreamToByteArray(inputStream);
         byte[] decodedResponse;
         try {
@@ -56,9 +53,6 @@ public class SQRLResponse {
         // Store the raw server response as a string, it will be required to create subsequent requests
         this.rawServerResponse = new String(encodedServerResponse, Charset.forName("UTF-8"));
 
-        // Make sure to disconnect from the server
-        connection.disconnect();
-
         // Perform response validity checks
         checkThatAllRequiredNameValuePairsArePresent();
         checkVersionIsValidAndSupported();
@@ -98,7 +92,8 @@ public class SQRLResponse {
                 errorMessage = App.getApplicationResources().getString(R.string.bad_id_association);
             }
 
-            throw new CommandFailedException(errorMessage);
+            // Every other value has already been parsed, so the response can be used to chain the next request
+            throw new CommandFailedException(errorMessage, this);
         }
     }
 
@@ -0,0 +1,32 @@
+package io.barnabycolby.sqrlclient.sqrl.protocol;
+
+import io.barnabycolby.sqrlclient.sqrl.SQRLUri;
+
+/**
+ * Carries requests to a SQRL server and brings back its responses, hiding how the network is accessed from the rest of the protocol layer.
+ */
+public interface SQRLTransport {
+    /**
+     * Sends a request to a SQRL server as an HTTP POST.
+     *
+     * The listener is notified before this method returns, and exactly one of its methods is called.
+     *
+     * @param uri  The SQRL URI describing the server to send the request to.
+     * @param requestBody  The form encoded body of the request.
+     * @param deadline  The deadline by which the response must have arrived, after which the request fails with a SocketTimeoutException.
+     *                  The transport must enforce this itself, even if the server is still sending data when it passes.
+     * @param listener  The listener to notify once the response has arrived, or the request has failed.
+     */
+    public void send(SQRLUri uri, byte[] requestBody, Deadline deadline, SQRLTransportListener listener);
+
+    /**
+     * Sets up a connection to a SQRL server ahead of the first request, so that the host name lookup, TCP connect and TLS handshake are
+     * out of the way by the time the request is sent.
+     *
+     * This may block whilst the host name is resolved, so must not be called on the UI thread. Failures are ignored, as the first request
+     * will simply set up its own connection.
+     *
+     * @param uri  The SQRL URI describing the server to connect to.
+     */
+    public void prewarm(SQRLUri uri);
+}
@@ -0,0 +1,23 @@
+package io.barnabycolby.sqrlclient.sqrl.protocol;
+
+import java.io.IOException;
+
+/**
+ * This listener interface should be used to receive the outcome of a request sent using a SQRLTransport.
+ */
+public interface SQRLTransportListener {
+    /**
+     * Called when the server has responded.
+     *
+     * @param responseCode  The HTTP status code of the response.
+     * @param responseBody  The body of the response, which is empty unless the status code was 200.
+     */
+    public void onResponse(int responseCode, byte[] responseBody);
+
+    /**
+     * Called when the request could not be sent, or the response could not be read.
+     *
+     * @param ex  The reason for the failure.
+     */
+    public void onFailure(IOException ex);
+}
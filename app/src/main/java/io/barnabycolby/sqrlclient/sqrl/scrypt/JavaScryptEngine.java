@@ -0,0 +1,244 @@
+package io.barnabycolby.sqrlclient.sqrl.scrypt;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A pure Java implementation of scrypt (with p = 1) that keeps its working memory alive between derivations.
+ *
+ * <p>
+ * With the EnScrypt parameters, every scrypt operation needs a 16MB scratch region. Allocating and page faulting that region on every
+ * iteration is a large part of the cost of each iteration on low-end devices, so this class allocates it once on construction and reuses it
+ * for every call to deriveKey. An instance should therefore be kept for the length of an EnScrypt derivation and then discarded.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+public class JavaScryptEngine implements ScryptEngine {
+    private final int mN;
+    private final int mR;
+
+    /**
+     * The length of a single block (B in the scrypt paper) in 32-bit words.
+     */
+    private final int mBlockLengthInInts;
+
+    private final Mac mMac;
+    private final byte[] mBlock;
+    private final byte[] mBlockCounter = new byte[4];
+    private final int[] mV;
+    private int[] mX;
+    private int[] mY;
+    private final int[] mSalsaState = new int[16];
+
+    /**
+     * Constructs a new engine, allocating the workspace required by the given cost parameters.
+     *
+     * @param n  The CPU/memory cost parameter, which must be a power of two.
+     * @param r  The block size parameter.
+     *
+     * @throws IllegalArgumentException  If n is not a power of two greater than one, or r is not positive.
+     * @throws IllegalStateException  If HMAC-SHA256 is not available on this platform.
+     */
+    public JavaScryptEngine(int n, int r) {
+        if (n < 2 || (n & (n - 1)) != 0 || r < 1) {
+            throw new IllegalArgumentException("Invalid scrypt parameters: N=" + n + ", r=" + r);
+        }
+
+        this.mN = n;
+        this.mR = r;
+        this.mBlockLengthInInts = 32 * r;
+        this.mBlock = new byte[128 * r];
+        this.mV = new int[this.mBlockLengthInInts * n];
+        this.mX = new int[this.mBlockLengthInInts];
+        this.mY = new int[this.mBlockLengthInInts];
+
+        try {
+            this.mMac = Mac.getInstance("HmacSHA256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void deriveKey(byte[] password, byte[] salt, byte[] output) throws GeneralSecurityException {
+        // HMAC pads its key with zeros, so an empty key is equivalent to a single zero byte, which SecretKeySpec will accept
+        byte[] hmacKey = password.length == 0 ? new byte[1] : password;
+        this.mMac.init(new SecretKeySpec(hmacKey, "HmacSHA256"));
+
+        // B = PBKDF2-HMAC-SHA256(password, salt, 1, 128 * r)
+        pbkdf2SingleIteration(salt, this.mBlock);
+
+        // B = ROMix(B)
+        bytesToInts(this.mBlock, this.mX);
+        romix();
+        intsToBytes(this.mX, this.mBlock);
+
+        // DK = PBKDF2-HMAC-SHA256(password, B, 1, dkLen)
+        pbkdf2SingleIteration(this.mBlock, output);
+    }
+
+    /**
+     * Performs a single iteration PBKDF2 using the currently initialised HMAC.
+     *
+     * @param salt  The PBKDF2 salt.
+     * @param output  The array to fill with the derived bytes.
+     */
+    private void pbkdf2SingleIteration(byte[] salt, byte[] output) throws ShortBufferException {
+        int macLength = this.mMac.getMacLength();
+        byte[] lastBlock = null;
+        for (int offset = 0, blockIndex = 1; offset < output.length; offset += macLength, blockIndex++) {
+            this.mBlockCounter[0] = (byte)(blockIndex >>> 24);
+            this.mBlockCounter[1] = (byte)(blockIndex >>> 16);
+            this.mBlockCounter[2] = (byte)(blockIndex >>> 8);
+            this.mBlockCounter[3] = (byte)blockIndex;
+            this.mMac.update(salt);
+            this.mMac.update(this.mBlockCounter);
+
+            if (output.length - offset >= macLength) {
+                this.mMac.doFinal(output, offset);
+            } else {
+                // Only the final block can be partial, so this allocation happens at most once per call
+                lastBlock = this.mMac.doFinal();
+                System.arraycopy(lastBlock, 0, output, offset, output.length - offset);
+            }
+        }
+    }
+
+    /**
+     * The scrypt ROMix function, operating in place on mX.
+     */
+    private void romix() {
+        int blockLength = this.mBlockLengthInInts;
+        int[] v = this.mV;
+        int mask = this.mN - 1;
+
+        for (int i = 0; i < this.mN; i++) {
+            System.arraycopy(this.mX, 0, v, i * blockLength, blockLength);
+            blockMix();
+        }
+
+        // The first word of the last 64 byte block is used to pick the next element of V
+        int integerifyOffset = (2 * this.mR - 1) * 16;
+        for (int i = 0; i < this.mN; i++) {
+            int j = this.mX[integerifyOffset] & mask;
+            int vOffset = j * blockLength;
+            int[] x = this.mX;
+            for (int k = 0; k < blockLength; k++) {
+                x[k] ^= v[vOffset + k];
+            }
+            blockMix();
+        }
+    }
+
+    /**
+     * The scrypt BlockMix function using Salsa20/8, reading from mX and leaving the result in mX.
+     *
+     * The even and odd output blocks are written directly to their shuffled positions, and the X and Y buffers are then swapped.
+     */
+    private void blockMix() {
+        int[] input = this.mX;
+        int[] output = this.mY;
+        int[] state = this.mSalsaState;
+        int numberOfSubBlocks = 2 * this.mR;
+
+        System.arraycopy(input, (numberOfSubBlocks - 1) * 16, state, 0, 16);
+        for (int i = 0; i < numberOfSubBlocks; i++) {
+            int inputOffset = i * 16;
+            for (int k = 0; k < 16; k++) {
+                state[k] ^= input[inputOffset + k];
+            }
+            salsa20_8(state);
+
+            int outputOffset = ((i >> 1) + (i & 1) * this.mR) * 16;
+            System.arraycopy(state, 0, output, outputOffset, 16);
+        }
+
+        this.mX = output;
+        this.mY = input;
+    }
+
+    /**
+     * The Salsa20/8 core, applied in place to the given 16 word state.
+     *
+     * @param b  The state to transform.
+     */
+    private static void salsa20_8(int[] b) {
+        int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3];
+        int x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+        int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11];
+        int x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+        int t;
+
+        for (int i = 0; i < 4; i++) {
+            // Column round
+            t = x0 + x12; x4 ^= (t << 7) | (t >>> 25);
+            t = x4 + x0; x8 ^= (t << 9) | (t >>> 23);
+            t = x8 + x4; x12 ^= (t << 13) | (t >>> 19);
+            t = x12 + x8; x0 ^= (t << 18) | (t >>> 14);
+            t = x5 + x1; x9 ^= (t << 7) | (t >>> 25);
+            t = x9 + x5; x13 ^= (t << 9) | (t >>> 23);
+            t = x13 + x9; x1 ^= (t << 13) | (t >>> 19);
+            t = x1 + x13; x5 ^= (t << 18) | (t >>> 14);
+            t = x10 + x6; x14 ^= (t << 7) | (t >>> 25);
+            t = x14 + x10; x2 ^= (t << 9) | (t >>> 23);
+            t = x2 + x14; x6 ^= (t << 13) | (t >>> 19);
+            t = x6 + x2; x10 ^= (t << 18) | (t >>> 14);
+            t = x15 + x11; x3 ^= (t << 7) | (t >>> 25);
+            t = x3 + x15; x7 ^= (t << 9) | (t >>> 23);
+            t = x7 + x3; x11 ^= (t << 13) | (t >>> 19);
+            t = x11 + x7; x15 ^= (t << 18) | (t >>> 14);
+
+            // Row round
+            t = x0 + x3; x1 ^= (t << 7) | (t >>> 25);
+            t = x1 + x0; x2 ^= (t << 9) | (t >>> 23);
+            t = x2 + x1; x3 ^= (t << 13) | (t >>> 19);
+            t = x3 + x2; x0 ^= (t << 18) | (t >>> 14);
+            t = x5 + x4; x6 ^= (t << 7) | (t >>> 25);
+            t = x6 + x5; x7 ^= (t << 9) | (t >>> 23);
+            t = x7 + x6; x4 ^= (t << 13) | (t >>> 19);
+            t = x4 + x7; x5 ^= (t << 18) | (t >>> 14);
+            t = x10 + x9; x11 ^= (t << 7) | (t >>> 25);
+            t = x11 + x10; x8 ^= (t << 9) | (t >>> 23);
+            t = x8 + x11; x9 ^= (t << 13) | (t >>> 19);
+            t = x9 + x8; x10 ^= (t << 18) | (t >>> 14);
+            t = x15 + x14; x12 ^= (t << 7) | (t >>> 25);
+            t = x12 + x15; x13 ^= (t << 9) | (t >>> 23);
+            t = x13 + x12; x14 ^= (t << 13) | (t >>> 19);
+            t = x14 + x13; x15 ^= (t << 18) | (t >>> 14);
+        }
+
+        b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3;
+        b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+        b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11;
+        b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+    }
+
+    /**
+     * Converts a byte array into little-endian 32-bit words.
+     */
+    private static void bytesToInts(byte[] bytes, int[] ints) {
+        for (int i = 0, j = 0; i < ints.length; i++, j += 4) {
+            ints[i] = (bytes[j] & 0xff) | ((bytes[j + 1] & 0xff) << 8) | ((bytes[j + 2] & 0xff) << 16) | ((bytes[j + 3] & 0xff) << 24);
+        }
+    }
+
+    /**
+     * Converts 32-bit words into a little-endian byte array.
+     */
+    private static void intsToBytes(int[] ints, byte[] bytes) {
+        for (int i = 0, j = 0; i < ints.length; i++, j += 4) {
+            int value = ints[i];
+            bytes[j] = (byte)value;
+            bytes[j + 1] = (byte)(value >>> 8);
+            bytes[j + 2] = (byte)(value >>> 16);
+            bytes[j + 3] = (byte)(value >>> 24);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package io.barnabycolby.sqrlclient.sqrl.scrypt;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * An implementation of the scrypt key derivation function, as used by each iteration of EnScrypt.
+ *
+ * An engine is created for a fixed set of cost parameters and may hold on to working memory between calls, so instances should be used by a
+ * single thread for the length of a single EnScrypt derivation.
+ */
+public interface ScryptEngine {
+    /**
+     * Performs a single scrypt key derivation, writing the derived key into the given output array.
+     *
+     * @param password  The password to derive a key from.
+     * @param salt  The salt to use.
+     * @param output  The array to write the derived key to, its length determines the length of the derived key.
+     *
+     * @throws GeneralSecurityException  If the key derivation failed.
+     */
+    public void deriveKey(byte[] password, byte[] salt, byte[] output) throws GeneralSecurityException;
+}
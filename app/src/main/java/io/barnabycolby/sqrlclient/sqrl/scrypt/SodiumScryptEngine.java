@@ -0,0 +1,40 @@
+package io.barnabycolby.sqrlclient.sqrl.scrypt;
+
+import eu.artemisc.stodium.Stodium;
+
+import java.security.GeneralSecurityException;
+
+import org.abstractj.kalium.Sodium;
+
+/**
+ * A scrypt engine backed by the libsodium implementation, accessed through the stodium JNI binding.
+ *
+ * Note that libsodium allocates (and frees) the scrypt workspace on every call.
+ */
+public class SodiumScryptEngine implements ScryptEngine {
+    static {
+        Stodium.StodiumInit();
+    }
+
+    private final int mN;
+    private final int mR;
+
+    /**
+     * Constructs a new engine using the given cost parameters.
+     *
+     * @param n  The CPU/memory cost parameter, which must be a power of two.
+     * @param r  The block size parameter.
+     */
+    public SodiumScryptEngine(int n, int r) {
+        this.mN = n;
+        this.mR = r;
+    }
+
+    @Override
+    public void deriveKey(byte[] password, byte[] salt, byte[] output) throws GeneralSecurityException {
+        int result = Sodium.crypto_pwhash_scryptsalsa208sha256_ll(password, password.length, salt, salt.length, this.mN, this.mR, 1, output, output.length);
+        if (result != 0) {
+            throw new GeneralSecurityException("libsodium scrypt failed with status " + result);
+        }
+    }
+}
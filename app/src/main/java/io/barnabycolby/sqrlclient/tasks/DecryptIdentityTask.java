@@ -1,7 +1,12 @@
 package io.barnabycolby.sqrlclient.tasks;
 
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
 import io.barnabycolby.sqrlclient.App;
+import io.barnabycolby.sqrlclient.exceptions.IdentityDoesNotExistException;
 import io.barnabycolby.sqrlclient.exceptions.IncorrectPasswordException;
+import io.barnabycolby.sqrlclient.helpers.PasswordCryptProgressDispatcher;
 import io.barnabycolby.sqrlclient.helpers.TestableAsyncTask;
 import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentity;
@@ -13,10 +18,10 @@ import java.security.GeneralSecurityException;
  * Attempts to retrieve a SQRLIdentity using a given password.
  */
 public class DecryptIdentityTask extends TestableAsyncTask<String, Integer, Boolean> {
-    private PasswordCryptListener mListener;
+    private PasswordCryptProgressDispatcher mListener;
     private SQRLUri mUri;
-    private int mProgress = 0;
     private SQRLIdentity mIdentity;
+    private CancellationSignal mCancellationSignal = new CancellationSignal();
 
     /**
      * Constructs a new instance of this class.
@@ -25,7 +30,8 @@ public class DecryptIdentityTask extends TestableAsyncTask<String, Integer, Bool
      * @param uri  The returned identity will be primed for this site.
      */
     public DecryptIdentityTask(PasswordCryptListener listener, SQRLUri uri) {
-        this.mListener = listener;
+        // Progress updates are throttled and delivered on the main thread, keeping the listener off the key derivation thread
+        this.mListener = new PasswordCryptProgressDispatcher(listener);
         this.mUri = uri;
     }
 
@@ -38,8 +44,8 @@ public class DecryptIdentityTask extends TestableAsyncTask<String, Integer, Bool
 
         // Decrypt the identity
         try {
-            this.mIdentity = App.getSQRLIdentityManager().getCurrentIdentityForSite(this.mUri, password, this.mListener);
-        } catch (IncorrectPasswordException | GeneralSecurityException ex) {
+            this.mIdentity = App.getSQRLIdentityManager().getCurrentIdentityForSite(this.mUri, password, this.mListener, this.mCancellationSignal);
+        } catch (IncorrectPasswordException | IdentityDoesNotExistException | GeneralSecurityException | OperationCanceledException ex) {
             return new Boolean(false);
         }
 
@@ -53,13 +59,24 @@ public class DecryptIdentityTask extends TestableAsyncTask<String, Integer, Bool
         executionFinished();
     }
 
+    /**
+     * Cancels the task, stopping the decryption within one EnScrypt iteration.
+     *
+     * Unlike cancel(boolean), this does not rely on the background thread noticing an interrupt, so the executor is freed for the next task
+     * as soon as the current iteration completes. The listener will not receive a result.
+     */
+    public void abort() {
+        this.cancel(false);
+        this.mCancellationSignal.cancel();
+    }
+
     /**
      * Gets the latest published progress value.
      *
      * @return The 0-100 progress value.
      */
     public int getProgress() {
-        return this.mProgress;
+        return this.mListener.getProgress();
     }
 
     public SQRLIdentity getSQRLIdentity() {
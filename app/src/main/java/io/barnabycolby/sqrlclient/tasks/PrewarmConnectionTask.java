@@ -0,0 +1,29 @@
+package io.barnabycolby.sqrlclient.tasks;
+
+import io.barnabycolby.sqrlclient.helpers.TestableAsyncTask;
+import io.barnabycolby.sqrlclient.sqrl.factories.SQRLConnectionFactory;
+
+/**
+ * An AsyncTask that sets up a connection to a SQRL server in the background, so that the host name lookup, TCP connect and TLS handshake
+ * overlap with the user entering their password, rather than delaying the first request.
+ *
+ * This task must be run using AsyncTask.THREAD_POOL_EXECUTOR, as a slow server would otherwise hold up every task queued behind it.
+ */
+public class PrewarmConnectionTask extends TestableAsyncTask<Void, Void, Void> {
+    private SQRLConnectionFactory mConnectionFactory;
+
+    /**
+     * Constructs an instance of the PrewarmConnectionTask.
+     *
+     * @param connectionFactory  The factory whose transport and server the later requests will use.
+     */
+    public PrewarmConnectionTask(SQRLConnectionFactory connectionFactory) {
+        this.mConnectionFactory = connectionFactory;
+    }
+
+    @Override
+    protected Void doInBackground(Void... params) {
+        this.mConnectionFactory.prewarm();
+        return null;
+    }
+}
@@ -1,11 +1,15 @@
 package io.barnabycolby.sqrlclient.tasks;
 
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.exceptions.IdentityAlreadyExistsException;
 import io.barnabycolby.sqrlclient.exceptions.IdentitiesCouldNotBeLoadedException;
 import io.barnabycolby.sqrlclient.exceptions.IdentityCouldNotBeWrittenToDiskException;
+import io.barnabycolby.sqrlclient.helpers.PasswordCryptProgressDispatcher;
+import io.barnabycolby.sqrlclient.sqrl.checkpoint.EnScryptCheckpointStore;
 import io.barnabycolby.sqrlclient.sqrl.PasswordCryptListener;
 
 import java.security.GeneralSecurityException;
@@ -17,11 +21,11 @@ public class SaveIdentityTask extends AsyncTask<Void, Integer, Boolean> {
     private String mIdentityName;
     private byte[] mMasterKey;
     private String mPassword;
-    private PasswordCryptListener mListener;
-
-    private int mProgress = 0;
+    private String mCheckpointId;
+    private PasswordCryptProgressDispatcher mListener;
 
     private String mErrorMessage;
+    private CancellationSignal mCancellationSignal = new CancellationSignal();
 
     /**
      * Constructs a new instance of this class.
@@ -32,18 +36,41 @@ public class SaveIdentityTask extends AsyncTask<Void, Integer, Boolean> {
      * @param listener  The listener to use for progress and results callbacks.
      */
     public SaveIdentityTask(String identityName, byte[] masterKey, String password, PasswordCryptListener listener) {
+        this(identityName, masterKey, password, null, listener);
+    }
+
+    /**
+     * Constructs a new instance of this class, whose encryption resumes from any checkpoint saved under the given id.
+     *
+     * @param identityName  The name of the new identity.
+     * @param masterKey  The new identities master key.
+     * @param password  The new identities password.
+     * @param checkpointId  The id of the checkpoints of the encryption, or null if it should not be resumable.
+     * @param listener  The listener to use for progress and results callbacks.
+     */
+    public SaveIdentityTask(String identityName, byte[] masterKey, String password, String checkpointId, PasswordCryptListener listener) {
         this.mIdentityName = identityName;
         this.mMasterKey = masterKey;
         this.mPassword = password;
-        this.mListener = listener;
+        this.mCheckpointId = checkpointId;
+        // Progress updates are throttled and delivered on the main thread, keeping the listener off the key derivation thread
+        this.mListener = new PasswordCryptProgressDispatcher(listener);
     }
 
     protected Boolean doInBackground(Void... params) {
         try {
-            App.getSQRLIdentityManager().save(this.mIdentityName, this.mMasterKey, this.mPassword, this.mListener);
+            App.getSQRLIdentityManager().save(this.mIdentityName, this.mMasterKey, this.mPassword, this.mListener, this.mCancellationSignal, this.mCheckpointId);
         } catch (IdentityAlreadyExistsException | IdentityCouldNotBeWrittenToDiskException | IdentitiesCouldNotBeLoadedException | GeneralSecurityException ex) {
             this.mErrorMessage = ex.getMessage();
             return new Boolean(false);
+        } catch (OperationCanceledException ex) {
+            // The task is only cancelled when the new identity is abandoned, so it will never be resumed
+            if (this.mCheckpointId != null) {
+                EnScryptCheckpointStore.getInstance().remove(this.mCheckpointId);
+            }
+
+            // The result will never be delivered, as onCancelled is called instead of onPostExecute
+            return new Boolean(false);
         }
 
         return new Boolean(true);
@@ -53,13 +80,23 @@ public class SaveIdentityTask extends AsyncTask<Void, Integer, Boolean> {
         this.mListener.onPasswordCryptResult(result.booleanValue());
     }
 
+    /**
+     * Cancels the task, stopping the encryption within one EnScrypt iteration.
+     *
+     * The identity will not be saved, and the listener will not receive a result.
+     */
+    public void abort() {
+        this.cancel(false);
+        this.mCancellationSignal.cancel();
+    }
+
     /**
      * Gets the latest published progress value.
      *
      * @return The 0-100 progress value.
      */
     public int getProgress() {
-        return this.mProgress;
+        return this.mListener.getProgress();
     }
 
     /**
@@ -0,0 +1,164 @@
+package io.barnabycolby.sqrlclient.views;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ArrayAdapter;
+
+import io.barnabycolby.sqrlclient.helpers.IdentityChangeListener;
+import io.barnabycolby.sqrlclient.R;
+import io.barnabycolby.sqrlclient.sqrl.SortedIdentityIndex;
+import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Adapter that holds the names of the identities managed by a SQRLIdentityManager, and keeps them up to date by applying each change in
+ * place.
+ *
+ * <p>
+ * Changes are reported by the identity manager on whichever thread made them, so they are posted to the main thread before being applied.
+ * Because the changes are posted in the order they were made, the adapter always converges on the identity manager's list of names.
+ * </p>
+ *
+ * <p>
+ * The names are kept in the same order as the identity manager's sorted index, and can be narrowed down by a search query. Names that start
+ * with the query are found directly in the index. Only if there are none are names containing the query anywhere searched for.
+ * </p>
+ */
+public class IdentityNamesAdapter extends ArrayAdapter<String> implements IdentityChangeListener {
+    private SQRLIdentityManager mIdentityManager;
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    private String mSearchQuery = "";
+    private boolean mMatchAnywhere = false;
+
+    /**
+     * Constructs a new, empty, instance. startListening must be called to populate it.
+     *
+     * @param context  The context the adapter is used in.
+     * @param identityManager  The identity manager whose identities should be displayed.
+     * @param searchQuery  The search query that names must match, or the empty string to show every name.
+     */
+    public IdentityNamesAdapter(Context context, SQRLIdentityManager identityManager, String searchQuery) {
+        super(context, R.layout.identity_spinner_item, new ArrayList<String>());
+        this.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        this.mIdentityManager = identityManager;
+        this.mSearchQuery = searchQuery;
+    }
+
+    /**
+     * Populates the adapter with the current identity names, and starts applying subsequent changes as they happen.
+     *
+     * Must be called on the main thread.
+     */
+    public void startListening() {
+        // Register first, so that no change can be missed between reading the names and registering
+        this.mIdentityManager.addIdentityChangeListener(this);
+        this.reload();
+    }
+
+    /**
+     * Stops applying changes, so that the adapter can be garbage collected once its view has gone.
+     */
+    public void stopListening() {
+        this.mIdentityManager.removeIdentityChangeListener(this);
+    }
+
+    /**
+     * Replaces the contents of the adapter with the current identity names.
+     *
+     * Must be called on the main thread.
+     */
+    public void reload() {
+        Collection<String> identityNames = this.mIdentityManager.getIdentityNamesWithPrefix(this.mSearchQuery);
+        this.mMatchAnywhere = identityNames.isEmpty() && !this.mSearchQuery.isEmpty();
+        if (this.mMatchAnywhere) {
+            identityNames = this.mIdentityManager.findIdentityNamesContaining(this.mSearchQuery);
+        }
+
+        this.setNotifyOnChange(false);
+        this.clear();
+        this.addAll(identityNames);
+        this.notifyDataSetChanged();
+    }
+
+    /**
+     * Narrows the names down to those matching a search query.
+     *
+     * Must be called on the main thread.
+     *
+     * @param searchQuery  The search query, or the empty string to show every name.
+     */
+    public void setSearchQuery(String searchQuery) {
+        this.mSearchQuery = searchQuery;
+        this.reload();
+    }
+
+    private boolean matchesSearchQuery(String identityName) {
+        if (this.mMatchAnywhere) {
+            return identityName.toLowerCase(Locale.ROOT).contains(this.mSearchQuery.toLowerCase(Locale.ROOT));
+        }
+
+        return identityName.regionMatches(true, 0, this.mSearchQuery, 0, this.mSearchQuery.length());
+    }
+
+    /**
+     * Finds the position at which a name should be inserted to keep the names sorted.
+     *
+     * @param identityName  The name to insert.
+     *
+     * @return The insertion position, or -1 if the name is already present.
+     */
+    private int findInsertionPosition(String identityName) {
+        int low = 0;
+        int high = this.getCount() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = SortedIdentityIndex.NAME_ORDER.compare(this.getItem(middle), identityName);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return -1;
+            }
+        }
+
+        return low;
+    }
+
+    @Override
+    public void onIdentityAdded(final String identityName) {
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!matchesSearchQuery(identityName)) {
+                    return;
+                }
+
+                // The name may have been read by reload after this change was posted
+                int position = findInsertionPosition(identityName);
+                if (position >= 0) {
+                    insert(identityName, position);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onIdentityRemoved(final String identityName) {
+        this.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                remove(identityName);
+            }
+        });
+    }
+
+    @Override
+    public void onCurrentIdentityChanged(String identityName) {
+        // The current identity is a selection, which is the concern of the view rather than the adapter
+    }
+}
@@ -2,6 +2,8 @@ package io.barnabycolby.sqrlclient.views;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
@@ -11,18 +13,61 @@ import android.widget.Spinner;
 
 import io.barnabycolby.sqrlclient.App;
 import io.barnabycolby.sqrlclient.exceptions.IdentityDoesNotExistException;
+import io.barnabycolby.sqrlclient.helpers.IdentityChangeListener;
+import io.barnabycolby.sqrlclient.helpers.IdentityManagerReadyListener;
 import io.barnabycolby.sqrlclient.R;
 import io.barnabycolby.sqrlclient.sqrl.SQRLIdentityManager;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Spinner that displays the list of identities associated with this application, allowing the user to select a current identity.
+ *
+ * <p>
+ * Whilst attached to a window, the spinner listens for changes to the identities, so it stays up to date without being repopulated.
+ * </p>
  */
-public class IdentitySpinner extends Spinner implements AdapterView.OnItemSelectedListener {
+public class IdentitySpinner extends Spinner implements AdapterView.OnItemSelectedListener, IdentityChangeListener {
     private static String TAG = IdentitySpinner.class.getName();
 
+    /**
+     * Persists selections in order, off the main thread, as the identity manager's writer lock may be held whilst another change is synced
+     * to disk.
+     */
+    private static final ExecutorService sSelectionExecutor = Executors.newSingleThreadExecutor();
+
     private SQRLIdentityManager mIdentityManager;
+    private IdentityNamesAdapter mAdapter;
+    private boolean mListening = false;
+    private String mSearchQuery = "";
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Waits for the identity store to load, or null once it has. It is removed whilst the spinner is detached, so that App does not keep
+     * hold of the spinner, or its activity, if the activity is destroyed first.
+     */
+    private IdentityManagerReadyListener mReadyListener;
+
+    /**
+     * The identity most recently selected in the spinner that has not yet been made current, or null if there is none. Only accessed on
+     * the main thread.
+     */
+    private String mPendingCurrentIdentity;
+
+    /**
+     * The identity the spinner last displayed of its own accord, rather than because the user selected it. Only accessed on the main thread.
+     */
+    private String mDisplayedIdentity;
+
+    private Runnable mSelectCurrentIdentityRunnable = new Runnable() {
+        @Override
+        public void run() {
+            selectCurrentIdentity();
+        }
+    };
 
     public IdentitySpinner(Context context) {
         super(context);
@@ -64,44 +109,229 @@ public class IdentitySpinner extends Spinner implements AdapterView.OnItemSelect
      *
      * As the Spinner class has many constructor, we support them all by simply calling their super version and then calling this method.
      */
-    private void initialise(Context context) {
-        this.mIdentityManager = App.getSQRLIdentityManager();
-
+    private void initialise(final Context context) {
         this.setOnItemSelectedListener(this);
-        this.populateItems(context);
+
+        if (App.isSQRLIdentityManagerReady()) {
+            this.mIdentityManager = App.getSQRLIdentityManager();
+            this.populateItems(context);
+            return;
+        }
+
+        // Show a placeholder rather than blocking the first frame whilst the identity store loads
+        this.showPlaceholder(context, R.string.loading_identities);
+        this.setEnabled(false);
+        this.mReadyListener = new IdentityManagerReadyListener() {
+            @Override
+            public void onIdentityManagerReady(SQRLIdentityManager identityManager) {
+                mReadyListener = null;
+                mIdentityManager = identityManager;
+                setEnabled(true);
+                populateItems(context);
+            }
+
+            @Override
+            public void onIdentityManagerFailed(Exception ex) {
+                mReadyListener = null;
+                Log.e(TAG, "Identity store could not be loaded.", ex);
+                showPlaceholder(context, R.string.identities_could_not_be_loaded);
+            }
+        };
+        App.whenSQRLIdentityManagerReady(this.mReadyListener);
+    }
+
+    private void showPlaceholder(Context context, int message) {
+        List<String> placeholder = Collections.singletonList(context.getResources().getString(message));
+        this.setAdapter(new ArrayAdapter<String>(context, R.layout.identity_spinner_item, placeholder));
+    }
+
+    /**
+     * Determines whether the spinner is displaying the identities, rather than a placeholder whilst they load.
+     *
+     * @return True if the identities have been loaded, false otherwise.
+     */
+    public boolean isPopulated() {
+        return this.mIdentityManager != null;
     }
 
     /**
-     * Repopulates the spinner items, should be called if any alterations have been made to the list of identities.
+     * Repopulates the spinner items from scratch.
+     *
+     * The spinner already applies each change made through the identity manager as it happens, so this is only needed to recover from
+     * changes the identity manager did not report.
      *
      * @param context  The current context that this spinner exists in.
      */
     public void repopulate(Context context) {
-        this.populateItems(context);
+        if (this.mIdentityManager == null) {
+            // The items will be populated once the identities have loaded
+            return;
+        }
+
+        this.mAdapter.reload();
+        this.selectCurrentIdentity();
+    }
+
+    /**
+     * Narrows the identities displayed in the spinner down to those matching a search query, displaying the first match if the current
+     * identity no longer matches. The current identity itself is left unchanged until the user selects a different identity.
+     *
+     * @param searchQuery  The search query, or the empty string to display every identity.
+     */
+    public void setSearchQuery(String searchQuery) {
+        this.mSearchQuery = searchQuery;
+        if (this.mAdapter == null) {
+            // The query will be applied once the identities have loaded
+            return;
+        }
+
+        this.mAdapter.setSearchQuery(searchQuery);
+        this.selectCurrentIdentity();
     }
 
     private void populateItems(Context context) {
-        // Populate the spinner
-        List<String> identityNames = this.mIdentityManager.getIdentityNames();
-        ArrayAdapter<String> adapter = new ArrayAdapter<String>(context, R.layout.identity_spinner_item, identityNames);
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        this.setAdapter(adapter);
-
-        // Set the currently selected identity
-        if (identityNames.size() > 0) {
-            // Check whether a current identity has already been selected
-            String currentIdentityName = this.mIdentityManager.getCurrentIdentityName();
-            if (currentIdentityName != null && identityNames.contains(currentIdentityName)) {
-                this.setSelection(adapter.getPosition(currentIdentityName));
-            } else {
+        this.mAdapter = new IdentityNamesAdapter(context, this.mIdentityManager, this.mSearchQuery);
+        this.setAdapter(this.mAdapter);
+        this.startListening();
+    }
+
+    private void startListening() {
+        this.mAdapter.startListening();
+        this.mIdentityManager.addIdentityChangeListener(this);
+        this.mListening = true;
+        this.selectCurrentIdentity();
+    }
+
+    private void stopListening() {
+        this.mIdentityManager.removeIdentityChangeListener(this);
+        this.mAdapter.stopListening();
+        this.mHandler.removeCallbacks(this.mSelectCurrentIdentityRunnable);
+        this.mListening = false;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        // The identities may have changed whilst the spinner was detached
+        if (this.mAdapter != null && !this.mListening) {
+            this.startListening();
+        }
+
+        // Wait for the identity store again if it was still loading when the spinner was detached
+        if (this.mReadyListener != null) {
+            App.whenSQRLIdentityManagerReady(this.mReadyListener);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // The identity manager outlives the activity, so it must not keep hold of this view
+        if (this.mListening) {
+            this.stopListening();
+        }
+        if (this.mReadyListener != null) {
+            App.removeSQRLIdentityManagerReadyListener(this.mReadyListener);
+        }
+    }
+
+    /**
+     * Selects the current identity in the spinner, or makes the selected identity current if there is no current identity.
+     *
+     * If the current identity does not match the search query, the selected identity is displayed but is not made current.
+     */
+    private void selectCurrentIdentity() {
+        int count = this.mAdapter.getCount();
+        if (count == 0) {
+            return;
+        }
+
+        // Check whether a current identity has already been selected, including one that is still being made current
+        String currentIdentityName = this.getCurrentIdentityName();
+        int position = (currentIdentityName == null) ? -1 : this.mAdapter.getPosition(currentIdentityName);
+        if (position >= 0) {
+            this.displayIdentity(position);
+            return;
+        }
+
+        // The selected position may be past the end of the list if the selected identity was just removed
+        int selectedPosition = Math.max(0, Math.min(this.getSelectedItemPosition(), count - 1));
+        if (currentIdentityName == null) {
+            this.persistCurrentIdentity(this.mAdapter.getItem(selectedPosition));
+        }
+        this.displayIdentity(selectedPosition);
+    }
+
+    private void displayIdentity(int position) {
+        // Recorded first, as changing the selection reports it to onItemSelected
+        this.mDisplayedIdentity = this.mAdapter.getItem(position);
+        if (position != this.getSelectedItemPosition()) {
+            this.setSelection(position);
+        }
+    }
+
+    /**
+     * Gets the name of the current identity, treating the most recent selection as current even if it has not yet been made so.
+     *
+     * @return The name of the current identity, or null if there is none.
+     */
+    private String getCurrentIdentityName() {
+        if (this.mPendingCurrentIdentity != null) {
+            return this.mPendingCurrentIdentity;
+        }
+
+        return this.mIdentityManager.getCurrentIdentityName();
+    }
+
+    /**
+     * Makes the given identity current on a background thread.
+     *
+     * @param identityName  The name of the identity.
+     */
+    private void persistCurrentIdentity(final String identityName) {
+        this.mPendingCurrentIdentity = identityName;
+        final SQRLIdentityManager identityManager = this.mIdentityManager;
+        sSelectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
                 try {
-                    this.mIdentityManager.setCurrentIdentity((String)this.getSelectedItem());
+                    identityManager.setCurrentIdentity(identityName);
                 } catch (IdentityDoesNotExistException ex) {
-                    Log.wtf(TAG, "Identity name taken from SQRLIdentityManager.getIdentityNames() list does not exist according to setCurrentIdentity.");
-                    throw new RuntimeException(ex);
+                    // The identity has been removed, and the spinner will reselect once the removal reaches the adapter
+                    Log.w(TAG, "Identity removed before it could be made current.");
                 }
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mPendingCurrentIdentity == identityName) {
+                            mPendingCurrentIdentity = null;
+                            if (mListening) {
+                                selectCurrentIdentity();
+                            }
+                        }
+                    }
+                });
             }
-        }
+        });
+    }
+
+    @Override
+    public void onIdentityAdded(String identityName) {
+        // The new identity may be the first, in which case it should become the current identity
+        this.mHandler.post(this.mSelectCurrentIdentityRunnable);
+    }
+
+    @Override
+    public void onIdentityRemoved(String identityName) {
+        // The adapter removes the item, and any change of current identity is reported separately
+    }
+
+    @Override
+    public void onCurrentIdentityChanged(String identityName) {
+        this.mHandler.post(this.mSelectCurrentIdentityRunnable);
     }
 
     /**
@@ -109,12 +339,20 @@ public class IdentitySpinner extends Spinner implements AdapterView.OnItemSelect
      */
     @Override
     public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        if (this.mIdentityManager == null) {
+            // The placeholder is selected
+            return;
+        }
+
         String selectedIdentityName = (String)parent.getItemAtPosition(position);
-        try {
-            this.mIdentityManager.setCurrentIdentity(selectedIdentityName);
-        } catch (IdentityDoesNotExistException ex) {
-            Log.wtf(TAG, "Identity selected from identity spinner does not exist.");
-            throw new RuntimeException(ex);
+        if (selectedIdentityName.equals(this.mDisplayedIdentity)) {
+            // The spinner displayed the identity itself, for example whilst the current identity does not match the search query
+            return;
+        }
+
+        this.mDisplayedIdentity = selectedIdentityName;
+        if (!selectedIdentityName.equals(this.getCurrentIdentityName())) {
+            this.persistCurrentIdentity(selectedIdentityName);
         }
     }
 